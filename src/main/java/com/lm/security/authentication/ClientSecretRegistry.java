@@ -0,0 +1,172 @@
+package com.lm.security.authentication;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+
+import com.lm.security.crypto.HmacEngine;
+
+/*
+ * A ClientRegistrationRepository that indexes every ClientRegistration by registrationId and by clientId.
+ *
+ * For each registration, the client secret is prepared once (see ClientSecret): the HmacEngine that verifies
+ * Shopify's requests is initialized when the registry is built, not when the first request arrives.
+ * Lookups by either id are a single HashMap access, regardless of how many apps are registered.
+ *
+ * The indexes are immutable. reload(...) builds new ones and swaps them in with a single volatile write,
+ * so a request sees either the old registrations or the new ones, never a mix.
+ *
+ */
+public class ClientSecretRegistry implements ClientRegistrationRepository, Iterable<ClientRegistration> {
+
+	private volatile Index index;
+
+	public ClientSecretRegistry(ClientRegistration... registrations) {
+		this(Arrays.asList(registrations));
+	}
+
+	public ClientSecretRegistry(Iterable<ClientRegistration> registrations) {
+		this.index = new Index(registrations);
+	}
+
+	/*
+	 * Returns the repository itself if it is already a ClientSecretRegistry,
+	 * otherwise indexes the registrations it currently holds.
+	 */
+	@SuppressWarnings("unchecked")
+	public static ClientSecretRegistry from(ClientRegistrationRepository repository) {
+		if(repository instanceof ClientSecretRegistry) {
+			return (ClientSecretRegistry)repository;
+		}
+
+		if(repository instanceof Iterable) {
+			return new ClientSecretRegistry((Iterable<ClientRegistration>)repository);
+		}
+
+		throw new RuntimeException("Cannot index the ClientRegistrations of " + repository.getClass().getName());
+	}
+
+	/*
+	 * Replaces all the registrations.
+	 */
+	public void reload(Iterable<ClientRegistration> registrations) {
+		this.index = new Index(registrations);
+	}
+
+	@Override
+	public ClientRegistration findByRegistrationId(String registrationId) {
+		ClientSecret secret = findSecretByRegistrationId(registrationId);
+
+		return secret == null ? null : secret.getClientRegistration();
+	}
+
+	public ClientRegistration findByClientId(String clientId) {
+		ClientSecret secret = findSecretByClientId(clientId);
+
+		return secret == null ? null : secret.getClientRegistration();
+	}
+
+	public ClientSecret findSecretByRegistrationId(String registrationId) {
+		if(registrationId == null) {
+			return null;
+		}
+
+		return this.index.byRegistrationId.get(registrationId);
+	}
+
+	public ClientSecret findSecretByClientId(String clientId) {
+		if(clientId == null) {
+			return null;
+		}
+
+		return this.index.byClientId.get(clientId);
+	}
+
+	@Override
+	public Iterator<ClientRegistration> iterator() {
+		Iterator<ClientSecret> secrets = this.index.byRegistrationId.values().iterator();
+
+		return new Iterator<ClientRegistration>() {
+
+			@Override
+			public boolean hasNext() {
+				return secrets.hasNext();
+			}
+
+			@Override
+			public ClientRegistration next() {
+				return secrets.next().getClientRegistration();
+			}
+
+		};
+	}
+
+
+	/*
+	 * The secret of a ClientRegistration, with its HmacEngine already initialized.
+	 */
+	public static class ClientSecret {
+		private final ClientRegistration clientRegistration;
+		private final HmacEngine hmacEngine;
+
+		public ClientSecret(ClientRegistration clientRegistration) {
+			this.clientRegistration = clientRegistration;
+			this.hmacEngine = clientRegistration.getClientSecret() == null ? null : new HmacEngine(clientRegistration.getClientSecret());
+		}
+
+		public ClientRegistration getClientRegistration() {
+			return this.clientRegistration;
+		}
+
+		public String getRegistrationId() {
+			return this.clientRegistration.getRegistrationId();
+		}
+
+		public String getClientId() {
+			return this.clientRegistration.getClientId();
+		}
+
+		public String getSecret() {
+			return this.clientRegistration.getClientSecret();
+		}
+
+		/*
+		 * Null if the ClientRegistration has no secret
+		 */
+		public HmacEngine getHmacEngine() {
+			return this.hmacEngine;
+		}
+
+	}
+
+	private static class Index {
+		private final Map<String, ClientSecret> byRegistrationId;
+		private final Map<String, ClientSecret> byClientId;
+
+		Index(Iterable<ClientRegistration> registrations) {
+			Map<String, ClientSecret> byRegistrationId = new HashMap<>();
+			Map<String, ClientSecret> byClientId = new HashMap<>();
+
+			for(ClientRegistration registration : registrations) {
+				ClientSecret secret = new ClientSecret(registration);
+
+				if(byRegistrationId.put(registration.getRegistrationId(), secret) != null) {
+					throw new RuntimeException("Duplicate registrationId: " + registration.getRegistrationId());
+				}
+
+				if(byClientId.put(registration.getClientId(), secret) != null) {
+					throw new RuntimeException("Duplicate clientId: " + registration.getClientId());
+				}
+			}
+
+			this.byRegistrationId = Collections.unmodifiableMap(byRegistrationId);
+			this.byClientId = Collections.unmodifiableMap(byClientId);
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package com.lm.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Mac;
+
+import com.lm.security.crypto.DigestCodec;
+import com.lm.security.crypto.HmacEngine;
+
+/*
+ * Verifies the hmac parameter of a raw (undecoded) query string in a single pass.
+ *
+ * Shopify signs the query string without the hmac parameter. Instead of removing "hmac=..." with a regex
+ * and hashing the resulting String, the query is tokenized once on '&': every pair except the hmac pair
+ * is fed to the Mac as it is found, and the hmac value is remembered.
+ *
+ * Sometimes the query string arrives url-encoded, so Shopify's signature matches the decoded query instead.
+ * If the query contains a '%', the decoded pairs are collected into a per-thread buffer during the same pass
+ * and hashed once. Both candidates are always compared, so a failed verification costs the same as a
+ * successful one.
+ *
+ * The hex hmac value is decoded once and compared with the raw digest in constant time.
+ *
+ */
+public final class QueryHmacVerifier {
+	private static final String HMAC_PREFIX = ShopifyVerificationStrategy.HMAC_PARAMETER + "=";
+	private static final int MAX_RETAINED_BUFFER = 8192;
+
+	private static final ThreadLocal<DecodeBuffer> DECODE_BUFFER = ThreadLocal.withInitial(DecodeBuffer::new);
+
+	private QueryHmacVerifier() { }
+
+	/*
+	 * Returns true if the query string contains exactly one hmac parameter, and its value is the
+	 * HMAC-SHA256 of the rest of the query (as received, or url-decoded).
+	 */
+	public static boolean verify(String rawQueryString, HmacEngine engine) {
+		if(rawQueryString == null || rawQueryString.isEmpty()) {
+			return false;
+		}
+
+		boolean escaped = rawQueryString.indexOf('%') >= 0;
+		DecodeBuffer decoded = escaped ? DECODE_BUFFER.get().reset() : null;
+
+		try {
+			return verify(rawQueryString, engine, decoded);
+		} finally {
+			// on every path: an oversized buffer is not kept by this thread
+			if(decoded != null) {
+				decoded.release();
+			}
+		}
+	}
+
+	private static boolean verify(String rawQueryString, HmacEngine engine, DecodeBuffer decoded) {
+		boolean escaped = decoded != null;
+		boolean decodable = true;
+
+		Mac mac = engine.begin();
+
+		int hmacStart = -1;
+		int hmacEnd = -1;
+		int hmacCount = 0;
+		boolean firstPair = true;
+		int length = rawQueryString.length();
+		int pos = 0;
+
+		while(pos <= length) {
+			int end = rawQueryString.indexOf('&', pos);
+
+			if(end < 0) {
+				end = length;
+			}
+
+			if(isHmacPair(rawQueryString, pos, end)) {
+				hmacCount++;
+				hmacStart = Math.min(pos + HMAC_PREFIX.length(), end);
+				hmacEnd = end;
+
+			} else {
+				if(!firstPair) {
+					mac.update((byte)'&');
+
+					if(escaped) {
+						decoded.append((byte)'&');
+					}
+				}
+
+				HmacEngine.update(mac, rawQueryString, pos, end);
+
+				if(escaped) {
+					decodable &= decoded.appendDecoded(rawQueryString, pos, end);
+				}
+
+				firstPair = false;
+			}
+
+			pos = end + 1;
+		}
+
+		byte[] digest = engine.finish(mac);
+
+		if(hmacCount != 1) {
+			return false;
+		}
+
+		// decode the hex hmac once and compare bytes, in constant time
+		byte[] expected = DigestCodec.buffer();
+		boolean validHmac = DigestCodec.decodeHex(rawQueryString, hmacStart, hmacEnd, expected) == HmacEngine.DIGEST_LENGTH;
+
+		boolean matches = DigestCodec.constantTimeEquals(digest, expected, HmacEngine.DIGEST_LENGTH);
+
+		if(escaped) {
+			digest = engine.digest(decoded.bytes, 0, decoded.length);
+			matches |= decodable & DigestCodec.constantTimeEquals(digest, expected, HmacEngine.DIGEST_LENGTH);
+		}
+
+		return validHmac & matches;
+	}
+
+	// the size of the decode buffer this thread keeps
+	static int retainedBufferLength() {
+		return DECODE_BUFFER.get().bytes.length;
+	}
+
+	private static boolean isHmacPair(String query, int start, int end) {
+		if(end - start < HMAC_PREFIX.length() - 1) {
+			return false;
+		}
+
+		// "hmac" with no value still counts as an hmac parameter
+		if(end - start == HMAC_PREFIX.length() - 1) {
+			return query.regionMatches(start, HMAC_PREFIX, 0, HMAC_PREFIX.length() - 1);
+		}
+
+		return query.regionMatches(start, HMAC_PREFIX, 0, HMAC_PREFIX.length());
+	}
+
+	/*
+	 * Holds the url-decoded bytes of the query (what UriUtils.decode(...) would produce, encoded in UTF-8)
+	 */
+	private static class DecodeBuffer {
+		private byte[] bytes = new byte[256];
+		private int length;
+
+		DecodeBuffer reset() {
+			this.length = 0;
+			return this;
+		}
+
+		void release() {
+			if(this.bytes.length > MAX_RETAINED_BUFFER) {
+				this.bytes = new byte[256];
+			}
+			this.length = 0;
+		}
+
+		void append(byte b) {
+			ensureCapacity(1);
+			this.bytes[this.length++] = b;
+		}
+
+		/*
+		 * Returns false if the segment contains an invalid escape sequence
+		 */
+		boolean appendDecoded(String query, int start, int end) {
+			// an unescaped char needs at most 3 UTF-8 bytes (4 for a surrogate pair)
+			ensureCapacity((end - start) * 3);
+
+			for(int i = start; i < end; i++) {
+				char c = query.charAt(i);
+
+				if(c == '%') {
+					if(i + 2 >= end) {
+						return false;
+					}
+
+					int hi = Character.digit(query.charAt(i + 1), 16);
+					int lo = Character.digit(query.charAt(i + 2), 16);
+
+					if(hi < 0 || lo < 0) {
+						return false;
+					}
+
+					this.bytes[this.length++] = (byte)((hi << 4) + lo);
+					i += 2;
+
+				} else if(c < 0x80) {
+					this.bytes[this.length++] = (byte)c;
+
+				} else {
+					// rare: non-ascii characters in a raw query string
+					int next = i + 1;
+
+					if(Character.isHighSurrogate(c) && next < end) {
+						next++;
+					}
+
+					byte[] encoded = query.substring(i, next).getBytes(StandardCharsets.UTF_8);
+					System.arraycopy(encoded, 0, this.bytes, this.length, encoded.length);
+					this.length += encoded.length;
+					i = next - 1;
+				}
+			}
+
+			return true;
+		}
+
+		private void ensureCapacity(int extra) {
+			if(this.length + extra > this.bytes.length) {
+				byte[] larger = new byte[Math.max(this.bytes.length * 2, this.length + extra)];
+				System.arraycopy(this.bytes, 0, larger, 0, this.length);
+				this.bytes = larger;
+			}
+		}
+	}
+
+}
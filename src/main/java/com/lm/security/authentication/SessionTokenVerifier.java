@@ -0,0 +1,548 @@
+package com.lm.security.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+
+import com.lm.security.authentication.ClientSecretRegistry.ClientSecret;
+import com.lm.security.crypto.DigestCodec;
+import com.lm.security.crypto.HmacEngine;
+
+/*
+ * Verifies App Bridge session tokens: HS256 JWTs, signed with the client secret of the app, sent by the embedded
+ * app as "Authorization: Bearer <token>".
+ *
+ * A token is valid if:
+ *
+ * 	- its header's alg is HS256
+ * 	- its aud is the clientId of a registered app, and it is signed with that app's secret
+ * 	- it has not expired (exp), and is already valid (nbf, if present), give or take leeway
+ * 	- its dest is https://{shop}.myshopify.com, and its iss is dest + "/admin"
+ *
+ * The segments are decoded from the header value into a per-thread buffer, and the claims are read from the
+ * JSON bytes directly: only the values that are kept (shop, aud, sub) become Strings. The signature is computed
+ * over the token as received, by the HmacEngine the ClientSecretRegistry prepared for each secret, and compared
+ * in constant time.
+ *
+ * Nested values are skipped: aud must be a single string, as Shopify sends it.
+ */
+public final class SessionTokenVerifier {
+	public static final String ALGORITHM = "HS256";
+	public static final int MAX_TOKEN_LENGTH = 4096;
+
+	private static final String DEST_PREFIX = "https://";
+	private static final String ISS_SUFFIX = "/admin";
+	private static final String SHOP_SUFFIX = ".myshopify.com";
+
+	private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_TOKEN_LENGTH]);
+
+	private final ClientSecretRegistry clientSecretRegistry;
+	private final long leewaySeconds;
+	private final LongSupplier clock;
+
+	public SessionTokenVerifier(ClientSecretRegistry clientSecretRegistry, long leeway, TimeUnit unit) {
+		this(clientSecretRegistry, leeway, unit, () -> TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+	}
+
+	SessionTokenVerifier(ClientSecretRegistry clientSecretRegistry, long leeway, TimeUnit unit, LongSupplier clock) {
+		this.clientSecretRegistry = clientSecretRegistry;
+		this.leewaySeconds = unit.toSeconds(leeway);
+		this.clock = clock;
+	}
+
+	/*
+	 * The claims of the token, or null if it is not a valid session token
+	 */
+	public Claims verify(CharSequence token) {
+		int length = token == null ? 0 : token.length();
+
+		if(length == 0 || length > MAX_TOKEN_LENGTH) {
+			return null;
+		}
+
+		int headerEnd = indexOf(token, '.', 0, length);
+		int payloadEnd = headerEnd < 0 ? -1 : indexOf(token, '.', headerEnd + 1, length);
+
+		if(payloadEnd < 0 || indexOf(token, '.', payloadEnd + 1, length) >= 0) {
+			return null;
+		}
+
+		byte[] buffer = BUFFER.get();
+
+		// header
+		int decoded = DigestCodec.decodeBase64Url(token, 0, headerEnd, buffer);
+
+		if(decoded < 0) {
+			return null;
+		}
+
+		Claims header = new Claims();
+
+		if(!header.parse(buffer, decoded) || !ALGORITHM.equals(header.alg)) {
+			return null;
+		}
+
+		// payload
+		decoded = DigestCodec.decodeBase64Url(token, headerEnd + 1, payloadEnd, buffer);
+
+		if(decoded < 0) {
+			return null;
+		}
+
+		Claims claims = new Claims();
+
+		if(!claims.parse(buffer, decoded)) {
+			return null;
+		}
+
+		ClientSecret secret = this.clientSecretRegistry.findSecretByClientId(claims.aud);
+
+		if(secret == null || secret.getHmacEngine() == null) {
+			return null;
+		}
+
+		// signature
+		byte[] signature = DigestCodec.buffer();
+
+		if(DigestCodec.decodeBase64Url(token, payloadEnd + 1, length, signature) != HmacEngine.DIGEST_LENGTH) {
+			return null;
+		}
+
+		HmacEngine engine = secret.getHmacEngine();
+		Mac mac = engine.begin();
+		HmacEngine.update(mac, token, 0, payloadEnd);
+
+		if(!DigestCodec.constantTimeEquals(engine.finish(mac), signature, HmacEngine.DIGEST_LENGTH)) {
+			return null;
+		}
+
+		return isValid(claims) ? claims.of(secret) : null;
+	}
+
+	private boolean isValid(Claims claims) {
+		long now = this.clock.getAsLong();
+
+		if(claims.exp == null || now >= claims.exp + this.leewaySeconds) {
+			return false;
+		}
+
+		if(claims.nbf != null && claims.nbf > now + this.leewaySeconds) {
+			return false;
+		}
+
+		if(claims.dest == null || !claims.dest.startsWith(DEST_PREFIX) || !isShopDomain(claims.dest, DEST_PREFIX.length())) {
+			return false;
+		}
+
+		return claims.iss != null && claims.iss.length() == claims.dest.length() + ISS_SUFFIX.length()
+				&& claims.iss.startsWith(claims.dest) && claims.iss.endsWith(ISS_SUFFIX);
+	}
+
+	// {shop}.myshopify.com: lowercase letters, digits and hyphens
+	private static boolean isShopDomain(String value, int start) {
+		int nameEnd = value.length() - SHOP_SUFFIX.length();
+
+		if(nameEnd <= start || !value.endsWith(SHOP_SUFFIX)) {
+			return false;
+		}
+
+		for(int i = start; i < nameEnd; i++) {
+			char c = value.charAt(i);
+
+			if(!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-')) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int indexOf(CharSequence value, char c, int start, int end) {
+		for(int i = start; i < end; i++) {
+			if(value.charAt(i) == c) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/*
+	 * The claims of a verified session token
+	 */
+	public static final class Claims {
+		private String alg;
+		private String aud;
+		private String dest;
+		private String iss;
+		private String sub;
+		private Long exp;
+		private Long nbf;
+
+		private String registrationId;
+		private String shop;
+
+		Claims() { }
+
+		/*
+		 * The registrationId of the app the token was issued for
+		 */
+		public String getRegistrationId() {
+			return this.registrationId;
+		}
+
+		public String getClientId() {
+			return this.aud;
+		}
+
+		/*
+		 * The shop domain of dest: {shop}.myshopify.com
+		 */
+		public String getShop() {
+			return this.shop;
+		}
+
+		/*
+		 * The Shopify user, if the token was issued for one
+		 */
+		public String getSubject() {
+			return this.sub;
+		}
+
+		// seconds
+		public long getExpiresAt() {
+			return this.exp;
+		}
+
+		private Claims of(ClientSecret clientSecret) {
+			this.registrationId = clientSecret.getRegistrationId();
+			this.shop = this.dest.substring(DEST_PREFIX.length());
+
+			return this;
+		}
+
+		/*
+		 * Reads the members of a JSON object, keeping those of a session token.
+		 * Returns false if the bytes are not a JSON object.
+		 */
+		boolean parse(byte[] json, int length) {
+			Parser parser = new Parser(json, length);
+
+			if(!parser.skipWhitespace() || json[parser.pos++] != '{') {
+				return false;
+			}
+
+			if(parser.skipWhitespace() && json[parser.pos] == '}') {
+				parser.pos++;
+				return parser.atEnd();
+			}
+
+			while(true) {
+				if(!parser.skipWhitespace() || json[parser.pos] != '"') {
+					return false;
+				}
+
+				int keyStart = parser.pos + 1;
+
+				if(!parser.skipString()) {
+					return false;
+				}
+
+				int keyEnd = parser.pos - 1;
+
+				if(!parser.skipWhitespace() || json[parser.pos++] != ':' || !parser.skipWhitespace()) {
+					return false;
+				}
+
+				if(!read(parser, keyStart, keyEnd)) {
+					return false;
+				}
+
+				if(!parser.skipWhitespace()) {
+					return false;
+				}
+
+				byte next = json[parser.pos++];
+
+				if(next == '}') {
+					return parser.atEnd();
+				}
+
+				if(next != ',') {
+					return false;
+				}
+			}
+		}
+
+		private boolean read(Parser parser, int keyStart, int keyEnd) {
+			byte[] json = parser.json;
+
+			if(json[parser.pos] == '"') {
+				int valueStart = parser.pos + 1;
+
+				if(!parser.skipString()) {
+					return false;
+				}
+
+				String value = null;
+
+				if(is(json, keyStart, keyEnd, "alg") || is(json, keyStart, keyEnd, "aud") || is(json, keyStart, keyEnd, "dest")
+						|| is(json, keyStart, keyEnd, "iss") || is(json, keyStart, keyEnd, "sub")) {
+					value = Parser.decodeString(json, valueStart, parser.pos - 1);
+
+					if(value == null) {
+						return false;
+					}
+				}
+
+				if(is(json, keyStart, keyEnd, "alg")) {
+					this.alg = value;
+				} else if(is(json, keyStart, keyEnd, "aud")) {
+					this.aud = value;
+				} else if(is(json, keyStart, keyEnd, "dest")) {
+					this.dest = value;
+				} else if(is(json, keyStart, keyEnd, "iss")) {
+					this.iss = value;
+				} else if(is(json, keyStart, keyEnd, "sub")) {
+					this.sub = value;
+				}
+
+				return true;
+			}
+
+			if(json[parser.pos] == '-' || (json[parser.pos] >= '0' && json[parser.pos] <= '9')) {
+				Long value = parser.readNumber();
+
+				if(value == null) {
+					return false;
+				}
+
+				if(is(json, keyStart, keyEnd, "exp")) {
+					this.exp = value;
+				} else if(is(json, keyStart, keyEnd, "nbf")) {
+					this.nbf = value;
+				}
+
+				return true;
+			}
+
+			// a claim we verify must not be anything else
+			if(is(json, keyStart, keyEnd, "aud") || is(json, keyStart, keyEnd, "exp") || is(json, keyStart, keyEnd, "nbf")) {
+				return false;
+			}
+
+			return parser.skipValue();
+		}
+
+		private static boolean is(byte[] json, int start, int end, String key) {
+			if(end - start != key.length()) {
+				return false;
+			}
+
+			for(int i = 0; i < key.length(); i++) {
+				if(json[start + i] != key.charAt(i)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	private static final class Parser {
+		private final byte[] json;
+		private final int length;
+		private int pos;
+
+		Parser(byte[] json, int length) {
+			this.json = json;
+			this.length = length;
+		}
+
+		// true if there is something after the whitespace
+		boolean skipWhitespace() {
+			while(this.pos < this.length && (this.json[this.pos] == ' ' || this.json[this.pos] == '\t'
+					|| this.json[this.pos] == '\n' || this.json[this.pos] == '\r')) {
+				this.pos++;
+			}
+
+			return this.pos < this.length;
+		}
+
+		boolean atEnd() {
+			return !skipWhitespace();
+		}
+
+		// from the opening quote to after the closing one
+		boolean skipString() {
+			for(this.pos++; this.pos < this.length; this.pos++) {
+				byte b = this.json[this.pos];
+
+				if(b == '\\') {
+					this.pos++;
+				} else if(b == '"') {
+					this.pos++;
+					return true;
+				} else if(b >= 0 && b < 0x20) {
+					return false;
+				}
+			}
+
+			return false;
+		}
+
+		// an integer, or the integer part of a decimal
+		Long readNumber() {
+			boolean negative = this.json[this.pos] == '-';
+			int start = negative ? ++this.pos : this.pos;
+			long value = 0;
+
+			while(this.pos < this.length && this.json[this.pos] >= '0' && this.json[this.pos] <= '9') {
+				if(this.pos - start >= 18) {
+					return null;
+				}
+
+				value = value * 10 + (this.json[this.pos++] - '0');
+			}
+
+			if(this.pos == start) {
+				return null;
+			}
+
+			while(this.pos < this.length && (this.json[this.pos] == '.' || this.json[this.pos] == 'e' || this.json[this.pos] == 'E'
+					|| this.json[this.pos] == '+' || this.json[this.pos] == '-' || (this.json[this.pos] >= '0' && this.json[this.pos] <= '9'))) {
+				this.pos++;
+			}
+
+			return negative ? -value : value;
+		}
+
+		// any value: strings, numbers, literals, and nested objects or arrays
+		boolean skipValue() {
+			int depth = 0;
+
+			do {
+				if(!skipWhitespace()) {
+					return false;
+				}
+
+				byte b = this.json[this.pos];
+
+				if(b == '"') {
+					if(!skipString()) {
+						return false;
+					}
+				} else if(b == '{' || b == '[') {
+					depth++;
+					this.pos++;
+				} else if(b == '}' || b == ']') {
+					if(--depth < 0) {
+						return false;
+					}
+					this.pos++;
+				} else if(b == ',' || b == ':') {
+					if(depth == 0) {
+						return false;
+					}
+					this.pos++;
+				} else {
+					int start = this.pos;
+
+					while(this.pos < this.length && this.json[this.pos] != ',' && this.json[this.pos] != '}' && this.json[this.pos] != ']'
+							&& this.json[this.pos] != ' ' && this.json[this.pos] != '\n' && this.json[this.pos] != '\r' && this.json[this.pos] != '\t') {
+						this.pos++;
+					}
+
+					if(this.pos == start) {
+						return false;
+					}
+				}
+			} while(depth > 0);
+
+			return true;
+		}
+
+		/*
+		 * The string json[start, end), without its quotes, with its escapes resolved. Null if an escape is invalid.
+		 */
+		static String decodeString(byte[] json, int start, int end) {
+			int escape = -1;
+
+			for(int i = start; i < end; i++) {
+				if(json[i] == '\\') {
+					escape = i;
+					break;
+				}
+			}
+
+			if(escape < 0) {
+				return new String(json, start, end - start, StandardCharsets.UTF_8);
+			}
+
+			StringBuilder value = new StringBuilder(end - start);
+			value.append(new String(json, start, escape - start, StandardCharsets.UTF_8));
+
+			int i = escape;
+
+			while(i < end) {
+				if(json[i] != '\\') {
+					int next = i;
+
+					while(next < end && json[next] != '\\') {
+						next++;
+					}
+
+					value.append(new String(json, i, next - i, StandardCharsets.UTF_8));
+					i = next;
+					continue;
+				}
+
+				if(i + 1 >= end) {
+					return null;
+				}
+
+				byte c = json[i + 1];
+
+				switch(c) {
+					case '"': value.append('"'); break;
+					case '\\': value.append('\\'); break;
+					case '/': value.append('/'); break;
+					case 'b': value.append('\b'); break;
+					case 'f': value.append('\f'); break;
+					case 'n': value.append('\n'); break;
+					case 'r': value.append('\r'); break;
+					case 't': value.append('\t'); break;
+					case 'u':
+						if(i + 6 > end) {
+							return null;
+						}
+
+						int codeUnit = 0;
+
+						for(int j = i + 2; j < i + 6; j++) {
+							int digit = Character.digit(json[j], 16);
+
+							if(digit < 0) {
+								return null;
+							}
+
+							codeUnit = (codeUnit << 4) | digit;
+						}
+
+						value.append((char)codeUnit);
+						i += 4;
+						break;
+					default:
+						return null;
+				}
+
+				i += 2;
+			}
+
+			return value.toString();
+		}
+	}
+
+}
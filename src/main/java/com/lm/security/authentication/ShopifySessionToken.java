@@ -0,0 +1,53 @@
+package com.lm.security.authentication;
+
+import org.springframework.security.core.Transient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+/*
+ * Set by ShopifySessionTokenFilter for a request authenticated by its App Bridge session token.
+ *
+ * The same OAuth2AuthenticationToken ShopifyExistingTokenFilter sets, but @Transient: it is never saved in the
+ * HttpSession, since the next request carries a session token of its own.
+ *
+ * Keeps the claims of the token as plain values (no secret), so it serializes like its superclass.
+ */
+@Transient
+public class ShopifySessionToken extends OAuth2AuthenticationToken {
+
+	private static final long serialVersionUID = -1893316406405264812L;
+
+	private final String clientId;
+	private final String shop;
+	private final String subject;
+	private final long expiresAt;
+
+	public ShopifySessionToken(OAuth2User principal, SessionTokenVerifier.Claims claims) {
+		super(principal, null, claims.getRegistrationId());
+		this.clientId = claims.getClientId();
+		this.shop = claims.getShop();
+		this.subject = claims.getSubject();
+		this.expiresAt = claims.getExpiresAt();
+	}
+
+	public String getClientId() {
+		return this.clientId;
+	}
+
+	public String getShop() {
+		return this.shop;
+	}
+
+	/*
+	 * The Shopify user, if the token was issued for one
+	 */
+	public String getSubject() {
+		return this.subject;
+	}
+
+	// seconds
+	public long getExpiresAt() {
+		return this.expiresAt;
+	}
+
+}
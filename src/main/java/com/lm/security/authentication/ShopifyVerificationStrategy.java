@@ -3,25 +3,22 @@ package com.lm.security.authentication;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
-import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
-import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.web.util.UriUtils;
 
+import com.lm.security.authentication.ClientSecretRegistry.ClientSecret;
+import com.lm.security.crypto.DigestCodec;
+import com.lm.security.crypto.HmacEngine;
 import com.lm.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
+import com.lm.security.web.WebhookRequestWrapper;
 
 public class ShopifyVerificationStrategy {
 	public static final String NONCE_PARAMETER = OAuth2ParameterNames.STATE;
@@ -30,11 +27,14 @@ public class ShopifyVerificationStrategy {
 
 	
 	private ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository;
-	private ClientRegistrationRepository clientRegistrationRepository;
+	private ClientSecretRegistry clientSecretRegistry;
 	
 	
+	/*
+	 * If the ClientRegistrationRepository is not a ClientSecretRegistry, its registrations are indexed once, here.
+	 */
 	public ShopifyVerificationStrategy(ClientRegistrationRepository clientRegistrationRepository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository authReqRepository) {
-		this.clientRegistrationRepository = clientRegistrationRepository;
+		this.clientSecretRegistry = clientRegistrationRepository == null ? null : ClientSecretRegistry.from(clientRegistrationRepository);
 		this.authReqRepository = authReqRepository;
 
 	}
@@ -42,85 +42,39 @@ public class ShopifyVerificationStrategy {
 	/*
 	 * Perform HMAC verification as directed by Shopify:
 	 * 
-	 * 1. Obtains the hmac parameter from the query string
-	 * 2. Obtains the client secret using the HttpServletRequest
-	 * 3. Passes the query string, hmac, and secret to overloaded method.
+	 * 1. Obtains the client secret (and its prepared HmacEngine) using the HttpServletRequest
+	 * 2. Delegates to QueryHmacVerifier, which finds the hmac parameter in the raw query string and
+	 *    hashes the rest of the query in a single pass.
 	 */
 	public boolean isShopifyRequest(HttpServletRequest request) {
-		Map<String,String[]> requestParameters = this.getRequestParameters(request);
+		String rawQueryString = request.getQueryString();
 				
-		if(requestParameters == null) {
+		if(rawQueryString == null || rawQueryString.isEmpty()) {
 			return false;
 			
 		}
 		
-		String[] hmacValues = requestParameters.get(HMAC_PARAMETER);
-		
-		if(hmacValues == null || hmacValues.length != 1) {
-			return false;
-		}
-		
-		String hmacValue = hmacValues[0];
-		
-		if(hmacValue.isEmpty()) {
-			return false;
-		}
-		
-		String secret = getClientSecret(request);
+		ClientSecret secret = getClientSecret(request);
 		
-		if(!isShopifyQueryRequest(request.getQueryString(), hmacValue, secret)) {
-			// try again...
-			// sometimes the query string has been url encoded (by the server...?)
-			return isShopifyQueryRequest(UriUtils.decode(request.getQueryString(), StandardCharsets.UTF_8), hmacValue, secret);
-
-		}
-		
-		return true;
-
-		
-
+		return isShopifyQueryRequest(rawQueryString, secret.getHmacEngine());
 		
 	}
 	
 	/*
-	 * 1. Constructs the hmac parameter as it should appear in the url.
-	 * 2. Removes it from the query string.
-	 * 3. The query string is hashed with the secret.
-	 * 4. If the hash equals the hmac value, the request came from Shopify.
+	 * The query string is hashed with the secret (without the hmac parameter).
+	 * If the hash equals the hmac value, the request came from Shopify.
 	 */
-	private boolean isShopifyQueryRequest(String rawQueryString, String hmac, String secret) {
-
-		String hmacQueryStringPiece = HMAC_PARAMETER + "=" + hmac + "&";
-
-		String processedQuery = rawQueryString.replaceFirst(Pattern.quote(hmacQueryStringPiece), "");
-				
-		if(rawQueryString.equals(processedQuery)) {
-			// maybe the hmac parameter is the last parameter
-			
-			processedQuery = rawQueryString.replaceFirst(Pattern.quote("&" + HMAC_PARAMETER + "=" + hmac), "");
-
-			if(rawQueryString.equals(processedQuery)) {
-				// hmac not found 
-				// it should have been found because the hmac parameter should be from query string)
-				throw new RuntimeException("No HMAC found.");
-
-			}
-		}
-		
-		String shaOfQuery = hash(secret, processedQuery);
-		
-		if(shaOfQuery.equals(hmac)) {
-			return true;
-		}
+	private boolean isShopifyQueryRequest(String rawQueryString, HmacEngine engine) {
 
-		return false;
+		return QueryHmacVerifier.verify(rawQueryString, engine);
 		
 	}
 
 	
 	/*
-	 * This method makes sure there is an OAuth2AuthorizationRequest in the HttpSession
-	 * that matches the nonce that was provided in this request.
+	 * This method makes sure there is an OAuth2AuthorizationRequest
+	 * that matches the nonce that was provided in this request: in the HttpSession, or signed into
+	 * the nonce itself (see ShopifySignedStateAuthorizationRequestRepository).
 	 * 
 	 * This ensures that the nonce sent by the server (Shopify) matches the one 
 	 * previously sent by the client (us)
@@ -134,19 +88,15 @@ public class ShopifyVerificationStrategy {
 			return false;
 		}
 		
-		Map<String,OAuth2AuthorizationRequest> authorizationRequests = authReqRepository.getAuthorizationRequests(request);
-		
-		if(authorizationRequests != null) {
-			if(authorizationRequests.keySet().contains(nonce)) {
-				return true;
-			}
+		if(authReqRepository.getAuthorizationRequest(request, nonce) != null) {
+			return true;
+		}
 			
-			// try again...
-			// Url-decode the nonce:
-			nonce = UriUtils.decode(nonce, StandardCharsets.UTF_8);
-			if(authorizationRequests.keySet().contains(nonce)) {
-				return true;
-			}
+		// try again...
+		// Url-decode the nonce:
+		nonce = UriUtils.decode(nonce, StandardCharsets.UTF_8);
+		if(authReqRepository.getAuthorizationRequest(request, nonce) != null) {
+			return true;
 		}
 	
 		return false;
@@ -164,13 +114,11 @@ public class ShopifyVerificationStrategy {
 	 * Method 1: no OAuth2AuthorizationRequest
 	 * 		- Use ShopifyHttpSessionOAuth2AuthorizationRequestRepository to extract the registrationId 
 	 * 		  from the request path
-	 * 		- Delegate to getClientSecretByRegistrationId(...) to search the ClientRegistrationRepository to get the 
-	 * 		  ClientRegistration that matches the registrationId and obtain the client secret
+	 * 		- Delegate to getClientSecretByRegistrationId(...) to look up the client secret in the ClientSecretRegistry
 	 * 
 	 * Method 2: OAuth2AuthorizationRequest found
 	 * 		- Obtain the clientId from the OAuth2AuthorizationRequest
-	 * 		- Search the ClientRegistrationRepository to get the 
-	 * 		  ClientRegistration that matches the clientId and obtain the client secret
+	 * 		- Look up the client secret for that clientId in the ClientSecretRegistry
 	 * 
 	 * 
 	 * "/install/**": uses method 1 because no OAuth2AuthorizationRequest exists yet. 
@@ -180,12 +128,10 @@ public class ShopifyVerificationStrategy {
 	 * 
 	 */
 	
-	protected String getClientSecret(HttpServletRequest req) {
+	protected ClientSecret getClientSecret(HttpServletRequest req) {
 		
 		Map.Entry<String, OAuth2AuthorizationRequest> authReq = authReqRepository.getFirstAuthorizationRequest(req);
-		String clientId = null;
-		ClientRegistration reg = null;
-		String clientSecret = null;
+		ClientSecret clientSecret = null;
 		
 
 		if(authReq == null) {
@@ -197,27 +143,17 @@ public class ShopifyVerificationStrategy {
 			clientSecret = getClientSecretByRegistrationId(registrationId);
 			
 		} else {
-			clientId = authReq.getValue().getClientId();
+			String clientId = authReq.getValue().getClientId();
 			
-			Iterator<ClientRegistration> it = ((InMemoryClientRegistrationRepository)clientRegistrationRepository).iterator();
+			clientSecret = clientSecretRegistry.findSecretByClientId(clientId);
 			
-			while(it.hasNext()) {
-				ClientRegistration current = it.next();
-				if(current.getClientId().equals(clientId)) {
-					reg = current;
-					break;
-				}
-			}
-			
-			if(reg == null) {
+			if(clientSecret == null) {
 				throw new RuntimeException("No ClientRegistration found for " + clientId);
 			}
-			
-			clientSecret = reg.getClientSecret();
 
 		}
 		
-		if(clientSecret == null) {
+		if(clientSecret == null || clientSecret.getHmacEngine() == null) {
 			throw new RuntimeException("No client secret found");
 		}
 		
@@ -226,29 +162,18 @@ public class ShopifyVerificationStrategy {
 	}
 	
 	/*
-	 * Finds the client secret associated with the ClientRegistration with the given id by searching
-	 * the ClientRegistrationRepository
+	 * Finds the client secret associated with the ClientRegistration with the given id
 	 */
-	protected String getClientSecretByRegistrationId(String registrationId) {
-		ClientRegistration reg = clientRegistrationRepository.findByRegistrationId(registrationId);
+	protected ClientSecret getClientSecretByRegistrationId(String registrationId) {
 		
-		if(reg == null) {
-			return null;
-		}
+		return clientSecretRegistry.findSecretByRegistrationId(registrationId);
 		
-		return reg.getClientSecret();
-	}
-	
-	/*
-	 * Allows swapping the request parameter map for unit tests 
-	 */
-	protected Map<String,String[]> getRequestParameters(HttpServletRequest req) {
-		return req.getParameterMap();
-
 	}
 	
 	/*
 	 * Hashes the message using the secret
+	 * 
+	 * The HmacEngine for the secret is cached, so the Mac is not looked up and initialized on every call.
 	 */
 	public static String hash(String secret, String message) {
 		
@@ -256,11 +181,7 @@ public class ShopifyVerificationStrategy {
 		
 		try {
 			
-			Mac sha256_HMAC = Mac.getInstance("HmacSHA256");
-		    SecretKeySpec secret_key = new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256");
-		    sha256_HMAC.init(secret_key);
-
-		    hash = Hex.encodeHexString(sha256_HMAC.doFinal(message.getBytes("UTF-8")));
+			hash = HmacEngine.forSecret(secret).hexDigest(message);
 		    
 		}
 		    catch (Exception e){
@@ -279,7 +200,7 @@ public class ShopifyVerificationStrategy {
 		String body = null;
 		try {
 			in = req.getInputStream();
-			IOUtils.toString(in, "UTF-8");
+			body = IOUtils.toString(in, "UTF-8");
 		} catch(IOException ex) {
 			throw new RuntimeException("There was an error parsing the request body");
 		}
@@ -289,25 +210,47 @@ public class ShopifyVerificationStrategy {
 	
 	/*
 	 * Uses a secret to hash the body.
-	 * The result is then base64-encoded to compare to the base64-encoded hmac
+	 * The base64-encoded hmac is decoded once and compared to the raw hash in constant time.
 	 */
 	protected boolean isShopifyHeaderRequest(String body, String hmac, String secret) {
 		
-		String hashValue = hash(secret, body);
-
-		// From Shopify:
-		// "Each webhook request includes a base64-encoded X-Shopify-Hmac-SHA256 header"
+		return isShopifyHeaderRequest(body, hmac, HmacEngine.forSecret(secret));
+	}
+	
+	protected boolean isShopifyHeaderRequest(String body, String hmac, HmacEngine engine) {
 		
-		String encodedValue = Base64.getEncoder().encodeToString(hashValue.getBytes());
+		byte[] digest = engine.digest(body);
 
-		return encodedValue.equals(hmac);
+		return matchesBase64Hmac(digest, hmac);
+	}
+	
+	/*
+	 * From Shopify:
+	 * "Each webhook request includes a base64-encoded X-Shopify-Hmac-SHA256 header"
+	 * 
+	 * The header is the base64 encoding of the raw digest. For compatibility, the base64 encoding of
+	 * the hex digest (what this class used to compare against) is also accepted.
+	 */
+	protected static boolean matchesBase64Hmac(byte[] digest, String hmac) {
+		byte[] expected = DigestCodec.buffer();
+		int length = DigestCodec.decodeBase64(hmac, expected);
+		
+		if(length == DigestCodec.BUFFER_LENGTH) {
+			length = DigestCodec.decodeHex(expected, length, expected);
+		}
+		
+		boolean validHmac = length == HmacEngine.DIGEST_LENGTH;
+		
+		return validHmac & DigestCodec.constantTimeEquals(digest, expected, HmacEngine.DIGEST_LENGTH);
 	}
 	
 	/*
 	 * Uninstalling the app (see UninstallFilter):
 	 * 
 	 * 	1. Makes sure the request has the X-Shopify-Hmac-SHA256 header
-	 * 	2. Delegates to isShopifyHeaderRequest(...,...,...) to confirm the hash of the body
+	 * 	2. If the request is a WebhookRequestWrapper, the body is streamed through the Mac once 
+	 * 	   and kept in the wrapper so it can be parsed afterwards.
+	 * 	   Otherwise, delegates to isShopifyHeaderRequest(...,...,...) to confirm the hash of the body
 	 * 	   matches the hmac.
 	 */
 	public boolean isHeaderShopifyRequest(HttpServletRequest request, String registrationId) {
@@ -317,11 +260,34 @@ public class ShopifyVerificationStrategy {
 			return false;
 		}
 		
-		String secret = getClientSecretByRegistrationId(registrationId);
+		ClientSecret secret = getClientSecretByRegistrationId(registrationId);
+		
+		if(secret == null || secret.getHmacEngine() == null) {
+			return false;
+		}
+		
+		if(request instanceof WebhookRequestWrapper) {
+			return isShopifyHeaderRequest((WebhookRequestWrapper)request, hmacValue, secret.getHmacEngine());
+		}
 		
 		String body = getBody(request);
 	
-		return isShopifyHeaderRequest(body, hmacValue, secret);
+		return isShopifyHeaderRequest(body, hmacValue, secret.getHmacEngine());
+	}
+	
+	protected boolean isShopifyHeaderRequest(WebhookRequestWrapper request, String hmac, HmacEngine engine) {
+		Mac mac = engine.begin();
+		
+		try {
+			if(!request.readBody(mac)) {
+				// the body is too large to be a Shopify webhook
+				return false;
+			}
+		} catch(IOException ex) {
+			throw new RuntimeException("There was an error reading the request body");
+		}
+		
+		return matchesBase64Hmac(engine.finish(mac), hmac);
 	}
 	
 
@@ -0,0 +1,48 @@
+package com.lm.security.cache;
+
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+/*
+ * A cache of decrypted, ready-to-use OAuth2AuthorizedClients (see TokenService.getStore(...,...)).
+ *
+ * A load that started before an invalidation must not overwrite it with the stale value it read.
+ * So callers obtain a stamp with beginLoad(key) before reading the database, and pass it to put(...).
+ * The value is dropped if the key was invalidated in between (invalidations of other keys may share its stamp,
+ * see InvalidationStamps, but not all of them).
+ *
+ * When the keys are only known once read (a page of stores, see TokenCacheWarmer), callers obtain a stamp with
+ * beginBatchLoad() before reading the database, and turn it into the stamp of each key read with
+ * beginLoad(key, batchStamp). If any key was invalidated in between, the values of the batch are dropped.
+ *
+ */
+public interface AuthorizedClientCache {
+
+	/*
+	 * Returns the cached client, or null (a miss)
+	 */
+	OAuth2AuthorizedClient get(ShopKey key);
+
+	long beginLoad(ShopKey key);
+
+	long beginBatchLoad();
+
+	long beginLoad(ShopKey key, long batchStamp);
+
+	void put(ShopKey key, OAuth2AuthorizedClient client, long loadStamp);
+
+	void invalidate(ShopKey key);
+
+	void invalidateAll();
+
+	long size();
+
+	long hitCount();
+
+	long missCount();
+
+	/*
+	 * Entries removed because the cache was full or they expired (not invalidations)
+	 */
+	long evictionCount();
+
+}
@@ -0,0 +1,46 @@
+package com.lm.security.cache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * Publishes the counters of an AuthorizedClientCache:
+ *
+ * 	lm.token.cache.gets{result=hit|miss}
+ * 	lm.token.cache.evictions
+ * 	lm.token.cache.size
+ *
+ * The hit ratio, and whether evictions are caused by the size limit, tell how to size the cache.
+ */
+public class AuthorizedClientCacheMetrics implements MeterBinder {
+
+	private final AuthorizedClientCache cache;
+
+	public AuthorizedClientCacheMetrics(AuthorizedClientCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("lm.token.cache.gets", this.cache, AuthorizedClientCache::hitCount)
+				.tag("result", "hit")
+				.description("Stores found in the token cache")
+				.register(registry);
+
+		FunctionCounter.builder("lm.token.cache.gets", this.cache, AuthorizedClientCache::missCount)
+				.tag("result", "miss")
+				.description("Stores loaded from the database and decrypted")
+				.register(registry);
+
+		FunctionCounter.builder("lm.token.cache.evictions", this.cache, AuthorizedClientCache::evictionCount)
+				.description("Stores evicted from the token cache because it was full or they expired")
+				.register(registry);
+
+		Gauge.builder("lm.token.cache.size", this.cache, AuthorizedClientCache::size)
+				.description("Stores in the token cache")
+				.register(registry);
+	}
+
+}
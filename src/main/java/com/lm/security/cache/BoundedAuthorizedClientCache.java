@@ -0,0 +1,182 @@
+package com.lm.security.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+
+/*
+ * An on-heap AuthorizedClientCache bounded by size and by time-to-live.
+ *
+ * Entries are kept in access order, so when the cache is full, the least recently used entry is evicted.
+ * An entry older than the TTL is never returned, and is evicted when it is next accessed.
+ *
+ * The map is guarded by the cache's lock: every operation is a few pointer updates, so contention is low
+ * compared to the SQL query and the decryption a hit saves. The counters are LongAdders and can be read
+ * without the lock.
+ *
+ * A maxSize of 0 disables caching: every get(...) is a miss.
+ *
+ */
+public class BoundedAuthorizedClientCache implements AuthorizedClientCache {
+
+	private final int maxSize;
+	private final long ttlNanos;
+	private final LongSupplier clock;
+
+	private final LinkedHashMap<ShopKey, Entry> entries;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	// advanced by the invalidations, see beginLoad(...)
+	private final InvalidationStamps invalidations = new InvalidationStamps();
+
+	public BoundedAuthorizedClientCache(int maxSize, long ttl, TimeUnit unit) {
+		this(maxSize, ttl, unit, System::nanoTime);
+	}
+
+	BoundedAuthorizedClientCache(int maxSize, long ttl, TimeUnit unit, LongSupplier clock) {
+		this.maxSize = maxSize;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.clock = clock;
+		this.entries = new LinkedHashMap<ShopKey, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ShopKey, Entry> eldest) {
+				if(size() > BoundedAuthorizedClientCache.this.maxSize) {
+					BoundedAuthorizedClientCache.this.evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public OAuth2AuthorizedClient get(ShopKey key) {
+		OAuth2AuthorizedClient client = null;
+
+		synchronized(this) {
+			Entry entry = this.entries.get(key);
+
+			if(entry != null) {
+				if(isExpired(entry)) {
+					this.entries.remove(key);
+					this.evictions.increment();
+				} else {
+					client = entry.client;
+				}
+			}
+		}
+
+		if(client == null) {
+			this.misses.increment();
+		} else {
+			this.hits.increment();
+		}
+
+		return client;
+	}
+
+	@Override
+	public synchronized long beginLoad(ShopKey key) {
+		return this.invalidations.current(key);
+	}
+
+	@Override
+	public synchronized long beginBatchLoad() {
+		return this.invalidations.batch();
+	}
+
+	@Override
+	public synchronized long beginLoad(ShopKey key, long batchStamp) {
+		return this.invalidations.current(key, batchStamp);
+	}
+
+	@Override
+	public void put(ShopKey key, OAuth2AuthorizedClient client, long loadStamp) {
+		if(this.maxSize <= 0 || client == null) {
+			return;
+		}
+
+		long expiresAt = this.clock.getAsLong() + this.ttlNanos;
+
+		synchronized(this) {
+			if(loadStamp != this.invalidations.current(key)) {
+				// the store changed while it was being loaded
+				return;
+			}
+
+			this.entries.put(key, new Entry(client, expiresAt));
+		}
+	}
+
+	@Override
+	public synchronized void invalidate(ShopKey key) {
+		this.invalidations.invalidate(key);
+		this.entries.remove(key);
+	}
+
+	@Override
+	public synchronized void invalidateAll() {
+		this.invalidations.invalidateAll();
+		this.entries.clear();
+	}
+
+	/*
+	 * Evicts every expired entry.
+	 * Not required for correctness, but frees the memory of stores that are no longer used.
+	 */
+	public synchronized void evictExpired() {
+		Iterator<Entry> it = this.entries.values().iterator();
+
+		while(it.hasNext()) {
+			if(isExpired(it.next())) {
+				it.remove();
+				this.evictions.increment();
+			}
+		}
+	}
+
+	@Override
+	public synchronized long size() {
+		return this.entries.size();
+	}
+
+	@Override
+	public long hitCount() {
+		return this.hits.sum();
+	}
+
+	@Override
+	public long missCount() {
+		return this.misses.sum();
+	}
+
+	@Override
+	public long evictionCount() {
+		return this.evictions.sum();
+	}
+
+	private boolean isExpired(Entry entry) {
+		return this.clock.getAsLong() - entry.expiresAt >= 0;
+	}
+
+	private static class Entry {
+		private final OAuth2AuthorizedClient client;
+		private final long expiresAt;
+
+		Entry(OAuth2AuthorizedClient client, long expiresAt) {
+			this.client = client;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.lm.security.cache;
+
+/*
+ * The load stamps of an AuthorizedClientCache (see beginLoad(...)): invalidation counters, striped by the hash of
+ * the ShopKey.
+ *
+ * Invalidating a store only discards the loads in flight of the stores of its stripe, instead of every load in
+ * flight. invalidateAll() advances every stripe.
+ *
+ * The loads of keys only known once read (a page of stores) start from batch(): current(key, batch) is the stamp
+ * of the key if nothing at all was invalidated since, else STALE, which no stripe ever equals.
+ *
+ * Not thread-safe: guarded by the lock of the cache.
+ *
+ */
+final class InvalidationStamps {
+
+	static final int DEFAULT_STRIPES = 1024;
+
+	static final long STALE = -1;
+
+	private final long[] stripes;
+	private long invalidations;
+
+	InvalidationStamps() {
+		this(DEFAULT_STRIPES);
+	}
+
+	InvalidationStamps(int stripes) {
+		if(stripes < 1 || Integer.bitCount(stripes) != 1) {
+			throw new IllegalArgumentException("The number of stripes must be a power of two: " + stripes);
+		}
+
+		this.stripes = new long[stripes];
+	}
+
+	long current(ShopKey key) {
+		return this.stripes[stripe(key)];
+	}
+
+	long batch() {
+		return this.invalidations;
+	}
+
+	long current(ShopKey key, long batch) {
+		return batch == this.invalidations ? current(key) : STALE;
+	}
+
+	void invalidate(ShopKey key) {
+		this.stripes[stripe(key)]++;
+		this.invalidations++;
+	}
+
+	void invalidateAll() {
+		this.invalidations++;
+
+		for(int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i]++;
+		}
+	}
+
+	private int stripe(ShopKey key) {
+		int h = key.hashCode() * 0x9E3779B9;
+
+		return (h ^ (h >>> 16)) & (this.stripes.length - 1);
+	}
+
+}
@@ -0,0 +1,433 @@
+package com.lm.security.cache;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+/*
+ * An AuthorizedClientCache that keeps its entries outside the heap, so a large cache does not fill the old
+ * generation with OAuth2AccessTokens, scope sets and Strings the garbage collector has to trace.
+ *
+ * Each entry is copied into a fixed-size slot of a direct buffer: the registrationId, shop, token value, scopes and
+ * token timestamps, as chars. Entries larger than a slot are not cached. The slots are found through an
+ * open-addressing index (linear probing, an int array holding slot numbers), keyed by (registrationId, shop).
+ *
+ * get(...) builds a new OAuth2AuthorizedClient from the slot, with the ClientRegistration of its registrationId:
+ * short-lived objects, collected with the young generation.
+ *
+ * When the cache is full, a slot is reclaimed with the CLOCK algorithm (an approximation of least recently used:
+ * a slot read since the hand last passed gets a second chance). A new entry is not marked as read, so a scan of
+ * stores read once (see TokenCacheWarmer) does not push out the stores in use.
+ *
+ * A slot is zeroed when its entry is evicted, invalidated or replaced, so the plaintext token does not stay in
+ * memory after the cache dropped it. The Strings handed out by get(...) are ordinary heap objects.
+ *
+ * Guarded by the cache's lock, like BoundedAuthorizedClientCache.
+ *
+ */
+public class OffHeapAuthorizedClientCache implements AuthorizedClientCache, DisposableBean {
+
+	// slot layout: hash, expiresAt (nanos), issuedAt, tokenExpiresAt (epoch millis), 4 lengths, then the chars
+	private static final int HASH = 0;
+	private static final int EXPIRES_AT = 4;
+	private static final int ISSUED_AT = 12;
+	private static final int TOKEN_EXPIRES_AT = 20;
+	private static final int LENGTHS = 28;
+	private static final int CHARS = 36;
+
+	private static final long NO_INSTANT = Long.MIN_VALUE;
+
+	private final ClientRegistrationRepository clientRegistrationRepository;
+	private final int maxSize;
+	private final int slotSize;
+	private final long ttlNanos;
+	private final LongSupplier clock;
+
+	private final ByteBuffer slots;
+	private final byte[] zeros;
+
+	// slot number + 1, 0 if the bucket is empty
+	private final int[] index;
+	private final int[] freeSlots;
+	private final boolean[] referenced;
+	private int freeCount;
+	private int hand;
+	private int size;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	// advanced by the invalidations, see beginLoad(...)
+	private final InvalidationStamps invalidations = new InvalidationStamps();
+
+	public OffHeapAuthorizedClientCache(ClientRegistrationRepository clientRegistrationRepository, int maxSize, int slotSize, long ttl, TimeUnit unit) {
+		this(clientRegistrationRepository, maxSize, slotSize, ttl, unit, System::nanoTime);
+	}
+
+	OffHeapAuthorizedClientCache(ClientRegistrationRepository clientRegistrationRepository, int maxSize, int slotSize, long ttl, TimeUnit unit, LongSupplier clock) {
+		if(maxSize < 0 || slotSize <= CHARS || (long)maxSize * slotSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("maxSize * slotSize must be at most 2 GB, and slotSize more than " + CHARS + " bytes");
+		}
+
+		this.clientRegistrationRepository = clientRegistrationRepository;
+		this.maxSize = maxSize;
+		this.slotSize = slotSize;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.clock = clock;
+
+		this.slots = ByteBuffer.allocateDirect(maxSize * slotSize);
+		this.zeros = new byte[slotSize];
+		this.index = new int[Math.max(2, Integer.highestOneBit(Math.max(1, maxSize) * 2 - 1) << 1)];
+		this.freeSlots = new int[maxSize];
+		this.referenced = new boolean[maxSize];
+
+		for(int i = 0; i < maxSize; i++) {
+			this.freeSlots[i] = maxSize - 1 - i;
+		}
+
+		this.freeCount = maxSize;
+	}
+
+	@Override
+	public OAuth2AuthorizedClient get(ShopKey key) {
+		String tokenValue = null;
+		String scope = null;
+		long issuedAt = NO_INSTANT;
+		long tokenExpiresAt = NO_INSTANT;
+
+		synchronized(this) {
+			int bucket = find(key);
+
+			if(bucket >= 0) {
+				int slot = this.index[bucket] - 1;
+				int offset = slot * this.slotSize;
+
+				if(this.clock.getAsLong() - this.slots.getLong(offset + EXPIRES_AT) >= 0) {
+					remove(bucket);
+					this.evictions.increment();
+				} else {
+					this.referenced[slot] = true;
+
+					int position = offset + CHARS + this.slots.getShort(offset + LENGTHS) * 2 + this.slots.getShort(offset + LENGTHS + 2) * 2;
+					int tokenLength = this.slots.getShort(offset + LENGTHS + 4);
+					tokenValue = readString(position, tokenLength);
+					scope = readString(position + tokenLength * 2, this.slots.getShort(offset + LENGTHS + 6));
+					issuedAt = this.slots.getLong(offset + ISSUED_AT);
+					tokenExpiresAt = this.slots.getLong(offset + TOKEN_EXPIRES_AT);
+				}
+			}
+		}
+
+		ClientRegistration registration = tokenValue == null ? null : this.clientRegistrationRepository.findByRegistrationId(key.getRegistrationId());
+
+		if(registration == null) {
+			this.misses.increment();
+			return null;
+		}
+
+		this.hits.increment();
+
+		OAuth2AccessToken token = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, tokenValue,
+				toInstant(issuedAt), toInstant(tokenExpiresAt), toScopes(scope));
+
+		return new OAuth2AuthorizedClient(registration, key.getShop(), token);
+	}
+
+	@Override
+	public synchronized long beginLoad(ShopKey key) {
+		return this.invalidations.current(key);
+	}
+
+	@Override
+	public synchronized long beginBatchLoad() {
+		return this.invalidations.batch();
+	}
+
+	@Override
+	public synchronized long beginLoad(ShopKey key, long batchStamp) {
+		return this.invalidations.current(key, batchStamp);
+	}
+
+	@Override
+	public void put(ShopKey key, OAuth2AuthorizedClient client, long loadStamp) {
+		if(this.maxSize <= 0 || client == null) {
+			return;
+		}
+
+		OAuth2AccessToken token = client.getAccessToken();
+		String scope = String.join(" ", token.getScopes());
+		int length = CHARS + (key.getRegistrationId().length() + key.getShop().length() + token.getTokenValue().length() + scope.length()) * 2;
+
+		if(length > this.slotSize || scope.length() > Short.MAX_VALUE) {
+			// too large for a slot: not cached
+			return;
+		}
+
+		long expiresAt = this.clock.getAsLong() + this.ttlNanos;
+
+		synchronized(this) {
+			if(loadStamp != this.invalidations.current(key)) {
+				// the store changed while it was being loaded
+				return;
+			}
+
+			int bucket = find(key);
+			int slot;
+
+			if(bucket >= 0) {
+				slot = this.index[bucket] - 1;
+				zero(slot);
+			} else {
+				slot = allocate();
+				insert(hash(key), slot);
+				this.size++;
+			}
+
+			int offset = slot * this.slotSize;
+			this.slots.putInt(offset + HASH, hash(key));
+			this.slots.putLong(offset + EXPIRES_AT, expiresAt);
+			this.slots.putLong(offset + ISSUED_AT, toMillis(token.getIssuedAt()));
+			this.slots.putLong(offset + TOKEN_EXPIRES_AT, toMillis(token.getExpiresAt()));
+			this.slots.putShort(offset + LENGTHS, (short)key.getRegistrationId().length());
+			this.slots.putShort(offset + LENGTHS + 2, (short)key.getShop().length());
+			this.slots.putShort(offset + LENGTHS + 4, (short)token.getTokenValue().length());
+			this.slots.putShort(offset + LENGTHS + 6, (short)scope.length());
+
+			int position = writeString(offset + CHARS, key.getRegistrationId());
+			position = writeString(position, key.getShop());
+			position = writeString(position, token.getTokenValue());
+			writeString(position, scope);
+
+			this.referenced[slot] = false;
+		}
+	}
+
+	@Override
+	public synchronized void invalidate(ShopKey key) {
+		this.invalidations.invalidate(key);
+
+		int bucket = find(key);
+
+		if(bucket >= 0) {
+			remove(bucket);
+		}
+	}
+
+	@Override
+	public synchronized void invalidateAll() {
+		this.invalidations.invalidateAll();
+
+		for(int bucket = 0; bucket < this.index.length; bucket++) {
+			if(this.index[bucket] != 0) {
+				int slot = this.index[bucket] - 1;
+				this.index[bucket] = 0;
+				release(slot);
+			}
+		}
+
+		this.size = 0;
+	}
+
+	// zeroes every slot
+	@Override
+	public void destroy() {
+		invalidateAll();
+	}
+
+	@Override
+	public synchronized long size() {
+		return this.size;
+	}
+
+	@Override
+	public long hitCount() {
+		return this.hits.sum();
+	}
+
+	@Override
+	public long missCount() {
+		return this.misses.sum();
+	}
+
+	@Override
+	public long evictionCount() {
+		return this.evictions.sum();
+	}
+
+	// a read-only view of the slots, for tests
+	synchronized ByteBuffer slots() {
+		return this.slots.asReadOnlyBuffer();
+	}
+
+	// the bucket of the key, or -1
+	private int find(ShopKey key) {
+		int hash = hash(key);
+		int mask = this.index.length - 1;
+
+		for(int bucket = hash & mask; this.index[bucket] != 0; bucket = (bucket + 1) & mask) {
+			int offset = (this.index[bucket] - 1) * this.slotSize;
+
+			if(this.slots.getInt(offset + HASH) == hash && matches(offset, key)) {
+				return bucket;
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean matches(int offset, ShopKey key) {
+		String registrationId = key.getRegistrationId();
+		String shop = key.getShop();
+
+		if(this.slots.getShort(offset + LENGTHS) != registrationId.length() || this.slots.getShort(offset + LENGTHS + 2) != shop.length()) {
+			return false;
+		}
+
+		int position = offset + CHARS;
+
+		for(int i = 0; i < registrationId.length(); i++, position += 2) {
+			if(this.slots.getChar(position) != registrationId.charAt(i)) {
+				return false;
+			}
+		}
+
+		for(int i = 0; i < shop.length(); i++, position += 2) {
+			if(this.slots.getChar(position) != shop.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void insert(int hash, int slot) {
+		int mask = this.index.length - 1;
+		int bucket = hash & mask;
+
+		while(this.index[bucket] != 0) {
+			bucket = (bucket + 1) & mask;
+		}
+
+		this.index[bucket] = slot + 1;
+	}
+
+	// removes the entry of the bucket, and shifts back the entries that probed past it
+	private void remove(int bucket) {
+		int mask = this.index.length - 1;
+
+		release(this.index[bucket] - 1);
+		this.index[bucket] = 0;
+		this.size--;
+
+		int empty = bucket;
+
+		for(int next = (bucket + 1) & mask; this.index[next] != 0; next = (next + 1) & mask) {
+			int home = this.slots.getInt((this.index[next] - 1) * this.slotSize + HASH) & mask;
+
+			// the entry can move to the empty bucket unless its home is between the two
+			boolean between = empty <= next ? (empty < home && home <= next) : (empty < home || home <= next);
+
+			if(!between) {
+				this.index[empty] = this.index[next];
+				this.index[next] = 0;
+				empty = next;
+			}
+		}
+	}
+
+	// a free slot, or the slot of the entry the clock hand evicts
+	private int allocate() {
+		if(this.freeCount > 0) {
+			return this.freeSlots[--this.freeCount];
+		}
+
+		while(true) {
+			int slot = this.hand;
+			this.hand = (this.hand + 1) % this.maxSize;
+
+			if(this.referenced[slot]) {
+				this.referenced[slot] = false;
+				continue;
+			}
+
+			int hash = this.slots.getInt(slot * this.slotSize + HASH);
+			int mask = this.index.length - 1;
+			int bucket = hash & mask;
+
+			while(this.index[bucket] != slot + 1) {
+				bucket = (bucket + 1) & mask;
+			}
+
+			remove(bucket);
+			this.evictions.increment();
+
+			return this.freeSlots[--this.freeCount];
+		}
+	}
+
+	private void release(int slot) {
+		zero(slot);
+		this.referenced[slot] = false;
+		this.freeSlots[this.freeCount++] = slot;
+	}
+
+	private void zero(int slot) {
+		ByteBuffer view = this.slots.duplicate();
+		view.position(slot * this.slotSize);
+		view.put(this.zeros);
+	}
+
+	private String readString(int position, int length) {
+		char[] chars = new char[length];
+
+		for(int i = 0; i < length; i++) {
+			chars[i] = this.slots.getChar(position + i * 2);
+		}
+
+		return new String(chars);
+	}
+
+	private int writeString(int position, String value) {
+		for(int i = 0; i < value.length(); i++, position += 2) {
+			this.slots.putChar(position, value.charAt(i));
+		}
+
+		return position;
+	}
+
+	private static int hash(ShopKey key) {
+		int h = key.hashCode() * 0x9E3779B9;
+
+		return h ^ (h >>> 16);
+	}
+
+	private static long toMillis(Instant instant) {
+		return instant == null ? NO_INSTANT : instant.toEpochMilli();
+	}
+
+	private static Instant toInstant(long millis) {
+		return millis == NO_INSTANT ? null : Instant.ofEpochMilli(millis);
+	}
+
+	private static Set<String> toScopes(String scope) {
+		if(scope.isEmpty()) {
+			return Collections.emptySet();
+		}
+
+		return new HashSet<>(Arrays.asList(scope.split(" ")));
+	}
+
+}
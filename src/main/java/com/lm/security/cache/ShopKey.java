@@ -0,0 +1,50 @@
+package com.lm.security.cache;
+
+/*
+ * Identifies a store: the app it installed (registrationId) and the shop.
+ */
+public final class ShopKey {
+	private final String registrationId;
+	private final String shop;
+	private final int hash;
+
+	public ShopKey(String registrationId, String shop) {
+		this.registrationId = registrationId;
+		this.shop = shop;
+		this.hash = 31 * registrationId.hashCode() + shop.hashCode();
+	}
+
+	public String getRegistrationId() {
+		return this.registrationId;
+	}
+
+	public String getShop() {
+		return this.shop;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+
+		if(!(obj instanceof ShopKey)) {
+			return false;
+		}
+
+		ShopKey other = (ShopKey)obj;
+
+		return this.hash == other.hash && this.shop.equals(other.shop) && this.registrationId.equals(other.registrationId);
+	}
+
+	@Override
+	public String toString() {
+		return this.registrationId + "/" + this.shop;
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.lm.security.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+ * Coalesces concurrent loads of the same key.
+ *
+ * The first thread to ask for a key runs the loader. Threads asking for the same key while it runs wait for
+ * that load and receive its result (or its exception) instead of running their own. Once the load completes,
+ * the key is forgotten: the next caller starts a new load.
+ *
+ * Loads in flight are kept in a ConcurrentHashMap, which locks per bin, and only to register or remove a load.
+ * Loaders never run under a lock, so loads of different keys proceed in parallel.
+ *
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder sharedLoads = new LongAdder();
+
+	public V load(K key, Supplier<V> loader) {
+		CompletableFuture<V> call = new CompletableFuture<>();
+		CompletableFuture<V> existing = this.inFlight.putIfAbsent(key, call);
+
+		if(existing != null) {
+			this.sharedLoads.increment();
+			return await(existing);
+		}
+
+		try {
+			V value = loader.get();
+			call.complete(value);
+
+			return value;
+
+		} catch (RuntimeException | Error ex) {
+			call.completeExceptionally(ex);
+			throw ex;
+
+		} finally {
+			this.inFlight.remove(key, call);
+		}
+	}
+
+	/*
+	 * Callers arriving after this will not join the load currently in flight for the key (if any), but start a new one.
+	 * Used when the value being loaded is known to be out of date.
+	 */
+	public void forget(K key) {
+		this.inFlight.remove(key);
+	}
+
+	public int inFlightCount() {
+		return this.inFlight.size();
+	}
+
+	/*
+	 * The number of calls that waited for another thread's load instead of loading
+	 */
+	public long sharedLoadCount() {
+		return this.sharedLoads.sum();
+	}
+
+	private static <V> V await(CompletableFuture<V> call) {
+		try {
+			return call.join();
+
+		} catch (CompletionException ex) {
+			Throwable cause = ex.getCause();
+
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+
+			if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+
+			throw ex;
+		}
+	}
+
+}
@@ -1,42 +1,86 @@
 package com.lm.security.configuration;
 
-import org.springframework.beans.factory.annotation.Autowired;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
 import org.springframework.security.oauth2.client.endpoint.OAuth2AuthorizationCodeGrantRequest;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
-import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserRequest;
 import org.springframework.security.oauth2.client.userinfo.OAuth2UserService;
 import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequestResolver;
 import org.springframework.security.oauth2.core.AuthorizationGrantType;
 import org.springframework.security.oauth2.core.ClientAuthenticationMethod;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.util.StringUtils;
 
 import com.lm.security.authentication.CipherPassword;
+import com.lm.security.authentication.ClientSecretRegistry;
+import com.lm.security.authentication.SessionTokenVerifier;
 import com.lm.security.authentication.ShopifyVerificationStrategy;
+import com.lm.security.cache.AuthorizedClientCache;
+import com.lm.security.cache.AuthorizedClientCacheMetrics;
+import com.lm.security.cache.BoundedAuthorizedClientCache;
+import com.lm.security.cache.OffHeapAuthorizedClientCache;
+import com.lm.security.crypto.DerivedKeyCache;
+import com.lm.security.crypto.EnvelopeTokenCipher;
+import com.lm.security.crypto.HmacEngine;
+import com.lm.security.crypto.SaltedTokenCipher;
+import com.lm.security.crypto.TokenCipher;
+import com.lm.security.crypto.TokenKeyring;
+import com.lm.security.repository.BloomFilteredTokenRepository;
+import com.lm.security.repository.ReencryptionCheckpointRepository;
+import com.lm.security.repository.ShopifyTokenRepositoryImpl;
+import com.lm.security.repository.embedded.EmbeddedTokenRepository;
 import com.lm.security.repository.TokenRepository;
+import com.lm.security.repository.migration.SchemaMigrator;
+import com.lm.security.repository.routing.ReplicaRoutingDataSource;
+import com.lm.security.repository.sharding.ShardRebalancer;
+import com.lm.security.repository.sharding.ShardedTokenRepository;
+import com.lm.security.scope.ScopeRegistry;
 import com.lm.security.service.DefaultShopifyUserService;
 import com.lm.security.service.ShopifyOAuth2AuthorizedClientService;
+import com.lm.security.service.TokenCacheWarmUpHealthIndicator;
+import com.lm.security.service.TokenCacheWarmer;
+import com.lm.security.service.TokenReencryptionJob;
 import com.lm.security.service.TokenService;
+import com.lm.security.session.CompactSessionSerializer;
 import com.lm.security.web.NoRedirectSuccessHandler;
+import com.lm.security.web.PendingAuthorizationRequestMetrics;
 import com.lm.security.web.ShopifyAuthorizationCodeTokenResponseClient;
 import com.lm.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
 import com.lm.security.web.ShopifyOAuth2AuthorizationRequestResolver;
+import com.lm.security.web.ShopifySignedStateAuthorizationRequestRepository;
+import com.zaxxer.hikari.HikariDataSource;
 
 
 @Configuration
 public class SecurityBeansConfig {
 	
+	// the registrationId of the app configured with shopify.client.*
 	public static final String SHOPIFY_REGISTRATION_ID = "shopify";
-	
-	@Autowired
-	private TokenRepository tokenRepository;
+	public static final String SHOPIFY_APPS_PREFIX = "shopify.apps.";
 	
 	@Bean
 	CipherPassword cipherPassword(@Value("${lm.security.cipher.password}") String password) {
@@ -62,9 +106,42 @@ public class SecurityBeansConfig {
 	}
 	
 	
+	/*
+	 * The app configured with shopify.client.* is always registered as "shopify".
+	 * 
+	 * More apps can be served from the same process by listing their registrationIds in shopify.apps
+	 * (ex: shopify.apps=brand1,brand2) and setting, for each one:
+	 * 
+	 * 		shopify.apps.brand1.client_id
+	 * 		shopify.apps.brand1.client_secret
+	 * 		shopify.apps.brand1.scope
+	 * 		shopify.apps.brand1.client_name (optional)
+	 * 
+	 * Each app is then reachable at /install/brand1, /store/uninstall/brand1, ...
+	 */
 	@Bean
-    public ClientRegistrationRepository clientRegistrationRepository(ClientRegistration shopifyClientRegistration) {
-        return new InMemoryClientRegistrationRepository(shopifyClientRegistration);
+    public ClientRegistrationRepository clientRegistrationRepository(ClientRegistration shopifyClientRegistration, Environment env,
+    		@Value("${shopify.apps:}") String apps) {
+		List<ClientRegistration> registrations = new ArrayList<>();
+		registrations.add(shopifyClientRegistration);
+		
+		for(String registrationId : StringUtils.commaDelimitedListToSet(apps)) {
+			registrationId = registrationId.trim();
+			
+			if(registrationId.isEmpty()) {
+				continue;
+			}
+			
+			String prefix = SHOPIFY_APPS_PREFIX + registrationId + ".";
+			
+			registrations.add(buildClientRegistration(registrationId,
+					env.getRequiredProperty(prefix + "client_id"),
+					env.getRequiredProperty(prefix + "client_secret"),
+					env.getRequiredProperty(prefix + "scope"),
+					env.getProperty(prefix + "client_name", "Shopify")));
+		}
+		
+        return new ClientSecretRegistry(registrations);
     }
 	
 	// used by AuthenticatedPrincipalOAuth2AuthorizedClientRepository
@@ -74,18 +151,369 @@ public class SecurityBeansConfig {
 	}
 	
 	@Bean
-	public OAuth2AuthorizationRequestResolver shopifyOauth2AuthorizationRequestResolver(ClientRegistrationRepository clientRegistrationRepository) {
-		return new ShopifyOAuth2AuthorizationRequestResolver(clientRegistrationRepository, customAuthorizationRequestRepository(), SecurityConfig.INSTALL_PATH, SecurityConfig.LOGIN_ENDPOINT);
+	public OAuth2AuthorizationRequestResolver shopifyOauth2AuthorizationRequestResolver(ClientRegistrationRepository clientRegistrationRepository,
+			ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository) {
+		return new ShopifyOAuth2AuthorizationRequestResolver(clientRegistrationRepository, customAuthorizationRequestRepository, SecurityConfig.INSTALL_PATH, SecurityConfig.LOGIN_ENDPOINT);
+	}
+	
+	/*
+	 * lm.security.authorization-request.store selects where pending OAuth2AuthorizationRequests are kept:
+	 * 
+	 * 	session (default): in the HttpSession, at most lm.security.authorization-request.max-pending of them
+	 * 	state: nowhere, the state is the request, signed with lm.security.authorization-request.state-secret
+	 * 	       (by default, a key derived from lm.security.cipher.password)
+	 * 
+	 * Either way, a request expires lm.security.authorization-request.ttl-seconds after it was made.
+	 * 
+	 * Also used by OAuth2LoginAuthenticationFilter to load, and remove, the request at the callback.
+	 */
+	@Bean
+	public ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository(ClientRegistrationRepository clientRegistrationRepository,
+			CipherPassword cipherPassword,
+			@Value("${lm.security.authorization-request.store:session}") String store,
+			@Value("${lm.security.authorization-request.state-secret:}") String stateSecret,
+			@Value("${lm.security.authorization-request.ttl-seconds:600}") long ttlSeconds,
+			@Value("${lm.security.authorization-request.max-pending:5}") int maxPending,
+			RedisSerializer<Object> springSessionDefaultRedisSerializer) {
+		if("state".equals(store)) {
+			return new ShopifySignedStateAuthorizationRequestRepository(SecurityConfig.INSTALL_PATH, clientRegistrationRepository, 
+					stateEngine(stateSecret, cipherPassword), ttlSeconds, TimeUnit.SECONDS);
+		}
+		
+		if(!"session".equals(store)) {
+			throw new IllegalArgumentException("Unknown lm.security.authorization-request.store: " + store);
+		}
+		
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository = new ShopifyHttpSessionOAuth2AuthorizationRequestRepository(
+				SecurityConfig.INSTALL_PATH, maxPending, ttlSeconds, TimeUnit.SECONDS);
+		
+		// lm.oauth2.pending-requests.payload-bytes: the size in Redis, whatever lm.security.session.serializer is
+		repository.setPayloadSerializer(springSessionDefaultRedisSerializer);
+		
+		return repository;
+	}
+	
+	/*
+	 * lm.security.session.serializer selects how spring-session writes session attributes to Redis:
+	 * 
+	 * 	jdk (default): Java serialization
+	 * 	compact: CompactSessionSerializer, which still reads what jdk wrote. Enable it once every instance
+	 * 	         is deployed with this version: the previous ones cannot read it.
+	 */
+	@Bean
+	public RedisSerializer<Object> springSessionDefaultRedisSerializer(@Value("${lm.security.session.serializer:jdk}") String serializer) {
+		if("compact".equals(serializer)) {
+			return new CompactSessionSerializer(SecurityBeansConfig.class.getClassLoader());
+		}
+		
+		if(!"jdk".equals(serializer)) {
+			throw new IllegalArgumentException("Unknown lm.security.session.serializer: " + serializer);
+		}
+		
+		return new JdkSerializationRedisSerializer(SecurityBeansConfig.class.getClassLoader());
 	}
 	
 	@Bean
-	public ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository() {
-		return new ShopifyHttpSessionOAuth2AuthorizationRequestRepository(SecurityConfig.INSTALL_PATH);
+	public PendingAuthorizationRequestMetrics pendingAuthorizationRequestMetrics(ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository) {
+		return new PendingAuthorizationRequestMetrics(customAuthorizationRequestRepository);
+	}
+	
+	private static HmacEngine stateEngine(String stateSecret, CipherPassword cipherPassword) {
+		if(!stateSecret.isEmpty()) {
+			return new HmacEngine(stateSecret);
+		}
+		
+		// a key of its own, not the password itself
+		byte[] key = new HmacEngine(cipherPassword.getPassword()).digest("lm.security.authorization-request.state-secret");
+		
+		return new HmacEngine(Arrays.copyOf(key, HmacEngine.DIGEST_LENGTH));
 	}
 	
 	@Bean
-	public TokenService tokenService(CipherPassword cipherPassword, ClientRegistrationRepository clientRegistrationRepository) {
-		return new TokenService(this.tokenRepository, cipherPassword, clientRegistrationRepository);
+	public TokenService tokenService(TokenRepository tokenRepository, TokenKeyring tokenKeyring, ClientRegistrationRepository clientRegistrationRepository, AuthorizedClientCache authorizedClientCache) {
+		return new TokenService(tokenRepository, tokenKeyring, clientRegistrationRepository, authorizedClientCache);
+	}
+	
+	/*
+	 * lm.security.cipher.mode selects how new tokens are encrypted:
+	 * 
+	 * 	salted (default): a key derived from the password and a per-row salt
+	 * 	envelope: AES-GCM under a master key derived once from the password and lm.security.cipher.salt
+	 * 
+	 * New tokens are written with lm.security.cipher.key-version: by default 0 (SaltedTokenCipher.KEY_VERSION) in
+	 * salted mode and 1 in envelope mode. A key version always designates one mode and password: rows of key
+	 * version 0 can always be decrypted with the current password, so switching from the default salted mode to
+	 * envelope mode keeps them readable. A key version configured twice fails the startup.
+	 * 
+	 * Other key versions are listed in lm.security.cipher.previous-key-versions, as version[:mode] (the mode
+	 * defaults to lm.security.cipher.previous-mode). They are read with lm.security.cipher.previous-password and
+	 * previous-salt when the password changed, with the current ones otherwise. See TokenReencryptionJob.
+	 */
+	@Bean
+	public TokenKeyring tokenKeyring(CipherPassword cipherPassword, 
+			@Value("${lm.security.cipher.mode:salted}") String mode,
+			@Value("${lm.security.cipher.key-version:}") String keyVersion,
+			@Value("${lm.security.cipher.salt:}") String salt,
+			@Value("${lm.security.cipher.key-cache-size:10000}") int keyCacheSize,
+			@Value("${lm.security.cipher.previous-password:}") String previousPassword,
+			@Value("${lm.security.cipher.previous-mode:salted}") String previousMode,
+			@Value("${lm.security.cipher.previous-key-versions:}") String[] previousKeyVersions,
+			@Value("${lm.security.cipher.previous-salt:}") String previousSalt) {
+		DerivedKeyCache keyCache = new DerivedKeyCache(keyCacheSize);
+		int currentKeyVersion = keyVersion.isEmpty() ? ("envelope".equals(mode) ? 1 : SaltedTokenCipher.KEY_VERSION) : parseKeyVersion(keyVersion);
+		TokenCipher current = buildTokenCipher(mode, currentKeyVersion, cipherPassword.getPassword(), salt, keyCache);
+		List<TokenCipher> others = new ArrayList<>();
+		
+		if(!previousPassword.isEmpty() && previousKeyVersions.length == 0) {
+			// the old password wrote the original key version
+			previousKeyVersions = new String[] {String.valueOf(SaltedTokenCipher.KEY_VERSION)};
+		}
+		
+		for(String previous : previousKeyVersions) {
+			int separator = previous.indexOf(':');
+			int previousKeyVersion = parseKeyVersion(separator < 0 ? previous : previous.substring(0, separator));
+			String previousKeyMode = separator < 0 ? previousMode : previous.substring(separator + 1).trim();
+			
+			if(previousPassword.isEmpty()) {
+				others.add(buildTokenCipher(previousKeyMode, previousKeyVersion, cipherPassword.getPassword(), salt, keyCache));
+			} else {
+				others.add(buildTokenCipher(previousKeyMode, previousKeyVersion, previousPassword, previousSalt, keyCache));
+			}
+		}
+		
+		boolean originalVersionConfigured = current.getKeyVersion() == SaltedTokenCipher.KEY_VERSION;
+		
+		for(TokenCipher other : others) {
+			originalVersionConfigured |= other.getKeyVersion() == SaltedTokenCipher.KEY_VERSION;
+		}
+		
+		if(!originalVersionConfigured) {
+			others.add(new SaltedTokenCipher(cipherPassword.getPassword(), keyCache));
+		}
+		
+		return new TokenKeyring(current, others.toArray(new TokenCipher[others.size()]));
+	}
+	
+	private static int parseKeyVersion(String keyVersion) {
+		try {
+			return Integer.parseInt(keyVersion.trim());
+		} catch (NumberFormatException ex) {
+			throw new RuntimeException("Invalid lm.security.cipher key version: " + keyVersion, ex);
+		}
+	}
+	
+	private static TokenCipher buildTokenCipher(String mode, int keyVersion, String password, String salt, DerivedKeyCache keyCache) {
+		if("salted".equals(mode)) {
+			return new SaltedTokenCipher(keyVersion, password, keyCache);
+		}
+		
+		if("envelope".equals(mode)) {
+			return new EnvelopeTokenCipher(keyVersion, password, salt);
+		}
+		
+		throw new RuntimeException("Unknown lm.security.cipher mode: " + mode);
+	}
+	
+	/*
+	 * Re-encrypts the stored tokens with the current key at startup (see TokenReencryptionJob).
+	 * Enable with lm.security.cipher.reencrypt.enabled=true.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.cipher.reencrypt.enabled", havingValue = "true")
+	public TokenReencryptionJob tokenReencryptionJob(TokenRepository tokenRepository, TokenKeyring tokenKeyring, JdbcTemplate jdbcTemplate,
+			ObjectProvider<ShardedTokenRepository> shardedTokenRepository,
+			@Value("${lm.security.cipher.reencrypt.page-size:1000}") int pageSize,
+			@Value("${lm.security.cipher.reencrypt.threads:0}") int threads) {
+		List<ReencryptionCheckpointRepository> checkpoints = new ArrayList<>();
+		ShardedTokenRepository sharded = shardedTokenRepository.getIfAvailable();
+		
+		if(sharded != null) {
+			// the progress of each shard is saved in its own database
+			for(DataSource shard : sharded.getDataSources()) {
+				checkpoints.add(new ReencryptionCheckpointRepository(new JdbcTemplate(shard)));
+			}
+		} else {
+			checkpoints.add(new ReencryptionCheckpointRepository(jdbcTemplate));
+		}
+		
+		return new TokenReencryptionJob(tokenRepository, tokenKeyring, checkpoints, pageSize,
+				threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+	}
+	
+	/*
+	 * Decrypted OAuth2AuthorizedClients, by store, on the heap or off it (see OffHeapAuthorizedClientCache).
+	 * Set lm.security.token-cache.max-size=0 to disable.
+	 */
+	@Bean
+	public AuthorizedClientCache authorizedClientCache(ClientRegistrationRepository clientRegistrationRepository,
+			@Value("${lm.security.token-cache.max-size:10000}") int maxSize,
+			@Value("${lm.security.token-cache.ttl-seconds:600}") long ttlSeconds,
+			@Value("${lm.security.token-cache.off-heap.enabled:false}") boolean offHeap,
+			@Value("${lm.security.token-cache.off-heap.slot-bytes:1024}") int slotBytes) {
+		if(offHeap) {
+			return new OffHeapAuthorizedClientCache(clientRegistrationRepository, maxSize, slotBytes, ttlSeconds, TimeUnit.SECONDS);
+		}
+		
+		return new BoundedAuthorizedClientCache(maxSize, ttlSeconds, TimeUnit.SECONDS);
+	}
+	
+	/*
+	 * The TokenRepository used by the application, depending on lm.security.token-store.type: StoreAccessTokens
+	 * in the application's database (jdbc), in the databases of lm.security.token-store.shards (sharded), or
+	 * files in lm.security.token-store.embedded.directory (embedded).
+	 * 
+	 * With lm.security.store-filter.enabled=true, lookups of shops that are not installed skip the database
+	 * (see BloomFilteredTokenRepository). Off by default: a store installed through another instance would be
+	 * unknown to this one until the filter is rebuilt.
+	 */
+	@Bean
+	@Primary
+	public TokenRepository tokenRepository(ShopifyTokenRepositoryImpl shopifyTokenRepository,
+			ObjectProvider<ShardedTokenRepository> shardedTokenRepository,
+			ObjectProvider<EmbeddedTokenRepository> embeddedTokenRepository,
+			@Value("${lm.security.store-filter.enabled:false}") boolean storeFilterEnabled,
+			@Value("${lm.security.store-filter.expected-stores:100000}") long expectedStores,
+			@Value("${lm.security.store-filter.false-positive-rate:0.01}") double falsePositiveRate,
+			@Value("${lm.security.store-filter.refresh-seconds:300}") long refreshSeconds) {
+		TokenRepository store = shardedTokenRepository.getIfAvailable();
+		
+		if(store == null) {
+			store = embeddedTokenRepository.getIfAvailable();
+		}
+		
+		if(store == null) {
+			store = shopifyTokenRepository;
+		}
+		
+		// the embedded store never queries a database
+		if(!storeFilterEnabled || store instanceof EmbeddedTokenRepository) {
+			return store;
+		}
+		
+		return new BloomFilteredTokenRepository(store, expectedStores, falsePositiveRate, refreshSeconds);
+	}
+	
+	/*
+	 * Spreads the stores over the databases listed in lm.security.token-store.shards, by shop
+	 * (see ShardedTokenRepository), when lm.security.token-store.type=sharded. Each shard has its own
+	 * connection pool, and its schema is migrated like the application's database.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.token-store.type", havingValue = "sharded")
+	public ShardedTokenRepository shardedTokenRepository(DataSourceProperties primaryProperties,
+			@Value("${lm.security.token-store.shards}") String[] shardUrls,
+			@Value("${lm.security.token-store.shard.username:}") String username,
+			@Value("${lm.security.token-store.shard.password:}") String password,
+			@Value("${lm.security.token-store.shard.pool-size:10}") int poolSize,
+			@Value("${lm.security.token-store.previous-shard-count:0}") int previousShardCount,
+			@Value("${lm.security.schema.migrate:true}") boolean migrate) {
+		List<DataSource> shards = new ArrayList<>();
+		
+		for(String url : shardUrls) {
+			HikariDataSource shard = DataSourceBuilder.create()
+					.type(HikariDataSource.class)
+					.driverClassName(primaryProperties.determineDriverClassName())
+					.url(url.trim())
+					.username(username.isEmpty() ? primaryProperties.determineUsername() : username)
+					.password(password.isEmpty() ? primaryProperties.determinePassword() : password)
+					.build();
+			shard.setMaximumPoolSize(poolSize);
+			shard.setPoolName("token-shard-" + shards.size());
+			
+			if(migrate) {
+				new SchemaMigrator(shard).migrate();
+			}
+			
+			shards.add(shard);
+		}
+		
+		return new ShardedTokenRepository(shards, previousShardCount);
+	}
+	
+	/*
+	 * Keeps the stores in memory, persisted in lm.security.token-store.embedded.directory (see EmbeddedTokenRepository),
+	 * when lm.security.token-store.type=embedded. For a single instance.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.token-store.type", havingValue = "embedded")
+	public EmbeddedTokenRepository embeddedTokenRepository(
+			@Value("${lm.security.token-store.embedded.directory:token-store}") String directory,
+			@Value("${lm.security.token-store.embedded.log-size-mb:64}") int logSizeMb,
+			@Value("${lm.security.token-store.embedded.sync:false}") boolean sync,
+			@Value("${lm.security.token-store.embedded.snapshot-seconds:600}") long snapshotSeconds) {
+		return new EmbeddedTokenRepository(Paths.get(directory), logSizeMb << 20, sync, snapshotSeconds);
+	}
+	
+	/*
+	 * Moves the stores to their shard at startup, after shards were added (see ShardRebalancer).
+	 * Enable with lm.security.token-store.rebalance.enabled=true, on one instance.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.token-store.rebalance.enabled", havingValue = "true")
+	public ShardRebalancer shardRebalancer(ShardedTokenRepository shardedTokenRepository,
+			@Value("${lm.security.token-store.rebalance.page-size:500}") int pageSize) {
+		return new ShardRebalancer(shardedTokenRepository, pageSize);
+	}
+	
+	/*
+	 * Sends token lookups to read replicas (see ReplicaRoutingDataSource), when their urls are listed in
+	 * lm.security.datasource.replicas. Everything else uses the primary, configured with spring.datasource.*.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.datasource.replicas")
+	public ReplicaRoutingDataSource dataSource(DataSourceProperties primaryProperties,
+			@Value("${lm.security.datasource.replicas}") String[] replicaUrls,
+			@Value("${lm.security.datasource.replica.username:}") String username,
+			@Value("${lm.security.datasource.replica.password:}") String password,
+			@Value("${lm.security.datasource.read-your-writes-ms:5000}") long readYourWritesMs) {
+		DataSource primary = primaryProperties.initializeDataSourceBuilder().build();
+		List<DataSource> replicas = new ArrayList<>();
+		
+		for(String url : replicaUrls) {
+			replicas.add(DataSourceBuilder.create()
+					.driverClassName(primaryProperties.determineDriverClassName())
+					.url(url.trim())
+					.username(username.isEmpty() ? primaryProperties.determineUsername() : username)
+					.password(password.isEmpty() ? primaryProperties.determinePassword() : password)
+					.build());
+		}
+		
+		return new ReplicaRoutingDataSource(primary, replicas, readYourWritesMs, TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * Brings the StoreAccessTokens schema up to date at startup (see db/migration).
+	 * Set lm.security.schema.migrate=false to manage the schema separately.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.schema.migrate", havingValue = "true", matchIfMissing = true)
+	public SchemaMigrator schemaMigrator(DataSource dataSource) {
+		return new SchemaMigrator(dataSource);
+	}
+	
+	/*
+	 * Fills the token cache with the installed stores at startup (see TokenCacheWarmer).
+	 * Enable with lm.security.token-cache.warm-up.enabled=true.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.token-cache.warm-up.enabled", havingValue = "true")
+	public TokenCacheWarmer tokenCacheWarmer(TokenRepository tokenRepository, TokenService tokenService,
+			@Value("${lm.security.token-cache.max-size:10000}") long maxStores,
+			@Value("${lm.security.token-cache.warm-up.page-size:500}") int pageSize,
+			@Value("${lm.security.token-cache.warm-up.threads:4}") int threads,
+			@Value("${lm.security.token-cache.warm-up.ready-percent:90}") double readyPercent) {
+		return new TokenCacheWarmer(tokenRepository, tokenService, maxStores, pageSize, threads, readyPercent);
+	}
+	
+	@Bean
+	@ConditionalOnProperty(name = "lm.security.token-cache.warm-up.enabled", havingValue = "true")
+	public TokenCacheWarmUpHealthIndicator tokenCacheWarmUpHealthIndicator(TokenCacheWarmer tokenCacheWarmer) {
+		return new TokenCacheWarmUpHealthIndicator(tokenCacheWarmer);
+	}
+	
+	@Bean
+	public AuthorizedClientCacheMetrics authorizedClientCacheMetrics(AuthorizedClientCache authorizedClientCache) {
+		return new AuthorizedClientCacheMetrics(authorizedClientCache);
 	}
 	
 
@@ -94,23 +522,39 @@ public class SecurityBeansConfig {
 			 @Value("${shopify.client.client_secret}")String clientSecret, 
 			 @Value("${shopify.client.scope}")String scope) {
 		
+		return buildClientRegistration(SHOPIFY_REGISTRATION_ID, clientId, clientSecret, scope, "Shopify");
+	}
+	
+	private static ClientRegistration buildClientRegistration(String registrationId, String clientId, String clientSecret, String scope, String clientName) {
 
-        return ClientRegistration.withRegistrationId(SHOPIFY_REGISTRATION_ID)
+        return ClientRegistration.withRegistrationId(registrationId)
             .clientId(clientId)
             .clientSecret(clientSecret)
             .clientAuthenticationMethod(ClientAuthenticationMethod.POST)
             .authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
             .redirectUriTemplate("{baseUrl}" + SecurityConfig.AUTHORIZATION_REDIRECT_PATH + "/{registrationId}")
-            .scope(scope.split(","))
+            .scope(ScopeRegistry.parse(scope))
             .authorizationUri("https://{shop}/admin/oauth/authorize")
             .tokenUri("https://{shop}/admin/oauth/access_token")
-            .clientName("Shopify")
+            .clientName(clientName)
             .build();
     }
 	
+	/*
+	 * Verifies App Bridge session tokens (see ShopifySessionTokenFilter), allowing
+	 * lm.security.session-token.leeway-seconds of clock skew with Shopify. It shares the secrets (and their HmacEngines) of
+	 * the clientRegistrationRepository when it is a ClientSecretRegistry
+	 */
+	@Bean
+	public SessionTokenVerifier sessionTokenVerifier(ClientRegistrationRepository clientRegistrationRepository,
+			@Value("${lm.security.session-token.leeway-seconds:5}") long leewaySeconds) {
+		return new SessionTokenVerifier(ClientSecretRegistry.from(clientRegistrationRepository), leewaySeconds, TimeUnit.SECONDS);
+	}
+	
 	@Bean
-	public ShopifyVerificationStrategy shopifyVerficationStrategy(ClientRegistrationRepository clientRegistrationRepository) {
-		return new ShopifyVerificationStrategy(clientRegistrationRepository, customAuthorizationRequestRepository());
+	public ShopifyVerificationStrategy shopifyVerficationStrategy(ClientRegistrationRepository clientRegistrationRepository,
+			ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository) {
+		return new ShopifyVerificationStrategy(clientRegistrationRepository, customAuthorizationRequestRepository);
 	}
 
 }
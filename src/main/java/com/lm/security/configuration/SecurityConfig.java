@@ -2,6 +2,8 @@ package com.lm.security.configuration;
 
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
+import org.springframework.boot.actuate.health.HealthEndpoint;
 import org.springframework.context.ApplicationContext;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
@@ -17,12 +19,18 @@ import org.springframework.security.oauth2.client.web.OAuth2AuthorizationRequest
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
 import org.springframework.security.web.authentication.logout.LogoutFilter;
+import org.springframework.security.web.context.SecurityContextPersistenceFilter;
 
+import com.lm.security.authentication.SessionTokenVerifier;
 import com.lm.security.authentication.ShopifyVerificationStrategy;
 import com.lm.security.filters.BehindHttpsProxyFilter;
 import com.lm.security.filters.ShopifyExistingTokenFilter;
 import com.lm.security.filters.ShopifyOriginFilter;
+import com.lm.security.filters.ShopifyPathRouter;
+import com.lm.security.filters.ShopifySessionTokenFilter;
 import com.lm.security.filters.UninstallFilter;
+import com.lm.security.web.SessionTokenSecurityContextRepository;
+import com.lm.security.web.ShopifyHttpSessionOAuth2AuthorizationRequestRepository;
 
 
 @EnableWebSecurity
@@ -50,6 +58,9 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 	@Autowired
 	private OAuth2AuthorizationRequestResolver shopifyOauth2AuthorizationRequestResolver;
 	
+	@Autowired
+	private ShopifyHttpSessionOAuth2AuthorizationRequestRepository authorizationRequestRepository;
+	
 	@Autowired
 	private OAuth2AccessTokenResponseClient<OAuth2AuthorizationCodeGrantRequest> accessTokenResponseClient;
 	
@@ -62,24 +73,36 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 	@Autowired
 	private OAuth2AuthorizedClientService authorizedClientService;
 	
+	@Autowired
+	private SessionTokenVerifier sessionTokenVerifier;
+	
 	
 	@Override
 	protected void configure(HttpSecurity http) throws Exception {
 						
-		http.addFilterAfter(new ShopifyOriginFilter(shopifyVerficationStrategy, ANY_AUTHORIZATION_REDIRECT_PATH, ANY_INSTALL_PATH), LogoutFilter.class);
-		http.addFilterAfter(new ShopifyExistingTokenFilter(this.authorizedClientService, INSTALL_PATH), ShopifyOriginFilter.class);
-		http.addFilterBefore(new BehindHttpsProxyFilter(ANY_AUTHORIZATION_REDIRECT_PATH, ANY_INSTALL_PATH), OAuth2AuthorizationRequestRedirectFilter.class);
-		http.addFilterBefore(new UninstallFilter(UNINSTALL_URI, shopifyVerficationStrategy, authorizedClientService, converter), BehindHttpsProxyFilter.class);
+		// the request is classified once, by the first of these filters
+		ShopifyPathRouter router = new ShopifyPathRouter(INSTALL_PATH, AUTHORIZATION_REDIRECT_PATH, UNINSTALL_URI);
+						
+		http.addFilterBefore(new ShopifySessionTokenFilter(sessionTokenVerifier, authorizedClientService, router), SecurityContextPersistenceFilter.class);
+		http.addFilterAfter(new ShopifyOriginFilter(shopifyVerficationStrategy, router), LogoutFilter.class);
+		http.addFilterAfter(new ShopifyExistingTokenFilter(this.authorizedClientService, router), ShopifyOriginFilter.class);
+		http.addFilterBefore(new BehindHttpsProxyFilter(router), OAuth2AuthorizationRequestRedirectFilter.class);
+		http.addFilterBefore(new UninstallFilter(router, shopifyVerficationStrategy, authorizedClientService, converter), BehindHttpsProxyFilter.class);
 		
 		http.headers().frameOptions().disable()
 			  .and()
+			  .securityContext()
+			  	.securityContextRepository(new SessionTokenSecurityContextRepository()) // session tokens: no HttpSession
+			  .and()
 			  .csrf()
 			  	.ignoringAntMatchers(UNINSTALL_URI + "/*")
+			  	.ignoringRequestMatchers(request -> request.getAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE) != null)
 			  .and()
 	          .authorizeRequests()
 	          	.mvcMatchers(LOGIN_ENDPOINT).permitAll()
 	          	.mvcMatchers(ANY_INSTALL_PATH).permitAll()
 	          	.mvcMatchers("/favicon.ico").permitAll()
+	          	.requestMatchers(EndpointRequest.to(HealthEndpoint.class)).permitAll() // load balancer probe: see TokenCacheWarmUpHealthIndicator
 	          	.anyRequest().authenticated()
 	          .and()
 	          .logout()
@@ -89,6 +112,7 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 	          .oauth2Login()
 	          	.authorizationEndpoint()
 	          		.authorizationRequestResolver(shopifyOauth2AuthorizationRequestResolver)
+	          		.authorizationRequestRepository(authorizationRequestRepository) // loads the request at the redirection endpoint
 	          .and()
 	          	.redirectionEndpoint().baseUri(ANY_AUTHORIZATION_REDIRECT_PATH) // same as filterProcessesUrl
 	          .and()
@@ -1,6 +1,5 @@
 package com.lm.security.converter;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -13,7 +12,8 @@ import org.springframework.security.oauth2.core.OAuth2AccessToken;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
 import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.security.oauth2.core.http.converter.OAuth2AccessTokenResponseHttpMessageConverter;
-import org.springframework.util.StringUtils;
+
+import com.lm.security.scope.ScopeRegistry;
 
 /*
  * This converter is a OAuth2AccessTokenResponseHttpMessageConverter but with a custom response converter.
@@ -62,7 +62,7 @@ public class CustomShopifyOAuth2AccessTokenResponseHttpMessageConverter extends
 			Set<String> scopes = Collections.emptySet();
 			if (tokenResponseParameters.containsKey(OAuth2ParameterNames.SCOPE)) {
 				String scope = tokenResponseParameters.get(OAuth2ParameterNames.SCOPE);
-				scopes = Arrays.stream(StringUtils.delimitedListToStringArray(scope, ",")).collect(Collectors.toSet());
+				scopes = ScopeRegistry.parse(scope);
 			}
 
 			String refreshToken = tokenResponseParameters.get(OAuth2ParameterNames.REFRESH_TOKEN);
@@ -0,0 +1,94 @@
+package com.lm.security.crypto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/*
+ * Caches the TextEncryptor of each (password, salt) pair.
+ *
+ * Encryptors.queryableText(password, salt) derives the AES key with PBKDF2 (1024 iterations) every time it is
+ * called, which costs far more than the encryption itself. Each stored token has its own salt, so the key of a
+ * token is derived once, the first time it is used, instead of on every request.
+ *
+ * The returned encryptors are thread-safe (AesBytesEncryptor synchronizes encrypt and decrypt).
+ *
+ * The cache is bounded: once maxSize keys have been derived, the least recently used is discarded.
+ * Keys are derived outside of the lock, so a slow derivation does not block lookups of other salts.
+ *
+ */
+public class DerivedKeyCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<Key, TextEncryptor> encryptors;
+
+	public DerivedKeyCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.encryptors = new LinkedHashMap<Key, TextEncryptor>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, TextEncryptor> eldest) {
+				return size() > DerivedKeyCache.this.maxSize;
+			}
+		};
+	}
+
+	public TextEncryptor queryableText(String password, String salt) {
+		Key key = new Key(password, salt);
+		TextEncryptor encryptor;
+
+		synchronized(this.encryptors) {
+			encryptor = this.encryptors.get(key);
+		}
+
+		if(encryptor != null) {
+			return encryptor;
+		}
+
+		encryptor = Encryptors.queryableText(password, salt);
+
+		if(this.maxSize > 0) {
+			synchronized(this.encryptors) {
+				this.encryptors.put(key, encryptor);
+			}
+		}
+
+		return encryptor;
+	}
+
+	public int size() {
+		synchronized(this.encryptors) {
+			return this.encryptors.size();
+		}
+	}
+
+	private static final class Key {
+		private final String password;
+		private final String salt;
+
+		Key(String password, String salt) {
+			this.password = password;
+			this.salt = salt;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.password.hashCode() + this.salt.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key)obj;
+
+			return this.salt.equals(other.salt) && this.password.equals(other.password);
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+package com.lm.security.crypto;
+
+import java.util.Arrays;
+
+/*
+ * Decodes hex and Base64 HMAC values into bytes and compares digests in constant time.
+ *
+ * The decoders read the CharSequence directly and write into a caller-provided buffer, so verifying an
+ * incoming HMAC does not create any intermediate Strings or arrays. A per-thread buffer large enough for
+ * any digest this app verifies is available through buffer().
+ *
+ */
+public final class DigestCodec {
+	public static final int BUFFER_LENGTH = HmacEngine.DIGEST_LENGTH * 2;
+
+	private static final int[] BASE64_VALUES = new int[128];
+	private static final int[] BASE64_URL_VALUES = new int[128];
+	private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_LENGTH]);
+
+	static {
+		Arrays.fill(BASE64_VALUES, -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+		for(int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = i;
+		}
+
+		Arrays.fill(BASE64_URL_VALUES, -1);
+		String urlAlphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+		for(int i = 0; i < urlAlphabet.length(); i++) {
+			BASE64_URL_VALUES[urlAlphabet.charAt(i)] = i;
+		}
+	}
+
+	private DigestCodec() { }
+
+	/*
+	 * A per-thread buffer of BUFFER_LENGTH bytes, overwritten by the next caller on this thread.
+	 */
+	public static byte[] buffer() {
+		return BUFFER.get();
+	}
+
+	/*
+	 * Decodes value[start, end) as hex into out.
+	 * Returns the number of bytes written, or -1 if the value is not valid hex or does not fit.
+	 */
+	public static int decodeHex(CharSequence value, int start, int end, byte[] out) {
+		int length = end - start;
+
+		if(length % 2 != 0 || length / 2 > out.length) {
+			return -1;
+		}
+
+		for(int i = 0; i < length / 2; i++) {
+			int hi = Character.digit(value.charAt(start + i * 2), 16);
+			int lo = Character.digit(value.charAt(start + i * 2 + 1), 16);
+
+			if(hi < 0 || lo < 0) {
+				return -1;
+			}
+
+			out[i] = (byte)((hi << 4) + lo);
+		}
+
+		return length / 2;
+	}
+
+	/*
+	 * Decodes hex digits stored as ASCII bytes: in[0, length) into out
+	 * Returns the number of bytes written, or -1 if the bytes are not valid hex or do not fit.
+	 */
+	public static int decodeHex(byte[] in, int length, byte[] out) {
+		if(length % 2 != 0 || length / 2 > out.length) {
+			return -1;
+		}
+
+		for(int i = 0; i < length / 2; i++) {
+			int hi = Character.digit(in[i * 2], 16);
+			int lo = Character.digit(in[i * 2 + 1], 16);
+
+			if(hi < 0 || lo < 0) {
+				return -1;
+			}
+
+			out[i] = (byte)((hi << 4) + lo);
+		}
+
+		return length / 2;
+	}
+
+	/*
+	 * Decodes a standard (padded) Base64 value into out.
+	 * Returns the number of bytes written, or -1 if the value is not valid Base64 or does not fit.
+	 */
+	public static int decodeBase64(CharSequence value, byte[] out) {
+		int length = value.length();
+
+		if(length == 0 || length % 4 != 0) {
+			return -1;
+		}
+
+		int padding = 0;
+		if(value.charAt(length - 1) == '=') {
+			padding++;
+			if(value.charAt(length - 2) == '=') {
+				padding++;
+			}
+		}
+
+		int decodedLength = length / 4 * 3 - padding;
+
+		if(decodedLength > out.length) {
+			return -1;
+		}
+
+		int pos = 0;
+
+		for(int i = 0; i < length; i += 4) {
+			int a = base64Value(value.charAt(i));
+			int b = base64Value(value.charAt(i + 1));
+			int c = i + 2 < length - padding ? base64Value(value.charAt(i + 2)) : 0;
+			int d = i + 3 < length - padding ? base64Value(value.charAt(i + 3)) : 0;
+
+			if(a < 0 || b < 0 || c < 0 || d < 0) {
+				return -1;
+			}
+
+			int bits = (a << 18) | (b << 12) | (c << 6) | d;
+
+			out[pos++] = (byte)(bits >> 16);
+			if(pos < decodedLength) {
+				out[pos++] = (byte)(bits >> 8);
+			}
+			if(pos < decodedLength) {
+				out[pos++] = (byte)bits;
+			}
+		}
+
+		return decodedLength;
+	}
+
+	/*
+	 * Decodes value[start, end) as unpadded Base64URL (the encoding of JWT segments) into out.
+	 * Returns the number of bytes written, or -1 if the value is not valid Base64URL or does not fit.
+	 *
+	 * Only the canonical encoding is valid: the unused bits of the last character must be 0, so a value has a
+	 * single spelling.
+	 */
+	public static int decodeBase64Url(CharSequence value, int start, int end, byte[] out) {
+		int length = end - start;
+
+		if(length % 4 == 1) {
+			return -1;
+		}
+
+		int decodedLength = length / 4 * 3 + (length % 4 == 0 ? 0 : length % 4 - 1);
+
+		if(decodedLength > out.length) {
+			return -1;
+		}
+
+		int pos = 0;
+		int bits = 0;
+		int bitCount = 0;
+
+		for(int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			int v = c < 128 ? BASE64_URL_VALUES[c] : -1;
+
+			if(v < 0) {
+				return -1;
+			}
+
+			bits = (bits << 6) | v;
+			bitCount += 6;
+
+			if(bitCount >= 8) {
+				bitCount -= 8;
+				out[pos++] = (byte)(bits >> bitCount);
+			}
+		}
+
+		if((bits & ((1 << bitCount) - 1)) != 0) {
+			return -1;
+		}
+
+		return decodedLength;
+	}
+
+	/*
+	 * Compares a[0, length) with b[0, length) without returning early on the first difference.
+	 */
+	public static boolean constantTimeEquals(byte[] a, byte[] b, int length) {
+		if(a.length < length || b.length < length) {
+			return false;
+		}
+
+		int difference = 0;
+
+		for(int i = 0; i < length; i++) {
+			difference |= a[i] ^ b[i];
+		}
+
+		return difference == 0;
+	}
+
+	private static int base64Value(char c) {
+		return c < 128 ? BASE64_VALUES[c] : -1;
+	}
+
+}
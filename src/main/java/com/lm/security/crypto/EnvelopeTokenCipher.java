@@ -0,0 +1,135 @@
+package com.lm.security.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.crypto.codec.Hex;
+
+/*
+ * Encrypts every token with AES-GCM under a single master key.
+ *
+ * The master key is derived once, when the cipher is created, from the cipher password and a fixed salt
+ * (lm.security.cipher.salt). Each row stores a random 96-bit nonce (hex) in its salt column, and the Base64
+ * encoding of ciphertext + tag in its access_token column. Decrypting a row is a single AES-GCM call.
+ *
+ * The key version, registrationId and shop of the row are authenticated (AAD) along with the token: a token
+ * copied into the row of another shop, or app, fails to decrypt instead of being served for it.
+ *
+ * A Cipher is not thread-safe, so each thread keeps its own instance.
+ *
+ */
+public class EnvelopeTokenCipher implements TokenCipher {
+	public static final int KDF_ITERATIONS = 100000;
+
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final int KEY_LENGTH = 256;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_LENGTH = 128;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final int keyVersion;
+	private final SecretKey masterKey;
+	private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(EnvelopeTokenCipher::newCipher);
+
+	/*
+	 * salt: hex-encoded, as lm.security.cipher.salt
+	 */
+	public EnvelopeTokenCipher(int keyVersion, String password, String salt) {
+		if(keyVersion == SaltedTokenCipher.KEY_VERSION) {
+			throw new IllegalArgumentException("Key version " + keyVersion + " is reserved for the salted cipher");
+		}
+
+		if(salt == null || salt.isEmpty()) {
+			throw new IllegalArgumentException("A salt is required to derive the master key");
+		}
+
+		this.keyVersion = keyVersion;
+		this.masterKey = deriveKey(password, Hex.decode(salt));
+	}
+
+	@Override
+	public int getKeyVersion() {
+		return this.keyVersion;
+	}
+
+	@Override
+	public String generateSalt() {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(nonce);
+
+		return new String(Hex.encode(nonce));
+	}
+
+	@Override
+	public String encrypt(String token, String salt, String registrationId, String shop) {
+		try {
+			Cipher cipher = init(Cipher.ENCRYPT_MODE, salt, registrationId, shop);
+
+			return Base64.getEncoder().encodeToString(cipher.doFinal(token.getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to encrypt the token", ex);
+		}
+	}
+
+	@Override
+	public String decrypt(String encryptedToken, String salt, String registrationId, String shop) {
+		try {
+			Cipher cipher = init(Cipher.DECRYPT_MODE, salt, registrationId, shop);
+
+			return new String(cipher.doFinal(Base64.getDecoder().decode(encryptedToken)), StandardCharsets.UTF_8);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to decrypt the token", ex);
+		}
+	}
+
+	private Cipher init(int mode, String nonce, String registrationId, String shop) throws GeneralSecurityException {
+		Cipher cipher = this.cipher.get();
+		cipher.init(mode, this.masterKey, new GCMParameterSpec(TAG_LENGTH, Hex.decode(nonce)));
+		cipher.updateAAD(associatedData(registrationId, shop));
+
+		return cipher;
+	}
+
+	// keyVersion/length(registrationId)/registrationId/shop: the length keeps ("ab", "c") and ("a", "bc") apart
+	private byte[] associatedData(String registrationId, String shop) {
+		if(registrationId == null || shop == null) {
+			throw new IllegalArgumentException("A token is encrypted for a registrationId and a shop");
+		}
+
+		return (this.keyVersion + "/" + registrationId.length() + "/" + registrationId + "/" + shop).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static SecretKey deriveKey(String password, byte[] salt) {
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, KDF_ITERATIONS, KEY_LENGTH);
+
+			try {
+				return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+			} finally {
+				spec.clearPassword();
+			}
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to derive the master key", ex);
+		}
+	}
+
+	private static Cipher newCipher() {
+		try {
+			return Cipher.getInstance(TRANSFORMATION);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to initialize " + TRANSFORMATION, ex);
+		}
+	}
+
+}
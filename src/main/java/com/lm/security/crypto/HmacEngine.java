@@ -0,0 +1,207 @@
+package com.lm.security.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * A reusable HMAC-SHA256 engine bound to a single secret.
+ *
+ * Mac.getInstance(...) performs a provider lookup and Mac.init(...) recomputes the key schedule, so instead
+ * of doing both for every request, each engine keeps one initialized Mac per thread (a Mac is not thread-safe).
+ * Digests are written into a per-thread buffer instead of a new array.
+ *
+ * IMPORTANT: the byte[] returned by digest(...) and finish(...) belongs to the calling thread and is
+ * overwritten by the next digest computed on that thread. Copy it if it must outlive the current request.
+ *
+ * Engines for a given secret can be shared with forSecret(...), which keeps a small, bounded cache.
+ *
+ */
+public final class HmacEngine {
+	public static final String ALGORITHM = "HmacSHA256";
+	public static final int DIGEST_LENGTH = 32;
+
+	private static final int MAX_CACHED_ENGINES = 64;
+	private static final int MAX_RETAINED_SCRATCH = 8192;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final ConcurrentMap<String, HmacEngine> ENGINES = new ConcurrentHashMap<>();
+
+	// shared by all engines: used to encode CharSequences before they are fed to a Mac
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<ThreadState> threadState;
+
+	public HmacEngine(String secret) {
+		this(secret.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public HmacEngine(byte[] secret) {
+		this.key = new SecretKeySpec(secret, ALGORITHM);
+
+		// fail fast if the key is unusable rather than on the first request
+		newMac(this.key);
+
+		this.threadState = ThreadLocal.withInitial(() -> new ThreadState(newMac(this.key)));
+	}
+
+	/*
+	 * Returns a cached engine for this secret.
+	 * Once the cache is full, a new (uncached) engine is returned.
+	 */
+	public static HmacEngine forSecret(String secret) {
+		HmacEngine engine = ENGINES.get(secret);
+
+		if(engine != null) {
+			return engine;
+		}
+
+		engine = new HmacEngine(secret);
+
+		if(ENGINES.size() < MAX_CACHED_ENGINES) {
+			HmacEngine existing = ENGINES.putIfAbsent(secret, engine);
+
+			if(existing != null) {
+				return existing;
+			}
+		}
+
+		return engine;
+	}
+
+	/*
+	 * Returns this thread's Mac, reset and ready to receive a new message.
+	 * Use update(...) to feed it and finish(...) to obtain the digest.
+	 */
+	public Mac begin() {
+		Mac mac = this.threadState.get().mac;
+		mac.reset();
+
+		return mac;
+	}
+
+	/*
+	 * Completes the message started with begin().
+	 */
+	public byte[] finish(Mac mac) {
+		byte[] digest = this.threadState.get().digest;
+
+		try {
+			mac.doFinal(digest, 0);
+		} catch (ShortBufferException ex) {
+			throw new IllegalStateException("The digest buffer is too small", ex);
+		}
+
+		return digest;
+	}
+
+	public byte[] digest(byte[] message, int offset, int length) {
+		Mac mac = begin();
+		mac.update(message, offset, length);
+
+		return finish(mac);
+	}
+
+	public byte[] digest(CharSequence message) {
+		Mac mac = begin();
+		update(mac, message, 0, message.length());
+
+		return finish(mac);
+	}
+
+	/*
+	 * Returns the lowercase hex encoding of the digest.
+	 * Identical to Hex.encodeHexString(mac.doFinal(message.getBytes("UTF-8")))
+	 */
+	public String hexDigest(CharSequence message) {
+		byte[] digest = digest(message);
+		char[] hex = this.threadState.get().hex;
+
+		for(int i = 0; i < DIGEST_LENGTH; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX[digest[i] & 0x0F];
+		}
+
+		return new String(hex);
+	}
+
+	/*
+	 * Feeds the UTF-8 encoding of message[start, end) to the Mac without creating an intermediate String.
+	 */
+	public static void update(Mac mac, CharSequence message, int start, int end) {
+		byte[] scratch = SCRATCH.get();
+		int maxBytes = (end - start) * 3;
+
+		if(scratch.length < maxBytes) {
+			scratch = new byte[maxBytes];
+
+			if(maxBytes <= MAX_RETAINED_SCRATCH) {
+				SCRATCH.set(scratch);
+			}
+		}
+
+		int length = encodeUtf8(message, start, end, scratch);
+		mac.update(scratch, 0, length);
+	}
+
+	private static int encodeUtf8(CharSequence message, int start, int end, byte[] out) {
+		int pos = 0;
+
+		for(int i = start; i < end; i++) {
+			char c = message.charAt(i);
+
+			if(c < 0x80) {
+				out[pos++] = (byte) c;
+
+			} else if(c < 0x800) {
+				out[pos++] = (byte) (0xC0 | (c >> 6));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
+
+			} else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(message.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, message.charAt(++i));
+				out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+				out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+
+			} else if(Character.isSurrogate(c)) {
+				// unpaired surrogate: String.getBytes(UTF_8) substitutes '?'
+				out[pos++] = (byte) '?';
+
+			} else {
+				out[pos++] = (byte) (0xE0 | (c >> 12));
+				out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		return pos;
+	}
+
+	private static Mac newMac(SecretKeySpec key) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+
+			return mac;
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Unable to initialize " + ALGORITHM, ex);
+		}
+	}
+
+	private static class ThreadState {
+		private final Mac mac;
+		private final byte[] digest = new byte[DIGEST_LENGTH];
+		private final char[] hex = new char[DIGEST_LENGTH * 2];
+
+		ThreadState(Mac mac) {
+			this.mac = mac;
+		}
+	}
+
+}
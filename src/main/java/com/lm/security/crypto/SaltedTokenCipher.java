@@ -0,0 +1,50 @@
+package com.lm.security.crypto;
+
+import org.springframework.security.crypto.keygen.KeyGenerators;
+
+/*
+ * The original encryption mode (key version 0): each row has its own random salt, and its key is derived
+ * from the cipher password and that salt (Encryptors.queryableText, through a DerivedKeyCache).
+ *
+ * After a password change, the new password gets its own key version, so rows encrypted with the old one
+ * can still be told apart (see TokenReencryptionJob).
+ */
+public class SaltedTokenCipher implements TokenCipher {
+	public static final int KEY_VERSION = 0;
+
+	private final int keyVersion;
+	private final String password;
+	private final DerivedKeyCache keyCache;
+
+	public SaltedTokenCipher(String password, DerivedKeyCache keyCache) {
+		this(KEY_VERSION, password, keyCache);
+	}
+
+	public SaltedTokenCipher(int keyVersion, String password, DerivedKeyCache keyCache) {
+		this.keyVersion = keyVersion;
+		this.password = password;
+		this.keyCache = keyCache;
+	}
+
+	@Override
+	public int getKeyVersion() {
+		return this.keyVersion;
+	}
+
+	@Override
+	public String generateSalt() {
+		return KeyGenerators.string().generateKey();
+	}
+
+	// the key of a row comes from its salt only: the row is not bound
+	@Override
+	public String encrypt(String token, String salt, String registrationId, String shop) {
+		return this.keyCache.queryableText(this.password, salt).encrypt(token);
+	}
+
+	@Override
+	public String decrypt(String encryptedToken, String salt, String registrationId, String shop) {
+		return this.keyCache.queryableText(this.password, salt).decrypt(encryptedToken);
+	}
+
+}
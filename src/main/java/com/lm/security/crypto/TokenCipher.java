@@ -0,0 +1,31 @@
+package com.lm.security.crypto;
+
+/*
+ * Encrypts the access tokens of StoreAccessTokens.
+ *
+ * Each row records the key version it was encrypted with, so rows written by different ciphers can coexist
+ * (see TokenKeyring). The per-row value stored in the salt column depends on the cipher: a PBKDF2 salt
+ * (SaltedTokenCipher) or an AES-GCM nonce (EnvelopeTokenCipher).
+ *
+ */
+public interface TokenCipher {
+
+	int getKeyVersion();
+
+	/*
+	 * A new per-row value, to be stored along with the encrypted token
+	 */
+	String generateSalt();
+
+	/*
+	 * registrationId and shop identify the row: a cipher may bind the token to them, so a token copied into
+	 * another row does not decrypt
+	 */
+	String encrypt(String token, String salt, String registrationId, String shop);
+
+	/*
+	 * Throws an exception if the token cannot be decrypted with this key, or was not encrypted for this row
+	 */
+	String decrypt(String encryptedToken, String salt, String registrationId, String shop);
+
+}
@@ -0,0 +1,44 @@
+package com.lm.security.crypto;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The TokenCiphers this app can decrypt with, by key version.
+ *
+ * New tokens are always encrypted with the current cipher. Existing rows are decrypted with the cipher of
+ * the key version they were written with, so changing the encryption mode does not invalidate stored tokens.
+ *
+ */
+public class TokenKeyring {
+
+	private final TokenCipher current;
+	private final Map<Integer, TokenCipher> ciphers;
+
+	public TokenKeyring(TokenCipher current, TokenCipher... others) {
+		Map<Integer, TokenCipher> ciphers = new HashMap<>();
+		ciphers.put(current.getKeyVersion(), current);
+
+		for(TokenCipher other : others) {
+			if(ciphers.put(other.getKeyVersion(), other) != null) {
+				throw new IllegalArgumentException("Duplicate key version: " + other.getKeyVersion());
+			}
+		}
+
+		this.current = current;
+		this.ciphers = Collections.unmodifiableMap(ciphers);
+	}
+
+	public TokenCipher current() {
+		return this.current;
+	}
+
+	/*
+	 * Null if no cipher is configured for this version
+	 */
+	public TokenCipher forVersion(int keyVersion) {
+		return this.ciphers.get(keyVersion);
+	}
+
+}
@@ -10,8 +10,6 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
-import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
-
 /* 
  * 
  * A problem occurs if this application is running behind a reverse proxy, because Shopify requires 
@@ -30,13 +28,11 @@ import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
  */
 public class BehindHttpsProxyFilter implements Filter {
 
-	private AntPathRequestMatcher redirectionPath;
-	private AntPathRequestMatcher loginPath;
+	private ShopifyPathRouter router;
 	
 	
-	public BehindHttpsProxyFilter(String redirectionPath, String loginPath) {
-		this.redirectionPath = new AntPathRequestMatcher(redirectionPath);
-		this.loginPath = new AntPathRequestMatcher(loginPath);
+	public BehindHttpsProxyFilter(ShopifyPathRouter router) {
+		this.router = router;
 
 	}
 	
@@ -46,7 +42,9 @@ public class BehindHttpsProxyFilter implements Filter {
 		
 		HttpServletRequest req = (HttpServletRequest)request;
 				
-		if(!redirectionPath.matches(req) && !loginPath.matches(req)) {
+		ShopifyPathRouter.Kind route = router.route(req).getKind();
+				
+		if(route != ShopifyPathRouter.Kind.AUTHORIZATION_REDIRECT && route != ShopifyPathRouter.Kind.INSTALL) {
 
 			chain.doFilter(request, response);
 			
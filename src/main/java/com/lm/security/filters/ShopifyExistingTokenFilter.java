@@ -14,20 +14,19 @@ import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.oauth2.core.user.OAuth2User;
-import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 import org.springframework.web.filter.GenericFilterBean;
 
 import com.lm.security.authentication.ShopifyOriginToken;
-import com.lm.security.configuration.SecurityBeansConfig;
 import com.lm.security.service.TokenService;
 import com.lm.security.service.ShopifyStore;
 
 /* 
- * This filter matches the installation path (/install/shopify) and checks the SecurityContextHolder for a 
+ * This filter matches the installation path (/install/{registrationId}) and checks the SecurityContextHolder for a 
  * ShopifyOriginToken to determine whether this request came from Shopify.
  * 
- * If it did, this filter attempts to find a token for the store.
- * If there is no token, the SecurityContextHolder's Authentication is left untouched.
+ * If it did, this filter attempts to find a token for the store and the app (registrationId) in the path.
+ * If there is no token, or the store did not grant every scope the app now requires, the SecurityContextHolder's
+ * Authentication is left untouched, so the store authorizes the app again.
  * 
  * If the request did not come from Shopify, the SecurityContextHolder's Authentication is left untouched.
 
@@ -36,12 +35,11 @@ import com.lm.security.service.ShopifyStore;
 public class ShopifyExistingTokenFilter extends GenericFilterBean {
 	
 	private OAuth2AuthorizedClientService clientService;
-	private AntPathRequestMatcher requestMatcher;
-	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
+	private ShopifyPathRouter router;
 	
-	public ShopifyExistingTokenFilter(OAuth2AuthorizedClientService clientService, String loginEndpoint) {
+	public ShopifyExistingTokenFilter(OAuth2AuthorizedClientService clientService, ShopifyPathRouter router) {
 		this.clientService = clientService;
-		this.requestMatcher = loginEndpoint.endsWith(REGISTRATION_ID) ? new AntPathRequestMatcher(loginEndpoint) : new AntPathRequestMatcher(loginEndpoint + "/" + REGISTRATION_ID);
+		this.router = router;
 		
 	}
 
@@ -51,7 +49,10 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 		
 		HttpServletRequest req = (HttpServletRequest) request;
 		
-		if(!requestMatcher.matches(req)) {
+		ShopifyPathRouter.Route route = router.route(req);
+		
+		// only the installation path of an app: /install/{registrationId}
+		if(route.getKind() != ShopifyPathRouter.Kind.INSTALL || route.getRegistrationId() == null) {
 			chain.doFilter(request, response);
 
 			return;
@@ -69,7 +70,7 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 			
 			if(originToken.isFromShopify()) {
 				
-				oauth2Token = this.getToken(req);
+				oauth2Token = this.getToken(req, route.getRegistrationId());
 				if(oauth2Token != null) {
 
 					this.setToken(oauth2Token);
@@ -96,7 +97,7 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 		SecurityContextHolder.getContext().setAuthentication(oauth2Token);
 	}
 	
-	private OAuth2AuthenticationToken getToken(HttpServletRequest request) {
+	private OAuth2AuthenticationToken getToken(HttpServletRequest request, String registrationId) {
 		
 		String shopName = request.getParameter(TokenService.SHOP_ATTRIBUTE_NAME);
 		
@@ -104,20 +105,24 @@ public class ShopifyExistingTokenFilter extends GenericFilterBean {
 			return null;
 		}
 		
-		
-		OAuth2AuthorizedClient client = clientService.loadAuthorizedClient(REGISTRATION_ID, shopName);
+		OAuth2AuthorizedClient client = clientService.loadAuthorizedClient(registrationId, shopName);
 		
 		if(client == null) {
 			// this store "has not been installed", or salt and passwords are outdated
 			return null;
 		}
+		
+		if(!TokenService.hasRequiredScopes(client)) {
+			// the app asks for more scopes than the store granted: install it again
+			return null;
+		}
 
 		// create an OAuth2AuthenticationToken
 		
 		OAuth2AuthenticationToken oauth2Authentication = new OAuth2AuthenticationToken(
 				transformAuthorizedClientToUser(client),
 				null,
-				REGISTRATION_ID);
+				registrationId);
 		
 		return oauth2Authentication;
 	}
@@ -2,9 +2,6 @@ package com.lm.security.filters;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -21,14 +18,13 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.web.access.AccessDeniedHandler;
 import org.springframework.security.web.access.AccessDeniedHandlerImpl;
-import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
 import com.lm.security.authentication.ShopifyOriginToken;
 import com.lm.security.authentication.ShopifyVerificationStrategy;
 
 /*
  * This filter checks the request to see if it came from Shopify.
- * It only checks the paths passed in via the constructor
+ * It only checks the authorization redirect and installation paths, as classified by the ShopifyPathRouter
  * 
  * If the request matches the authorizationPath (/login/app/oauth2/code/**), it must be from Shopify and contain the valid nonce.
  * If not, it uses accessDeniedHandler to generate an error
@@ -47,20 +43,15 @@ import com.lm.security.authentication.ShopifyVerificationStrategy;
  */
 public class ShopifyOriginFilter implements Filter {
 
-	private AntPathRequestMatcher mustComeFromShopifyMatcher;
-	private List<AntPathRequestMatcher> applicablePaths;
+	private ShopifyPathRouter router;
 	private ShopifyVerificationStrategy shopifyVerificationStrategy;
 	private AccessDeniedHandler accessDeniedHandler = new AccessDeniedHandlerImpl();
 	private String SHOPIFY_EMBEDDED_APP = "SHOPIFY_EMBEDDED_APP";
 	
-	public ShopifyOriginFilter(ShopifyVerificationStrategy shopifyVerificationStrategy, String authorizationPath, String... matchedPaths) {
-		this.mustComeFromShopifyMatcher = new AntPathRequestMatcher(authorizationPath);
+	public ShopifyOriginFilter(ShopifyVerificationStrategy shopifyVerificationStrategy, ShopifyPathRouter router) {
+		this.router = router;
 		this.shopifyVerificationStrategy = shopifyVerificationStrategy;
 		
-		applicablePaths = new ArrayList<>();
-		applicablePaths.add(mustComeFromShopifyMatcher);
-		Arrays.stream(matchedPaths).forEach(i -> applicablePaths.add(new AntPathRequestMatcher(i)));
-		
 	}
 	
 	
@@ -72,14 +63,16 @@ public class ShopifyOriginFilter implements Filter {
 		boolean comesFromShopify = false;
 		boolean isAlreadyAuthenticated = false;
 		
-		if(!applyFilter(request)) {
+		ShopifyPathRouter.Kind route = router.route((HttpServletRequest)request).getKind();
+		
+		if(!applyFilter(route)) {
 			chain.doFilter(request, response);
 			
 			return;
 		}
 		
 		// this filter will be applied
-		mustBeFromShopify = mustComeFromShopifyMatcher.matches((HttpServletRequest)request);
+		mustBeFromShopify = route == ShopifyPathRouter.Kind.AUTHORIZATION_REDIRECT;
 		comesFromShopify = isShopifyRequest(request);
 		isAlreadyAuthenticated = isAlreadyAuthenticated();
 				
@@ -146,14 +139,11 @@ public class ShopifyOriginFilter implements Filter {
 
 	}
 	
-	// should apply the filter if the request matches
-	// any path passed in to this filter
-	private boolean applyFilter(ServletRequest request) {
-		HttpServletRequest req = (HttpServletRequest)request;
-		
-		boolean match = this.applicablePaths.stream().anyMatch(i -> i.matches(req));
+	// should apply the filter if the request is to the
+	// authorization redirect path or the installation path
+	private boolean applyFilter(ShopifyPathRouter.Kind route) {
 		
-		return match;
+		return route == ShopifyPathRouter.Kind.AUTHORIZATION_REDIRECT || route == ShopifyPathRouter.Kind.INSTALL;
 		
 	}
 	
@@ -0,0 +1,182 @@
+package com.lm.security.filters;
+
+import javax.servlet.http.HttpServletRequest;
+
+/*
+ * Classifies a request once for all the custom filters (ShopifyOriginFilter, ShopifyExistingTokenFilter,
+ * BehindHttpsProxyFilter and UninstallFilter), which used to match it against their own AntPathRequestMatchers.
+ *
+ * The paths are the base paths of SecurityConfig. Each one, and anything under it, is a route:
+ *
+ * 		installPath (/install): INSTALL
+ * 		authorizationRedirectPath (/login/app/oauth2/code): AUTHORIZATION_REDIRECT
+ * 		uninstallPath (/store/uninstall): UNINSTALL
+ *
+ * Any other path is OTHER.
+ *
+ * When the path is basePath/{registrationId}, the Route also holds the registrationId.
+ *
+ * The prefixes are indexed by the character that follows the leading "/": a path that matches no route
+ * costs one array lookup, or a few startsWith(...).
+ *
+ * The Route is kept in the request attribute ROUTE_ATTRIBUTE, so the filters after the first one read it
+ * instead of matching again. It is computed again if the path changed (forward, error dispatch).
+ */
+public class ShopifyPathRouter {
+
+	public static final String ROUTE_ATTRIBUTE = ShopifyPathRouter.class.getName() + ".ROUTE";
+
+	public enum Kind {
+		INSTALL,
+		AUTHORIZATION_REDIRECT,
+		UNINSTALL,
+		OTHER
+	}
+
+	private final Prefix[][] byFirstChar = new Prefix[128][];
+
+	public ShopifyPathRouter(String installPath, String authorizationRedirectPath, String uninstallPath) {
+		add(installPath, Kind.INSTALL);
+		add(authorizationRedirectPath, Kind.AUTHORIZATION_REDIRECT);
+		add(uninstallPath, Kind.UNINSTALL);
+	}
+
+	private void add(String path, Kind kind) {
+		if(path == null) {
+			return;
+		}
+
+		if(path.length() < 2 || path.charAt(0) != '/' || path.endsWith("/") || path.charAt(1) >= this.byFirstChar.length) {
+			throw new IllegalArgumentException("Not a base path: " + path);
+		}
+
+		Prefix[] prefixes = this.byFirstChar[path.charAt(1)];
+		Prefix[] added = new Prefix[prefixes == null ? 1 : prefixes.length + 1];
+
+		if(prefixes != null) {
+			System.arraycopy(prefixes, 0, added, 0, prefixes.length);
+		}
+		added[added.length - 1] = new Prefix(path, kind);
+
+		this.byFirstChar[path.charAt(1)] = added;
+	}
+
+	/*
+	 * The Route of the request, from the request attribute if this router already classified this path
+	 */
+	public Route route(HttpServletRequest request) {
+		String path = getRequestPath(request);
+		Object cached = request.getAttribute(ROUTE_ATTRIBUTE);
+
+		if(cached instanceof Route && ((Route)cached).isFor(this, path)) {
+			return (Route)cached;
+		}
+
+		Route route = classify(path);
+		request.setAttribute(ROUTE_ATTRIBUTE, route);
+
+		return route;
+	}
+
+	Route classify(String path) {
+		if(path == null || path.length() < 2 || path.charAt(0) != '/' || path.charAt(1) >= this.byFirstChar.length) {
+			return new Route(this, path, Kind.OTHER, null);
+		}
+
+		Prefix[] prefixes = this.byFirstChar[path.charAt(1)];
+
+		if(prefixes != null) {
+			for(Prefix prefix : prefixes) {
+				Route route = prefix.match(this, path);
+
+				if(route != null) {
+					return route;
+				}
+			}
+		}
+
+		return new Route(this, path, Kind.OTHER, null);
+	}
+
+	// as AntPathRequestMatcher
+	private static String getRequestPath(HttpServletRequest request) {
+		String url = request.getServletPath();
+		String pathInfo = request.getPathInfo();
+
+		if(pathInfo != null) {
+			url = url != null && !url.isEmpty() ? url + pathInfo : pathInfo;
+		}
+
+		return url;
+	}
+
+	private static class Prefix {
+		private final String path;
+		private final Kind kind;
+
+		Prefix(String path, Kind kind) {
+			this.path = path;
+			this.kind = kind;
+		}
+
+		// path, path/ or path/..., with the registrationId for path/{registrationId}
+		Route match(ShopifyPathRouter router, String requestPath) {
+			int length = this.path.length();
+
+			if(!requestPath.startsWith(this.path)) {
+				return null;
+			}
+
+			if(requestPath.length() == length) {
+				return new Route(router, requestPath, this.kind, null);
+			}
+
+			if(requestPath.charAt(length) != '/') {
+				return null;
+			}
+
+			String registrationId = null;
+
+			if(requestPath.length() > length + 1 && requestPath.indexOf('/', length + 1) < 0) {
+				registrationId = requestPath.substring(length + 1);
+			}
+
+			return new Route(router, requestPath, this.kind, registrationId);
+		}
+	}
+
+	public static final class Route {
+		private final ShopifyPathRouter router;
+		private final String path;
+		private final Kind kind;
+		private final String registrationId;
+
+		Route(ShopifyPathRouter router, String path, Kind kind, String registrationId) {
+			this.router = router;
+			this.path = path;
+			this.kind = kind;
+			this.registrationId = registrationId;
+		}
+
+		public Kind getKind() {
+			return this.kind;
+		}
+
+		/*
+		 * The registrationId of basePath/{registrationId}, null for any other path
+		 */
+		public String getRegistrationId() {
+			return this.registrationId;
+		}
+
+		boolean isFor(ShopifyPathRouter router, String path) {
+			return this.router == router && (this.path == path || (this.path != null && this.path.equals(path)));
+		}
+
+		@Override
+		public String toString() {
+			return this.kind + (this.registrationId == null ? "" : " (" + this.registrationId + ")");
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.lm.security.filters;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+
+import com.lm.security.authentication.SessionTokenVerifier;
+import com.lm.security.authentication.ShopifySessionToken;
+import com.lm.security.service.ShopifyStore;
+import com.lm.security.service.TokenService;
+import com.lm.security.web.SessionTokenSecurityContextRepository;
+
+/*
+ * Authenticates the requests of an embedded app that carry an App Bridge session token
+ * ("Authorization: Bearer <token>"), without the HttpSession.
+ * 
+ * Runs before SecurityContextPersistenceFilter, and only for the app's own paths (not the installation,
+ * redirection or uninstall paths, see ShopifyPathRouter):
+ * 
+ * 		1. SessionTokenVerifier verifies the token, with the secret of the app in its aud claim
+ * 		2. The store (dest claim) is looked up for that app, as ShopifyExistingTokenFilter does
+ * 		3. The ShopifySessionToken is put in the request, for SessionTokenSecurityContextRepository
+ * 		4. The rest of the chain sees no HttpSession, unless it creates one
+ * 
+ * An invalid token is rejected with 401 and X-Shopify-Retry-Invalid-Session-Request, so App Bridge fetches
+ * a new one and retries. If the store has not been installed, or has not granted every scope the app now asks for
+ * (TokenService.hasRequiredScopes(...), as in ShopifyExistingTokenFilter), the request continues unauthenticated.
+ * 
+ */
+public class ShopifySessionTokenFilter implements Filter {
+	
+	public static final String RETRY_HEADER = "X-Shopify-Retry-Invalid-Session-Request";
+	private static final String BEARER_PREFIX = "Bearer ";
+	
+	private SessionTokenVerifier verifier;
+	private OAuth2AuthorizedClientService clientService;
+	private ShopifyPathRouter router;
+	
+	public ShopifySessionTokenFilter(SessionTokenVerifier verifier, OAuth2AuthorizedClientService clientService, ShopifyPathRouter router) {
+		this.verifier = verifier;
+		this.clientService = clientService;
+		this.router = router;
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest req = (HttpServletRequest)request;
+		String token = getBearerToken(req);
+		
+		if(token == null || router.route(req).getKind() != ShopifyPathRouter.Kind.OTHER) {
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		SessionTokenVerifier.Claims claims = verifier.verify(token);
+		
+		if(claims == null) {
+			HttpServletResponse resp = (HttpServletResponse)response;
+			resp.setHeader(RETRY_HEADER, "1");
+			resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			
+			return;
+		}
+		
+		OAuth2AuthorizedClient client = clientService.loadAuthorizedClient(claims.getRegistrationId(), claims.getShop());
+		
+		if(client == null || !TokenService.hasRequiredScopes(client)) {
+			// this store "has not been installed", or has to install the app again
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		ShopifyStore store = new ShopifyStore(client.getPrincipalName(), client.getAccessToken().getTokenValue(),
+				client.getClientRegistration().getClientId());
+		
+		req.setAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE, new ShopifySessionToken(store, claims));
+		
+		chain.doFilter(new SessionlessRequest(req), response);
+		
+	}
+	
+	/*
+	 * The token of "Authorization: Bearer <token>", or null
+	 */
+	public static String getBearerToken(HttpServletRequest request) {
+		String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+		
+		if(authorization == null || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+			return null;
+		}
+		
+		String token = authorization.substring(BEARER_PREFIX.length()).trim();
+		
+		return token.isEmpty() ? null : token;
+	}
+	
+	/*
+	 * Hides the HttpSession of the request: getSession(false) is null, unless getSession() created (or found) one
+	 */
+	static class SessionlessRequest extends HttpServletRequestWrapper {
+		
+		private HttpSession session;
+		
+		public SessionlessRequest(HttpServletRequest request) {
+			super(request);
+		}
+		
+		@Override
+		public HttpSession getSession(boolean create) {
+			if(create && this.session == null) {
+				this.session = super.getSession(true);
+			}
+			
+			return this.session;
+		}
+		
+		@Override
+		public HttpSession getSession() {
+			return getSession(true);
+		}
+		
+		@Override
+		public boolean isRequestedSessionIdValid() {
+			return this.session != null && super.isRequestedSessionIdValid();
+		}
+	}
+
+}
@@ -13,29 +13,32 @@ import javax.servlet.http.HttpServletResponse;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.server.ServletServerHttpRequest;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
-import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
 import com.lm.security.authentication.ShopifyVerificationStrategy;
-import com.lm.security.configuration.SecurityBeansConfig;
+import com.lm.security.web.WebhookRequestWrapper;
 
 
 /*
- * If the request matches uninstallEndpoint/shopify:
- * 		1. Delegate to ShopifyVerificationStrategy to validate the header
- * 		2. Call doUninstall(...,...)
- * 		3. Call uninstallSuccess(...,..) upon success
+ * If the request matches uninstallEndpoint/{registrationId}:
+ * 		1. Wrap the request in a WebhookRequestWrapper so the body is only read once
+ * 		2. Delegate to ShopifyVerificationStrategy to validate the header with the secret of that registration
+ * 		3. Call doUninstall(...,...,...) to remove the store for that registration
+ * 		4. Call uninstallSuccess(...,..) upon success
  */
 public class UninstallFilter implements Filter {
 	
-	private AntPathRequestMatcher matcher;
+	private ShopifyPathRouter router;
 	private ShopifyVerificationStrategy verificationStrategy;
 	private OAuth2AuthorizedClientService clientService;
 	private HttpMessageConverter<Object> messageConverter;
-	private static final String REGISTRATION_ID = SecurityBeansConfig.SHOPIFY_REGISTRATION_ID;
 	
 	
 	public UninstallFilter(String uninstallEndpoint, ShopifyVerificationStrategy verificationStrategy, OAuth2AuthorizedClientService clientService, HttpMessageConverter<Object> converter) {
-		this.matcher = uninstallEndpoint.endsWith(REGISTRATION_ID) ? new AntPathRequestMatcher(uninstallEndpoint) : new AntPathRequestMatcher(uninstallEndpoint + "/" + REGISTRATION_ID);
+		this(new ShopifyPathRouter(null, null, uninstallEndpoint), verificationStrategy, clientService, converter);
+	}
+	
+	public UninstallFilter(ShopifyPathRouter router, ShopifyVerificationStrategy verificationStrategy, OAuth2AuthorizedClientService clientService, HttpMessageConverter<Object> converter) {
+		this.router = router;
 		this.verificationStrategy = verificationStrategy;
 		this.clientService = clientService;
 		this.messageConverter = converter;
@@ -47,49 +50,74 @@ public class UninstallFilter implements Filter {
 		HttpServletRequest req = (HttpServletRequest)request;
 		HttpServletResponse resp = (HttpServletResponse)response;
 				
-		if(!matches(req)) {
+		String registrationId = matches(req);
+		
+		if(registrationId == null) {
 			chain.doFilter(req, response);
 			return;
 		}
 		
-		if(this.verificationStrategy.isHeaderShopifyRequest(req, REGISTRATION_ID)) {
-			doUninstall(req, resp);
-			unininstallSuccess(req, resp);
+		// the body is read once: while verifying the hmac, then replayed for the message converter
+		WebhookRequestWrapper webhook = new WebhookRequestWrapper(req);
+		
+		try {
+			if(this.verificationStrategy.isHeaderShopifyRequest(webhook, registrationId)) {
+				if(doUninstall(webhook, resp, registrationId)) {
+					unininstallSuccess(webhook, resp);
+				}
+				
+				return;
+			}
 			
-			return;
+			uninstallFailure(webhook, resp);
+			
+		} finally {
+			webhook.release();
 		}
 		
-		uninstallFailure(req, resp);
-		
 		return;
 		
 		
 	}
 	
-	protected boolean matches(HttpServletRequest request) {
-		return this.matcher.matches(request);
-	
+	/*
+	 * Returns the registrationId in the path, or null if the request does not match
+	 */
+	protected String matches(HttpServletRequest request) {
+		ShopifyPathRouter.Route route = this.router.route(request);
+		
+		if(route.getKind() != ShopifyPathRouter.Kind.UNINSTALL) {
+			return null;
+		}
+		
+		return route.getRegistrationId();
 		
 	}
 	
 	/*
 	 * Attempt to uninstall the store specified in the body:
 	 * 	1. Get the request body as an UninstallMessage object
-	 * 	2. Pass the shop domain from the body to tokenService to uninstall
+	 * 	2. Pass the registrationId and the shop domain from the body to the client service to uninstall
+	 * 
+	 * Returns false if the body could not be used (a failure has already been sent).
 	 */
-	protected void doUninstall(HttpServletRequest request, HttpServletResponse response) throws IOException{
+	protected boolean doUninstall(HttpServletRequest request, HttpServletResponse response, String registrationId) throws IOException{
 		UninstallMessage body = this.extractBody(request);
 
 		if(body == null) {
 			uninstallFailure(request, response);
+			return false;
 		}
 		String storeName = body.getShop_domain();
 		
 		if(storeName == null || storeName.isEmpty()) {
 			uninstallFailure(request, response);
+			return false;
 		}
 
-		this.clientService.removeAuthorizedClient(REGISTRATION_ID, storeName);
+		this.clientService.removeAuthorizedClient(registrationId, storeName);
+		
+		return true;
 	}
 	
 	protected void unininstallSuccess(HttpServletRequest req, HttpServletResponse resp) {
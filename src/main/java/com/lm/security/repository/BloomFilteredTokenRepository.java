@@ -0,0 +1,196 @@
+package com.lm.security.repository;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+
+/*
+ * A TokenRepository that answers lookups of stores that are certainly not installed (bots, mistyped domains
+ * on the install path) without querying the database.
+ *
+ * The installed stores are kept in a StoreBloomFilter, built from the table once the application has started,
+ * and updated on every save. Until it is built, every lookup goes to the database.
+ *
+ * A store installed through another instance is unknown to this one until the filter is rebuilt, which
+ * happens every refreshSeconds (0 to never rebuild). In the meantime, the store is sent through the OAuth flow
+ * again, which saves it again. Rebuilding also forgets uninstalled stores, and resizes the filter if
+ * more stores than expected are installed.
+ *
+ * It is therefore meant for a single instance installing stores, and is not enabled by default
+ * (lm.security.store-filter.enabled).
+ *
+ */
+public class BloomFilteredTokenRepository implements TokenRepository, SmartInitializingSingleton, DisposableBean {
+	
+	private static final Log logger = LogFactory.getLog(BloomFilteredTokenRepository.class);
+	
+	private final TokenRepository delegate;
+	private final long expectedStores;
+	private final double falsePositiveRate;
+	private final long refreshSeconds;
+	
+	private final LongAdder skippedLookups = new LongAdder();
+	
+	private volatile StoreBloomFilter filter;
+	
+	// while the filter is rebuilt, stores saved are put in both filters
+	private volatile StoreBloomFilter building;
+	
+	private ScheduledExecutorService scheduler;
+	
+	public BloomFilteredTokenRepository(TokenRepository delegate, long expectedStores, double falsePositiveRate, long refreshSeconds) {
+		this.delegate = delegate;
+		this.expectedStores = expectedStores;
+		this.falsePositiveRate = falsePositiveRate;
+		this.refreshSeconds = refreshSeconds;
+	}
+	
+	@Override
+	public void afterSingletonsInstantiated() {
+		rebuild();
+		
+		if(this.refreshSeconds > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "store-filter-refresh");
+				thread.setDaemon(true);
+				return thread;
+			});
+			
+			this.scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					rebuild();
+				} catch (RuntimeException ex) {
+					logger.warn("Unable to rebuild the store filter", ex);
+				}
+			}, this.refreshSeconds, this.refreshSeconds, TimeUnit.SECONDS);
+		}
+	}
+	
+	@Override
+	public void destroy() {
+		if(this.scheduler != null) {
+			this.scheduler.shutdownNow();
+		}
+	}
+	
+	/*
+	 * Builds a new filter from the table, and replaces the current one.
+	 */
+	public synchronized void rebuild() {
+		StoreBloomFilter current = this.filter;
+		long expected = this.expectedStores;
+		
+		if(current != null) {
+			expected = Math.max(expected, current.putCount() * 2);
+		}
+		
+		StoreBloomFilter next = new StoreBloomFilter(expected, this.falsePositiveRate);
+		this.building = next;
+		
+		try {
+			this.delegate.forEachStore(next::put);
+			this.filter = next;
+		} finally {
+			this.building = null;
+		}
+	}
+	
+	public boolean isBuilt() {
+		return this.filter != null;
+	}
+	
+	/*
+	 * The number of lookups answered without querying the database
+	 */
+	public long skippedLookupCount() {
+		return this.skippedLookups.sum();
+	}
+
+	@Override
+	public OAuth2AccessTokenWithSalt findTokenForRequest(String registrationId, String shop) {
+		StoreBloomFilter filter = this.filter;
+		
+		if(filter != null && !filter.mightContain(registrationId, shop)) {
+			this.skippedLookups.increment();
+			return null;
+		}
+		
+		return this.delegate.findTokenForRequest(registrationId, shop);
+	}
+
+	@Override
+	public void saveNewStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		this.delegate.saveNewStore(registrationId, shop, scopes, encryptedTokenAndSalt);
+		put(registrationId, shop);
+	}
+
+	@Override
+	public void updateKey(String registrationId, String shop, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		this.delegate.updateKey(registrationId, shop, encryptedTokenAndSalt);
+	}
+
+	@Override
+	public void saveStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		this.delegate.saveStore(registrationId, shop, scopes, encryptedTokenAndSalt);
+		put(registrationId, shop);
+	}
+
+	// uninstalled stores stay in the filter until it is rebuilt
+	@Override
+	public void uninstallStore(String registrationId, String storeName) {
+		this.delegate.uninstallStore(registrationId, storeName);
+	}
+
+	@Override
+	public void forEachStore(BiConsumer<String, String> action) {
+		this.delegate.forEachStore(action);
+	}
+	
+	@Override
+	public long findStores(long afterId, int limit, StoreConsumer consumer) {
+		return this.delegate.findStores(afterId, limit, consumer);
+	}
+	
+	@Override
+	public long countStores() {
+		return this.delegate.countStores();
+	}
+	
+	@Override
+	public int updateKeys(List<ReencryptedToken> tokens) {
+		return this.delegate.updateKeys(tokens);
+	}
+	
+	// scans only read, and updateKeys(...) does not change which stores are installed
+	@Override
+	public List<TokenRepository> shards() {
+		return this.delegate.shards();
+	}
+	
+	/*
+	 * After saving, so a rebuild that started in the meantime either read the row, or gets the store through
+	 * building. Either way, the filter in use once this returns contains the store.
+	 */
+	private void put(String registrationId, String shop) {
+		StoreBloomFilter building = this.building;
+		StoreBloomFilter filter = this.filter;
+		
+		if(building != null) {
+			building.put(registrationId, shop);
+		}
+		
+		if(filter != null) {
+			filter.put(registrationId, shop);
+		}
+	}
+
+}
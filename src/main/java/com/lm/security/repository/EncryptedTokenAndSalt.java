@@ -4,10 +4,17 @@ package com.lm.security.repository;
 public class EncryptedTokenAndSalt {
 	private final String encryptedToken;
 	private final String salt;
+	private final int keyVersion;
 	
 	public EncryptedTokenAndSalt(String encyptedToken, String salt) {
+		this(encyptedToken, salt, 0);
+
+	}
+	
+	public EncryptedTokenAndSalt(String encyptedToken, String salt, int keyVersion) {
 		this.encryptedToken = encyptedToken;
 		this.salt = salt;
+		this.keyVersion = keyVersion;
 
 	}
 	
@@ -20,5 +27,10 @@ public class EncryptedTokenAndSalt {
 		return this.salt;
 	}
 	
+	// see TokenKeyring
+	public int getKeyVersion() {
+		return this.keyVersion;
+	}
+	
 	
 }
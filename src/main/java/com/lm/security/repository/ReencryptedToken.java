@@ -0,0 +1,38 @@
+package com.lm.security.repository;
+
+/*
+ * A store's token, encrypted again with another key (see TokenRepository.updateKeys(...)).
+ *
+ * previousEncryptedToken is the value that was read: the update only applies if the row still holds it,
+ * so a token saved in the meantime (a reinstall) is never overwritten.
+ */
+public class ReencryptedToken {
+	private final String registrationId;
+	private final String shop;
+	private final String previousEncryptedToken;
+	private final EncryptedTokenAndSalt encryptedTokenAndSalt;
+	
+	public ReencryptedToken(String registrationId, String shop, String previousEncryptedToken, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		this.registrationId = registrationId;
+		this.shop = shop;
+		this.previousEncryptedToken = previousEncryptedToken;
+		this.encryptedTokenAndSalt = encryptedTokenAndSalt;
+	}
+
+	public String getRegistrationId() {
+		return this.registrationId;
+	}
+
+	public String getShop() {
+		return this.shop;
+	}
+
+	public String getPreviousEncryptedToken() {
+		return this.previousEncryptedToken;
+	}
+
+	public EncryptedTokenAndSalt getEncryptedTokenAndSalt() {
+		return this.encryptedTokenAndSalt;
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.lm.security.repository;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/*
+ * Where TokenReencryptionJob records its progress (TOKENREENCRYPTION, see db/migration), so it resumes
+ * where it stopped instead of scanning the table again.
+ */
+public class ReencryptionCheckpointRepository {
+	
+	private static final String SELECT_LAST_ID = "SELECT last_id FROM TokenReencryption WHERE key_version=?";
+	private static final String UPDATE_LAST_ID = "UPDATE TokenReencryption SET last_id=?, updated_on=? WHERE key_version=?";
+	private static final String INSERT_LAST_ID = "INSERT INTO TokenReencryption(key_version, last_id, updated_on) VALUES(?,?,?)";
+	
+	private final JdbcTemplate jdbc;
+	
+	public ReencryptionCheckpointRepository(JdbcTemplate jdbc) {
+		this.jdbc = jdbc;
+	}
+	
+	/*
+	 * The id of the last store re-encrypted with this key version, or Long.MIN_VALUE if none was
+	 */
+	public long getLastId(int keyVersion) {
+		List<Long> ids = this.jdbc.queryForList(SELECT_LAST_ID, Long.class, keyVersion);
+		
+		return ids.isEmpty() ? Long.MIN_VALUE : ids.get(0);
+	}
+	
+	// one job runs at a time, so UPDATE then INSERT is enough
+	public void saveLastId(int keyVersion, long lastId) {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		
+		if(this.jdbc.update(UPDATE_LAST_ID, lastId, now, keyVersion) == 0) {
+			this.jdbc.update(INSERT_LAST_ID, keyVersion, lastId, now);
+		}
+	}
+
+}
@@ -1,48 +1,94 @@
 package com.lm.security.repository;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
-
-import static java.util.stream.Collectors.joining;
+import java.util.function.BiConsumer;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
 import org.springframework.security.oauth2.core.OAuth2AccessToken;
 import org.springframework.stereotype.Repository;
 
+import com.lm.security.repository.routing.ReplicaRoutingDataSource;
+import com.lm.security.scope.ScopeRegistry;
+
 
 @Repository
 public class ShopifyTokenRepositoryImpl implements TokenRepository {
 	
-	private static String SELECT_INFO_FOR_SHOP = "SELECT access_token, salt, scope FROM StoreAccessTokens WHERE shop=?";
-	private static final String SAVE_ACCESS_TOKEN_CREDENTIALS = "INSERT INTO StoreAccessTokens(shop,access_token,salt,scope) VALUES(?,?,?,?)";
-	private static final String UPDATE_TOKEN_FOR_SHOP = "UPDATE StoreAccessTokens SET access_token=?, salt=? WHERE shop=?";
-	private static final String REMOVE_SHOP = "DELETE FROM StoreAccessTokens WHERE shop=?";
+	private static String SELECT_INFO_FOR_SHOP = "SELECT access_token, salt, key_version, scope FROM StoreAccessTokens WHERE registration_id=? AND shop=?";
+	private static final String SAVE_ACCESS_TOKEN_CREDENTIALS = "INSERT INTO StoreAccessTokens(registration_id,shop,access_token,salt,key_version,scope) VALUES(?,?,?,?,?,?)";
+	private static final String UPDATE_TOKEN_FOR_SHOP = "UPDATE StoreAccessTokens SET access_token=?, salt=?, key_version=? WHERE registration_id=? AND shop=?";
+	private static final String REMOVE_SHOP = "DELETE FROM StoreAccessTokens WHERE registration_id=? AND shop=?";
+	private static final String REMOVE_SHOP_WITH_TOKEN = "DELETE FROM StoreAccessTokens WHERE registration_id=? AND shop=? AND access_token=?";
+	private static final String SELECT_STORES = "SELECT registration_id, shop FROM StoreAccessTokens";
+	private static final String SELECT_STORES_AFTER = "SELECT id, registration_id, shop, access_token, salt, key_version, scope FROM StoreAccessTokens WHERE id > ? ORDER BY id LIMIT ?";
+	private static final String COUNT_STORES = "SELECT COUNT(*) FROM StoreAccessTokens";
+	private static final String REPLACE_TOKEN = "UPDATE StoreAccessTokens SET access_token=?, salt=?, key_version=? WHERE registration_id=? AND shop=? AND access_token=?";
+	
+	// upserts, parameters: registration_id, shop, access_token, salt, key_version, scope
+	private static final String MERGE_STORE_HSQLDB = "MERGE INTO StoreAccessTokens t "
+			+ "USING (VALUES(CAST(? AS VARCHAR(50)), CAST(? AS VARCHAR(50)), CAST(? AS VARCHAR(100)), CAST(? AS VARCHAR(100)), CAST(? AS INTEGER), CAST(? AS VARCHAR(200)))) "
+			+ "AS v(registration_id, shop, access_token, salt, key_version, scope) "
+			+ "ON t.registration_id=v.registration_id AND t.shop=v.shop "
+			+ "WHEN MATCHED THEN UPDATE SET t.access_token=v.access_token, t.salt=v.salt, t.key_version=v.key_version, t.scope=v.scope "
+			+ "WHEN NOT MATCHED THEN INSERT(registration_id,shop,access_token,salt,key_version,scope) "
+			+ "VALUES(v.registration_id, v.shop, v.access_token, v.salt, v.key_version, v.scope)";
+	private static final String UPSERT_STORE_POSTGRESQL = "INSERT INTO StoreAccessTokens(registration_id,shop,access_token,salt,key_version,scope) VALUES(?,?,?,?,?,?) "
+			+ "ON CONFLICT (registration_id, shop) DO UPDATE SET access_token=EXCLUDED.access_token, salt=EXCLUDED.salt, key_version=EXCLUDED.key_version, scope=EXCLUDED.scope";
+	private static final String UPDATE_STORE = "UPDATE StoreAccessTokens SET access_token=?, salt=?, key_version=?, scope=? WHERE registration_id=? AND shop=?";
+	
+	// PostgreSQL: "there is no unique or exclusion constraint matching the ON CONFLICT specification"
+	private static final String NO_CONFLICT_CONSTRAINT = "42P10";
+	
 	private JdbcTemplate jdbc;
+	private volatile String upsertStatement;
+	
+	// null unless read replicas are configured
+	private ReplicaRoutingDataSource replicas;
 	
 	@Autowired
 	public void setJdbc(JdbcTemplate jdbc) {
 		this.jdbc = jdbc;
+		this.replicas = jdbc.getDataSource() instanceof ReplicaRoutingDataSource ? (ReplicaRoutingDataSource)jdbc.getDataSource() : null;
 	}
 
+	/*
+	 * The only lookup sent to the read replicas (if any): a store found slightly out of date is decrypted with its
+	 * key version, and a store installed a moment ago through this instance is read from the primary.
+	 * 
+	 * An unknown shop is a normal outcome (bots, mistyped domains), so it is an empty result, not an exception.
+	 */
 	@Override
-	public OAuth2AccessTokenWithSalt findTokenForRequest(String shop) {
+	public OAuth2AccessTokenWithSalt findTokenForRequest(String registrationId, String shop) {
 		
-		OAuth2AccessTokenWithSalt token = null;
+		if(this.replicas != null) {
+			return this.replicas.readFromReplica(registrationId, shop, () -> queryToken(registrationId, shop));
+		}
 		
-		try {
-			token = jdbc.queryForObject(SELECT_INFO_FOR_SHOP, new StoreTokensMapper(), shop);
-		} catch(EmptyResultDataAccessException ex) {
-			token = null;
+		return queryToken(registrationId, shop);
+	}
+	
+	private OAuth2AccessTokenWithSalt queryToken(String registrationId, String shop) {
+		List<OAuth2AccessTokenWithSalt> tokens = jdbc.query(SELECT_INFO_FOR_SHOP, new StoreTokensMapper(), registrationId, shop);
 
+		return tokens.isEmpty() ? null : tokens.get(0);
+	}
+	
+	private void recordWrite(String registrationId, String shop) {
+		if(this.replicas != null) {
+			this.replicas.recordWrite(registrationId, shop);
 		}
-
-		return token;
 	}
 	
 	class StoreTokensMapper implements RowMapper<OAuth2AccessTokenWithSalt> {
@@ -51,13 +97,14 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 		public OAuth2AccessTokenWithSalt mapRow(ResultSet rs, int arg) throws SQLException {
 			String encryptedToken = rs.getString("access_token");
 			String salt = rs.getString("salt");
+			int keyVersion = rs.getInt("key_version");
 			String scope = rs.getString("scope");
 			
-			Set<String> scopes = Arrays.asList(scope.split(",")).stream().collect(Collectors.toSet());
+			Set<String> scopes = ScopeRegistry.parse(scope);
 			
 			OAuth2AccessToken access_Token = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, encryptedToken, null, null, scopes);
 			
-			return new OAuth2AccessTokenWithSalt(access_Token, salt);
+			return new OAuth2AccessTokenWithSalt(access_Token, salt, keyVersion);
 			
 		}
 		
@@ -66,22 +113,177 @@ public class ShopifyTokenRepositoryImpl implements TokenRepository {
 
 
 	@Override
-	public void saveNewStore(String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
-		String scopeString = scopes.stream()
-										.collect(joining(","));
+	public void saveNewStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		String scopeString = ScopeRegistry.join(scopes);
 		
-		jdbc.update(SAVE_ACCESS_TOKEN_CREDENTIALS, shop, encryptedTokenAndSalt.getEncryptedToken(), encryptedTokenAndSalt.getSalt(), scopeString);
+		jdbc.update(SAVE_ACCESS_TOKEN_CREDENTIALS, registrationId, shop, encryptedTokenAndSalt.getEncryptedToken(), encryptedTokenAndSalt.getSalt(), encryptedTokenAndSalt.getKeyVersion(), scopeString);
+		recordWrite(registrationId, shop);
 
 	}
 
 	@Override
-	public void updateKey(String shop, EncryptedTokenAndSalt encryptedTokenAndSalt) {
-		jdbc.update(UPDATE_TOKEN_FOR_SHOP, encryptedTokenAndSalt.getEncryptedToken(), encryptedTokenAndSalt.getSalt(), shop);		
+	public void updateKey(String registrationId, String shop, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		jdbc.update(UPDATE_TOKEN_FOR_SHOP, encryptedTokenAndSalt.getEncryptedToken(), encryptedTokenAndSalt.getSalt(), encryptedTokenAndSalt.getKeyVersion(), registrationId, shop);
+		recordWrite(registrationId, shop);
+	}
+
+	/*
+	 * HSQLDB: MERGE
+	 * PostgreSQL: INSERT ... ON CONFLICT, which relies on the unique index on (registration_id, shop) added by the
+	 * V2 migration. Until that index exists (lm.security.schema.migrate=false, or a failed migration), the
+	 * statement is rejected: the generic upsert is used instead.
+	 * 
+	 * Other databases: UPDATE, then INSERT if no row was updated. If another instance inserted the store in
+	 * between (the INSERT hits the unique index), the UPDATE is run again.
+	 */
+	@Override
+	public void saveStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		String scopeString = ScopeRegistry.join(scopes);
+		String upsert = getUpsertStatement();
+		
+		if(upsert != null) {
+			try {
+				jdbc.update(upsert, registrationId, shop, encryptedTokenAndSalt.getEncryptedToken(), encryptedTokenAndSalt.getSalt(), encryptedTokenAndSalt.getKeyVersion(), scopeString);
+				recordWrite(registrationId, shop);
+				return;
+			} catch (DataAccessException ex) {
+				if(!isMissingConflictConstraint(ex)) {
+					throw ex;
+				}
+				
+				this.upsertStatement = "";
+			}
+		}
+		
+		int updated = updateStore(registrationId, shop, scopeString, encryptedTokenAndSalt);
+		
+		if(updated == 0) {
+			try {
+				saveNewStore(registrationId, shop, scopes, encryptedTokenAndSalt);
+				return;
+			} catch (DuplicateKeyException ex) {
+				// inserted concurrently: now it can be updated
+				updateStore(registrationId, shop, scopeString, encryptedTokenAndSalt);
+			}
+		}
+		
+		recordWrite(registrationId, shop);
+	}
+	
+	private int updateStore(String registrationId, String shop, String scopeString, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		return jdbc.update(UPDATE_STORE, encryptedTokenAndSalt.getEncryptedToken(), encryptedTokenAndSalt.getSalt(), encryptedTokenAndSalt.getKeyVersion(), scopeString, registrationId, shop);
+	}
+	
+	private static boolean isMissingConflictConstraint(DataAccessException ex) {
+		Throwable cause = ex.getMostSpecificCause();
+		
+		return cause instanceof SQLException && NO_CONFLICT_CONSTRAINT.equals(((SQLException)cause).getSQLState());
+	}
+	
+	/*
+	 * The upsert statement to use from now on: "" for the generic UPDATE, then INSERT (for tests)
+	 */
+	void setUpsertStatement(String upsert) {
+		this.upsertStatement = upsert;
+	}
+	
+	// the database is identified on first use, then the statement is reused
+	private String getUpsertStatement() {
+		String upsert = this.upsertStatement;
+		
+		if(upsert == null) {
+			String product;
+			try {
+				product = JdbcUtils.commonDatabaseName((String)JdbcUtils.extractDatabaseMetaData(jdbc.getDataSource(), "getDatabaseProductName"));
+			} catch (MetaDataAccessException ex) {
+				throw new RuntimeException("Unable to identify the database", ex);
+			}
+			
+			if(product != null && product.startsWith("HSQL")) {
+				upsert = MERGE_STORE_HSQLDB;
+			} else if("PostgreSQL".equals(product)) {
+				upsert = UPSERT_STORE_POSTGRESQL;
+			} else {
+				upsert = "";
+			}
+			
+			this.upsertStatement = upsert;
+		}
+		
+		return upsert.isEmpty() ? null : upsert;
 	}
 
 	@Override
-	public void uninstallStore(String storeName) {
-		jdbc.update(REMOVE_SHOP, storeName);
+	public void uninstallStore(String registrationId, String storeName) {
+		jdbc.update(REMOVE_SHOP, registrationId, storeName);
+		recordWrite(registrationId, storeName);
+	}
+	
+	/*
+	 * Deletes the store only if it still holds this encrypted token (see ShardRebalancer).
+	 * Returns false if it changed, or no longer exists.
+	 */
+	public boolean uninstallStore(String registrationId, String storeName, String encryptedToken) {
+		int deleted = jdbc.update(REMOVE_SHOP_WITH_TOKEN, registrationId, storeName, encryptedToken);
+		recordWrite(registrationId, storeName);
+		
+		return deleted > 0;
+	}
+	
+	@Override
+	public void forEachStore(BiConsumer<String, String> action) {
+		jdbc.query(SELECT_STORES, rs -> {
+			action.accept(rs.getString(1), rs.getString(2));
+		});
+	}
+	
+	// the page is streamed: rows are fetched limit at a time, and mapped one by one
+	@Override
+	public long findStores(long afterId, int limit, StoreConsumer consumer) {
+		StoreTokensMapper mapper = new StoreTokensMapper();
+		long[] lastId = {afterId};
+		
+		jdbc.query(con -> {
+			PreparedStatement ps = con.prepareStatement(SELECT_STORES_AFTER);
+			ps.setFetchSize(limit);
+			ps.setLong(1, afterId);
+			ps.setInt(2, limit);
+			return ps;
+		}, rs -> {
+			lastId[0] = rs.getLong("id");
+			consumer.accept(lastId[0], rs.getString("registration_id"), rs.getString("shop"), mapper.mapRow(rs, 0));
+		});
+		
+		return lastId[0];
+	}
+	
+	@Override
+	public long countStores() {
+		return jdbc.queryForObject(COUNT_STORES, Long.class);
+	}
+	
+	// not recorded as writes: a replica that still holds the previous token can decrypt it with the previous key
+	@Override
+	public int updateKeys(List<ReencryptedToken> tokens) {
+		if(tokens.isEmpty()) {
+			return 0;
+		}
+		
+		List<Object[]> args = new ArrayList<>(tokens.size());
+		
+		for(ReencryptedToken token : tokens) {
+			EncryptedTokenAndSalt ets = token.getEncryptedTokenAndSalt();
+			args.add(new Object[] {ets.getEncryptedToken(), ets.getSalt(), ets.getKeyVersion(), token.getRegistrationId(), token.getShop(), token.getPreviousEncryptedToken()});
+		}
+		
+		int updated = 0;
+		
+		for(int count : jdbc.batchUpdate(REPLACE_TOKEN, args)) {
+			// some drivers only report that the statement succeeded
+			updated += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+		}
+		
+		return updated;
 	}
 	
 	
@@ -0,0 +1,113 @@
+package com.lm.security.repository;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A Bloom filter of stores (registrationId, shop).
+ *
+ * mightContain(...,...) never returns false for a store that was put, so false means the store is certainly not
+ * installed. It returns true for a store that was not put with probability falsePositiveRate, as long as
+ * no more than expectedStores have been put.
+ *
+ * Stores cannot be removed: an uninstalled store keeps answering true until the filter is rebuilt.
+ *
+ * put(...,...) and mightContain(...,...) are lock-free: bits are set with a CAS on an AtomicLongArray.
+ *
+ */
+public class StoreBloomFilter {
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final LongAdder puts = new LongAdder();
+
+	public StoreBloomFilter(long expectedStores, double falsePositiveRate) {
+		if(expectedStores <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("expectedStores must be positive and falsePositiveRate between 0 and 1");
+		}
+
+		// m = -n ln(p) / (ln 2)^2, k = m/n ln 2
+		long bitCount = (long)Math.ceil(-expectedStores * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.bits = new AtomicLongArray((int)((bitCount + 63) >>> 6));
+		this.bitCount = (long)this.bits.length() << 6;
+		this.hashCount = Math.max(1, (int)Math.round((double)this.bitCount / expectedStores * Math.log(2)));
+	}
+
+	public void put(String registrationId, String shop) {
+		long hash = hash(registrationId, shop);
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32);
+
+		for(int i = 1; i <= this.hashCount; i++) {
+			long bit = index(h1 + i * h2);
+			int word = (int)(bit >>> 6);
+			long mask = 1L << bit;
+
+			long current;
+			while(((current = this.bits.get(word)) & mask) == 0) {
+				if(this.bits.compareAndSet(word, current, current | mask)) {
+					break;
+				}
+			}
+		}
+
+		this.puts.increment();
+	}
+
+	public boolean mightContain(String registrationId, String shop) {
+		long hash = hash(registrationId, shop);
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32);
+
+		for(int i = 1; i <= this.hashCount; i++) {
+			long bit = index(h1 + i * h2);
+
+			if((this.bits.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * The number of calls to put(...,...), including repeated stores
+	 */
+	public long putCount() {
+		return this.puts.sum();
+	}
+
+	public long bitCount() {
+		return this.bitCount;
+	}
+
+	public int hashCount() {
+		return this.hashCount;
+	}
+
+	private long index(int combinedHash) {
+		return (combinedHash & 0xFFFFFFFFL) % this.bitCount;
+	}
+
+	// 64-bit FNV-1a of registrationId, a separator and shop, finished with the SplitMix64 mixer
+	private static long hash(String registrationId, String shop) {
+		long h = 0xcbf29ce484222325L;
+
+		for(int i = 0; i < registrationId.length(); i++) {
+			h = (h ^ registrationId.charAt(i)) * 0x100000001b3L;
+		}
+
+		h = (h ^ '/') * 0x100000001b3L;
+
+		for(int i = 0; i < shop.length(); i++) {
+			h = (h ^ shop.charAt(i)) * 0x100000001b3L;
+		}
+
+		h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+
+		return h ^ (h >>> 31);
+	}
+
+}
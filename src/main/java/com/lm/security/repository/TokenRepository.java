@@ -1,23 +1,76 @@
 package com.lm.security.repository;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 import org.springframework.security.oauth2.core.OAuth2AccessToken;
 
 public interface TokenRepository {
 	
-	OAuth2AccessTokenWithSalt findTokenForRequest(String shop);
-	void saveNewStore(String shop, Set<String>scopes, EncryptedTokenAndSalt encryptedTokenAndSalt);
-	void updateKey(String shop, EncryptedTokenAndSalt encryptedTokenAndSalt);
-	void uninstallStore(String storeName);
+	/*
+	 * Stores are keyed by (registrationId, shop): the same shop can install several of our apps.
+	 * 
+	 * Returns null if the store is not installed.
+	 */
+	OAuth2AccessTokenWithSalt findTokenForRequest(String registrationId, String shop);
+	void saveNewStore(String registrationId, String shop, Set<String>scopes, EncryptedTokenAndSalt encryptedTokenAndSalt);
+	void updateKey(String registrationId, String shop, EncryptedTokenAndSalt encryptedTokenAndSalt);
+	
+	/*
+	 * Inserts the store, or replaces its token, salt and scopes if it already exists, in a single statement
+	 */
+	void saveStore(String registrationId, String shop, Set<String>scopes, EncryptedTokenAndSalt encryptedTokenAndSalt);
+	void uninstallStore(String registrationId, String storeName);
+	
+	/*
+	 * Calls the action with the registrationId and shop of every installed store.
+	 * A sharded repository calls it from several threads at once.
+	 */
+	void forEachStore(BiConsumer<String, String> action);
+	
+	/*
+	 * Keyset pagination over the stores, in id order: calls the consumer with up to limit stores whose id
+	 * is greater than afterId, and returns the id of the last one (afterId if there was none).
+	 */
+	long findStores(long afterId, int limit, StoreConsumer consumer);
+	
+	long countStores();
+	
+	/*
+	 * Batch update: replaces the token of each store that still holds its previousEncryptedToken.
+	 * Returns the number of stores updated.
+	 */
+	int updateKeys(List<ReencryptedToken> tokens);
+	
+	/*
+	 * The repositories that hold the stores, so a job that scans every store can scan each of them in parallel,
+	 * with findStores(...,...,...) on each (see ShardedTokenRepository). A repository that is not sharded
+	 * is its own only shard.
+	 */
+	default List<TokenRepository> shards() {
+		return Collections.singletonList(this);
+	}
+	
+	interface StoreConsumer {
+		void accept(long id, String registrationId, String shop, OAuth2AccessTokenWithSalt token);
+	}
 	
 	static class OAuth2AccessTokenWithSalt {
 		private final OAuth2AccessToken access_token;
 		private final String salt;
+		private final int keyVersion;
 		
 		public  OAuth2AccessTokenWithSalt(OAuth2AccessToken access_token, String salt) {
+			this(access_token, salt, 0);
+			
+		}
+		
+		public  OAuth2AccessTokenWithSalt(OAuth2AccessToken access_token, String salt, int keyVersion) {
 			this.access_token = access_token;
 			this.salt = salt;
+			this.keyVersion = keyVersion;
 			
 		}
 		
@@ -25,6 +78,10 @@ public interface TokenRepository {
 			return this.salt;
 		}
 		
+		public int getKeyVersion() {
+			return this.keyVersion;
+		}
+		
 		public OAuth2AccessToken getAccess_token() {
 			return this.access_token;
 		}
@@ -0,0 +1,431 @@
+package com.lm.security.repository.embedded;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import com.lm.security.cache.ShopKey;
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ReencryptedToken;
+import com.lm.security.repository.TokenRepository;
+import com.lm.security.scope.ScopeRegistry;
+
+/*
+ * A TokenRepository that needs no database, for a single instance: the stores are kept in memory, in a hash index
+ * by (registrationId, shop), and persisted in a directory.
+ *
+ * 	tokens.snapshot: every store, as of the last compaction
+ * 	tokens.log: the writes since then (see WriteAheadLog), memory-mapped
+ *
+ * A write is appended to the log, then applied to the index. Lookups only read the index, without locking.
+ * When the application starts, the snapshot is loaded, and the log replayed.
+ *
+ * Compaction writes the index to a new snapshot (tokens.snapshot.tmp, renamed once it is complete), then empties
+ * the log and starts a new generation. It runs every snapshotSeconds, and when the log is full. If the process
+ * stops between the rename and the reset, the log is of an older generation than the snapshot, and is ignored.
+ * The directory is flushed to the disk between the two: otherwise, after a crash of the machine, the reset log
+ * could come back with the previous snapshot, and the writes in between would be lost.
+ *
+ * A write survives a crash of the process once the method returns. With sync, the log is flushed to the disk
+ * on every write, so it also survives a crash of the machine (at the cost of a flush per write).
+ *
+ * Stores have ids, in insertion order, for findStores(...,...,...).
+ *
+ * Only one process may open a directory.
+ */
+public class EmbeddedTokenRepository implements TokenRepository, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(EmbeddedTokenRepository.class);
+
+	static final String SNAPSHOT_FILE = "tokens.snapshot";
+	static final String LOG_FILE = "tokens.log";
+
+	private static final int SNAPSHOT_MAGIC = 0x4c4d5453;
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private final Path directory;
+	private final boolean sync;
+
+	private final Map<ShopKey, Store> stores = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Long, Store> storesById = new ConcurrentSkipListMap<>();
+
+	// guarded by this
+	private final WriteAheadLog log;
+	private long nextId;
+
+	private ScheduledExecutorService scheduler;
+
+	public EmbeddedTokenRepository(Path directory, int logCapacity, boolean sync, long snapshotSeconds) {
+		this.directory = directory;
+		this.sync = sync;
+
+		try {
+			Files.createDirectories(directory);
+			Files.deleteIfExists(directory.resolve(SNAPSHOT_FILE + ".tmp"));
+
+			long generation = loadSnapshot();
+
+			this.log = new WriteAheadLog(directory.resolve(LOG_FILE), logCapacity);
+			this.log.open(generation, this::apply);
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to open the token store in " + directory, ex);
+		}
+
+		logger.info("Token store opened in " + directory + ": " + this.stores.size() + " stores");
+
+		if(snapshotSeconds > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "token-store-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.scheduler.scheduleWithFixedDelay(this::compactIfNeeded, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public synchronized void destroy() throws IOException {
+		if(this.scheduler != null) {
+			this.scheduler.shutdownNow();
+		}
+
+		this.log.close();
+	}
+
+	@Override
+	public OAuth2AccessTokenWithSalt findTokenForRequest(String registrationId, String shop) {
+		Store store = this.stores.get(new ShopKey(registrationId, shop));
+
+		return store == null ? null : store.token;
+	}
+
+	@Override
+	public synchronized void saveNewStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		if(this.stores.containsKey(new ShopKey(registrationId, shop))) {
+			throw new DuplicateKeyException("The store " + registrationId + "/" + shop + " already exists");
+		}
+
+		write(put(this.nextId, registrationId, shop, encryptedTokenAndSalt, ScopeRegistry.join(scopes)));
+	}
+
+	@Override
+	public synchronized void updateKey(String registrationId, String shop, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		Store store = this.stores.get(new ShopKey(registrationId, shop));
+
+		if(store != null) {
+			write(put(store.id, registrationId, shop, encryptedTokenAndSalt, store.scope));
+		}
+	}
+
+	@Override
+	public synchronized void saveStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		Store store = this.stores.get(new ShopKey(registrationId, shop));
+
+		write(put(store == null ? this.nextId : store.id, registrationId, shop, encryptedTokenAndSalt, ScopeRegistry.join(scopes)));
+	}
+
+	@Override
+	public synchronized void uninstallStore(String registrationId, String storeName) {
+		if(this.stores.containsKey(new ShopKey(registrationId, storeName))) {
+			write(delete(registrationId, storeName));
+		}
+	}
+
+	@Override
+	public void forEachStore(BiConsumer<String, String> action) {
+		for(ShopKey key : this.stores.keySet()) {
+			action.accept(key.getRegistrationId(), key.getShop());
+		}
+	}
+
+	@Override
+	public long findStores(long afterId, int limit, StoreConsumer consumer) {
+		long lastId = afterId;
+		int count = 0;
+
+		for(Store store : this.storesById.tailMap(afterId, false).values()) {
+			if(count++ == limit) {
+				break;
+			}
+
+			consumer.accept(store.id, store.registrationId, store.shop, store.token);
+			lastId = store.id;
+		}
+
+		return lastId;
+	}
+
+	@Override
+	public long countStores() {
+		return this.stores.size();
+	}
+
+	@Override
+	public synchronized int updateKeys(List<ReencryptedToken> tokens) {
+		int updated = 0;
+
+		for(ReencryptedToken token : tokens) {
+			Store store = this.stores.get(new ShopKey(token.getRegistrationId(), token.getShop()));
+
+			if(store != null && store.token.getAccess_token().getTokenValue().equals(token.getPreviousEncryptedToken())) {
+				append(put(store.id, store.registrationId, store.shop, token.getEncryptedTokenAndSalt(), store.scope));
+				updated++;
+			}
+		}
+
+		if(this.sync && updated > 0) {
+			this.log.force();
+		}
+
+		return updated;
+	}
+
+	/*
+	 * Writes every store to a new snapshot, and empties the log
+	 */
+	public synchronized void compact() {
+		long generation = this.log.generation() + 1;
+		Path snapshot = this.directory.resolve(SNAPSHOT_FILE);
+		Path tmp = this.directory.resolve(SNAPSHOT_FILE + ".tmp");
+
+		try {
+			try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeLong(generation);
+				out.writeInt(this.stores.size());
+
+				for(Store store : this.stores.values()) {
+					byte[] record = put(store.id, store.registrationId, store.shop, store.encryptedTokenAndSalt(), store.scope);
+					out.writeInt(record.length);
+					out.writeInt(WriteAheadLog.crc(generation, record));
+					out.write(record);
+				}
+
+				out.flush();
+				file.getFD().sync();
+			}
+
+			Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			syncDirectory();
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to write the token snapshot " + snapshot, ex);
+		}
+
+		this.log.reset(generation);
+	}
+
+	// makes the rename durable
+	void syncDirectory() throws IOException {
+		try (FileChannel directory = FileChannel.open(this.directory, StandardOpenOption.READ)) {
+			directory.force(true);
+		}
+	}
+
+	private void compactIfNeeded() {
+		try {
+			synchronized(this) {
+				if(!this.log.isEmpty()) {
+					compact();
+				}
+			}
+		} catch (RuntimeException ex) {
+			logger.error("Token store compaction failed, the log keeps growing", ex);
+		}
+	}
+
+	synchronized int logPosition() {
+		return this.log.position();
+	}
+
+	private void write(byte[] record) {
+		append(record);
+
+		if(this.sync) {
+			this.log.force();
+		}
+	}
+
+	// appends the record, then applies it
+	private void append(byte[] record) {
+		if(!this.log.append(record)) {
+			compact();
+
+			if(!this.log.append(record)) {
+				try {
+					this.log.grow(record.length);
+				} catch (IOException ex) {
+					throw new RuntimeException("Unable to grow the token log", ex);
+				}
+
+				this.log.append(record);
+			}
+		}
+
+		apply(record);
+	}
+
+	// returns the generation of the snapshot, 0 if there is none
+	private long loadSnapshot() throws IOException {
+		Path snapshot = this.directory.resolve(SNAPSHOT_FILE);
+
+		if(!Files.exists(snapshot)) {
+			return 0;
+		}
+
+		try (InputStream file = Files.newInputStream(snapshot);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+			if(in.readInt() != SNAPSHOT_MAGIC) {
+				throw new RuntimeException(snapshot + " is not a token snapshot");
+			}
+
+			long generation = in.readLong();
+			int count = in.readInt();
+
+			for(int i = 0; i < count; i++) {
+				byte[] record = new byte[in.readInt()];
+				int crc = in.readInt();
+				in.readFully(record);
+
+				if(WriteAheadLog.crc(generation, record) != crc) {
+					throw new RuntimeException("The token snapshot " + snapshot + " is corrupt (store " + i + ")");
+				}
+
+				apply(record);
+			}
+
+			return generation;
+		}
+	}
+
+	private void apply(byte[] record) {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+			byte type = in.readByte();
+
+			if(type == PUT) {
+				Store store = new Store(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(), readNullableUTF(in), in.readInt(), in.readUTF());
+				Store previous = this.stores.put(new ShopKey(store.registrationId, store.shop), store);
+
+				if(previous != null && previous.id != store.id) {
+					this.storesById.remove(previous.id);
+				}
+
+				this.storesById.put(store.id, store);
+				this.nextId = Math.max(this.nextId, store.id + 1);
+
+			} else if(type == DELETE) {
+				Store previous = this.stores.remove(new ShopKey(in.readUTF(), in.readUTF()));
+
+				if(previous != null) {
+					this.storesById.remove(previous.id);
+				}
+
+			} else {
+				throw new RuntimeException("Unknown token log record type " + type);
+			}
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Invalid token log record", ex);
+		}
+	}
+
+	private static byte[] put(long id, String registrationId, String shop, EncryptedTokenAndSalt encryptedTokenAndSalt, String scope) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(PUT);
+			out.writeLong(id);
+			out.writeUTF(registrationId);
+			out.writeUTF(shop);
+			out.writeUTF(encryptedTokenAndSalt.getEncryptedToken());
+			writeNullableUTF(out, encryptedTokenAndSalt.getSalt());
+			out.writeInt(encryptedTokenAndSalt.getKeyVersion());
+			out.writeUTF(scope);
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to encode a token log record", ex);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static byte[] delete(String registrationId, String shop) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(DELETE);
+			out.writeUTF(registrationId);
+			out.writeUTF(shop);
+
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to encode a token log record", ex);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+
+		if(value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullableUTF(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static class Store {
+		private final long id;
+		private final String registrationId;
+		private final String shop;
+		private final String scope;
+		private final OAuth2AccessTokenWithSalt token;
+
+		Store(long id, String registrationId, String shop, String encryptedToken, String salt, int keyVersion, String scope) {
+			this.id = id;
+			this.registrationId = registrationId;
+			this.shop = shop;
+			this.scope = scope;
+
+			// built once: lookups return the same immutable token
+			this.token = new OAuth2AccessTokenWithSalt(new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, encryptedToken, null, null, ScopeRegistry.parse(scope)),
+					salt, keyVersion);
+		}
+
+		EncryptedTokenAndSalt encryptedTokenAndSalt() {
+			return new EncryptedTokenAndSalt(this.token.getAccess_token().getTokenValue(), this.token.getSalt(), this.token.getKeyVersion());
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package com.lm.security.repository.embedded;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+ * An append-only log of records, in a memory-mapped file (see EmbeddedTokenRepository).
+ *
+ * The file starts with a header (magic number, generation), followed by the records: length, CRC32, payload.
+ * The CRC covers the generation and the payload, so after reset(...) the records left over from the previous
+ * generation are not valid, and do not have to be erased.
+ *
+ * Appending copies the record to the mapping: once append(...) returns, the record survives a crash of the
+ * process (the operating system writes the pages), and force() makes it survive a crash of the machine.
+ * A record cut short by a crash fails its CRC, and the log ends before it.
+ *
+ * Not thread-safe: the repository appends under its lock.
+ */
+class WriteAheadLog implements Closeable {
+
+	static final int HEADER_SIZE = 16;
+
+	private static final int MAGIC = 0x4c4d574c;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private final Path file;
+	private final FileChannel channel;
+	private MappedByteBuffer buffer;
+	private long generation;
+	private int position;
+
+	WriteAheadLog(Path file, int capacity) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		map((int)Math.max(capacity, this.channel.size()));
+	}
+
+	/*
+	 * Calls the consumer with the payload of each record of this generation, in order, and positions the log
+	 * after the last one. A log of an older generation (written before the last snapshot) is reset.
+	 */
+	void open(long generation, Consumer<byte[]> replay) {
+		boolean valid = this.buffer.getInt(0) == MAGIC;
+		long logGeneration = this.buffer.getLong(4);
+
+		if(!valid || logGeneration < generation) {
+			reset(generation);
+			return;
+		}
+
+		if(logGeneration > generation) {
+			throw new RuntimeException("The token log " + this.file + " is newer than the snapshot (generation " + logGeneration
+					+ ", snapshot " + generation + "): the snapshot is missing");
+		}
+
+		this.generation = generation;
+		this.position = HEADER_SIZE;
+
+		byte[] payload;
+		while((payload = read(this.position)) != null) {
+			replay.accept(payload);
+			this.position += RECORD_HEADER_SIZE + payload.length;
+		}
+	}
+
+	// the payload of the record at this position, or null if there is no complete, valid record
+	private byte[] read(int position) {
+		if(position + RECORD_HEADER_SIZE > this.buffer.capacity()) {
+			return null;
+		}
+
+		int length = this.buffer.getInt(position);
+		int crc = this.buffer.getInt(position + 4);
+
+		if(length <= 0 || length > this.buffer.capacity() - position - RECORD_HEADER_SIZE) {
+			return null;
+		}
+
+		byte[] payload = new byte[length];
+		ByteBuffer records = this.buffer.duplicate();
+		records.position(position + RECORD_HEADER_SIZE);
+		records.get(payload);
+
+		return crc(this.generation, payload) == crc ? payload : null;
+	}
+
+	/*
+	 * Returns false if the record does not fit in the file
+	 */
+	boolean append(byte[] payload) {
+		if(this.position + RECORD_HEADER_SIZE + payload.length > this.buffer.capacity()) {
+			return false;
+		}
+
+		this.buffer.position(this.position + RECORD_HEADER_SIZE);
+		this.buffer.put(payload);
+
+		// the length last: a record is not complete until its header is
+		this.buffer.putInt(this.position + 4, crc(this.generation, payload));
+		this.buffer.putInt(this.position, payload.length);
+
+		this.position += RECORD_HEADER_SIZE + payload.length;
+
+		return true;
+	}
+
+	/*
+	 * Empties the log, and starts a new generation
+	 */
+	void reset(long generation) {
+		this.generation = generation;
+		this.position = HEADER_SIZE;
+
+		this.buffer.putInt(0, MAGIC);
+		this.buffer.putLong(4, generation);
+		this.buffer.putInt(HEADER_SIZE, 0);
+		this.buffer.force();
+	}
+
+	/*
+	 * Makes the file big enough for a record of this size
+	 */
+	void grow(int payloadLength) throws IOException {
+		long capacity = Math.max((long)this.buffer.capacity() * 2, (long)this.position + RECORD_HEADER_SIZE + payloadLength);
+
+		if(capacity > Integer.MAX_VALUE) {
+			throw new RuntimeException("The token log " + this.file + " cannot grow beyond 2 GB");
+		}
+
+		this.buffer.force();
+		map((int)capacity);
+	}
+
+	void force() {
+		this.buffer.force();
+	}
+
+	boolean isEmpty() {
+		return this.position == HEADER_SIZE;
+	}
+
+	int position() {
+		return this.position;
+	}
+
+	long generation() {
+		return this.generation;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.buffer.force();
+		this.channel.close();
+	}
+
+	private void map(int capacity) throws IOException {
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	static int crc(long generation, byte[] payload) {
+		CRC32 crc = new CRC32();
+
+		for(int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int)(generation >>> shift));
+		}
+
+		crc.update(payload, 0, payload.length);
+
+		return (int)crc.getValue();
+	}
+
+}
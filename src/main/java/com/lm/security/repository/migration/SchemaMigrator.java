@@ -0,0 +1,238 @@
+package com.lm.security.repository.migration;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.util.FileCopyUtils;
+
+/*
+ * Applies the versioned schema migrations of the current database when the application starts.
+ *
+ * Migrations are SQL scripts named V{version}__{description}.sql, in db/migration/hsqldb or
+ * db/migration/postgresql. They are applied in version order, and each applied version is recorded in
+ * SCHEMA_VERSION, so a migration runs once per database.
+ *
+ * A migration runs in a transaction, unless it contains CONCURRENTLY (PostgreSQL cannot build an index
+ * concurrently in a transaction). Concurrent index builds keep the table readable and writable while the
+ * index is built, so migrations can be applied while other instances keep serving requests.
+ *
+ * On PostgreSQL, instances starting at the same time take an advisory lock, so only one applies the migrations.
+ *
+ */
+public class SchemaMigrator implements InitializingBean {
+	public static final String LOCATION = "classpath:db/migration/";
+
+	private static final Log logger = LogFactory.getLog(SchemaMigrator.class);
+
+	private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+	private static final long ADVISORY_LOCK_ID = 0x4c4d534348454d41L;
+
+	private static final String CREATE_SCHEMA_VERSION = "CREATE TABLE IF NOT EXISTS SCHEMA_VERSION("
+			+ "version INTEGER NOT NULL PRIMARY KEY, description VARCHAR(200) NOT NULL, installed_on TIMESTAMP NOT NULL)";
+	private static final String SELECT_VERSIONS = "SELECT version FROM SCHEMA_VERSION";
+	private static final String INSERT_VERSION = "INSERT INTO SCHEMA_VERSION(version, description, installed_on) VALUES(?,?,?)";
+
+	private final DataSource dataSource;
+	private final String location;
+
+	public SchemaMigrator(DataSource dataSource) {
+		this(dataSource, LOCATION);
+	}
+
+	public SchemaMigrator(DataSource dataSource, String location) {
+		this.dataSource = dataSource;
+		this.location = location;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		migrate();
+	}
+
+	/*
+	 * Returns the number of migrations applied
+	 */
+	public int migrate() {
+		String platform = getPlatform();
+		List<Migration> migrations = findMigrations(platform);
+
+		try (Connection connection = this.dataSource.getConnection()) {
+			boolean postgresql = "postgresql".equals(platform);
+
+			if(postgresql) {
+				execute(connection, "SELECT pg_advisory_lock(" + ADVISORY_LOCK_ID + ")");
+			}
+
+			try {
+				return migrate(connection, migrations);
+			} finally {
+				if(postgresql) {
+					execute(connection, "SELECT pg_advisory_unlock(" + ADVISORY_LOCK_ID + ")");
+				}
+			}
+
+		} catch (SQLException ex) {
+			throw new RuntimeException("The schema migration failed", ex);
+		}
+	}
+
+	private int migrate(Connection connection, List<Migration> migrations) throws SQLException {
+		connection.setAutoCommit(true);
+		execute(connection, CREATE_SCHEMA_VERSION);
+
+		Set<Integer> applied = getAppliedVersions(connection);
+		int count = 0;
+
+		for(Migration migration : migrations) {
+			if(applied.contains(migration.version)) {
+				continue;
+			}
+
+			logger.info("Applying schema migration " + migration.resource.getFilename());
+			apply(connection, migration);
+			count++;
+		}
+
+		return count;
+	}
+
+	private void apply(Connection connection, Migration migration) throws SQLException {
+		boolean transactional = !migration.isConcurrent();
+
+		connection.setAutoCommit(!transactional);
+
+		try {
+			ScriptUtils.executeSqlScript(connection, migration.resource);
+
+			try (PreparedStatement insert = connection.prepareStatement(INSERT_VERSION)) {
+				insert.setInt(1, migration.version);
+				insert.setString(2, migration.description);
+				insert.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+				insert.executeUpdate();
+			}
+
+			if(transactional) {
+				connection.commit();
+			}
+
+		} catch (RuntimeException | SQLException ex) {
+			if(transactional) {
+				connection.rollback();
+			}
+
+			throw new RuntimeException("Schema migration " + migration.resource.getFilename() + " failed", ex);
+
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private Set<Integer> getAppliedVersions(Connection connection) throws SQLException {
+		Set<Integer> versions = new HashSet<>();
+
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(SELECT_VERSIONS)) {
+			while(rs.next()) {
+				versions.add(rs.getInt(1));
+			}
+		}
+
+		return versions;
+	}
+
+	private List<Migration> findMigrations(String platform) {
+		Resource[] resources;
+
+		try {
+			resources = new PathMatchingResourcePatternResolver().getResources(this.location + platform + "/V*.sql");
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to list the schema migrations of " + platform, ex);
+		}
+
+		List<Migration> migrations = new ArrayList<>();
+
+		for(Resource resource : resources) {
+			Matcher matcher = FILE_NAME.matcher(resource.getFilename());
+
+			if(!matcher.matches()) {
+				throw new RuntimeException("Invalid schema migration name: " + resource.getFilename());
+			}
+
+			migrations.add(new Migration(Integer.parseInt(matcher.group(1)), matcher.group(2).replace('_', ' '), resource));
+		}
+
+		migrations.sort(Comparator.comparingInt(m -> m.version));
+
+		return migrations;
+	}
+
+	private String getPlatform() {
+		String product;
+
+		try {
+			product = JdbcUtils.commonDatabaseName((String)JdbcUtils.extractDatabaseMetaData(this.dataSource, "getDatabaseProductName"));
+		} catch (MetaDataAccessException ex) {
+			throw new RuntimeException("Unable to identify the database", ex);
+		}
+
+		if(product != null && product.startsWith("HSQL")) {
+			return "hsqldb";
+		}
+
+		if("PostgreSQL".equals(product)) {
+			return "postgresql";
+		}
+
+		throw new RuntimeException("No schema migrations for " + product);
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	private static class Migration {
+		private final int version;
+		private final String description;
+		private final Resource resource;
+
+		Migration(int version, String description, Resource resource) {
+			this.version = version;
+			this.description = description;
+			this.resource = resource;
+		}
+
+		boolean isConcurrent() {
+			try {
+				return new String(FileCopyUtils.copyToByteArray(this.resource.getInputStream()), "UTF-8")
+						.contains("CONCURRENTLY");
+			} catch (IOException ex) {
+				throw new RuntimeException("Unable to read " + this.resource.getFilename(), ex);
+			}
+		}
+	}
+
+}
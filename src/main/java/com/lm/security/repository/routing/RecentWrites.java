@@ -0,0 +1,79 @@
+package com.lm.security.repository.routing;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/*
+ * The stores written by this instance in the last window, so they are read from the primary (read-your-writes)
+ * until the replicas have caught up.
+ *
+ * The window must be longer than the replication lag. Expired entries are removed when they are checked,
+ * and all of them every SWEEP_INTERVAL writes.
+ */
+public class RecentWrites {
+	private static final int SWEEP_INTERVAL = 1024;
+
+	private final ConcurrentHashMap<String, Long> writtenAt = new ConcurrentHashMap<>();
+	private final AtomicInteger writesSinceSweep = new AtomicInteger();
+	private final long windowNanos;
+	private final LongSupplier clock;
+
+	public RecentWrites(long window, TimeUnit unit) {
+		this(window, unit, System::nanoTime);
+	}
+
+	RecentWrites(long window, TimeUnit unit, LongSupplier clock) {
+		this.windowNanos = unit.toNanos(window);
+		this.clock = clock;
+	}
+
+	public void recordWrite(String registrationId, String shop) {
+		long now = this.clock.getAsLong();
+
+		this.writtenAt.put(key(registrationId, shop), now);
+
+		if(this.writesSinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+			this.writesSinceSweep.set(0);
+			sweep(now);
+		}
+	}
+
+	public boolean isRecentlyWritten(String registrationId, String shop) {
+		String key = key(registrationId, shop);
+		Long at = this.writtenAt.get(key);
+
+		if(at == null) {
+			return false;
+		}
+
+		if(this.clock.getAsLong() - at < this.windowNanos) {
+			return true;
+		}
+
+		this.writtenAt.remove(key, at);
+		return false;
+	}
+
+	public int size() {
+		return this.writtenAt.size();
+	}
+
+	private void sweep(long now) {
+		Iterator<Map.Entry<String, Long>> it = this.writtenAt.entrySet().iterator();
+
+		while(it.hasNext()) {
+			if(now - it.next().getValue() >= this.windowNanos) {
+				it.remove();
+			}
+		}
+	}
+
+	private static String key(String registrationId, String shop) {
+		return registrationId + "/" + shop;
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.lm.security.repository.routing;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/*
+ * A DataSource that sends connections to the primary database, except inside readFromReplica(...):
+ * there, they go to one of the replicas, in turn.
+ *
+ * Staleness policy: a replica may lag behind the primary, so readFromReplica(...) reads from the primary
+ * when the store was written by this instance in the last readYourWrites window (see RecentWrites), and
+ * when no connection to the replica can be obtained.
+ *
+ * Only lookups that tolerate a stale answer should be sent to a replica (see ShopifyTokenRepositoryImpl).
+ *
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+	
+	private static final Log logger = LogFactory.getLog(ReplicaRoutingDataSource.class);
+	
+	public static final String PRIMARY = "primary";
+	private static final String REPLICA_PREFIX = "replica";
+	
+	private final ThreadLocal<String> route = new ThreadLocal<>();
+	private final int replicaCount;
+	private final AtomicInteger nextReplica = new AtomicInteger();
+	private final RecentWrites recentWrites;
+	
+	private final LongAdder replicaReads = new LongAdder();
+	private final LongAdder primaryReads = new LongAdder();
+	
+	public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, long readYourWrites, TimeUnit unit) {
+		Map<Object, Object> targets = new HashMap<>();
+		targets.put(PRIMARY, primary);
+		
+		for(int i = 0; i < replicas.size(); i++) {
+			targets.put(REPLICA_PREFIX + i, replicas.get(i));
+		}
+		
+		setTargetDataSources(targets);
+		setDefaultTargetDataSource(primary);
+		afterPropertiesSet();
+		
+		this.replicaCount = replicas.size();
+		this.recentWrites = new RecentWrites(readYourWrites, unit);
+	}
+	
+	@Override
+	protected Object determineCurrentLookupKey() {
+		String route = this.route.get();
+		
+		return route == null ? PRIMARY : route;
+	}
+	
+	/*
+	 * Must be called after every write of a store
+	 */
+	public void recordWrite(String registrationId, String shop) {
+		this.recentWrites.recordWrite(registrationId, shop);
+	}
+	
+	public <T> T readFromReplica(String registrationId, String shop, Supplier<T> read) {
+		if(this.replicaCount == 0 || this.route.get() != null || this.recentWrites.isRecentlyWritten(registrationId, shop)) {
+			this.primaryReads.increment();
+			return read.get();
+		}
+		
+		String replica = REPLICA_PREFIX + Math.floorMod(this.nextReplica.getAndIncrement(), this.replicaCount);
+		this.route.set(replica);
+		
+		try {
+			T result = read.get();
+			this.replicaReads.increment();
+			
+			return result;
+			
+		} catch (DataAccessResourceFailureException ex) {
+			logger.warn("Unable to read from " + replica + ", reading from the primary", ex);
+			
+		} finally {
+			this.route.remove();
+		}
+		
+		this.primaryReads.increment();
+		return read.get();
+	}
+	
+	public long replicaReadCount() {
+		return this.replicaReads.sum();
+	}
+	
+	/*
+	 * Reads that could have gone to a replica, but went to the primary
+	 */
+	public long primaryReadCount() {
+		return this.primaryReads.sum();
+	}
+
+}
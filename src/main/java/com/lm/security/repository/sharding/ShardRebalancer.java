@@ -0,0 +1,225 @@
+package com.lm.security.repository.sharding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.dao.DuplicateKeyException;
+
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ReencryptedToken;
+import com.lm.security.repository.ShopifyTokenRepositoryImpl;
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+
+/*
+ * Moves the stores of a ShardedTokenRepository to the shard they belong to, after shards were added, while the
+ * application keeps serving them (see ShardedTokenRepository).
+ *
+ * Every shard is read in pages of pageSize stores (keyset pagination on id), all shards in parallel. A store
+ * found on another shard than its own is copied to its shard, then deleted from this one, but only if its token
+ * did not change in the meantime. If it did (ShardedTokenRepository updates both shards while stores are moved),
+ * the copy is updated, and the delete is tried again. If the store was saved on its new shard in the meantime,
+ * that save is newer: the store is only deleted from the former shard.
+ *
+ * Run it on one instance at a time. If the application stops, running it again finishes the move.
+ *
+ */
+public class ShardRebalancer implements SmartInitializingSingleton, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(ShardRebalancer.class);
+
+	private final ShardedTokenRepository repository;
+	private final int pageSize;
+
+	private final LongAdder scanned = new LongAdder();
+	private final LongAdder moved = new LongAdder();
+	private final LongAdder superseded = new LongAdder();
+
+	private volatile ExecutorService readers;
+	private volatile boolean ended;
+
+	public ShardRebalancer(ShardedTokenRepository repository, int pageSize) {
+		this.repository = repository;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public void afterSingletonsInstantiated() {
+		Thread thread = new Thread(() -> {
+			try {
+				run();
+			} catch (RuntimeException ex) {
+				logger.error("Moving the stores between token shards failed, run it again to finish", ex);
+			}
+		}, "token-shard-rebalancer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void destroy() {
+		ExecutorService readers = this.readers;
+
+		if(readers != null) {
+			readers.shutdownNow();
+		}
+	}
+
+	/*
+	 * Runs the move in the calling thread
+	 */
+	public void run() {
+		int shardCount = this.repository.shardCount();
+		long startedAt = System.nanoTime();
+
+		logger.info("Moving stores to their shard, over " + shardCount + " shards");
+
+		this.readers = Executors.newFixedThreadPool(shardCount, r -> {
+			Thread thread = new Thread(r, "token-shard-rebalancer-reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try {
+			List<Future<?>> shards = new ArrayList<>();
+
+			for(int i = 0; i < shardCount; i++) {
+				int shard = i;
+				shards.add(this.readers.submit(() -> rebalance(shard)));
+			}
+
+			for(Future<?> shard : shards) {
+				shard.get();
+			}
+
+			this.ended = true;
+
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Moving the stores between token shards was interrupted", ex);
+
+		} catch (ExecutionException ex) {
+			throw new RuntimeException("Moving the stores between token shards failed", ex.getCause());
+
+		} finally {
+			this.readers.shutdownNow();
+		}
+
+		logger.info("Stores moved in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt) + " s: "
+				+ this.scanned.sum() + " stores read, " + this.moved.sum() + " moved, "
+				+ this.superseded.sum() + " already saved on their shard");
+	}
+
+	private void rebalance(int source) {
+		ShopifyTokenRepositoryImpl shard = this.repository.shard(source);
+
+		// HSQLDB identities start at 0
+		long lastId = Long.MIN_VALUE;
+
+		while(!Thread.currentThread().isInterrupted()) {
+			List<StoreRow> misplaced = new ArrayList<>();
+
+			long pageLastId = shard.findStores(lastId, this.pageSize, (id, registrationId, shop, token) -> {
+				this.scanned.increment();
+
+				if(this.repository.shardOf(shop) != source) {
+					misplaced.add(new StoreRow(registrationId, shop, token));
+				}
+			});
+
+			for(StoreRow row : misplaced) {
+				move(shard, this.repository.shard(this.repository.shardOf(row.shop)), row);
+			}
+
+			if(pageLastId == lastId) {
+				break;
+			}
+
+			lastId = pageLastId;
+		}
+	}
+
+	private void move(ShopifyTokenRepositoryImpl from, ShopifyTokenRepositoryImpl to, StoreRow row) {
+		OAuth2AccessTokenWithSalt token = row.token;
+
+		try {
+			to.saveNewStore(row.registrationId, row.shop, token.getAccess_token().getScopes(), encryptedTokenAndSalt(token));
+		} catch (DuplicateKeyException ex) {
+			from.uninstallStore(row.registrationId, row.shop);
+			this.superseded.increment();
+			return;
+		}
+
+		String copied = token.getAccess_token().getTokenValue();
+
+		while(!from.uninstallStore(row.registrationId, row.shop, copied)) {
+			OAuth2AccessTokenWithSalt current = from.findTokenForRequest(row.registrationId, row.shop);
+
+			if(current == null) {
+				// uninstalled meanwhile: the copy goes too, unless the store was saved again since
+				to.uninstallStore(row.registrationId, row.shop, copied);
+				return;
+			}
+
+			int updated = to.updateKeys(Collections.singletonList(
+					new ReencryptedToken(row.registrationId, row.shop, copied, encryptedTokenAndSalt(current))));
+
+			if(updated == 0) {
+				// saved again on its new shard since
+				from.uninstallStore(row.registrationId, row.shop);
+				this.superseded.increment();
+				return;
+			}
+
+			copied = current.getAccess_token().getTokenValue();
+		}
+
+		this.moved.increment();
+	}
+
+	private static EncryptedTokenAndSalt encryptedTokenAndSalt(OAuth2AccessTokenWithSalt token) {
+		return new EncryptedTokenAndSalt(token.getAccess_token().getTokenValue(), token.getSalt(), token.getKeyVersion());
+	}
+
+	public boolean isEnded() {
+		return this.ended;
+	}
+
+	public long scannedCount() {
+		return this.scanned.sum();
+	}
+
+	public long movedCount() {
+		return this.moved.sum();
+	}
+
+	/*
+	 * Stores saved on their new shard while they were moved, so only deleted from their former shard
+	 */
+	public long supersededCount() {
+		return this.superseded.sum();
+	}
+
+	private static class StoreRow {
+		private final String registrationId;
+		private final String shop;
+		private final OAuth2AccessTokenWithSalt token;
+
+		StoreRow(String registrationId, String shop, OAuth2AccessTokenWithSalt token) {
+			this.registrationId = registrationId;
+			this.shop = shop;
+			this.token = token;
+		}
+	}
+
+}
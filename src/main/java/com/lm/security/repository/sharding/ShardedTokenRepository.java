@@ -0,0 +1,337 @@
+package com.lm.security.repository.sharding;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ReencryptedToken;
+import com.lm.security.repository.ShopifyTokenRepositoryImpl;
+import com.lm.security.repository.TokenRepository;
+
+/*
+ * A TokenRepository that spreads the stores over several databases (shards), each with its own connection pool,
+ * so the StoreAccessTokens table is no longer limited to what one database can hold and serve.
+ *
+ * The shard of a store depends on its shop only (see shardFor(...,...)), so the stores of every app installed
+ * on a shop are on the same shard. The shop is hashed with 64-bit FNV-1a, and the hash is mapped to a shard with
+ * the jump consistent hash: when shards are added at the end of the list, only the stores that belong to the
+ * new shards move, and the order of the existing shards must not change.
+ *
+ * To add shards while the application runs:
+ *
+ * 	1. append the new databases to lm.security.token-store.shards, and set
+ * 	   lm.security.token-store.previous-shard-count to the former number of shards
+ * 	2. run the ShardRebalancer, which moves the stores to their new shard
+ * 	3. once it is done, remove previous-shard-count
+ *
+ * While previous-shard-count is set, a store may still be on its former shard. Lookups try the former shard first,
+ * then the new one (the rebalancer copies a store before it deletes it, so it is always in one of them). Saves go
+ * to the new shard, then delete the former copy. Updates and uninstalls apply to the former shard, then the new one.
+ *
+ * forEachStore(...) and countStores() run on every shard in parallel. findStores(...,...,...) pages through the
+ * shards one after another (the shard is kept in the top 16 bits of the ids it returns): jobs that scan every store
+ * use shards() instead, and scan each shard in parallel.
+ *
+ */
+public class ShardedTokenRepository implements TokenRepository, DisposableBean {
+
+	private static final Log logger = LogFactory.getLog(ShardedTokenRepository.class);
+
+	private static final int SHARD_SHIFT = 48;
+	private static final long LOCAL_ID_MASK = (1L << SHARD_SHIFT) - 1;
+
+	private final List<DataSource> dataSources;
+	private final List<ShopifyTokenRepositoryImpl> shards;
+	private final int previousShardCount;
+	private final ExecutorService scans;
+
+	public ShardedTokenRepository(List<DataSource> dataSources) {
+		this(dataSources, 0);
+	}
+
+	/*
+	 * previousShardCount: the number of shards before shards were added, while the stores are moved
+	 * (0 if they are not)
+	 */
+	public ShardedTokenRepository(List<DataSource> dataSources, int previousShardCount) {
+		if(dataSources.isEmpty() || dataSources.size() > 1 << (Long.SIZE - SHARD_SHIFT - 1)) {
+			throw new IllegalArgumentException("Between 1 and 32768 shards are supported, not " + dataSources.size());
+		}
+
+		if(previousShardCount < 0 || previousShardCount > dataSources.size()) {
+			throw new IllegalArgumentException("previousShardCount must be between 0 and the number of shards");
+		}
+
+		this.dataSources = Collections.unmodifiableList(new ArrayList<>(dataSources));
+		this.previousShardCount = previousShardCount;
+
+		List<ShopifyTokenRepositoryImpl> shards = new ArrayList<>();
+
+		for(DataSource dataSource : dataSources) {
+			ShopifyTokenRepositoryImpl shard = new ShopifyTokenRepositoryImpl();
+			shard.setJdbc(new JdbcTemplate(dataSource));
+			shards.add(shard);
+		}
+
+		this.shards = Collections.unmodifiableList(shards);
+
+		this.scans = Executors.newFixedThreadPool(shards.size(), r -> {
+			Thread thread = new Thread(r, "token-shard-scan");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/*
+	 * Jump consistent hash (Lamping and Veach) of the 64-bit FNV-1a hash of the shop
+	 */
+	public static int shardFor(String shop, int shardCount) {
+		long key = 0xcbf29ce484222325L;
+
+		for(int i = 0; i < shop.length(); i++) {
+			key = (key ^ shop.charAt(i)) * 0x100000001b3L;
+		}
+
+		long bucket = -1;
+		long next = 0;
+
+		while(next < shardCount) {
+			bucket = next;
+			key = key * 2862933555777941757L + 1;
+			next = (long)((bucket + 1) * ((double)(1L << 31) / (double)((key >>> 33) + 1)));
+		}
+
+		return (int)bucket;
+	}
+
+	public int shardOf(String shop) {
+		return shardFor(shop, this.shards.size());
+	}
+
+	// the shard the store was on before shards were added, or its shard if they were not
+	private int previousShardOf(String shop, int shard) {
+		return this.previousShardCount == 0 ? shard : shardFor(shop, this.previousShardCount);
+	}
+
+	public ShopifyTokenRepositoryImpl shard(int index) {
+		return this.shards.get(index);
+	}
+
+	public int shardCount() {
+		return this.shards.size();
+	}
+
+	public int previousShardCount() {
+		return this.previousShardCount;
+	}
+
+	public List<DataSource> getDataSources() {
+		return this.dataSources;
+	}
+
+	@Override
+	public void destroy() {
+		this.scans.shutdownNow();
+
+		for(DataSource dataSource : this.dataSources) {
+			if(dataSource instanceof Closeable) {
+				try {
+					((Closeable)dataSource).close();
+				} catch (IOException ex) {
+					logger.warn("Unable to close the connection pool of a token shard", ex);
+				}
+			}
+		}
+	}
+
+	@Override
+	public OAuth2AccessTokenWithSalt findTokenForRequest(String registrationId, String shop) {
+		int shard = shardOf(shop);
+		int previous = previousShardOf(shop, shard);
+
+		if(previous != shard) {
+			OAuth2AccessTokenWithSalt token = this.shards.get(previous).findTokenForRequest(registrationId, shop);
+
+			if(token != null) {
+				return token;
+			}
+		}
+
+		return this.shards.get(shard).findTokenForRequest(registrationId, shop);
+	}
+
+	@Override
+	public void saveNewStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		int shard = shardOf(shop);
+		int previous = previousShardOf(shop, shard);
+
+		this.shards.get(shard).saveNewStore(registrationId, shop, scopes, encryptedTokenAndSalt);
+
+		if(previous != shard) {
+			this.shards.get(previous).uninstallStore(registrationId, shop);
+		}
+	}
+
+	@Override
+	public void updateKey(String registrationId, String shop, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		int shard = shardOf(shop);
+		int previous = previousShardOf(shop, shard);
+
+		if(previous != shard) {
+			this.shards.get(previous).updateKey(registrationId, shop, encryptedTokenAndSalt);
+		}
+
+		this.shards.get(shard).updateKey(registrationId, shop, encryptedTokenAndSalt);
+	}
+
+	@Override
+	public void saveStore(String registrationId, String shop, Set<String> scopes, EncryptedTokenAndSalt encryptedTokenAndSalt) {
+		int shard = shardOf(shop);
+		int previous = previousShardOf(shop, shard);
+
+		this.shards.get(shard).saveStore(registrationId, shop, scopes, encryptedTokenAndSalt);
+
+		if(previous != shard) {
+			this.shards.get(previous).uninstallStore(registrationId, shop);
+		}
+	}
+
+	@Override
+	public void uninstallStore(String registrationId, String storeName) {
+		int shard = shardOf(storeName);
+		int previous = previousShardOf(storeName, shard);
+
+		if(previous != shard) {
+			this.shards.get(previous).uninstallStore(registrationId, storeName);
+		}
+
+		this.shards.get(shard).uninstallStore(registrationId, storeName);
+	}
+
+	// while stores are moved, a store can be visited twice
+	@Override
+	public void forEachStore(BiConsumer<String, String> action) {
+		onEachShard(shard -> {
+			shard.forEachStore(action);
+			return null;
+		});
+	}
+
+	@Override
+	public long findStores(long afterId, int limit, StoreConsumer consumer) {
+		int index = afterId < 0 ? 0 : (int)(afterId >>> SHARD_SHIFT);
+		long localAfterId = afterId < 0 ? afterId : afterId & LOCAL_ID_MASK;
+
+		for(; index < this.shards.size(); index++) {
+			long shard = index;
+			long lastId = this.shards.get(index).findStores(localAfterId, limit, (id, registrationId, shop, token) ->
+					consumer.accept(shard << SHARD_SHIFT | id, registrationId, shop, token));
+
+			if(lastId != localAfterId) {
+				return shard << SHARD_SHIFT | lastId;
+			}
+
+			// HSQLDB identities start at 0
+			localAfterId = Long.MIN_VALUE;
+		}
+
+		return afterId;
+	}
+
+	@Override
+	public long countStores() {
+		long count = 0;
+
+		for(Long shardCount : onEachShard(ShopifyTokenRepositoryImpl::countStores)) {
+			count += shardCount;
+		}
+
+		return count;
+	}
+
+	// while stores are moved, a store is updated on both shards, and can be counted twice
+	@Override
+	public int updateKeys(List<ReencryptedToken> tokens) {
+		List<List<ReencryptedToken>> byShard = new ArrayList<>();
+
+		for(int i = 0; i < this.shards.size(); i++) {
+			byShard.add(new ArrayList<>());
+		}
+
+		for(ReencryptedToken token : tokens) {
+			int shard = shardOf(token.getShop());
+			int previous = previousShardOf(token.getShop(), shard);
+
+			byShard.get(shard).add(token);
+
+			if(previous != shard) {
+				byShard.get(previous).add(token);
+			}
+		}
+
+		int updated = 0;
+
+		for(int i = 0; i < this.shards.size(); i++) {
+			updated += this.shards.get(i).updateKeys(byShard.get(i));
+		}
+
+		return updated;
+	}
+
+	@Override
+	public List<TokenRepository> shards() {
+		return Collections.unmodifiableList(this.shards);
+	}
+
+	private <T> List<T> onEachShard(Function<ShopifyTokenRepositoryImpl, T> task) {
+		List<Future<T>> futures = new ArrayList<>();
+
+		for(ShopifyTokenRepositoryImpl shard : this.shards) {
+			futures.add(this.scans.submit(() -> task.apply(shard)));
+		}
+
+		List<T> results = new ArrayList<>();
+
+		try {
+			for(Future<T> future : futures) {
+				results.add(future.get());
+			}
+
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while scanning the token shards", ex);
+
+		} catch (ExecutionException ex) {
+			if(ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)ex.getCause();
+			}
+
+			throw new RuntimeException("A token shard scan failed", ex.getCause());
+
+		} finally {
+			for(Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		return results;
+	}
+
+}
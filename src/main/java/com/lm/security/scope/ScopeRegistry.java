@@ -0,0 +1,255 @@
+package com.lm.security.scope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.util.StringUtils;
+
+/*
+ * The canonical scopes: each scope is given a bit the first time it is seen, and the sets of scopes are interned
+ * as immutable ScopeSets.
+ *
+ * Scopes come from the configuration (ClientRegistration), from Shopify's token responses and from the scope column,
+ * so there are few of them, and few combinations: the bits are never released. Since the last two are not under
+ * the app's control, every table is bounded:
+ *
+ * 	- at most MAX_SCOPES scopes get a bit: a scope seen after that is kept by name in the ScopeSets that have it
+ * 	  (slower, but still correct), and such sets are not shared
+ * 	- at most MAX_CACHED parsed strings and interned sets: past that, ScopeSets are still built, but no longer shared
+ *
+ * The bits are only meaningful in this process: what is stored or sent is the comma-separated form
+ * (ScopeSet.toString()).
+ */
+public final class ScopeRegistry {
+
+	static final int MAX_CACHED = 4096;
+
+	// Shopify has about a hundred scopes: a full ScopeSet is 16 words
+	static final int MAX_SCOPES = 1024;
+
+	private static final String READ = "read_";
+	private static final String WRITE = "write_";
+	private static final String UNAUTHENTICATED_READ = "unauthenticated_read_";
+	private static final String UNAUTHENTICATED_WRITE = "unauthenticated_write_";
+
+	private static final Map<String, Integer> bits = new ConcurrentHashMap<>();
+
+	// the interned sets, keyed by themselves: any Set<String> with the same scopes finds its ScopeSet
+	private static final Map<Set<String>, ScopeSet> interned = new ConcurrentHashMap<>();
+
+	// the comma-separated strings already parsed, as read from the scope column
+	private static final Map<String, ScopeSet> parsed = new ConcurrentHashMap<>();
+
+	private ScopeRegistry() {
+	}
+
+	/*
+	 * The ScopeSet of a comma-separated list of scopes (empty scopes are ignored)
+	 */
+	public static ScopeSet parse(String scope) {
+		if(scope == null || scope.isEmpty()) {
+			return ScopeSet.EMPTY;
+		}
+
+		ScopeSet scopes = parsed.get(scope);
+
+		if(scopes == null) {
+			scopes = build(Arrays.asList(StringUtils.delimitedListToStringArray(scope, ",")));
+
+			if(parsed.size() < MAX_CACHED && !scopes.hasUnregistered()) {
+				parsed.putIfAbsent(scope, scopes);
+			}
+		}
+
+		return scopes;
+	}
+
+	/*
+	 * The ScopeSet with the same scopes. Finding the ScopeSet of a Set does not allocate when it has been seen before,
+	 * including the read-only view of a ScopeSet returned by OAuth2AccessToken.getScopes().
+	 */
+	public static ScopeSet of(Collection<String> scopes) {
+		if(scopes instanceof ScopeSet) {
+			return (ScopeSet)scopes;
+		}
+
+		if(scopes == null || scopes.isEmpty()) {
+			return ScopeSet.EMPTY;
+		}
+
+		if(scopes instanceof Set) {
+			ScopeSet known = interned.get(scopes);
+
+			if(known != null) {
+				return known;
+			}
+		}
+
+		return build(scopes);
+	}
+
+	/*
+	 * The canonical, comma-separated form of the scopes
+	 */
+	public static String join(Collection<String> scopes) {
+		return of(scopes).toString();
+	}
+
+	// the number of scopes with a bit
+	static int size() {
+		return bits.size();
+	}
+
+	// the bit of this scope, or -1 if it has never been seen
+	static int bit(String scope) {
+		Integer bit = bits.get(scope);
+
+		return bit == null ? -1 : bit;
+	}
+
+	private static ScopeSet build(Collection<String> scopes) {
+		return build(scopes, MAX_SCOPES);
+	}
+
+	// maxScopes: for tests, which cannot fill the registry of the whole JVM
+	static ScopeSet build(Collection<String> scopes, int maxScopes) {
+		List<String> members = new ArrayList<>(scopes.size());
+		long[] words = new long[0];
+		HashSet<String> unregistered = null;
+
+		for(String scope : scopes) {
+			if(scope == null || scope.isEmpty()) {
+				continue;
+			}
+
+			int bit = register(scope, maxScopes);
+
+			if(bit < 0) {
+				if(unregistered == null) {
+					unregistered = new HashSet<>();
+				}
+
+				if(unregistered.add(scope)) {
+					members.add(scope);
+				}
+
+				continue;
+			}
+
+			int index = bit >>> 6;
+
+			if(index >= words.length) {
+				words = Arrays.copyOf(words, index + 1);
+			}
+
+			if((words[index] & (1L << bit)) == 0) {
+				words[index] |= 1L << bit;
+				members.add(scope);
+			}
+		}
+
+		String[] array = members.toArray(new String[members.size()]);
+		long[] implied = implied(array, maxScopes);
+
+		if(unregistered != null) {
+			return new ScopeSet(words, implied, Collections.unmodifiableSet(unregistered), array);
+		}
+
+		ScopeSet built = new ScopeSet(words, implied, Collections.<String>emptySet(), array);
+
+		if(interned.size() >= MAX_CACHED) {
+			ScopeSet known = interned.get(built);
+
+			return known == null ? built : known;
+		}
+
+		ScopeSet known = interned.putIfAbsent(built, built);
+
+		return known == null ? built : known;
+	}
+
+	/*
+	 * The scope that write access stands for: read_X for write_X, unauthenticated_read_X for
+	 * unauthenticated_write_X, or null
+	 */
+	static String readScope(String scope) {
+		if(scope.startsWith(WRITE)) {
+			return READ + scope.substring(WRITE.length());
+		}
+
+		if(scope.startsWith(UNAUTHENTICATED_WRITE)) {
+			return UNAUTHENTICATED_READ + scope.substring(UNAUTHENTICATED_WRITE.length());
+		}
+
+		return null;
+	}
+
+	// the opposite of readScope(...)
+	static String writeScope(String scope) {
+		if(scope.startsWith(READ)) {
+			return WRITE + scope.substring(READ.length());
+		}
+
+		if(scope.startsWith(UNAUTHENTICATED_READ)) {
+			return UNAUTHENTICATED_WRITE + scope.substring(UNAUTHENTICATED_READ.length());
+		}
+
+		return null;
+	}
+
+	// the bits of the read scopes of the write scopes (a read scope without a bit is found by name, see ScopeSet)
+	private static long[] implied(String[] scopes, int maxScopes) {
+		long[] words = new long[0];
+
+		for(String scope : scopes) {
+			String read = readScope(scope);
+			int bit = read == null ? -1 : register(read, maxScopes);
+
+			if(bit < 0) {
+				continue;
+			}
+
+			int index = bit >>> 6;
+
+			if(index >= words.length) {
+				words = Arrays.copyOf(words, index + 1);
+			}
+
+			words[index] |= 1L << bit;
+		}
+
+		return words;
+	}
+
+	// the bit of this scope, or -1 if there are maxScopes already
+	private static int register(String scope, int maxScopes) {
+		Integer bit = bits.get(scope);
+
+		if(bit != null) {
+			return bit;
+		}
+
+		synchronized(bits) {
+			bit = bits.get(scope);
+
+			if(bit == null) {
+				if(bits.size() >= maxScopes) {
+					return -1;
+				}
+
+				bit = bits.size();
+				bits.put(scope, bit);
+			}
+
+			return bit;
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.lm.security.scope;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+ * An immutable set of scopes, with one bit per scope of the ScopeRegistry.
+ *
+ * Instances are interned by the registry (see ScopeRegistry.parse(...) and ScopeRegistry.of(...)): the tokens of
+ * every store granted the same scopes share one ScopeSet, and comparing two of them does not allocate.
+ *
+ * Iteration and toString() follow the order of the scopes in the first collection the set was built from: the
+ * configuration is parsed at startup, so the scopes are sent to Shopify and stored in the order they are configured.
+ * toString() is the canonical, comma-separated form.
+ *
+ * Shopify does not list read_X among the granted scopes when it grants write_X: grants(...) compares granted scopes
+ * with required ones, write_X standing for read_X too.
+ *
+ * A scope the registry has no bit for (it is full, see ScopeRegistry.MAX_SCOPES) is kept by name instead.
+ */
+public final class ScopeSet extends AbstractSet<String> {
+
+	static final ScopeSet EMPTY = new ScopeSet(new long[0], new String[0]);
+
+	private final long[] words;
+	// the read scopes the write scopes of this set stand for (see grants(...))
+	private final long[] implied;
+	// the scopes without a bit: empty, unless the registry is full
+	private final Set<String> unregistered;
+	private final String[] scopes;
+	private final String joined;
+	private final int hash;
+
+	// scopes: without duplicates
+	ScopeSet(long[] words, String[] scopes) {
+		this(words, new long[0], Collections.<String>emptySet(), scopes);
+	}
+
+	ScopeSet(long[] words, long[] implied, Set<String> unregistered, String[] scopes) {
+		this.words = words;
+		this.implied = implied;
+		this.unregistered = unregistered;
+		this.scopes = scopes;
+		this.joined = String.join(",", scopes);
+
+		int hash = 0;
+		for(String scope : scopes) {
+			hash += scope.hashCode();
+		}
+		this.hash = hash;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof String)) {
+			return false;
+		}
+
+		int bit = ScopeRegistry.bit((String)o);
+
+		if(bit < 0) {
+			return this.unregistered.contains(o);
+		}
+
+		return (word(bit >>> 6) & (1L << bit)) != 0;
+	}
+
+	/*
+	 * True if every scope of required is in this set, as listed (see grants(...) for granted scopes)
+	 */
+	public boolean containsAll(ScopeSet required) {
+		for(int i = 0; i < required.words.length; i++) {
+			if((required.words[i] & ~word(i)) != 0) {
+				return false;
+			}
+		}
+
+		return this.unregistered.containsAll(required.unregistered);
+	}
+
+	/*
+	 * True if a store granted these scopes does not have to re-authorize for required: like containsAll(...), but
+	 * write_X grants read_X (and unauthenticated_write_X grants unauthenticated_read_X), as Shopify only returns
+	 * the former in its token responses.
+	 */
+	public boolean grants(ScopeSet required) {
+		for(int i = 0; i < required.words.length; i++) {
+			if((required.words[i] & ~(word(i) | implied(i))) != 0) {
+				return false;
+			}
+		}
+
+		for(String scope : required.unregistered) {
+			if(!contains(scope) && !contains(ScopeRegistry.writeScope(scope))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		if(c instanceof ScopeSet) {
+			return containsAll((ScopeSet)c);
+		}
+
+		return super.containsAll(c);
+	}
+
+	@Override
+	public int size() {
+		return this.scopes.length;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < scopes.length;
+			}
+
+			@Override
+			public String next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				return scopes[this.next++];
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(this == o) {
+			return true;
+		}
+
+		if(o instanceof ScopeSet) {
+			ScopeSet other = (ScopeSet)o;
+
+			return this.hash == other.hash && Arrays.equals(this.words, other.words) && this.unregistered.equals(other.unregistered);
+		}
+
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public String toString() {
+		return this.joined;
+	}
+
+	// no bit, and no bit will ever be given to them: compared by name
+	boolean hasUnregistered() {
+		return !this.unregistered.isEmpty();
+	}
+
+	private long word(int index) {
+		return index < this.words.length ? this.words[index] : 0;
+	}
+
+	private long implied(int index) {
+		return index < this.implied.length ? this.implied[index] : 0;
+	}
+
+}
@@ -3,7 +3,6 @@ package com.lm.security.service;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
-import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 
 /*
  * Invoked by OAuth2LoginAuthenticationFilter indirectly when it invokes 
@@ -36,7 +35,7 @@ public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedCli
 	public <T extends OAuth2AuthorizedClient> T loadAuthorizedClient(String clientRegistrationId,
 			String principalName) {
 		
-		OAuth2AuthorizedClient client = tokenService.getStore(principalName);
+		OAuth2AuthorizedClient client = tokenService.getStore(clientRegistrationId, principalName);
 		
 		if(client != null) {
 			return (T) client;
@@ -48,20 +47,13 @@ public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedCli
 	/*
 	 * Called by OAuth2LoginAuthenticationFilter upon successful authentication
 	 * 
-	 * Decides whether or not it should update the DB or add the new store
+	 * Adds the new store, or updates its credentials if it has already been installed, 
+	 * with a single upsert (no read before the write)
 	 */
 	@Override
 	public void saveAuthorizedClient(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
 		
-		String shop = ((OAuth2AuthenticationToken)principal).getPrincipal().getName();
-		boolean doesStoreExist = tokenService.doesStoreExist(shop);
-
-		if(doesStoreExist) {
-			tokenService.updateStore(authorizedClient, principal);
-		} else {
-			tokenService.saveNewStore(authorizedClient, principal);
-
-		}
+		tokenService.saveStore(authorizedClient, principal);
 	
 	}
 
@@ -70,7 +62,7 @@ public class ShopifyOAuth2AuthorizedClientService implements OAuth2AuthorizedCli
 	 */
 	@Override
 	public void removeAuthorizedClient(String clientRegistrationId, String principalName) {
-		tokenService.uninstallStore(principalName);
+		tokenService.uninstallStore(clientRegistrationId, principalName);
 		
 	}
 
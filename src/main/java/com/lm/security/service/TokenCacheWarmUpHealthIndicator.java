@@ -0,0 +1,29 @@
+package com.lm.security.service;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+/*
+ * OUT_OF_SERVICE until the token cache is warm enough (see TokenCacheWarmer.isReady()), so a load balancer
+ * checking /actuator/health does not send traffic to an instance with a cold cache.
+ */
+public class TokenCacheWarmUpHealthIndicator extends AbstractHealthIndicator {
+	
+	private final TokenCacheWarmer warmer;
+	
+	public TokenCacheWarmUpHealthIndicator(TokenCacheWarmer warmer) {
+		this.warmer = warmer;
+	}
+
+	@Override
+	protected void doHealthCheck(Health.Builder builder) {
+		builder.status(this.warmer.isReady() ? Status.UP : Status.OUT_OF_SERVICE)
+				.withDetail("progress", this.warmer.progress())
+				.withDetail("stores", this.warmer.total())
+				.withDetail("warmed", this.warmer.warmedCount())
+				.withDetail("failed", this.warmer.failedCount())
+				.withDetail("ended", this.warmer.isEnded());
+	}
+
+}
@@ -0,0 +1,318 @@
+package com.lm.security.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+
+import com.lm.security.repository.TokenRepository;
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * Fills the token cache with the installed stores when the application starts, so the first request
+ * of each shop after a deploy does not pay for the query and the decryption.
+ *
+ * The stores are streamed from the table in pages of pageSize rows (keyset pagination on id, see
+ * TokenRepository.findStores(...,...,...)), and decrypted by a pool of threads. The pool's queue is bounded:
+ * when it is full, the thread reading the table decrypts the next store itself, which slows the reading down.
+ *
+ * A sharded repository (see TokenRepository.shards()) is read by one thread per shard, into the same pool.
+ *
+ * The cache stamps are taken before each page is read (TokenService.beginWarmUpPage()), so a store uninstalled
+ * or updated after it was read is not cached with its old token, however long it waits in the queue.
+ *
+ * At most maxStores are warmed up (more would only evict each other from the cache).
+ *
+ * isReady() becomes true once readyPercent of them are in the cache, or when the warm-up ends (even if it failed:
+ * a cold cache is slower, not broken). See TokenCacheWarmUpHealthIndicator.
+ *
+ * Metrics:
+ *
+ * 	lm.token.cache.warmup.stores{result=warmed|failed}
+ * 	lm.token.cache.warmup.progress (0 to 1)
+ * 	lm.token.cache.warmup.rate (stores per second)
+ *
+ */
+public class TokenCacheWarmer implements SmartInitializingSingleton, DisposableBean, MeterBinder {
+	
+	private static final Log logger = LogFactory.getLog(TokenCacheWarmer.class);
+	
+	private final TokenRepository tokenRepository;
+	private final TokenService tokenService;
+	private final long maxStores;
+	private final int pageSize;
+	private final int threads;
+	private final double readyPercent;
+	
+	private final LongAdder warmed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	
+	private volatile long total = -1;
+	private volatile long startedAt;
+	private volatile long endedAt;
+	private volatile boolean ended;
+	private volatile ThreadPoolExecutor workers;
+	
+	public TokenCacheWarmer(TokenRepository tokenRepository, TokenService tokenService, long maxStores, int pageSize, int threads, double readyPercent) {
+		this.tokenRepository = tokenRepository;
+		this.tokenService = tokenService;
+		this.maxStores = maxStores;
+		this.pageSize = pageSize;
+		this.threads = threads;
+		this.readyPercent = readyPercent;
+	}
+	
+	@Override
+	public void afterSingletonsInstantiated() {
+		Thread thread = new Thread(this::warmUp, "token-cache-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	public void destroy() {
+		ThreadPoolExecutor workers = this.workers;
+		
+		if(workers != null) {
+			workers.shutdownNow();
+		}
+	}
+	
+	/*
+	 * Runs the warm-up in the calling thread
+	 */
+	public void warmUp() {
+		this.startedAt = System.nanoTime();
+		
+		try {
+			this.total = Math.min(this.tokenRepository.countStores(), this.maxStores);
+			
+			logger.info("Warming up the token cache with " + this.total + " stores");
+			
+			if(this.total > 0) {
+				load();
+			}
+			
+			logger.info("Token cache warm-up done: " + this.warmed.sum() + " stores in " + 
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startedAt) + " ms, " + this.failed.sum() + " failed");
+			
+		} catch (RuntimeException ex) {
+			logger.warn("The token cache warm-up failed", ex);
+			
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			
+		} finally {
+			this.endedAt = System.nanoTime();
+			this.ended = true;
+		}
+	}
+	
+	private void load() throws InterruptedException {
+		this.workers = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(this.pageSize), 
+				r -> {
+					Thread thread = new Thread(r, "token-cache-warm-up-worker");
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		
+		List<TokenRepository> shards = this.tokenRepository.shards();
+		AtomicLong remaining = new AtomicLong(this.total);
+		
+		try {
+			if(shards.size() == 1) {
+				load(shards.get(0), remaining);
+			} else {
+				loadInParallel(shards, remaining);
+			}
+			
+		} finally {
+			this.workers.shutdown();
+		}
+		
+		this.workers.awaitTermination(1, TimeUnit.HOURS);
+	}
+	
+	// one thread reads each shard
+	private void loadInParallel(List<TokenRepository> shards, AtomicLong remaining) throws InterruptedException {
+		ExecutorService readers = Executors.newFixedThreadPool(shards.size(), r -> {
+			Thread thread = new Thread(r, "token-cache-warm-up-reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		try {
+			List<Future<?>> reads = new ArrayList<>();
+			
+			for(TokenRepository shard : shards) {
+				reads.add(readers.submit(() -> load(shard, remaining)));
+			}
+			
+			for(Future<?> read : reads) {
+				read.get();
+			}
+			
+		} catch (ExecutionException ex) {
+			throw new RuntimeException("Reading a token shard failed", ex.getCause());
+			
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+	
+	private void load(TokenRepository shard, AtomicLong remaining) {
+		// HSQLDB identities start at 0
+		long lastId = Long.MIN_VALUE;
+		AtomicInteger pageCount = new AtomicInteger();
+		
+		while(true) {
+			int limit = reserve(remaining);
+			
+			if(limit == 0) {
+				break;
+			}
+			
+			pageCount.set(0);
+			long pageStamp = this.tokenService.beginWarmUpPage();
+			
+			lastId = shard.findStores(lastId, limit, (id, registrationId, shop, token) -> {
+				pageCount.incrementAndGet();
+				long loadStamp = this.tokenService.beginWarmUp(registrationId, shop, pageStamp);
+				this.workers.execute(() -> warm(registrationId, shop, token, loadStamp));
+			});
+			
+			// the rest of the page goes to the other shards
+			remaining.addAndGet(limit - pageCount.get());
+			
+			if(pageCount.get() < limit) {
+				break;
+			}
+		}
+	}
+	
+	// takes up to a page out of the stores left to warm up
+	private int reserve(AtomicLong remaining) {
+		while(true) {
+			long left = remaining.get();
+			
+			if(left <= 0) {
+				return 0;
+			}
+			
+			int limit = (int)Math.min(this.pageSize, left);
+			
+			if(remaining.compareAndSet(left, left - limit)) {
+				return limit;
+			}
+		}
+	}
+	
+	private void warm(String registrationId, String shop, OAuth2AccessTokenWithSalt token, long loadStamp) {
+		try {
+			if(this.tokenService.warmStore(registrationId, shop, token, loadStamp)) {
+				this.warmed.increment();
+			} else {
+				this.failed.increment();
+			}
+			
+		} catch (RuntimeException ex) {
+			// ex: the app of this store is no longer registered
+			this.failed.increment();
+		}
+	}
+	
+	public boolean isReady() {
+		return this.ended || progress() * 100 >= this.readyPercent;
+	}
+	
+	public boolean isEnded() {
+		return this.ended;
+	}
+	
+	/*
+	 * The share of the stores to warm up that are done (warmed or failed), from 0 to 1
+	 */
+	public double progress() {
+		long total = this.total;
+		
+		if(total < 0) {
+			return 0;
+		}
+		
+		if(total == 0) {
+			return 1;
+		}
+		
+		return Math.min(1, (double)(this.warmed.sum() + this.failed.sum()) / total);
+	}
+	
+	/*
+	 * Stores warmed up per second, since the warm-up started
+	 */
+	public double rate() {
+		long startedAt = this.startedAt;
+		
+		if(startedAt == 0) {
+			return 0;
+		}
+		
+		long end = this.ended ? this.endedAt : System.nanoTime();
+		double seconds = (end - startedAt) / 1e9;
+		
+		return seconds > 0 ? this.warmed.sum() / seconds : 0;
+	}
+	
+	public long warmedCount() {
+		return this.warmed.sum();
+	}
+	
+	public long failedCount() {
+		return this.failed.sum();
+	}
+	
+	public long total() {
+		return this.total;
+	}
+	
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("lm.token.cache.warmup.stores", this, TokenCacheWarmer::warmedCount)
+				.tag("result", "warmed")
+				.description("Stores decrypted and cached by the warm-up")
+				.register(registry);
+		
+		FunctionCounter.builder("lm.token.cache.warmup.stores", this, TokenCacheWarmer::failedCount)
+				.tag("result", "failed")
+				.description("Stores the warm-up could not decrypt")
+				.register(registry);
+		
+		Gauge.builder("lm.token.cache.warmup.progress", this, TokenCacheWarmer::progress)
+				.description("Share of the stores to warm up that are done")
+				.register(registry);
+		
+		Gauge.builder("lm.token.cache.warmup.rate", this, TokenCacheWarmer::rate)
+				.description("Stores warmed up per second")
+				.register(registry);
+	}
+
+}
@@ -0,0 +1,317 @@
+package com.lm.security.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+
+import com.lm.security.crypto.TokenCipher;
+import com.lm.security.crypto.TokenKeyring;
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ReencryptedToken;
+import com.lm.security.repository.ReencryptionCheckpointRepository;
+import com.lm.security.repository.TokenRepository;
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+
+/*
+ * Re-encrypts every stored token with the current cipher of the TokenKeyring, after the cipher password
+ * (or mode) changed.
+ *
+ * To rotate the password: configure the old one as lm.security.cipher.previous-password (with the key version
+ * its rows were written with), the new one as lm.security.cipher.password with a new key-version, and
+ * enable lm.security.cipher.reencrypt. While the job runs, both key versions are readable.
+ *
+ * The table is read in pages (see TokenRepository.findStores(...,...,...)). The rows of a page are decrypted
+ * and encrypted again by a pool of threads while the next page is read, then written back with one batch
+ * update (see TokenRepository.updateKeys(...)). A row that changed in the meantime (a reinstall) is left alone.
+ *
+ * After each page, the id of its last row is saved (see ReencryptionCheckpointRepository): if the application
+ * stops, the job resumes after it. Rows already encrypted with the current key are skipped.
+ *
+ * A sharded repository (see TokenRepository.shards()) is read by one thread per shard, with the progress of each
+ * shard saved in its own database. Move the stores between shards (see ShardRebalancer) before rotating the key:
+ * a store moved during the job can land behind the checkpoint of its new shard.
+ *
+ * Rows that cannot be decrypted (unknown key version, wrong password) are counted and left as they are.
+ *
+ */
+public class TokenReencryptionJob implements SmartInitializingSingleton, DisposableBean {
+	
+	private static final Log logger = LogFactory.getLog(TokenReencryptionJob.class);
+	
+	private final TokenRepository tokenRepository;
+	private final TokenKeyring keyring;
+	private final List<ReencryptionCheckpointRepository> checkpoints;
+	private final int pageSize;
+	private final int threads;
+	
+	private final LongAdder scanned = new LongAdder();
+	private final LongAdder reencrypted = new LongAdder();
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	
+	private volatile ExecutorService workers;
+	private volatile boolean ended;
+	
+	public TokenReencryptionJob(TokenRepository tokenRepository, TokenKeyring keyring, ReencryptionCheckpointRepository checkpoints, int pageSize, int threads) {
+		this(tokenRepository, keyring, Collections.singletonList(checkpoints), pageSize, threads);
+	}
+	
+	/*
+	 * checkpoints: one per shard of the repository (see TokenRepository.shards()), in the same order
+	 */
+	public TokenReencryptionJob(TokenRepository tokenRepository, TokenKeyring keyring, List<ReencryptionCheckpointRepository> checkpoints, int pageSize, int threads) {
+		this.tokenRepository = tokenRepository;
+		this.keyring = keyring;
+		this.checkpoints = checkpoints;
+		this.pageSize = pageSize;
+		this.threads = threads;
+	}
+	
+	@Override
+	public void afterSingletonsInstantiated() {
+		Thread thread = new Thread(() -> {
+			try {
+				run();
+			} catch (RuntimeException ex) {
+				logger.error("Token re-encryption failed, it will resume from its last checkpoint on the next start", ex);
+			}
+		}, "token-reencryption");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	public void destroy() {
+		ExecutorService workers = this.workers;
+		
+		if(workers != null) {
+			workers.shutdownNow();
+		}
+	}
+	
+	/*
+	 * Runs the job in the calling thread
+	 */
+	public void run() {
+		TokenCipher current = this.keyring.current();
+		List<TokenRepository> shards = this.tokenRepository.shards();
+		long startedAt = System.nanoTime();
+		
+		if(shards.size() != this.checkpoints.size()) {
+			throw new RuntimeException("Token re-encryption needs one checkpoint repository per shard: " + shards.size() 
+					+ " shards, " + this.checkpoints.size() + " checkpoint repositories");
+		}
+		
+		this.workers = Executors.newFixedThreadPool(this.threads, r -> {
+			Thread thread = new Thread(r, "token-reencryption-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		try {
+			if(shards.size() == 1) {
+				run(shards.get(0), this.checkpoints.get(0), current);
+			} else {
+				runInParallel(shards, current);
+			}
+			
+			this.ended = true;
+			
+		} finally {
+			this.workers.shutdownNow();
+		}
+		
+		logger.info("Token re-encryption done in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt) + " s: " 
+				+ this.scanned.sum() + " stores read, " + this.reencrypted.sum() + " re-encrypted, " 
+				+ this.conflicts.sum() + " changed meanwhile, " + this.failed.sum() + " could not be decrypted");
+	}
+	
+	// one thread reads and writes each shard, the workers are shared
+	private void runInParallel(List<TokenRepository> shards, TokenCipher current) {
+		ExecutorService readers = Executors.newFixedThreadPool(shards.size(), r -> {
+			Thread thread = new Thread(r, "token-reencryption-reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		try {
+			List<Future<?>> runs = new ArrayList<>();
+			
+			for(int i = 0; i < shards.size(); i++) {
+				TokenRepository shard = shards.get(i);
+				ReencryptionCheckpointRepository checkpoints = this.checkpoints.get(i);
+				runs.add(readers.submit(() -> run(shard, checkpoints, current)));
+			}
+			
+			for(Future<?> run : runs) {
+				run.get();
+			}
+			
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Token re-encryption interrupted", ex);
+			
+		} catch (ExecutionException ex) {
+			throw new RuntimeException("Token re-encryption failed", ex.getCause());
+			
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+	
+	private void run(TokenRepository shard, ReencryptionCheckpointRepository checkpoints, TokenCipher current) {
+		int keyVersion = current.getKeyVersion();
+		long lastId = checkpoints.getLastId(keyVersion);
+		
+		logger.info("Re-encrypting tokens with key version " + keyVersion + (lastId == Long.MIN_VALUE ? "" : ", after store " + lastId));
+		
+		Page pending = null;
+		
+		while(true) {
+			Page page = read(shard, lastId, current);
+			
+			// the previous page was processed while this one was read
+			if(pending != null) {
+				write(shard, checkpoints, pending, keyVersion);
+			}
+			
+			if(page.lastId == lastId) {
+				break;
+			}
+			
+			lastId = page.lastId;
+			pending = page;
+		}
+	}
+	
+	// reads a page, and submits its rows to the workers, in one chunk per worker
+	private Page read(TokenRepository shard, long afterId, TokenCipher current) {
+		List<StoreRow> rows = new ArrayList<>();
+		
+		long lastId = shard.findStores(afterId, this.pageSize, (id, registrationId, shop, token) -> {
+			this.scanned.increment();
+			
+			if(token.getKeyVersion() != current.getKeyVersion()) {
+				rows.add(new StoreRow(registrationId, shop, token));
+			}
+		});
+		
+		Page page = new Page(lastId);
+		int chunkSize = Math.max(1, (rows.size() + this.threads - 1) / this.threads);
+		
+		for(int start = 0; start < rows.size(); start += chunkSize) {
+			List<StoreRow> chunk = rows.subList(start, Math.min(rows.size(), start + chunkSize));
+			page.chunks.add(this.workers.submit(() -> reencrypt(chunk, current)));
+		}
+		
+		return page;
+	}
+	
+	private void write(TokenRepository shard, ReencryptionCheckpointRepository checkpoints, Page page, int keyVersion) {
+		List<ReencryptedToken> tokens = new ArrayList<>();
+		
+		for(Future<List<ReencryptedToken>> chunk : page.chunks) {
+			try {
+				tokens.addAll(chunk.get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Token re-encryption interrupted", ex);
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("Token re-encryption failed", ex.getCause());
+			}
+		}
+		
+		int updated = shard.updateKeys(tokens);
+		
+		this.reencrypted.add(updated);
+		this.conflicts.add(tokens.size() - updated);
+		
+		checkpoints.saveLastId(keyVersion, page.lastId);
+	}
+	
+	private List<ReencryptedToken> reencrypt(List<StoreRow> rows, TokenCipher current) {
+		List<ReencryptedToken> tokens = new ArrayList<>(rows.size());
+		
+		for(StoreRow row : rows) {
+			String encryptedToken = row.token.getAccess_token().getTokenValue();
+			TokenCipher previous = this.keyring.forVersion(row.token.getKeyVersion());
+			
+			if(previous == null) {
+				this.failed.increment();
+				continue;
+			}
+			
+			String token;
+			
+			try {
+				token = previous.decrypt(encryptedToken, row.token.getSalt(), row.registrationId, row.shop);
+			} catch (RuntimeException ex) {
+				this.failed.increment();
+				continue;
+			}
+			
+			String salt = current.generateSalt();
+			
+			tokens.add(new ReencryptedToken(row.registrationId, row.shop, encryptedToken, 
+					new EncryptedTokenAndSalt(current.encrypt(token, salt, row.registrationId, row.shop), salt, current.getKeyVersion())));
+		}
+		
+		return tokens;
+	}
+	
+	public boolean isEnded() {
+		return this.ended;
+	}
+	
+	public long scannedCount() {
+		return this.scanned.sum();
+	}
+	
+	public long reencryptedCount() {
+		return this.reencrypted.sum();
+	}
+	
+	/*
+	 * Rows whose token changed between the read and the write
+	 */
+	public long conflictCount() {
+		return this.conflicts.sum();
+	}
+	
+	public long failedCount() {
+		return this.failed.sum();
+	}
+	
+	private static class StoreRow {
+		private final String registrationId;
+		private final String shop;
+		private final OAuth2AccessTokenWithSalt token;
+		
+		StoreRow(String registrationId, String shop, OAuth2AccessTokenWithSalt token) {
+			this.registrationId = registrationId;
+			this.shop = shop;
+			this.token = token;
+		}
+	}
+	
+	private static class Page {
+		private final long lastId;
+		private final List<Future<List<ReencryptedToken>>> chunks = new ArrayList<>();
+		
+		Page(long lastId) {
+			this.lastId = lastId;
+		}
+	}
+
+}
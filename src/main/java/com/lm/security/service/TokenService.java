@@ -1,12 +1,11 @@
 package com.lm.security.service;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.crypto.encrypt.Encryptors;
-import org.springframework.security.crypto.encrypt.TextEncryptor;
-import org.springframework.security.crypto.keygen.KeyGenerators;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
@@ -14,42 +13,97 @@ import org.springframework.security.oauth2.client.registration.ClientRegistratio
 import org.springframework.security.oauth2.core.OAuth2AccessToken;
 
 import com.lm.security.authentication.CipherPassword;
-import com.lm.security.configuration.SecurityBeansConfig;
+import com.lm.security.cache.AuthorizedClientCache;
+import com.lm.security.cache.BoundedAuthorizedClientCache;
+import com.lm.security.cache.ShopKey;
+import com.lm.security.cache.SingleFlight;
+import com.lm.security.crypto.DerivedKeyCache;
+import com.lm.security.crypto.SaltedTokenCipher;
+import com.lm.security.crypto.TokenCipher;
+import com.lm.security.crypto.TokenKeyring;
 import com.lm.security.repository.EncryptedTokenAndSalt;
 import com.lm.security.repository.TokenRepository;
 import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+import com.lm.security.scope.ScopeRegistry;
 
 
+/*
+ * Stores are keyed by (registrationId, shop), so one process can serve several Shopify apps
+ * (one ClientRegistration each).
+ * 
+ * getStore(...,...) runs a query and decrypts the token, so the OAuth2AuthorizedClients it returns are kept
+ * in an AuthorizedClientCache. Saving, updating or uninstalling a store invalidates its entry.
+ * 
+ * On a cache miss, concurrent calls for the same store (several tabs, parallel App Bridge requests) share
+ * a single load (see SingleFlight). After a write, new calls no longer join a load that started before it.
+ * 
+ * Tokens are encrypted with the current cipher of the TokenKeyring, and decrypted with the cipher of the
+ * key version stored with them.
+ */
 public class TokenService {
 	
+	private static final Log logger = LogFactory.getLog(TokenService.class);
+	
 	public static final String SHOP_ATTRIBUTE_NAME = "shop";
 	
 	private TokenRepository tokenRepository;
-	private CipherPassword cipherPassword;
+	private TokenKeyring keyring;
 	private ClientRegistrationRepository clientRepository;
+	private AuthorizedClientCache cache;
+	private final SingleFlight<ShopKey, OAuth2AuthorizedClient> loads = new SingleFlight<>();
 	
+	// salted encryption only, no caching
 	public TokenService(TokenRepository tokenRepository, CipherPassword cipherPassword, ClientRegistrationRepository clientRepository) {
+		this(tokenRepository, new TokenKeyring(new SaltedTokenCipher(cipherPassword.getPassword(), new DerivedKeyCache(0))), 
+				clientRepository, new BoundedAuthorizedClientCache(0, 0, TimeUnit.SECONDS));
+	}
+	
+	public TokenService(TokenRepository tokenRepository, TokenKeyring keyring, ClientRegistrationRepository clientRepository, AuthorizedClientCache cache) {
 		this.tokenRepository = tokenRepository;
-		this.cipherPassword = cipherPassword;
+		this.keyring = keyring;
 		this.clientRepository = clientRepository;
+		this.cache = cache;
 
 	}
 	
 	public void saveNewStore(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
 		
 		String shop = getStoreName(principal);
+		String registrationId = authorizedClient.getClientRegistration().getRegistrationId();
 		
-		Set<String> scopes = authorizedClient.getAccessToken().getScopes();
+		Set<String> scopes = ScopeRegistry.of(authorizedClient.getAccessToken().getScopes());
 		
-		EncryptedTokenAndSalt encryptedTokenAndSalt = getTokenAndSalt(authorizedClient);
+		EncryptedTokenAndSalt encryptedTokenAndSalt = getTokenAndSalt(authorizedClient, registrationId, shop);
 
-		this.tokenRepository.saveNewStore(shop, scopes, encryptedTokenAndSalt);	
+		this.tokenRepository.saveNewStore(registrationId, shop, scopes, encryptedTokenAndSalt);	
+		invalidate(new ShopKey(registrationId, shop));
+		
+	}
+	
+	/*
+	 * Saves a new store, or replaces the credentials of an existing one (reinstall), in one statement
+	 */
+	public void saveStore(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
+		
+		String shop = getStoreName(principal);
+		String registrationId = authorizedClient.getClientRegistration().getRegistrationId();
+		
+		Set<String> scopes = ScopeRegistry.of(authorizedClient.getAccessToken().getScopes());
+		
+		EncryptedTokenAndSalt encryptedTokenAndSalt = getTokenAndSalt(authorizedClient, registrationId, shop);
+		
+		this.tokenRepository.saveStore(registrationId, shop, scopes, encryptedTokenAndSalt);
+		invalidate(new ShopKey(registrationId, shop));
 		
 	}
 	
 	// returns true if a store with this name exists, regardless of validity of stored credentials
-	public boolean doesStoreExist(String shop) {
-		OAuth2AccessTokenWithSalt token = this.tokenRepository.findTokenForRequest(shop);
+	public boolean doesStoreExist(String registrationId, String shop) {
+		if(this.cache.get(new ShopKey(registrationId, shop)) != null) {
+			return true;
+		}
+		
+		OAuth2AccessTokenWithSalt token = this.tokenRepository.findTokenForRequest(registrationId, shop);
 		
 		if(token != null) {
 			return true;
@@ -59,25 +113,83 @@ public class TokenService {
 	}
 
 	// will return an existing, valid store
-	public OAuth2AuthorizedClient getStore(String shopName) {
+	public OAuth2AuthorizedClient getStore(String registrationId, String shopName) {
+		ShopKey key = new ShopKey(registrationId, shopName);
+		
+		OAuth2AuthorizedClient client = this.cache.get(key);
+		
+		if(client != null) {
+			return client;
+		}
 		
-		OAuth2AccessTokenWithSalt ets = this.tokenRepository.findTokenForRequest(shopName);
+		return this.loads.load(key, () -> {
+			long loadStamp = this.cache.beginLoad(key);
+			
+			OAuth2AuthorizedClient loaded = loadStore(registrationId, shopName);
+			
+			this.cache.put(key, loaded, loadStamp);
+			
+			return loaded;
+		});
+		
+	}
+	
+	/*
+	 * The stamp to take before reading a page of stores to warm up, see beginWarmUp(...,...,...)
+	 */
+	public long beginWarmUpPage() {
+		return this.cache.beginBatchLoad();
+	}
+	
+	/*
+	 * The stamp of a store read in the page of pageStamp, for warmStore(...): taken as it is read, since the page
+	 * is only held while its stores wait for a thread. A store uninstalled or updated since the page was read is
+	 * then not cached (the stores invalidated during the read of the page are all skipped).
+	 */
+	public long beginWarmUp(String registrationId, String shopName, long pageStamp) {
+		return this.cache.beginLoad(new ShopKey(registrationId, shopName), pageStamp);
+	}
+	
+	/*
+	 * Decrypts a store read by the caller (see TokenCacheWarmer) and caches it, unless it changed since loadStamp
+	 * (beginWarmUp(...,...,...)). Returns false if its token cannot be decrypted.
+	 */
+	public boolean warmStore(String registrationId, String shopName, OAuth2AccessTokenWithSalt ets, long loadStamp) {
+		ShopKey key = new ShopKey(registrationId, shopName);
+		
+		OAuth2AuthorizedClient client = toAuthorizedClient(registrationId, shopName, ets);
+		
+		this.cache.put(key, client, loadStamp);
+		
+		return client != null;
+	}
+	
+	private OAuth2AuthorizedClient loadStore(String registrationId, String shopName) {
+		
+		OAuth2AccessTokenWithSalt ets = this.tokenRepository.findTokenForRequest(registrationId, shopName);
 		
 		if(ets == null) {
 			return null;
 		}
 		
-		OAuth2AccessToken rawToken = getRawToken(ets);
+		return toAuthorizedClient(registrationId, shopName, ets);
+	}
+	
+	private OAuth2AuthorizedClient toAuthorizedClient(String registrationId, String shopName, OAuth2AccessTokenWithSalt ets) {
+		
+		OAuth2AccessToken rawToken = getRawToken(registrationId, shopName, ets);
 		
 		if(rawToken == null) {
 			// the salt and encrypted passwords are out of date
+			logger.warn("Unable to decrypt the token of " + registrationId + "/" + shopName + " (key version " + ets.getKeyVersion() 
+					+ "). If lm.security.cipher.password changed, set lm.security.cipher.previous-password");
 			return null;
 		}
 		
-		ClientRegistration cr = clientRepository.findByRegistrationId(SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
+		ClientRegistration cr = clientRepository.findByRegistrationId(registrationId);
 		
 		if(cr == null) {
-			throw new RuntimeException("An error occurred retrieving the ClientRegistration for " + SecurityBeansConfig.SHOPIFY_REGISTRATION_ID);
+			throw new RuntimeException("An error occurred retrieving the ClientRegistration for " + registrationId);
 		}
 		
 		return new OAuth2AuthorizedClient(
@@ -92,33 +204,58 @@ public class TokenService {
 	
 	
 	
+	/*
+	 * False if the store was not granted every scope of its ClientRegistration (the app asks for more scopes
+	 * than when the store installed it), so it has to authorize the app again (see ShopifyExistingTokenFilter).
+	 * 
+	 * Shopify leaves read_X out of the granted scopes when write_X is granted: write_X is enough (ScopeSet.grants(...)).
+	 * 
+	 * Both sets are interned (see ScopeRegistry): this compares their bits.
+	 */
+	public static boolean hasRequiredScopes(OAuth2AuthorizedClient client) {
+		return ScopeRegistry.of(client.getAccessToken().getScopes())
+					.grants(ScopeRegistry.of(client.getClientRegistration().getScopes()));
+	}
+	
 	public void updateStore(OAuth2AuthorizedClient authorizedClient, Authentication principal) {
 		
 		String shop = getStoreName(principal);
+		String registrationId = authorizedClient.getClientRegistration().getRegistrationId();
 		
-		EncryptedTokenAndSalt encryptedTokenAndSalt = getTokenAndSalt(authorizedClient);
+		EncryptedTokenAndSalt encryptedTokenAndSalt = getTokenAndSalt(authorizedClient, registrationId, shop);
 		
-		this.tokenRepository.updateKey(shop, encryptedTokenAndSalt);
+		this.tokenRepository.updateKey(registrationId, shop, encryptedTokenAndSalt);
+		invalidate(new ShopKey(registrationId, shop));
 
 	}
 	
-	public void uninstallStore(String store) {
-		this.tokenRepository.uninstallStore(store);
+	public void uninstallStore(String registrationId, String store) {
+		this.tokenRepository.uninstallStore(registrationId, store);
+		invalidate(new ShopKey(registrationId, store));
 	}
 	
 	
 	
+	private void invalidate(ShopKey key) {
+		this.cache.invalidate(key);
+		this.loads.forget(key);
+	}
+	
 	private String getStoreName(Authentication principal) {
 		String shop = ((OAuth2AuthenticationToken)principal).getPrincipal().getName();
 
 		return shop;
 	}
 	
-	private OAuth2AccessToken getRawToken(OAuth2AccessTokenWithSalt toS) {
+	private OAuth2AccessToken getRawToken(String registrationId, String shop, OAuth2AccessTokenWithSalt toS) {
 		String salt = toS.getSalt();
 		
 		OAuth2AccessToken enTok = toS.getAccess_token();
-		String decryptedToken = decryptToken(new EncryptedTokenAndSalt(enTok.getTokenValue(), salt));
+		String decryptedToken = decryptToken(new EncryptedTokenAndSalt(enTok.getTokenValue(), salt, toS.getKeyVersion()), registrationId, shop);
+		
+		if(decryptedToken == null) {
+			return null;
+		}
 		
 		return new OAuth2AccessToken(enTok.getTokenType(),
 									 decryptedToken,
@@ -127,25 +264,30 @@ public class TokenService {
 									 enTok.getScopes());
 	}
 	
-	private EncryptedTokenAndSalt getTokenAndSalt(OAuth2AuthorizedClient authorizedClient) {
+	private EncryptedTokenAndSalt getTokenAndSalt(OAuth2AuthorizedClient authorizedClient, String registrationId, String shop) {
 		
 		String rawAccessTokenValue = authorizedClient.getAccessToken().getTokenValue();
 		
-		String genSalt = KeyGenerators.string().generateKey();
+		TokenCipher cipher = keyring.current();
 		
-		TextEncryptor encryptor = Encryptors.queryableText(cipherPassword.getPassword(), genSalt);
+		String genSalt = cipher.generateSalt();
 		
-		return new EncryptedTokenAndSalt(encryptor.encrypt(rawAccessTokenValue), genSalt);
+		return new EncryptedTokenAndSalt(cipher.encrypt(rawAccessTokenValue, genSalt, registrationId, shop), genSalt, cipher.getKeyVersion());
 		
 	}
 	
 	
-	private String decryptToken(EncryptedTokenAndSalt enC) {
-		TextEncryptor textEncryptor = Encryptors.queryableText(cipherPassword.getPassword(), enC.getSalt());
+	private String decryptToken(EncryptedTokenAndSalt enC, String registrationId, String shop) {
+		TokenCipher cipher = keyring.forVersion(enC.getKeyVersion());
+		
+		if(cipher == null) {
+			// this key version is no longer configured
+			return null;
+		}
 		
 		String decryptedToken = null;
 		try {
-			decryptedToken = textEncryptor.decrypt(enC.getEncryptedToken());
+			decryptedToken = cipher.decrypt(enC.getEncryptedToken(), enC.getSalt(), registrationId, shop);
 		} catch(Exception e) {
 			// the cipher password changed...
 			
@@ -0,0 +1,492 @@
+package com.lm.security.session;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.user.OAuth2User;
+
+import com.lm.security.service.ShopifyStore;
+import com.lm.security.web.PendingAuthorizationRequests;
+
+/*
+ * Writes the session attributes of this app (and spring-session's own timestamps) in a compact binary format
+ * instead of Java serialization, which repeats the class descriptors of SecurityContextImpl,
+ * OAuth2AuthenticationToken, ShopifyStore, HashMap, ... in every value.
+ *
+ * 		MAGIC, VERSION, value
+ *
+ * A value is a tag followed by its fields:
+ *
+ * 	- String, Long, Integer, Boolean
+ * 	- SecurityContextImpl, OAuth2AuthenticationToken, ShopifyStore, SimpleGrantedAuthority
+ * 	- OAuth2AuthorizationRequest, PendingAuthorizationRequests
+ * 	- anything else (a subclass of these included): its Java serialization, length-prefixed
+ *
+ * Numbers are zigzag varints, strings are a varint length and UTF-8.
+ *
+ * A value that is none of these is written with Java serialization alone, exactly as before. Java serialization
+ * starts with 0xACED, so values written before this serializer (or by an instance that does not use it) are
+ * still read. The opposite is not true: every instance must read this format before any writes it.
+ *
+ * A version this serializer does not know is rejected with a SerializationException.
+ */
+public class CompactSessionSerializer implements RedisSerializer<Object> {
+
+	public static final byte MAGIC = (byte)0xC5;
+	public static final byte VERSION = 1;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte LONG = 2;
+	private static final byte INTEGER = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte SECURITY_CONTEXT = 5;
+	private static final byte OAUTH2_AUTHENTICATION = 6;
+	private static final byte SHOPIFY_STORE = 7;
+	private static final byte AUTHORITY = 8;
+	private static final byte AUTHORIZATION_REQUEST = 9;
+	private static final byte PENDING_AUTHORIZATION_REQUESTS = 10;
+	private static final byte JDK = 127;
+
+	private final JdkSerializationRedisSerializer jdk;
+
+	public CompactSessionSerializer() {
+		this(CompactSessionSerializer.class.getClassLoader());
+	}
+
+	public CompactSessionSerializer(ClassLoader classLoader) {
+		this.jdk = new JdkSerializationRedisSerializer(classLoader);
+	}
+
+	@Override
+	public byte[] serialize(Object value) throws SerializationException {
+		if(value == null) {
+			return EMPTY;
+		}
+
+		if(tag(value) == JDK) {
+			return this.jdk.serialize(value);
+		}
+
+		Output out = new Output(64);
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		writeValue(out, value);
+
+		return out.toByteArray();
+	}
+
+	@Override
+	public Object deserialize(byte[] bytes) throws SerializationException {
+		if(bytes == null || bytes.length == 0) {
+			return null;
+		}
+
+		if(bytes[0] != MAGIC) {
+			return this.jdk.deserialize(bytes);
+		}
+
+		if(bytes.length < 3 || bytes[1] != VERSION) {
+			throw new SerializationException("Unsupported session value: version " + (bytes.length < 2 ? "none" : bytes[1]));
+		}
+
+		try {
+			Input in = new Input(bytes, 2);
+			Object value = readValue(in);
+
+			if(in.pos != bytes.length) {
+				throw new SerializationException("Trailing bytes after session value");
+			}
+
+			return value;
+		} catch (ArrayIndexOutOfBoundsException | ClassCastException | IllegalArgumentException ex) {
+			throw new SerializationException("Corrupted session value", ex);
+		}
+	}
+
+	private static byte tag(Object value) {
+		if(value == null) {
+			return NULL;
+		}
+
+		Class<?> type = value.getClass();
+
+		// exact classes only: a subclass may hold more than these codecs write
+		if(type == String.class) {
+			return STRING;
+		} else if(type == Long.class) {
+			return LONG;
+		} else if(type == Integer.class) {
+			return INTEGER;
+		} else if(type == Boolean.class) {
+			return BOOLEAN;
+		} else if(type == SecurityContextImpl.class) {
+			return SECURITY_CONTEXT;
+		} else if(type == OAuth2AuthenticationToken.class) {
+			return OAUTH2_AUTHENTICATION;
+		} else if(type == ShopifyStore.class) {
+			return SHOPIFY_STORE;
+		} else if(type == SimpleGrantedAuthority.class) {
+			return AUTHORITY;
+		} else if(type == OAuth2AuthorizationRequest.class) {
+			return AUTHORIZATION_REQUEST;
+		} else if(type == PendingAuthorizationRequests.class) {
+			return PENDING_AUTHORIZATION_REQUESTS;
+		}
+
+		return JDK;
+	}
+
+	private void writeValue(Output out, Object value) {
+		byte tag = tag(value);
+		out.writeByte(tag);
+
+		switch(tag) {
+			case NULL:
+				break;
+
+			case STRING:
+				out.writeString((String)value);
+				break;
+
+			case LONG:
+				out.writeVarLong((Long)value);
+				break;
+
+			case INTEGER:
+				out.writeVarLong((Integer)value);
+				break;
+
+			case BOOLEAN:
+				out.writeByte((Boolean)value ? 1 : 0);
+				break;
+
+			case SECURITY_CONTEXT:
+				writeValue(out, ((SecurityContextImpl)value).getAuthentication());
+				break;
+
+			case OAUTH2_AUTHENTICATION: {
+				OAuth2AuthenticationToken token = (OAuth2AuthenticationToken)value;
+				out.writeString(token.getAuthorizedClientRegistrationId());
+				writeValue(out, token.getPrincipal());
+				writeCollection(out, token.getAuthorities());
+				writeValue(out, token.getDetails());
+				break;
+			}
+
+			case SHOPIFY_STORE: {
+				ShopifyStore store = (ShopifyStore)value;
+				out.writeString(store.getName());
+				writeCollection(out, store.getAuthorities());
+				writeMap(out, store.getAttributes());
+				break;
+			}
+
+			case AUTHORITY:
+				out.writeString(((SimpleGrantedAuthority)value).getAuthority());
+				break;
+
+			case AUTHORIZATION_REQUEST: {
+				OAuth2AuthorizationRequest request = (OAuth2AuthorizationRequest)value;
+				out.writeByte(AuthorizationGrantType.IMPLICIT.equals(request.getGrantType()) ? 1 : 0);
+				out.writeString(request.getAuthorizationUri());
+				out.writeString(request.getClientId());
+				out.writeString(request.getRedirectUri());
+				writeCollection(out, request.getScopes());
+				out.writeString(request.getState());
+				writeMap(out, request.getAdditionalParameters());
+				out.writeString(request.getAuthorizationRequestUri());
+				break;
+			}
+
+			case PENDING_AUTHORIZATION_REQUESTS: {
+				PendingAuthorizationRequests requests = (PendingAuthorizationRequests)value;
+				out.writeVarLong(requests.getCapacity());
+				out.writeVarLong(requests.getTtlMillis());
+				out.writeVarLong(requests.size());
+
+				// oldest first
+				for(Map.Entry<String, OAuth2AuthorizationRequest> entry : requests.entrySet()) {
+					out.writeString(entry.getKey());
+					out.writeVarLong(requests.getSavedAt(entry.getKey()));
+					writeValue(out, entry.getValue());
+				}
+				break;
+			}
+
+			default: {
+				byte[] bytes = this.jdk.serialize(value);
+				out.writeVarLong(bytes.length);
+				out.writeBytes(bytes);
+			}
+		}
+	}
+
+	private Object readValue(Input in) {
+		byte tag = in.readByte();
+
+		switch(tag) {
+			case NULL:
+				return null;
+
+			case STRING:
+				return in.readString();
+
+			case LONG:
+				return in.readVarLong();
+
+			case INTEGER:
+				return (int)in.readVarLong();
+
+			case BOOLEAN:
+				return in.readByte() != 0;
+
+			case SECURITY_CONTEXT:
+				return new SecurityContextImpl((Authentication)readValue(in));
+
+			case OAUTH2_AUTHENTICATION: {
+				String registrationId = in.readString();
+				OAuth2User principal = (OAuth2User)readValue(in);
+				List<GrantedAuthority> authorities = readAuthorities(in);
+
+				OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(principal, authorities, registrationId);
+				token.setDetails(readValue(in));
+
+				return token;
+			}
+
+			case SHOPIFY_STORE: {
+				String name = in.readString();
+				List<GrantedAuthority> authorities = readAuthorities(in);
+
+				return new ShopifyStore(name, authorities, readMap(in, new HashMap<>()));
+			}
+
+			case AUTHORITY:
+				return new SimpleGrantedAuthority(in.readString());
+
+			case AUTHORIZATION_REQUEST: {
+				OAuth2AuthorizationRequest.Builder builder = in.readByte() == 1 ? OAuth2AuthorizationRequest.implicit()
+						: OAuth2AuthorizationRequest.authorizationCode();
+
+				builder.authorizationUri(in.readString())
+						.clientId(in.readString())
+						.redirectUri(in.readString());
+
+				int scopeCount = (int)in.readVarLong();
+				Set<String> scopes = new LinkedHashSet<>();
+
+				for(int i = 0; i < scopeCount; i++) {
+					scopes.add((String)readValue(in));
+				}
+
+				return builder.scopes(scopes)
+						.state(in.readString())
+						.additionalParameters(readMap(in, new LinkedHashMap<>()))
+						.authorizationRequestUri(in.readString())
+						.build();
+			}
+
+			case PENDING_AUTHORIZATION_REQUESTS: {
+				int capacity = (int)in.readVarLong();
+				long ttlMillis = in.readVarLong();
+				int size = (int)in.readVarLong();
+				PendingAuthorizationRequests requests = new PendingAuthorizationRequests(capacity, ttlMillis);
+
+				for(int i = 0; i < size; i++) {
+					String state = in.readString();
+					long savedAt = in.readVarLong();
+					requests.restore(state, (OAuth2AuthorizationRequest)readValue(in), savedAt);
+				}
+
+				return requests;
+			}
+
+			case JDK: {
+				int length = (int)in.readVarLong();
+
+				if(length < 0 || length > in.bytes.length - in.pos) {
+					throw new IllegalArgumentException("Malformed value");
+				}
+
+				byte[] bytes = new byte[length];
+				System.arraycopy(in.bytes, in.pos, bytes, 0, length);
+				in.pos += length;
+
+				return this.jdk.deserialize(bytes);
+			}
+
+			default:
+				throw new SerializationException("Unknown session value tag: " + tag);
+		}
+	}
+
+	private void writeCollection(Output out, Collection<?> values) {
+		out.writeVarLong(values.size());
+
+		for(Object value : values) {
+			writeValue(out, value);
+		}
+	}
+
+	private void writeMap(Output out, Map<String, Object> values) {
+		out.writeVarLong(values.size());
+
+		for(Map.Entry<String, Object> entry : values.entrySet()) {
+			out.writeString(entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	private List<GrantedAuthority> readAuthorities(Input in) {
+		int count = (int)in.readVarLong();
+		List<GrantedAuthority> authorities = new ArrayList<>(count);
+
+		for(int i = 0; i < count; i++) {
+			authorities.add((GrantedAuthority)readValue(in));
+		}
+
+		return authorities;
+	}
+
+	private Map<String, Object> readMap(Input in, Map<String, Object> values) {
+		int count = (int)in.readVarLong();
+
+		for(int i = 0; i < count; i++) {
+			String key = in.readString();
+			values.put(key, readValue(in));
+		}
+
+		return values;
+	}
+
+	// an unsynchronized ByteArrayOutputStream
+	private static final class Output {
+		private byte[] bytes;
+		private int pos;
+
+		Output(int capacity) {
+			this.bytes = new byte[capacity];
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			this.bytes[this.pos++] = (byte)b;
+		}
+
+		void writeBytes(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, this.bytes, this.pos, b.length);
+			this.pos += b.length;
+		}
+
+		void writeVarLong(long value) {
+			long zigzag = (value << 1) ^ (value >> 63);
+			ensure(10);
+
+			while((zigzag & ~0x7FL) != 0) {
+				this.bytes[this.pos++] = (byte)((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+
+			this.bytes[this.pos++] = (byte)zigzag;
+		}
+
+		// null as -1
+		void writeString(String value) {
+			if(value == null) {
+				writeVarLong(-1);
+				return;
+			}
+
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(utf8.length);
+			writeBytes(utf8);
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[this.pos];
+			System.arraycopy(this.bytes, 0, result, 0, this.pos);
+
+			return result;
+		}
+
+		private void ensure(int length) {
+			if(this.pos + length > this.bytes.length) {
+				byte[] grown = new byte[Math.max(this.bytes.length * 2, this.pos + length)];
+				System.arraycopy(this.bytes, 0, grown, 0, this.pos);
+				this.bytes = grown;
+			}
+		}
+	}
+
+	private static final class Input {
+		private final byte[] bytes;
+		private int pos;
+
+		Input(byte[] bytes, int pos) {
+			this.bytes = bytes;
+			this.pos = pos;
+		}
+
+		byte readByte() {
+			return this.bytes[this.pos++];
+		}
+
+		long readVarLong() {
+			long zigzag = 0;
+
+			for(int shift = 0; ; shift += 7) {
+				if(shift > 63) {
+					throw new IllegalArgumentException("Malformed varint");
+				}
+
+				byte b = this.bytes[this.pos++];
+				zigzag |= (long)(b & 0x7F) << shift;
+
+				if((b & 0x80) == 0) {
+					break;
+				}
+			}
+
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		String readString() {
+			int length = (int)readVarLong();
+
+			if(length < 0) {
+				return null;
+			}
+
+			if(length > this.bytes.length - this.pos) {
+				throw new IllegalArgumentException("Malformed string");
+			}
+
+			String value = new String(this.bytes, this.pos, length, StandardCharsets.UTF_8);
+			this.pos += length;
+
+			return value;
+		}
+	}
+
+}
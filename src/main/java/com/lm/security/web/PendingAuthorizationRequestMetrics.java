@@ -0,0 +1,53 @@
+package com.lm.security.web;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/*
+ * Publishes the counters of a ShopifyHttpSessionOAuth2AuthorizationRequestRepository:
+ *
+ * 	lm.oauth2.pending-requests.saves
+ * 	lm.oauth2.pending-requests.payload-bytes
+ * 	lm.oauth2.pending-requests.payload-samples
+ * 	lm.oauth2.pending-requests.evictions{cause=size|expired}
+ *
+ * payload-bytes / payload-samples is the mean serialized size of the pending requests of a session, measured
+ * after one save in 64 with the serializer of the session (lm.security.session.serializer): what each installation
+ * adds to the session (or Redis).
+ */
+public class PendingAuthorizationRequestMetrics implements MeterBinder {
+
+	private final ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository;
+
+	public PendingAuthorizationRequestMetrics(ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository) {
+		this.repository = repository;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("lm.oauth2.pending-requests.saves", this.repository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository::saveCount)
+				.description("Authorization requests saved in a session")
+				.register(registry);
+
+		FunctionCounter.builder("lm.oauth2.pending-requests.payload-bytes", this.repository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository::payloadBytes)
+				.baseUnit("bytes")
+				.description("Serialized size of the pending authorization requests of a session, after the sampled saves")
+				.register(registry);
+
+		FunctionCounter.builder("lm.oauth2.pending-requests.payload-samples", this.repository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository::payloadSampleCount)
+				.description("Saves after which the serialized size was measured")
+				.register(registry);
+
+		FunctionCounter.builder("lm.oauth2.pending-requests.evictions", this.repository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository::sizeEvictionCount)
+				.tag("cause", "size")
+				.description("Pending authorization requests evicted because the session held max-pending of them")
+				.register(registry);
+
+		FunctionCounter.builder("lm.oauth2.pending-requests.evictions", this.repository, ShopifyHttpSessionOAuth2AuthorizationRequestRepository::expiredEvictionCount)
+				.tag("cause", "expired")
+				.description("Pending authorization requests dropped because they expired")
+				.register(registry);
+	}
+
+}
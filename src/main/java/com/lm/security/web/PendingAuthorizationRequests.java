@@ -0,0 +1,211 @@
+package com.lm.security.web;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+
+/*
+ * The pending OAuth2AuthorizationRequests of a session, by state (see ShopifyHttpSessionOAuth2AuthorizationRequestRepository).
+ *
+ * It is still the Map<String, OAuth2AuthorizationRequest> that HttpSessionOAuth2AuthorizationRequestRepository expects in
+ * the session attribute, but:
+ *
+ * 	- it holds at most capacity requests: saving one more evicts the oldest
+ * 	- a request expires ttl after it was saved: get(...) and remove(...) no longer return it, and removeExpired()
+ * 	  drops it
+ *
+ * The time is the wall clock (System.currentTimeMillis()), as the session may be saved by one instance and read by another.
+ *
+ * Reads (get(...), containsKey(...), newest(), iteration) change nothing: the map is in insertion order, and an expired
+ * request is only skipped. So concurrent requests of a session can read the instance of the session attribute.
+ * Changes are not thread-safe: they are made to a copy (see the copying constructor), which then replaces the
+ * attribute (ShopifyHttpSessionOAuth2AuthorizationRequestRepository).
+ *
+ * Serializable, like the session.
+ */
+public class PendingAuthorizationRequests extends LinkedHashMap<String, OAuth2AuthorizationRequest> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int capacity;
+	private final long ttlMillis;
+	private final HashMap<String, Long> savedAt = new HashMap<>();
+
+	private transient LongSupplier clock;
+
+	public PendingAuthorizationRequests(int capacity, long ttlMillis) {
+		this(capacity, ttlMillis, System::currentTimeMillis);
+	}
+
+	/*
+	 * A copy of these requests, bounded by capacity and ttlMillis. The requests of a PendingAuthorizationRequests keep
+	 * the time they were saved, the others are saved now. The oldest are evicted if there are more than capacity.
+	 */
+	public PendingAuthorizationRequests(int capacity, long ttlMillis, Map<String, OAuth2AuthorizationRequest> requests) {
+		this(capacity, ttlMillis, System::currentTimeMillis);
+
+		for(Map.Entry<String, OAuth2AuthorizationRequest> entry : requests.entrySet()) {
+			long saved = requests instanceof PendingAuthorizationRequests ? ((PendingAuthorizationRequests)requests).getSavedAt(entry.getKey()) : -1;
+
+			if(saved < 0) {
+				put(entry.getKey(), entry.getValue());
+			} else {
+				restore(entry.getKey(), entry.getValue(), saved);
+			}
+		}
+	}
+
+	PendingAuthorizationRequests(int capacity, long ttlMillis, LongSupplier clock) {
+		super(16, 0.75f, false);
+
+		if(capacity < 1) {
+			throw new IllegalArgumentException("At least one authorization request must be kept: " + capacity);
+		}
+
+		this.capacity = capacity;
+		this.ttlMillis = ttlMillis;
+		this.clock = clock;
+	}
+
+	/*
+	 * Saves the request, and returns the number of requests evicted to make room for it (0 or 1)
+	 */
+	public int save(String state, OAuth2AuthorizationRequest authorizationRequest) {
+		boolean full = size() >= this.capacity && !containsKey(state);
+
+		put(state, authorizationRequest);
+
+		return full ? 1 : 0;
+	}
+
+	@Override
+	public OAuth2AuthorizationRequest put(String state, OAuth2AuthorizationRequest authorizationRequest) {
+		this.savedAt.put(state, now());
+
+		return super.put(state, authorizationRequest);
+	}
+
+	// HashMap.putAll(...) does not call put(...)
+	@Override
+	public void putAll(Map<? extends String, ? extends OAuth2AuthorizationRequest> authorizationRequests) {
+		for(Map.Entry<? extends String, ? extends OAuth2AuthorizationRequest> entry : authorizationRequests.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public OAuth2AuthorizationRequest get(Object state) {
+		return isExpired(state) ? null : super.get(state);
+	}
+
+	@Override
+	public boolean containsKey(Object state) {
+		return super.containsKey(state) && !isExpired(state);
+	}
+
+	@Override
+	public OAuth2AuthorizationRequest remove(Object state) {
+		boolean expired = isExpired(state);
+
+		this.savedAt.remove(state);
+		OAuth2AuthorizationRequest removed = super.remove(state);
+
+		return expired ? null : removed;
+	}
+
+	@Override
+	public void clear() {
+		this.savedAt.clear();
+		super.clear();
+	}
+
+	/*
+	 * Drops the expired requests, and returns how many there were
+	 */
+	public int removeExpired() {
+		int removed = 0;
+
+		for(Iterator<Map.Entry<String, OAuth2AuthorizationRequest>> it = entrySet().iterator(); it.hasNext();) {
+			String state = it.next().getKey();
+
+			if(isExpired(state)) {
+				it.remove();
+				this.savedAt.remove(state);
+				removed++;
+			}
+		}
+
+		return removed;
+	}
+
+	/*
+	 * The most recently saved request, or null
+	 */
+	public Map.Entry<String, OAuth2AuthorizationRequest> newest() {
+		Map.Entry<String, OAuth2AuthorizationRequest> newest = null;
+
+		for(Map.Entry<String, OAuth2AuthorizationRequest> entry : entrySet()) {
+			if(!isExpired(entry.getKey())) {
+				newest = entry;
+			}
+		}
+
+		return newest;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	public long getTtlMillis() {
+		return this.ttlMillis;
+	}
+
+	/*
+	 * When the request of this state was saved (milliseconds), or -1
+	 */
+	public long getSavedAt(String state) {
+		Long saved = this.savedAt.get(state);
+
+		return saved == null ? -1 : saved;
+	}
+
+	/*
+	 * Puts back a request as it was saved, for copies and session serializers (see CompactSessionSerializer).
+	 * Restoring the requests in iteration order keeps the oldest first.
+	 */
+	public void restore(String state, OAuth2AuthorizationRequest authorizationRequest, long savedAt) {
+		this.savedAt.put(state, savedAt);
+		super.put(state, authorizationRequest);
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, OAuth2AuthorizationRequest> eldest) {
+		if(size() > this.capacity) {
+			this.savedAt.remove(eldest.getKey());
+			return true;
+		}
+
+		return false;
+	}
+
+	private boolean isExpired(Object state) {
+		Long saved = this.savedAt.get(state);
+
+		return saved != null && now() - saved > this.ttlMillis;
+	}
+
+	private long now() {
+		if(this.clock == null) {
+			// deserialized
+			this.clock = System::currentTimeMillis;
+		}
+
+		return this.clock.getAsLong();
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.lm.security.web;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.security.web.context.SecurityContextRepository;
+
+/*
+ * A request authenticated by ShopifySessionTokenFilter carries its Authentication in the request attribute
+ * AUTHENTICATION_ATTRIBUTE: SecurityContextPersistenceFilter loads it from there, and neither reads nor
+ * writes the HttpSession.
+ * 
+ * Any other request is delegated (by default, to HttpSessionSecurityContextRepository).
+ */
+public class SessionTokenSecurityContextRepository implements SecurityContextRepository {
+	
+	public static final String AUTHENTICATION_ATTRIBUTE = SessionTokenSecurityContextRepository.class.getName() + ".AUTHENTICATION";
+	
+	private final SecurityContextRepository delegate;
+	
+	public SessionTokenSecurityContextRepository() {
+		this(new HttpSessionSecurityContextRepository());
+	}
+	
+	public SessionTokenSecurityContextRepository(SecurityContextRepository delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+		Authentication authentication = getAuthentication(requestResponseHolder.getRequest());
+		
+		if(authentication == null) {
+			return this.delegate.loadContext(requestResponseHolder);
+		}
+		
+		SecurityContext context = SecurityContextHolder.createEmptyContext();
+		context.setAuthentication(authentication);
+		
+		return context;
+	}
+
+	@Override
+	public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+		if(getAuthentication(request) == null) {
+			this.delegate.saveContext(context, request, response);
+		}
+	}
+
+	// so SessionManagementFilter does not look for a session either
+	@Override
+	public boolean containsContext(HttpServletRequest request) {
+		return getAuthentication(request) != null || this.delegate.containsContext(request);
+	}
+	
+	private static Authentication getAuthentication(HttpServletRequest request) {
+		Object authentication = request.getAttribute(AUTHENTICATION_ATTRIBUTE);
+		
+		return authentication instanceof Authentication ? (Authentication)authentication : null;
+	}
+
+}
@@ -1,74 +1,196 @@
 package com.lm.security.web;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.security.crypto.keygen.Base64StringKeyGenerator;
+import org.springframework.security.crypto.keygen.StringKeyGenerator;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.web.AuthorizationRequestRepository;
 import org.springframework.security.oauth2.client.web.HttpSessionOAuth2AuthorizationRequestRepository;
 import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 
-public class ShopifyHttpSessionOAuth2AuthorizationRequestRepository {
+/*
+ * Keeps the pending OAuth2AuthorizationRequests in the HttpSession, by state (PendingAuthorizationRequests):
+ * 
+ * 	- at most maxPending of them: a merchant reloading the install page evicts the oldest
+ * 	- each for ttl: an expired request is never returned, and is dropped the next time the session is written
+ * 	- until the callback: OAuth2LoginAuthenticationFilter removes it (AuthorizationRequestRepository)
+ * 
+ * Reads change nothing. A change is made to a copy of the map, which replaces the attribute with setAttribute(...),
+ * so spring-session saves it, and the concurrent requests of the session never see a map being changed. Of two
+ * concurrent changes, the last one written wins, as for any session attribute.
+ * 
+ * Counts the saves, the evictions, and the serialized size of the map (what the session, or Redis, stores)
+ * after one save in PAYLOAD_SAMPLE_INTERVAL (see PendingAuthorizationRequestMetrics). The size is measured with
+ * the serializer of the session attributes (setPayloadSerializer(...)), by default Java serialization.
+ */
+public class ShopifyHttpSessionOAuth2AuthorizationRequestRepository implements AuthorizationRequestRepository<OAuth2AuthorizationRequest> {
 	public static final String DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME =
 			HttpSessionOAuth2AuthorizationRequestRepository.class.getName() +  ".AUTHORIZATION_REQUEST";
 	
+	public static final int DEFAULT_MAX_PENDING = 5;
+	public static final long DEFAULT_TTL_SECONDS = 600;
+	
+	// serializing the map costs more than saving it: only some saves are measured
+	static final int PAYLOAD_SAMPLE_INTERVAL = 64;
+	
 	private AntPathRequestMatcher installPathRequestMatcher;
+	private final StringKeyGenerator stateGenerator = new Base64StringKeyGenerator(Base64.getUrlEncoder());
+	
+	private final int maxPending;
+	private final long ttlMillis;
+	
+	private final LongAdder saves = new LongAdder();
+	private final LongAdder payloadBytes = new LongAdder();
+	private final LongAdder payloadSamples = new LongAdder();
+	private final LongAdder sizeEvictions = new LongAdder();
+	private final LongAdder expiredEvictions = new LongAdder();
+	
+	private RedisSerializer<Object> payloadSerializer;
 
 	public ShopifyHttpSessionOAuth2AuthorizationRequestRepository(String installPath) {
+		this(installPath, DEFAULT_MAX_PENDING, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	public ShopifyHttpSessionOAuth2AuthorizationRequestRepository(String installPath, int maxPending, long ttl, TimeUnit unit) {
+		if(maxPending < 1) {
+			throw new IllegalArgumentException("At least one pending authorization request must be kept: " + maxPending);
+		}
+		
 		this.installPathRequestMatcher = new AntPathRequestMatcher(
 				installPath + "/{registrationId}");
+		this.maxPending = maxPending;
+		this.ttlMillis = unit.toMillis(ttl);
+	}
+	
+	/*
+	 * The state of a new OAuth2AuthorizationRequest: a random nonce, matched against the saved requests
+	 */
+	public String generateState(ClientRegistration clientRegistration, String shop, String redirectUri) {
+		return this.stateGenerator.generateKey();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request) {
 		String state = authorizationRequest.getState();
+		HttpSession session = request.getSession();
 		
-		HttpSession session = request.getSession(false);
-		Map<String, OAuth2AuthorizationRequest> authorizationRequests = session == null ? null :
-				(Map<String, OAuth2AuthorizationRequest>) session.getAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
-		
-		if (authorizationRequests == null) {
-			authorizationRequests =  new HashMap<>();
-		}		
+		PendingAuthorizationRequests authorizationRequests = copyPendingAuthorizationRequests(session);
 		
-		authorizationRequests.put(state, authorizationRequest);
+		this.sizeEvictions.add(authorizationRequests.save(state, authorizationRequest));
 
-		request.getSession().setAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME, authorizationRequests);
+		session.setAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME, authorizationRequests);
+		
+		long saves = this.saves.sum();
+		this.saves.increment();
+		
+		if (saves % PAYLOAD_SAMPLE_INTERVAL == 0) {
+			this.payloadSamples.increment();
+			this.payloadBytes.add(serializedSize(authorizationRequests));
+		}
 
 	}
 	
+	@Override
+	public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request, HttpServletResponse response) {
+		if (authorizationRequest == null) {
+			this.removeAuthorizationRequest(request, response);
+			return;
+		}
+		
+		this.saveAuthorizationRequest(authorizationRequest, request);
+	}
 	
-	@SuppressWarnings("unchecked")
 	public Map<String, OAuth2AuthorizationRequest> getAuthorizationRequests(HttpServletRequest request) {
-		HttpSession session = request.getSession(false);
-		Map<String, OAuth2AuthorizationRequest> authorizationRequests = session == null ? null :
-				(Map<String, OAuth2AuthorizationRequest>) session.getAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
+		Map<String, OAuth2AuthorizationRequest> authorizationRequests = getPendingAuthorizationRequests(request.getSession(false));
 		if (authorizationRequests == null) {
 			return new HashMap<>();
 		}
-		return authorizationRequests;
+		return Collections.unmodifiableMap(authorizationRequests);
+	}
+	
+	/*
+	 * The saved OAuth2AuthorizationRequest with this state, or null
+	 */
+	public OAuth2AuthorizationRequest getAuthorizationRequest(HttpServletRequest request, String state) {
+		if (state == null) {
+			return null;
+		}
+		
+		return this.getAuthorizationRequests(request).get(state);
 	}
 	
+	/*
+	 * The request of the state parameter (at the callback), or else the most recently saved one
+	 */
 	public Map.Entry<String, OAuth2AuthorizationRequest> getFirstAuthorizationRequest(HttpServletRequest request) {
 		
-		Map<String, OAuth2AuthorizationRequest> reqs = this.getAuthorizationRequests(request);
+		PendingAuthorizationRequests reqs = getPendingAuthorizationRequests(request.getSession(false));
 				
-		if(reqs.size() < 1) {
+		if(reqs == null || reqs.isEmpty()) {
 			return null;
 		}
 		
-		for(Map.Entry<String, OAuth2AuthorizationRequest> authReqEntry : reqs.entrySet()) {
-			if(authReqEntry.getValue() != null) {
-				return authReqEntry;
-			}
+		String state = request.getParameter(OAuth2ParameterNames.STATE);
+		OAuth2AuthorizationRequest authorizationRequest = state == null ? null : reqs.get(state);
+		
+		if(authorizationRequest != null) {
+			return new AbstractMap.SimpleImmutableEntry<>(state, authorizationRequest);
+		}
+		
+		return reqs.newest();
+		
+	}
+	
+	@Override
+	public OAuth2AuthorizationRequest loadAuthorizationRequest(HttpServletRequest request) {
+		return getAuthorizationRequest(request, request.getParameter(OAuth2ParameterNames.STATE));
+	}
 	
+	/*
+	 * Called at the callback: the request of the state parameter is no longer pending
+	 */
+	@Override
+	public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request, HttpServletResponse response) {
+		String state = request.getParameter(OAuth2ParameterNames.STATE);
+		HttpSession session = request.getSession(false);
+		PendingAuthorizationRequests authorizationRequests = getPendingAuthorizationRequests(session);
+		
+		if (state == null || authorizationRequests == null || authorizationRequests.get(state) == null) {
+			return null;
 		}
 		
-		return null;
+		authorizationRequests = copyPendingAuthorizationRequests(session);
+		OAuth2AuthorizationRequest authorizationRequest = authorizationRequests.remove(state);
 		
+		writeBack(session, authorizationRequests);
 		
+		return authorizationRequest;
+	}
+	
+	/*
+	 * See removeAuthorizationRequest(HttpServletRequest, HttpServletResponse)
+	 */
+	@Deprecated
+	@Override
+	public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request) {
+		return this.removeAuthorizationRequest(request, null);
 	}
 	
 	// Used by ShopifyVerificationStrategy when the request matches authorization uri/install path
@@ -87,5 +209,111 @@ public class ShopifyHttpSessionOAuth2AuthorizationRequestRepository {
 		return registrationId;
 	}
 	
+	/*
+	 * The serializer spring-session writes the session attributes with (springSessionDefaultRedisSerializer),
+	 * so payloadBytes() is what Redis stores. null: Java serialization.
+	 */
+	public void setPayloadSerializer(RedisSerializer<Object> payloadSerializer) {
+		this.payloadSerializer = payloadSerializer;
+	}
+	
+	public long saveCount() {
+		return this.saves.sum();
+	}
+	
+	// of the sampled saves
+	public long payloadBytes() {
+		return this.payloadBytes.sum();
+	}
+	
+	public long payloadSampleCount() {
+		return this.payloadSamples.sum();
+	}
+	
+	public long sizeEvictionCount() {
+		return this.sizeEvictions.sum();
+	}
+	
+	public long expiredEvictionCount() {
+		return this.expiredEvictions.sum();
+	}
+	
+	/*
+	 * The requests of the session, or null: only to be read.
+	 * A map saved before PendingAuthorizationRequests existed is converted (and replaced at the next change).
+	 */
+	@SuppressWarnings("unchecked")
+	private PendingAuthorizationRequests getPendingAuthorizationRequests(HttpSession session) {
+		Object attribute = session == null ? null : session.getAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
+		
+		if (attribute instanceof PendingAuthorizationRequests) {
+			return (PendingAuthorizationRequests) attribute;
+		}
+		
+		if (attribute instanceof Map) {
+			return new PendingAuthorizationRequests(this.maxPending, this.ttlMillis, (Map<String, OAuth2AuthorizationRequest>) attribute);
+		}
+		
+		return null;
+	}
+	
+	// a copy of the requests of the session without the expired ones, to change then write back
+	private PendingAuthorizationRequests copyPendingAuthorizationRequests(HttpSession session) {
+		PendingAuthorizationRequests current = getPendingAuthorizationRequests(session);
+		
+		if (current == null) {
+			return new PendingAuthorizationRequests(this.maxPending, this.ttlMillis);
+		}
+		
+		PendingAuthorizationRequests authorizationRequests = new PendingAuthorizationRequests(this.maxPending, this.ttlMillis, current);
+		this.expiredEvictions.add(authorizationRequests.removeExpired());
+		
+		return authorizationRequests;
+	}
+	
+	private static void writeBack(HttpSession session, PendingAuthorizationRequests authorizationRequests) {
+		if (authorizationRequests.isEmpty()) {
+			session.removeAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
+		} else {
+			session.setAttribute(DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME, authorizationRequests);
+		}
+	}
+	
+	// what the payloadSerializer, or Java serialization, writes for the session attribute
+	private long serializedSize(PendingAuthorizationRequests authorizationRequests) {
+		if (this.payloadSerializer != null) {
+			try {
+				byte[] bytes = this.payloadSerializer.serialize(authorizationRequests);
+				
+				return bytes == null ? 0 : bytes.length;
+			} catch (SerializationException ex) {
+				return 0;
+			}
+		}
+		
+		CountingOutputStream count = new CountingOutputStream();
+		
+		try (ObjectOutputStream out = new ObjectOutputStream(count)) {
+			out.writeObject(authorizationRequests);
+		} catch (IOException ex) {
+			return 0;
+		}
+		
+		return count.count;
+	}
+	
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.count += len;
+		}
+	}
 	
 }
@@ -1,14 +1,11 @@
 package com.lm.security.web;
 
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.crypto.keygen.Base64StringKeyGenerator;
-import org.springframework.security.crypto.keygen.StringKeyGenerator;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.oauth2.client.registration.ClientRegistration;
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
@@ -37,7 +34,6 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 	
 	private ClientRegistrationRepository clientRegistrationRepository;
 	private AntPathRequestMatcher authorizationRequestMatcher;
-	private final StringKeyGenerator stateGenerator = new Base64StringKeyGenerator(Base64.getUrlEncoder());
 	private final ShopifyRedirectStrategy authorizationRedirectStrategy = new ShopifyRedirectStrategy();
 	private final ShopifyHttpSessionOAuth2AuthorizationRequestRepository customAuthorizationRequestRepository;
 	private final String loginUri;
@@ -116,7 +112,7 @@ public class ShopifyOAuth2AuthorizationRequestResolver implements OAuth2Authoriz
 				.authorizationUri(this.generateAuthorizationUri(request, clientRegistration.getProviderDetails().getAuthorizationUri()))
 				.redirectUri(redirectUriStr)
 				.scopes(clientRegistration.getScopes())
-				.state(this.stateGenerator.generateKey())
+				.state(customAuthorizationRequestRepository.generateState(clientRegistration, shopName, redirectUriStr))
 				.additionalParameters(additionalParameters)
 				.build();
 
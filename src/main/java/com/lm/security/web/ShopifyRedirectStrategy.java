@@ -1,7 +1,7 @@
 package com.lm.security.web;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -11,6 +11,8 @@ import org.springframework.security.web.DefaultRedirectStrategy;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import com.lm.security.scope.ScopeRegistry;
+
 /*
  * Instead of redirecting, the redirect uris are added to the request as attributes.
  */
@@ -50,7 +52,7 @@ public class ShopifyRedirectStrategy extends DefaultRedirectStrategy {
 		LinkedMultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
 		queryParams.add(CLIENT_ID, authorizationRequest.getClientId());
 		queryParams.add(REDIRECT_URI, authorizationRequest.getRedirectUri());
-		queryParams.add(SCOPE, concatenateListIntoCommaString(new ArrayList<>(authorizationRequest.getScopes())));
+		queryParams.add(SCOPE, joinScopes(authorizationRequest.getScopes()));
 		queryParams.add(STATE, authorizationRequest.getState());
 		
 		String re = UriComponentsBuilder
@@ -63,6 +65,15 @@ public class ShopifyRedirectStrategy extends DefaultRedirectStrategy {
 
 	}
 	
+	// the canonical form, computed once per set of scopes (see ScopeRegistry)
+	private static String joinScopes(Set<String> scopes) {
+		if(scopes == null || scopes.isEmpty()) {
+			throw new RuntimeException("The authorization request must contain at least one scope");
+		}
+		
+		return ScopeRegistry.join(scopes);
+	}
+	
 	public static String concatenateListIntoCommaString(List<String> pieces) {
 		StringBuilder builder = new StringBuilder();
 		
@@ -0,0 +1,299 @@
+package com.lm.security.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.lm.security.crypto.DigestCodec;
+import com.lm.security.crypto.HmacEngine;
+
+/*
+ * Keeps no OAuth2AuthorizationRequest: the state sent to Shopify is the request itself, signed.
+ * Installing the app does not create an HttpSession (nor write it to Redis with spring-session), and any
+ * instance sharing the key verifies the state of the callback.
+ *
+ * The state is base64url(payload + HMAC-SHA256(payload)), the payload being:
+ *
+ * 		version, issued at (seconds), random nonce, registrationId, shop, redirect uri
+ *
+ * The rest of the OAuth2AuthorizationRequest (clientId, authorization uri, scopes) comes from the
+ * ClientRegistration. A state is valid for ttl after it is issued, and only once: at the callback
+ * (removeAuthorizationRequest(...)), it is recorded as used until it expires, and no longer loads. At most
+ * maxUsed states are recorded: when they are all still valid, new callbacks are rejected rather than
+ * allowing a replay. The used states are kept by this instance: with several instances, the authorization
+ * code of the callback, which Shopify accepts once, is what rejects a replay sent to another one.
+ *
+ * Only the canonical encoding of a state is accepted, so a state cannot be replayed under another spelling.
+ *
+ * Unlike a session, nothing ties the state to the browser that started the installation: the callback
+ * must also pass ShopifyVerificationStrategy.isShopifyRequest(...), so it was issued for this shop by Shopify.
+ *
+ * OAuth2LoginAuthenticationFilter loads the request at the callback from the state too.
+ * The decoded request is kept in a request attribute, so the state is verified once per request.
+ */
+public class ShopifySignedStateAuthorizationRequestRepository extends ShopifyHttpSessionOAuth2AuthorizationRequestRepository {
+
+	static final String VERIFIED_ATTRIBUTE = ShopifySignedStateAuthorizationRequestRepository.class.getName() + ".VERIFIED";
+
+	private static final byte VERSION = 1;
+	private static final int NONCE_LENGTH = 16;
+
+	public static final int DEFAULT_MAX_USED = 100_000;
+
+	private final ClientRegistrationRepository clientRegistrationRepository;
+	private final HmacEngine engine;
+	private final long ttlSeconds;
+	private final LongSupplier clock;
+	private final SecureRandom random = new SecureRandom();
+
+	// used state -> when it expires (seconds)
+	private final ConcurrentHashMap<String, Long> usedStates = new ConcurrentHashMap<>();
+	private final int maxUsed;
+	private volatile long nextPurge;
+
+	public ShopifySignedStateAuthorizationRequestRepository(String installPath, ClientRegistrationRepository clientRegistrationRepository,
+			HmacEngine engine, long ttl, TimeUnit unit) {
+		this(installPath, clientRegistrationRepository, engine, ttl, unit, DEFAULT_MAX_USED, () -> TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+	}
+
+	ShopifySignedStateAuthorizationRequestRepository(String installPath, ClientRegistrationRepository clientRegistrationRepository,
+			HmacEngine engine, long ttl, TimeUnit unit, int maxUsed, LongSupplier clock) {
+		super(installPath);
+		this.clientRegistrationRepository = clientRegistrationRepository;
+		this.engine = engine;
+		this.ttlSeconds = unit.toSeconds(ttl);
+		this.maxUsed = maxUsed;
+		this.clock = clock;
+	}
+
+	@Override
+	public String generateState(ClientRegistration clientRegistration, String shop, String redirectUri) {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		this.random.nextBytes(nonce);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(VERSION);
+			out.writeLong(this.clock.getAsLong());
+			out.write(nonce);
+			out.writeUTF(clientRegistration.getRegistrationId());
+			out.writeUTF(shop);
+			out.writeUTF(redirectUri);
+
+			// the digest belongs to this thread until the next one
+			byte[] payload = bytes.toByteArray();
+			out.write(this.engine.digest(payload, 0, payload.length), 0, HmacEngine.DIGEST_LENGTH);
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to encode the state", ex);
+		}
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+	}
+
+	// nothing to save: the request is in its state
+	@Override
+	public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request) {
+
+	}
+
+	@Override
+	public void saveAuthorizationRequest(OAuth2AuthorizationRequest authorizationRequest, HttpServletRequest request, HttpServletResponse response) {
+
+	}
+
+	@Override
+	public OAuth2AuthorizationRequest getAuthorizationRequest(HttpServletRequest request, String state) {
+		if(state == null || state.isEmpty()) {
+			return null;
+		}
+
+		Object verified = request.getAttribute(VERIFIED_ATTRIBUTE);
+
+		if(verified instanceof OAuth2AuthorizationRequest && state.equals(((OAuth2AuthorizationRequest)verified).getState())) {
+			return (OAuth2AuthorizationRequest)verified;
+		}
+
+		OAuth2AuthorizationRequest authorizationRequest = decode(state);
+
+		if(authorizationRequest != null) {
+			request.setAttribute(VERIFIED_ATTRIBUTE, authorizationRequest);
+		}
+
+		return authorizationRequest;
+	}
+
+	/*
+	 * The request signed into the state parameter, if it is valid
+	 */
+	@Override
+	public Map<String, OAuth2AuthorizationRequest> getAuthorizationRequests(HttpServletRequest request) {
+		String state = request.getParameter(OAuth2ParameterNames.STATE);
+		OAuth2AuthorizationRequest authorizationRequest = getAuthorizationRequest(request, state);
+
+		if(authorizationRequest == null) {
+			return new HashMap<>();
+		}
+
+		return Collections.singletonMap(state, authorizationRequest);
+	}
+
+	@Override
+	public Map.Entry<String, OAuth2AuthorizationRequest> getFirstAuthorizationRequest(HttpServletRequest request) {
+		String state = request.getParameter(OAuth2ParameterNames.STATE);
+		OAuth2AuthorizationRequest authorizationRequest = getAuthorizationRequest(request, state);
+
+		return authorizationRequest == null ? null : new AbstractMap.SimpleImmutableEntry<>(state, authorizationRequest);
+	}
+
+	@Override
+	public OAuth2AuthorizationRequest loadAuthorizationRequest(HttpServletRequest request) {
+		return getAuthorizationRequest(request, request.getParameter(OAuth2ParameterNames.STATE));
+	}
+
+	/*
+	 * The state is used: it is recorded until it expires, and no other request can load it.
+	 * The request that used it still can (see VERIFIED_ATTRIBUTE).
+	 */
+	@Override
+	public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request, HttpServletResponse response) {
+		OAuth2AuthorizationRequest authorizationRequest = loadAuthorizationRequest(request);
+
+		if(authorizationRequest == null || !markUsed(authorizationRequest.getState())) {
+			return null;
+		}
+
+		return authorizationRequest;
+	}
+
+	/*
+	 * See removeAuthorizationRequest(HttpServletRequest, HttpServletResponse)
+	 */
+	@Deprecated
+	@Override
+	public OAuth2AuthorizationRequest removeAuthorizationRequest(HttpServletRequest request) {
+		return this.removeAuthorizationRequest(request, null);
+	}
+
+	int usedStateCount() {
+		return this.usedStates.size();
+	}
+
+	// false if the state was already used, or too many states are recorded
+	private boolean markUsed(String state) {
+		long now = this.clock.getAsLong();
+
+		if(now >= this.nextPurge || this.usedStates.size() >= this.maxUsed) {
+			this.nextPurge = now + 1;
+			this.usedStates.values().removeIf(expiresAt -> expiresAt < now);
+		}
+
+		if(this.usedStates.size() >= this.maxUsed) {
+			return false;
+		}
+
+		// an upper bound: the state was issued before now
+		return this.usedStates.putIfAbsent(state, now + this.ttlSeconds) == null;
+	}
+
+	OAuth2AuthorizationRequest decode(String state) {
+		if(this.usedStates.containsKey(state)) {
+			return null;
+		}
+
+		byte[] bytes;
+
+		try {
+			bytes = Base64.getUrlDecoder().decode(state);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+
+		// the decoder ignores the unused bits of the last character, and accepts padding
+		if(!Base64.getUrlEncoder().withoutPadding().encodeToString(bytes).equals(state)) {
+			return null;
+		}
+
+		int payloadLength = bytes.length - HmacEngine.DIGEST_LENGTH;
+
+		if(payloadLength <= 0) {
+			return null;
+		}
+
+		byte[] expected = this.engine.digest(bytes, 0, payloadLength);
+		byte[] signature = new byte[HmacEngine.DIGEST_LENGTH];
+		System.arraycopy(bytes, payloadLength, signature, 0, HmacEngine.DIGEST_LENGTH);
+
+		if(!DigestCodec.constantTimeEquals(expected, signature, HmacEngine.DIGEST_LENGTH)) {
+			return null;
+		}
+
+		String registrationId;
+		String shop;
+		String redirectUri;
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, payloadLength))) {
+			if(in.readByte() != VERSION) {
+				return null;
+			}
+
+			long issuedAt = in.readLong();
+			long now = this.clock.getAsLong();
+
+			if(now - issuedAt > this.ttlSeconds || issuedAt > now + 60) {
+				return null;
+			}
+
+			in.skipBytes(NONCE_LENGTH);
+			registrationId = in.readUTF();
+			shop = in.readUTF();
+			redirectUri = in.readUTF();
+		} catch (IOException ex) {
+			return null;
+		}
+
+		ClientRegistration clientRegistration = this.clientRegistrationRepository.findByRegistrationId(registrationId);
+
+		if(clientRegistration == null) {
+			return null;
+		}
+
+		// as ShopifyOAuth2AuthorizationRequestResolver
+		Map<String, Object> additionalParameters = new HashMap<>();
+		additionalParameters.put(OAuth2ParameterNames.REGISTRATION_ID, registrationId);
+		additionalParameters.put(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, shop);
+
+		return OAuth2AuthorizationRequest.authorizationCode()
+				.clientId(clientRegistration.getClientId())
+				.authorizationUri(UriComponentsBuilder
+						.fromHttpUrl(clientRegistration.getProviderDetails().getAuthorizationUri())
+						.buildAndExpand(Collections.singletonMap(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN, shop))
+						.toUriString())
+				.redirectUri(redirectUri)
+				.scopes(clientRegistration.getScopes())
+				.state(state)
+				.additionalParameters(additionalParameters)
+				.build();
+	}
+
+}
@@ -0,0 +1,218 @@
+package com.lm.security.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Mac;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/*
+ * Wraps a Shopify webhook request (see UninstallFilter) so the body is read from the container exactly once.
+ *
+ * readBody(mac) streams the body through the Mac while copying it into a pooled buffer. Afterwards,
+ * getInputStream() and getReader() replay that buffer, so the JSON converter parses the same bytes
+ * that were verified, without another copy.
+ *
+ * Memory is bounded: bodies larger than maxBodySize are rejected, and each thread keeps at most one
+ * buffer of up to MAX_POOLED_BUFFER bytes between requests.
+ *
+ * release() must be called once the request has been handled.
+ *
+ */
+public class WebhookRequestWrapper extends HttpServletRequestWrapper {
+	public static final int DEFAULT_MAX_BODY_SIZE = 256 * 1024;
+
+	private static final int INITIAL_BUFFER = 8 * 1024;
+	private static final int MAX_POOLED_BUFFER = 64 * 1024;
+	private static final ThreadLocal<byte[]> POOL = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER]);
+
+	private final int maxBodySize;
+	private byte[] body;
+	private int length = -1;
+
+	public WebhookRequestWrapper(HttpServletRequest request) {
+		this(request, DEFAULT_MAX_BODY_SIZE);
+	}
+
+	public WebhookRequestWrapper(HttpServletRequest request, int maxBodySize) {
+		super(request);
+		this.maxBodySize = maxBodySize;
+	}
+
+	/*
+	 * Reads the whole body, feeding each chunk to the Mac.
+	 * Returns false if the body is larger than maxBodySize.
+	 */
+	public boolean readBody(Mac mac) throws IOException {
+		if(this.length >= 0) {
+			throw new IllegalStateException("The request body has already been read");
+		}
+
+		long declaredLength = getContentLengthLong();
+
+		if(declaredLength > this.maxBodySize) {
+			return false;
+		}
+
+		byte[] buffer = acquire();
+		int capacity = Math.min(buffer.length, this.maxBodySize);
+		int total = 0;
+		InputStream in = super.getInputStream();
+
+		while(true) {
+			if(total == capacity) {
+				if(capacity == this.maxBodySize) {
+					// one more byte means the body is too large
+					if(in.read() != -1) {
+						this.body = buffer;
+						this.length = 0;
+						return false;
+					}
+					break;
+				}
+
+				if(capacity == buffer.length) {
+					byte[] larger = new byte[Math.min(buffer.length * 2, this.maxBodySize)];
+					System.arraycopy(buffer, 0, larger, 0, total);
+					buffer = larger;
+				}
+
+				capacity = Math.min(buffer.length, this.maxBodySize);
+			}
+
+			int read = in.read(buffer, total, capacity - total);
+
+			if(read == -1) {
+				break;
+			}
+
+			mac.update(buffer, total, read);
+			total += read;
+		}
+
+		this.body = buffer;
+		this.length = total;
+
+		return true;
+	}
+
+	public boolean isBodyRead() {
+		return this.length >= 0;
+	}
+
+	/*
+	 * Returns the buffer to this thread's pool.
+	 * The body can no longer be replayed afterwards.
+	 */
+	public void release() {
+		if(this.body != null && this.body.length <= MAX_POOLED_BUFFER) {
+			POOL.set(this.body);
+		}
+
+		this.body = null;
+	}
+
+	@Override
+	public ServletInputStream getInputStream() throws IOException {
+		if(!isBodyRead()) {
+			return super.getInputStream();
+		}
+
+		if(this.body == null) {
+			throw new IllegalStateException("The request body has been released");
+		}
+
+		return new BufferInputStream(this.body, this.length);
+	}
+
+	@Override
+	public BufferedReader getReader() throws IOException {
+		if(!isBodyRead()) {
+			return super.getReader();
+		}
+
+		String encoding = getCharacterEncoding();
+		Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+
+		return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+	}
+
+	// the pooled buffer is removed from the pool while in use, so nested wrappers never share it
+	private static byte[] acquire() {
+		byte[] buffer = POOL.get();
+		POOL.remove();
+
+		return buffer;
+	}
+
+	static class BufferInputStream extends ServletInputStream {
+		private final byte[] buffer;
+		private final int length;
+		private int pos;
+
+		BufferInputStream(byte[] buffer, int length) {
+			this.buffer = buffer;
+			this.length = length;
+		}
+
+		@Override
+		public int read() {
+			return this.pos < this.length ? this.buffer[this.pos++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(this.pos >= this.length) {
+				return -1;
+			}
+
+			int count = Math.min(len, this.length - this.pos);
+			System.arraycopy(this.buffer, this.pos, b, off, count);
+			this.pos += count;
+
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return this.length - this.pos;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return this.pos >= this.length;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		// the body is already buffered: all of it is available, and read, at once
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			if(readListener == null) {
+				throw new NullPointerException("readListener");
+			}
+
+			try {
+				if(!isFinished()) {
+					readListener.onDataAvailable();
+				}
+
+				readListener.onAllDataRead();
+			} catch (IOException ex) {
+				readListener.onError(ex);
+			}
+		}
+
+	}
+
+}
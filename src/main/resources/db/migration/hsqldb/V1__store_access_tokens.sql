@@ -0,0 +1,11 @@
+-- The table as created by schema-hsqldb.sql (already present on embedded databases)
+
+CREATE TABLE IF NOT EXISTS STOREACCESSTOKENS(
+	id 					BIGINT 			NOT NULL		IDENTITY,
+	registration_id		VARCHAR(50)		DEFAULT 'shopify'	NOT NULL,
+	shop 				VARCHAR(50) 	NOT NULL,
+	access_token		VARCHAR(100)	NOT NULL,
+	salt				VARCHAR(100)	NOT NULL,
+	key_version			INTEGER			DEFAULT 0			NOT NULL,
+	scope 				VARCHAR(200)	NOT NULL
+);
@@ -0,0 +1,13 @@
+-- Every lookup is by (registration_id, shop): index it, and make sure a store is only saved once.
+-- Duplicates (left by concurrent installs before the upsert) are removed first, keeping the latest row.
+-- The temporary index keeps the duplicate search from scanning the whole table for every row.
+
+CREATE INDEX IF NOT EXISTS STOREACCESSTOKENS_DEDUPE ON STOREACCESSTOKENS(registration_id, shop, id);
+
+DELETE FROM STOREACCESSTOKENS t WHERE EXISTS (
+	SELECT 1 FROM STOREACCESSTOKENS o WHERE o.registration_id = t.registration_id AND o.shop = t.shop AND o.id > t.id
+);
+
+DROP INDEX STOREACCESSTOKENS_DEDUPE IF EXISTS;
+
+CREATE UNIQUE INDEX IF NOT EXISTS STOREACCESSTOKENS_REGISTRATION_SHOP ON STOREACCESSTOKENS(registration_id, shop);
@@ -0,0 +1,15 @@
+-- Creates the table, or brings a table created before multi-app support and key versions up to date
+
+CREATE TABLE IF NOT EXISTS storeaccesstokens(
+	id 					BIGSERIAL 		PRIMARY KEY,
+	registration_id		VARCHAR(50)		NOT NULL	DEFAULT 'shopify',
+	shop 				VARCHAR(50) 	NOT NULL,
+	access_token		VARCHAR(100)	NOT NULL,
+	salt				VARCHAR(100)	NOT NULL,
+	key_version			INTEGER			NOT NULL	DEFAULT 0,
+	scope 				VARCHAR(200)	NOT NULL
+);
+
+ALTER TABLE storeaccesstokens ADD COLUMN IF NOT EXISTS registration_id VARCHAR(50) NOT NULL DEFAULT 'shopify';
+
+ALTER TABLE storeaccesstokens ADD COLUMN IF NOT EXISTS key_version INTEGER NOT NULL DEFAULT 0;
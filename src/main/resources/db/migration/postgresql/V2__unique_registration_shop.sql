@@ -0,0 +1,15 @@
+-- Every lookup is by (registration_id, shop): index it, and make sure a store is only saved once
+-- (INSERT ... ON CONFLICT relies on this index).
+--
+-- The index is built CONCURRENTLY, so reads and writes continue while it is built. This migration therefore
+-- runs outside of a transaction. A failed concurrent build leaves an invalid index behind, which is dropped
+-- before trying again.
+--
+-- Duplicates (left by concurrent installs before the upsert) are removed first, keeping the latest row.
+
+DELETE FROM storeaccesstokens a USING storeaccesstokens b
+	WHERE a.registration_id = b.registration_id AND a.shop = b.shop AND a.id < b.id;
+
+DROP INDEX CONCURRENTLY IF EXISTS storeaccesstokens_registration_shop;
+
+CREATE UNIQUE INDEX CONCURRENTLY storeaccesstokens_registration_shop ON storeaccesstokens(registration_id, shop);
@@ -0,0 +1,7 @@
+-- Progress of TokenReencryptionJob: every store with an id up to last_id is encrypted with key_version
+
+CREATE TABLE IF NOT EXISTS tokenreencryption(
+	key_version			INTEGER			PRIMARY KEY,
+	last_id				BIGINT			NOT NULL,
+	updated_on			TIMESTAMP		NOT NULL
+);
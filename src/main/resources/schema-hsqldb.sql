@@ -1,9 +1,13 @@
 /*                         StoreAccessTokens
- * ---------------------------------------------------------------------------------------------------------------------------------------------|
- * |  id  |  		shop  		  |  		     access_token  			 	 |          salt 	           |		  scope                     | 
- * |--------------------------------------------------------------------------------------------------------------------------------------------|
- * | 4324 |  "lmdev.myshopify.com"  |   "tuyiujhvbgvhgvjyj7676tig76gi6gi7"   |    "sfjhrgmjshrgjhskjrh"    |  "read_inventory,write_inventory"  |
- * |____________________________________________________________________________________________________________________________________________|
+ * ----------------------------------------------------------------------------------------------------------------------------------------------------------------|
+ * |  id  |  registration_id  |  		shop  		  |  		     access_token  			 	 |          salt 	           |		  scope                     | 
+ * |---------------------------------------------------------------------------------------------------------------------------------------------------------------|
+ * | 4324 |     "shopify"     |  "lmdev.myshopify.com"  |   "tuyiujhvbgvhgvjyj7676tig76gi6gi7"   |    "sfjhrgmjshrgjhskjrh"    |  "read_inventory,write_inventory"  |
+ * |_______________________________________________________________________________________________________________________________________________________________|
+ * 
+ * Indexes and later changes are applied by SchemaMigrator (see db/migration/hsqldb).
+ * 
+ * key_version: the TokenCipher used to encrypt access_token (0: per-row salt, 1+: master key, salt holds the nonce)
  * 
  */
 
@@ -12,9 +16,11 @@
 
 CREATE TABLE STOREACCESSTOKENS(
 					id 		  			BIGINT 		  	NOT NULL		IDENTITY, 
+					registration_id		VARCHAR(50)		DEFAULT 'shopify'	NOT NULL,
 					shop 			    VARCHAR(50)   	NOT NULL,
 					access_token        VARCHAR(100)   	NOT NULL,
 					salt                VARCHAR(100)    NOT NULL,
+					key_version			INTEGER			DEFAULT 0			NOT NULL,
 					scope 			    VARCHAR(200)    NOT NULL,					
 					
 					);
\ No newline at end of file
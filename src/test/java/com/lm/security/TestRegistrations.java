@@ -0,0 +1,40 @@
+package com.lm.security;
+
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+
+/*
+ * The ClientRegistrations of the unit tests: the app "shopify" (testId / testSecret), like the one TestConfig
+ * registers for the integration tests, and other apps built the same way.
+ */
+public final class TestRegistrations {
+
+	public static final String REGISTRATION_ID = "shopify";
+	public static final String CLIENT_ID = "testId";
+	public static final String CLIENT_SECRET = "testSecret";
+
+	private TestRegistrations() {
+	}
+
+	public static ClientRegistration shopify() {
+		return builder(REGISTRATION_ID, CLIENT_ID, CLIENT_SECRET).build();
+	}
+
+	public static ClientRegistration registration(String registrationId, String clientId, String clientSecret) {
+		return builder(registrationId, clientId, clientSecret).build();
+	}
+
+	/*
+	 * To add scopes, or anything else, before build()
+	 */
+	public static ClientRegistration.Builder builder(String registrationId, String clientId, String clientSecret) {
+		return ClientRegistration.withRegistrationId(registrationId)
+				.clientId(clientId)
+				.clientSecret(clientSecret)
+				.authorizationGrantType(AuthorizationGrantType.AUTHORIZATION_CODE)
+				.redirectUriTemplate("{baseUrl}/login/app/oauth2/code/{registrationId}")
+				.authorizationUri("https://{shop}/admin/oauth/authorize")
+				.tokenUri("https://{shop}/admin/oauth/access_token");
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.lm.security.authentication;
+
+import static com.lm.security.TestRegistrations.registration;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+
+import com.lm.security.authentication.ClientSecretRegistry.ClientSecret;
+
+public class ClientSecretRegistryTest {
+	
+	@Test
+	public void givenRegistrationsThenFoundByRegistrationIdAndClientId() {
+		ClientSecretRegistry registry = new ClientSecretRegistry(registration("shopify", "id1", "secret1"), registration("other", "id2", "secret2"));
+		
+		ClientSecret byRegistrationId = registry.findSecretByRegistrationId("other");
+		
+		Assert.assertEquals("secret2", byRegistrationId.getSecret());
+		Assert.assertSame(byRegistrationId, registry.findSecretByClientId("id2"));
+		Assert.assertEquals("id1", registry.findByRegistrationId("shopify").getClientId());
+		
+		// the HmacEngine is prepared with the secret
+		Assert.assertEquals(ShopifyVerificationStrategy.hash("secret2", "message"), byRegistrationId.getHmacEngine().hexDigest("message"));
+		
+		Assert.assertNull(registry.findSecretByClientId("unknown"));
+		Assert.assertNull(registry.findSecretByRegistrationId(null));
+	}
+	
+	@Test
+	public void givenReloadThenOldRegistrationsAreReplaced() {
+		ClientSecretRegistry registry = new ClientSecretRegistry(registration("shopify", "id1", "secret1"));
+		
+		registry.reload(Arrays.asList(registration("shopify", "id3", "secret3")));
+		
+		Assert.assertNull(registry.findSecretByClientId("id1"));
+		Assert.assertEquals("secret3", registry.findSecretByRegistrationId("shopify").getSecret());
+	}
+	
+	@Test
+	public void givenInMemoryRepositoryThenRegistrationsAreIndexed() {
+		InMemoryClientRegistrationRepository repository = new InMemoryClientRegistrationRepository(registration("shopify", "id1", "secret1"));
+		
+		ClientSecretRegistry registry = ClientSecretRegistry.from(repository);
+		
+		Assert.assertEquals("secret1", registry.findSecretByClientId("id1").getSecret());
+		Assert.assertSame(registry, ClientSecretRegistry.from(registry));
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void givenDuplicateClientIdThenFails() {
+		new ClientSecretRegistry(registration("shopify", "id1", "secret1"), registration("other", "id1", "secret2"));
+	}
+
+}
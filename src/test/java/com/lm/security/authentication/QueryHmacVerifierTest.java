@@ -0,0 +1,96 @@
+package com.lm.security.authentication;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lm.security.crypto.HmacEngine;
+
+public class QueryHmacVerifierTest {
+
+	private String secret = "6a031b0bd6af4eb";
+
+	private HmacEngine engine = new HmacEngine(secret);
+
+	private String stringNoHMAC = "code=fsv&shop=some-shop.myshopify.com&state=0.6784241404160823&timestamp=1337178173";
+
+
+	@Test
+	public void givenHmacInTheMiddleThenVerifies() {
+		String hmac = ShopifyVerificationStrategy.hash(secret, stringNoHMAC);
+		String query = "code=fsv&shop=some-shop.myshopify.com&hmac=" + hmac + "&state=0.6784241404160823&timestamp=1337178173";
+
+		Assert.assertTrue(QueryHmacVerifier.verify(query, engine));
+	}
+
+	@Test
+	public void givenHmacFirstThenVerifies() {
+		String hmac = ShopifyVerificationStrategy.hash(secret, stringNoHMAC);
+
+		Assert.assertTrue(QueryHmacVerifier.verify("hmac=" + hmac + "&" + stringNoHMAC, engine));
+	}
+
+	@Test
+	public void givenUrlEncodedQueryThenVerifiesAgainstDecodedQuery() {
+		// Shopify signed the decoded query
+		String signed = "shop=some-shop.myshopify.com&state=a/b+c==&timestamp=1337178173";
+		String hmac = ShopifyVerificationStrategy.hash(secret, signed);
+
+		String query = "shop=some-shop.myshopify.com&hmac=" + hmac + "&state=a%2Fb%2Bc%3D%3D&timestamp=1337178173";
+
+		Assert.assertTrue(QueryHmacVerifier.verify(query, engine));
+	}
+
+	@Test
+	public void givenEscapedQuerySignedAsReceivedThenVerifies() {
+		String signed = "shop=some-shop.myshopify.com&state=a%2Fb&timestamp=1337178173";
+		String hmac = ShopifyVerificationStrategy.hash(secret, signed);
+
+		String query = "hmac=" + hmac + "&" + signed;
+
+		Assert.assertTrue(QueryHmacVerifier.verify(query, engine));
+	}
+
+	@Test
+	public void givenInvalidEscapeThenDoesNotThrow() {
+		String signed = "shop=some-shop.myshopify.com&state=%zz";
+		String hmac = ShopifyVerificationStrategy.hash(secret, "shop=other.myshopify.com");
+
+		Assert.assertFalse(QueryHmacVerifier.verify("hmac=" + hmac + "&" + signed, engine));
+	}
+
+	@Test
+	public void givenEmptyHmacThenFails() {
+		Assert.assertFalse(QueryHmacVerifier.verify(stringNoHMAC + "&hmac=", engine));
+		Assert.assertFalse(QueryHmacVerifier.verify(stringNoHMAC + "&hmac", engine));
+	}
+
+	@Test
+	public void givenNoQueryThenFails() {
+		Assert.assertFalse(QueryHmacVerifier.verify(null, engine));
+		Assert.assertFalse(QueryHmacVerifier.verify("", engine));
+	}
+
+	@Test
+	public void givenParameterStartingWithHmacThenItIsHashed() {
+		String signed = "hmacx=1&shop=some-shop.myshopify.com";
+		String hmac = ShopifyVerificationStrategy.hash(secret, signed);
+
+		Assert.assertTrue(QueryHmacVerifier.verify(signed + "&hmac=" + hmac, engine));
+	}
+
+	@Test
+	public void givenLargeEscapedQueryWithoutHmacThenTheBufferIsReleased() {
+		StringBuilder query = new StringBuilder(stringNoHMAC);
+
+		while(query.length() < 20000) {
+			query.append("&state=%2F%2B");
+		}
+
+		Assert.assertFalse(QueryHmacVerifier.verify(query.toString(), engine));
+		Assert.assertTrue(QueryHmacVerifier.retainedBufferLength() <= 8192);
+
+		Assert.assertFalse(QueryHmacVerifier.verify(query + "&hmac=a&hmac=b", engine));
+		Assert.assertTrue(QueryHmacVerifier.retainedBufferLength() <= 8192);
+	}
+
+}
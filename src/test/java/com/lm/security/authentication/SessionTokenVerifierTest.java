@@ -0,0 +1,119 @@
+package com.lm.security.authentication;
+
+import static com.lm.security.TestRegistrations.registration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lm.security.crypto.HmacEngine;
+
+public class SessionTokenVerifierTest {
+
+	private static final String HEADER = "{\"alg\":\"HS256\",\"typ\":\"JWT\"}";
+	private static final String SHOP = "lmdev.myshopify.com";
+
+	private long now = 1_600_000_000;
+	private SessionTokenVerifier verifier;
+
+	@Before
+	public void startup() {
+		ClientSecretRegistry registry = new ClientSecretRegistry(registration("shopify", "testId", "testSecret"),
+				registration("brand1", "brandId", "brandSecret"));
+
+		this.verifier = new SessionTokenVerifier(registry, 5, TimeUnit.SECONDS, () -> now);
+	}
+
+	@Test
+	public void givenValidTokenThenClaimsAreReturned() {
+		SessionTokenVerifier.Claims claims = verifier.verify(sign(HEADER, payload("testId", now + 60, now - 1), "testSecret"));
+
+		Assert.assertEquals("shopify", claims.getRegistrationId());
+		Assert.assertEquals("testId", claims.getClientId());
+		Assert.assertEquals(SHOP, claims.getShop());
+		Assert.assertEquals("42", claims.getSubject());
+		Assert.assertEquals(now + 60, claims.getExpiresAt());
+
+		// the secret of the app in aud
+		claims = verifier.verify(sign(HEADER, payload("brandId", now + 60, now - 1), "brandSecret"));
+		Assert.assertEquals("brand1", claims.getRegistrationId());
+	}
+
+	@Test
+	public void givenTamperedTokenThenItIsRejected() {
+		String token = sign(HEADER, payload("testId", now + 60, now - 1), "testSecret");
+
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("testId", now + 60, now - 1), "brandSecret")));
+		Assert.assertNull(verifier.verify(token.substring(0, token.length() - 1)));
+		Assert.assertNull(verifier.verify(token + "."));
+		Assert.assertNull(verifier.verify(token.replace('.', '!')));
+		Assert.assertNull(verifier.verify(""));
+		Assert.assertNull(verifier.verify(null));
+
+		// another payload under the same signature
+		String other = sign(HEADER, payload("testId", now + 3600, now - 1), "testSecret");
+		int dot = token.lastIndexOf('.');
+		Assert.assertNull(verifier.verify(other.substring(0, other.lastIndexOf('.')) + token.substring(dot)));
+
+		// alg none, or another algorithm
+		Assert.assertNull(verifier.verify(sign("{\"alg\":\"none\"}", payload("testId", now + 60, now - 1), "testSecret")));
+		Assert.assertNull(verifier.verify(sign("{\"alg\":\"HS512\"}", payload("testId", now + 60, now - 1), "testSecret")));
+	}
+
+	@Test
+	public void givenExpiredOrEarlyTokenThenItIsRejected() {
+		Assert.assertNotNull(verifier.verify(sign(HEADER, payload("testId", now - 4, now + 5), "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("testId", now - 5, now - 60), "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("testId", now + 60, now + 6), "testSecret")));
+
+		String noExp = "{\"iss\":\"https://" + SHOP + "/admin\",\"dest\":\"https://" + SHOP + "\",\"aud\":\"testId\"}";
+		Assert.assertNull(verifier.verify(sign(HEADER, noExp, "testSecret")));
+	}
+
+	@Test
+	public void givenWrongDestinationThenItIsRejected() {
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("testId", "https://evil.com", "https://evil.com/admin"), "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("testId", "https://" + SHOP, "https://other.myshopify.com/admin"), "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("testId", "http://" + SHOP, "http://" + SHOP + "/admin"), "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("testId", "https://a.b.myshopify.com", "https://a.b.myshopify.com/admin"), "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, payload("unknownId", now + 60, now - 1), "testSecret")));
+	}
+
+	@Test
+	public void givenJsonVariationsThenTheyAreParsed() {
+		String payload = " { \"aud\" : \"test\\u0049d\", \"exp\" : " + (now + 60) + ".0 , \"nested\" : {\"a\":[1,\"}\",{\"b\":null}]},"
+				+ " \"dest\":\"https:\\/\\/" + SHOP + "\", \"iss\":\"https://" + SHOP + "/admin\", \"sid\":true } ";
+
+		SessionTokenVerifier.Claims claims = verifier.verify(sign(HEADER, payload, "testSecret"));
+
+		Assert.assertEquals("testId", claims.getClientId());
+		Assert.assertEquals(SHOP, claims.getShop());
+		Assert.assertNull(claims.getSubject());
+
+		Assert.assertNull(verifier.verify(sign(HEADER, "{\"aud\":[\"testId\"]}", "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, payload.substring(0, payload.length() - 3), "testSecret")));
+		Assert.assertNull(verifier.verify(sign(HEADER, "[]", "testSecret")));
+	}
+
+	private String payload(String aud, long exp, long nbf) {
+		return "{\"iss\":\"https://" + SHOP + "/admin\",\"dest\":\"https://" + SHOP + "\",\"aud\":\"" + aud + "\",\"sub\":\"42\","
+				+ "\"exp\":" + exp + ",\"nbf\":" + nbf + ",\"iat\":" + nbf + ",\"jti\":\"f8912129\",\"sid\":\"aaea182f\"}";
+	}
+
+	private String payload(String aud, String dest, String iss) {
+		return "{\"iss\":\"" + iss + "\",\"dest\":\"" + dest + "\",\"aud\":\"" + aud + "\",\"exp\":" + (now + 60) + "}";
+	}
+
+	static String sign(String header, String payload, String secret) {
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		String content = encoder.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "."
+				+ encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+
+		return content + "." + encoder.encodeToString(new HmacEngine(secret).digest(content));
+	}
+
+}
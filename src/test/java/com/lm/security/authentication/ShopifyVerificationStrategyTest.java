@@ -17,6 +17,11 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.codec.binary.Hex;
+
+import com.lm.security.TestRegistrations;
+import com.lm.security.authentication.ClientSecretRegistry.ClientSecret;
+
 public class ShopifyVerificationStrategyTest {
 	
 	private HttpServletRequest req;
@@ -56,7 +61,7 @@ public class ShopifyVerificationStrategyTest {
 
 
 		// calling getClientSecret in the strategy will always return a valid secret
-		doReturn(secret).when(strategy).getClientSecret(any());
+		doReturn(clientSecret(secret)).when(strategy).getClientSecret(any());
 
 		
 		Assert.assertEquals(true, strategy.isShopifyRequest(req));
@@ -92,7 +97,7 @@ public class ShopifyVerificationStrategyTest {
 
 
 		// calling getClientSecret in the strategy will always return a valid secret
-		doReturn(secret).when(strategy).getClientSecret(any());
+		doReturn(clientSecret(secret)).when(strategy).getClientSecret(any());
 
 		
 		Assert.assertEquals(true, strategy.isShopifyRequest(req));
@@ -132,7 +137,7 @@ public class ShopifyVerificationStrategyTest {
 
 
 		// calling getClientSecret in the strategy will always return a valid secret
-		doReturn(secret).when(strategy).getClientSecret(any());
+		doReturn(clientSecret(secret)).when(strategy).getClientSecret(any());
 
 		
 		Assert.assertEquals(false, strategy.isShopifyRequest(req));
@@ -162,7 +167,7 @@ public class ShopifyVerificationStrategyTest {
 
 
 		// calling getClientSecret in the strategy will always return a valid secret
-		doReturn(secret).when(strategy).getClientSecret(any());
+		doReturn(clientSecret(secret)).when(strategy).getClientSecret(any());
 
 		
 		Assert.assertEquals(false, strategy.isShopifyRequest(req));
@@ -200,7 +205,7 @@ public class ShopifyVerificationStrategyTest {
 
 
 		// calling getClientSecret in the strategy will always return a valid secret
-		doReturn(secret).when(strategy).getClientSecret(any());
+		doReturn(clientSecret(secret)).when(strategy).getClientSecret(any());
 
 		
 		Assert.assertEquals(false, strategy.isShopifyRequest(req));
@@ -241,7 +246,7 @@ public class ShopifyVerificationStrategyTest {
 		
 		when(request.getHeader(ShopifyVerificationStrategy.HMAC_HEADER)).thenReturn(hmac);
 		doReturn(body).when(strategy).getBody(any());
-		doReturn(secret).when(strategy).getClientSecretByRegistrationId(any());
+		doReturn(clientSecret(secret)).when(strategy).getClientSecretByRegistrationId(any());
 		
 		Assert.assertTrue(strategy.isHeaderShopifyRequest(request, "registrationId"));
 	}
@@ -261,10 +266,36 @@ public class ShopifyVerificationStrategyTest {
 		
 		when(request.getHeader(ShopifyVerificationStrategy.HMAC_HEADER)).thenReturn(hmac);
 		doReturn(body + "sad").when(strategy).getBody(any());
-		doReturn(secret).when(strategy).getClientSecretByRegistrationId(any());
+		doReturn(clientSecret(secret)).when(strategy).getClientSecretByRegistrationId(any());
 		
 		Assert.assertFalse(strategy.isHeaderShopifyRequest(request, "registrationId"));
 		
 	}
 
+
+	@Test
+	public void givenBase64OfRawDigestThenIsHeaderShopifyRequestMustPass() throws Exception {
+		ShopifyVerificationStrategy strategy = new ShopifyVerificationStrategy(null, null);
+		String body = "{\"id\":689034}";
+		
+		// what Shopify sends: base64(HMAC-SHA256(body))
+		String hmac = Base64.getEncoder().encodeToString(Hex.decodeHex(ShopifyVerificationStrategy.hash(this.secret, body)));
+
+		Assert.assertTrue(strategy.isShopifyHeaderRequest(body, hmac, this.secret));
+		Assert.assertFalse(strategy.isShopifyHeaderRequest(body + "ds", hmac, this.secret));
+	}
+	
+	@Test
+	public void givenMalformedHeaderThenIsHeaderShopifyRequestMustFail() {
+		ShopifyVerificationStrategy strategy = new ShopifyVerificationStrategy(null, null);
+		String body = "{\"id\":689034}";
+
+		Assert.assertFalse(strategy.isShopifyHeaderRequest(body, "not base64!", this.secret));
+		Assert.assertFalse(strategy.isShopifyHeaderRequest(body, "", this.secret));
+	}
+
+	private ClientSecret clientSecret(String secret) {
+		return new ClientSecret(TestRegistrations.registration("shopify", "testId", secret));
+	}
+
 }
@@ -0,0 +1,131 @@
+package com.lm.security.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import com.lm.security.TestRegistrations;
+
+public class BoundedAuthorizedClientCacheTest {
+	
+	private AtomicLong now = new AtomicLong();
+	
+	private ShopKey key1 = new ShopKey("shopify", "shop1.myshopify.com");
+	private ShopKey key2 = new ShopKey("shopify", "shop2.myshopify.com");
+	private ShopKey key3 = new ShopKey("shopify", "shop3.myshopify.com");
+	
+	
+	@Test
+	public void givenPutThenHitAndMissAreCounted() {
+		BoundedAuthorizedClientCache cache = new BoundedAuthorizedClientCache(10, 60, TimeUnit.SECONDS, now::get);
+		OAuth2AuthorizedClient client = client("shop1.myshopify.com");
+		
+		Assert.assertNull(cache.get(key1));
+		cache.put(key1, client, cache.beginLoad(key1));
+		
+		Assert.assertSame(client, cache.get(key1));
+		Assert.assertNull(cache.get(new ShopKey("other", "shop1.myshopify.com")));
+		
+		Assert.assertEquals(1, cache.hitCount());
+		Assert.assertEquals(2, cache.missCount());
+	}
+	
+	@Test
+	public void givenFullCacheThenLeastRecentlyUsedIsEvicted() {
+		BoundedAuthorizedClientCache cache = new BoundedAuthorizedClientCache(2, 60, TimeUnit.SECONDS, now::get);
+		
+		cache.put(key1, client("shop1.myshopify.com"), cache.beginLoad(key1));
+		cache.put(key2, client("shop2.myshopify.com"), cache.beginLoad(key2));
+		cache.get(key1);
+		cache.put(key3, client("shop3.myshopify.com"), cache.beginLoad(key3));
+		
+		Assert.assertNotNull(cache.get(key1));
+		Assert.assertNull(cache.get(key2));
+		Assert.assertNotNull(cache.get(key3));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.evictionCount());
+	}
+	
+	@Test
+	public void givenExpiredEntryThenMiss() {
+		BoundedAuthorizedClientCache cache = new BoundedAuthorizedClientCache(10, 60, TimeUnit.SECONDS, now::get);
+		
+		cache.put(key1, client("shop1.myshopify.com"), cache.beginLoad(key1));
+		cache.put(key2, client("shop2.myshopify.com"), cache.beginLoad(key2));
+		now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+		
+		Assert.assertNull(cache.get(key1));
+		Assert.assertEquals(1, cache.evictionCount());
+		
+		cache.evictExpired();
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(2, cache.evictionCount());
+	}
+	
+	@Test
+	public void givenInvalidationDuringLoadThenStaleValueIsDropped() {
+		BoundedAuthorizedClientCache cache = new BoundedAuthorizedClientCache(10, 60, TimeUnit.SECONDS, now::get);
+		
+		long stamp = cache.beginLoad(key1);
+		cache.invalidate(key1);
+		cache.put(key1, client("shop1.myshopify.com"), stamp);
+		
+		Assert.assertNull(cache.get(key1));
+	}
+	
+	@Test
+	public void givenOtherStoreInvalidatedDuringLoadThenTheValueIsCached() {
+		BoundedAuthorizedClientCache cache = new BoundedAuthorizedClientCache(10, 60, TimeUnit.SECONDS, now::get);
+		
+		long stamp = cache.beginLoad(key1);
+		cache.invalidate(key2);
+		cache.put(key1, client("shop1.myshopify.com"), stamp);
+		
+		Assert.assertNotNull(cache.get(key1));
+		
+		stamp = cache.beginLoad(key2);
+		cache.invalidateAll();
+		cache.put(key2, client("shop2.myshopify.com"), stamp);
+		
+		Assert.assertNull(cache.get(key2));
+	}
+	
+	@Test
+	public void givenInvalidationDuringBatchLoadThenTheBatchIsDropped() {
+		BoundedAuthorizedClientCache cache = new BoundedAuthorizedClientCache(10, 60, TimeUnit.SECONDS, now::get);
+		
+		long batch = cache.beginBatchLoad();
+		cache.put(key1, client("shop1.myshopify.com"), cache.beginLoad(key1, batch));
+		
+		Assert.assertNotNull(cache.get(key1));
+		
+		// the keys of a batch are only known once read: any invalidation in between may be theirs
+		batch = cache.beginBatchLoad();
+		cache.invalidate(key3);
+		cache.put(key2, client("shop2.myshopify.com"), cache.beginLoad(key2, batch));
+		
+		Assert.assertNull(cache.get(key2));
+	}
+	
+	@Test
+	public void givenZeroMaxSizeThenNothingIsCached() {
+		BoundedAuthorizedClientCache cache = new BoundedAuthorizedClientCache(0, 60, TimeUnit.SECONDS, now::get);
+		
+		cache.put(key1, client("shop1.myshopify.com"), cache.beginLoad(key1));
+		
+		Assert.assertNull(cache.get(key1));
+		Assert.assertEquals(0, cache.evictionCount());
+	}
+	
+	private OAuth2AuthorizedClient client(String shop) {
+		ClientRegistration registration = TestRegistrations.shopify();
+		
+		return new OAuth2AuthorizedClient(registration, shop, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null));
+	}
+
+}
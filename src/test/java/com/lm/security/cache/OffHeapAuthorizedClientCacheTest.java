@@ -0,0 +1,193 @@
+package com.lm.security.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import com.lm.security.TestRegistrations;
+
+public class OffHeapAuthorizedClientCacheTest {
+	
+	private AtomicLong now = new AtomicLong();
+	
+	private ClientRegistration registration = TestRegistrations.shopify();
+	
+	private InMemoryClientRegistrationRepository registrations = new InMemoryClientRegistrationRepository(registration);
+	
+	private ShopKey key1 = new ShopKey("shopify", "shop1.myshopify.com");
+	private ShopKey key2 = new ShopKey("shopify", "shop2.myshopify.com");
+	private ShopKey key3 = new ShopKey("shopify", "shop3.myshopify.com");
+	
+	@Test
+	public void givenPutThenTheClientIsRebuiltFromItsSlot() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 10, 512, 60, TimeUnit.SECONDS, now::get);
+		Instant issuedAt = Instant.ofEpochMilli(1000);
+		OAuth2AccessToken token = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "shpat_token1", issuedAt, issuedAt.plusSeconds(60), 
+				new HashSet<>(Arrays.asList("read_products", "write_orders")));
+		
+		Assert.assertNull(cache.get(key1));
+		cache.put(key1, new OAuth2AuthorizedClient(registration, "shop1.myshopify.com", token), cache.beginLoad(key1));
+		
+		OAuth2AuthorizedClient client = cache.get(key1);
+		
+		Assert.assertSame(registration, client.getClientRegistration());
+		Assert.assertEquals("shop1.myshopify.com", client.getPrincipalName());
+		Assert.assertEquals("shpat_token1", client.getAccessToken().getTokenValue());
+		Assert.assertEquals(token.getScopes(), client.getAccessToken().getScopes());
+		Assert.assertEquals(issuedAt, client.getAccessToken().getIssuedAt());
+		Assert.assertEquals(issuedAt.plusSeconds(60), client.getAccessToken().getExpiresAt());
+		Assert.assertNull(cache.get(new ShopKey("other", "shop1.myshopify.com")));
+		
+		Assert.assertEquals(1, cache.hitCount());
+		Assert.assertEquals(2, cache.missCount());
+	}
+	
+	@Test
+	public void givenFullCacheThenAnEntryNotReadRecentlyIsEvicted() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 2, 512, 60, TimeUnit.SECONDS, now::get);
+		
+		cache.put(key1, client("shop1.myshopify.com", "token1"), cache.beginLoad(key1));
+		cache.put(key2, client("shop2.myshopify.com", "token2"), cache.beginLoad(key2));
+		cache.get(key1);
+		cache.put(key3, client("shop3.myshopify.com", "token3"), cache.beginLoad(key3));
+		
+		Assert.assertNotNull(cache.get(key1));
+		Assert.assertNull(cache.get(key2));
+		Assert.assertNotNull(cache.get(key3));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.evictionCount());
+	}
+	
+	@Test
+	public void givenExpiredEntryThenMiss() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 10, 512, 60, TimeUnit.SECONDS, now::get);
+		
+		cache.put(key1, client("shop1.myshopify.com", "token1"), cache.beginLoad(key1));
+		now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+		
+		Assert.assertNull(cache.get(key1));
+		Assert.assertEquals(1, cache.evictionCount());
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void givenInvalidationDuringLoadThenStaleValueIsDropped() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 10, 512, 60, TimeUnit.SECONDS, now::get);
+		
+		long stamp = cache.beginLoad(key1);
+		cache.invalidate(key1);
+		cache.put(key1, client("shop1.myshopify.com", "token1"), stamp);
+		
+		Assert.assertNull(cache.get(key1));
+	}
+	
+	@Test
+	public void givenOtherStoreInvalidatedDuringLoadThenTheValueIsCached() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 10, 512, 60, TimeUnit.SECONDS, now::get);
+		
+		long stamp = cache.beginLoad(key1);
+		cache.invalidate(key2);
+		cache.put(key1, client("shop1.myshopify.com", "token1"), stamp);
+		
+		Assert.assertEquals("token1", cache.get(key1).getAccessToken().getTokenValue());
+		
+		stamp = cache.beginLoad(key2);
+		cache.invalidateAll();
+		cache.put(key2, client("shop2.myshopify.com", "token2"), stamp);
+		
+		Assert.assertNull(cache.get(key2));
+	}
+	
+	@Test
+	public void givenEntryTooLargeForASlotThenItIsNotCached() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 10, 64, 60, TimeUnit.SECONDS, now::get);
+		
+		cache.put(key1, client("shop1.myshopify.com", "token1"), cache.beginLoad(key1));
+		
+		Assert.assertNull(cache.get(key1));
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void givenEntryDroppedThenItsTokenIsZeroed() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 2, 512, 60, TimeUnit.SECONDS, now::get);
+		
+		cache.put(key1, client("shop1.myshopify.com", "secret-one"), cache.beginLoad(key1));
+		cache.put(key2, client("shop2.myshopify.com", "secret-two"), cache.beginLoad(key2));
+		cache.put(key2, client("shop2.myshopify.com", "secret-new"), cache.beginLoad(key2));
+		
+		Assert.assertTrue(contains(cache, "secret-one"));
+		Assert.assertFalse(contains(cache, "secret-two"));
+		
+		cache.invalidate(key1);
+		Assert.assertFalse(contains(cache, "secret-one"));
+		
+		// evicts key2, the entry not read
+		cache.put(key1, client("shop1.myshopify.com", "secret-1"), cache.beginLoad(key1));
+		cache.get(key1);
+		cache.put(key3, client("shop3.myshopify.com", "secret-3"), cache.beginLoad(key3));
+		Assert.assertFalse(contains(cache, "secret-new"));
+		
+		cache.destroy();
+		Assert.assertFalse(contains(cache, "secret-1"));
+		Assert.assertFalse(contains(cache, "secret-3"));
+	}
+	
+	@Test
+	public void givenRandomOperationsThenTheIndexAgreesWithAMap() {
+		OffHeapAuthorizedClientCache cache = new OffHeapAuthorizedClientCache(registrations, 64, 256, 60, TimeUnit.SECONDS, now::get);
+		Map<ShopKey, String> expected = new HashMap<>();
+		Random random = new Random(42);
+		
+		for(int i = 0; i < 20000; i++) {
+			ShopKey key = new ShopKey("shopify", "shop" + random.nextInt(48) + ".myshopify.com");
+			
+			if(random.nextInt(3) == 0) {
+				cache.invalidate(key);
+				expected.remove(key);
+			} else {
+				cache.put(key, client(key.getShop(), "token" + i), cache.beginLoad(key));
+				expected.put(key, "token" + i);
+			}
+		}
+		
+		// 48 shops fit in 64 slots: nothing was evicted
+		Assert.assertEquals(0, cache.evictionCount());
+		Assert.assertEquals(expected.size(), cache.size());
+		
+		for(int i = 0; i < 48; i++) {
+			ShopKey key = new ShopKey("shopify", "shop" + i + ".myshopify.com");
+			OAuth2AuthorizedClient client = cache.get(key);
+			
+			Assert.assertEquals(expected.get(key), client == null ? null : client.getAccessToken().getTokenValue());
+		}
+	}
+	
+	private boolean contains(OffHeapAuthorizedClientCache cache, String value) {
+		ByteBuffer slots = cache.slots();
+		byte[] bytes = new byte[slots.remaining()];
+		slots.get(bytes);
+		
+		// the slots hold big-endian UTF-16 chars
+		return new String(bytes, StandardCharsets.UTF_16BE).contains(value) || new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_16BE).contains(value);
+	}
+	
+	private OAuth2AuthorizedClient client(String shop, String token) {
+		return new OAuth2AuthorizedClient(registration, shop, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, token, null, null));
+	}
+
+}
@@ -0,0 +1,162 @@
+package com.lm.security.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+	
+	private SingleFlight<String, String> loads;
+	private ExecutorService executor;
+	
+	@Before
+	public void startup() {
+		this.loads = new SingleFlight<>();
+		this.executor = Executors.newFixedThreadPool(8);
+	}
+	
+	@After
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+	
+	@Test
+	public void givenConcurrentLoadsOfOneKeyThenLoaderRunsOnce() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		
+		List<Future<String>> results = new ArrayList<>();
+		
+		results.add(executor.submit(() -> loads.load("shop", () -> {
+			calls.incrementAndGet();
+			started.countDown();
+			await(release);
+			return "token";
+		})));
+		
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		
+		for(int i = 0; i < 7; i++) {
+			results.add(executor.submit(() -> loads.load("shop", () -> {
+				calls.incrementAndGet();
+				return "other";
+			})));
+		}
+		
+		waitForSharedLoads(7);
+		release.countDown();
+		
+		for(Future<String> result : results) {
+			Assert.assertEquals("token", result.get(5, TimeUnit.SECONDS));
+		}
+		
+		Assert.assertEquals(1, calls.get());
+		Assert.assertEquals(0, loads.inFlightCount());
+	}
+	
+	@Test
+	public void givenDifferentKeysThenLoadsRunInParallel() throws Exception {
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		
+		Future<String> first = executor.submit(() -> loads.load("shop1", () -> {
+			bothStarted.countDown();
+			await(bothStarted);
+			return "token1";
+		}));
+		Future<String> second = executor.submit(() -> loads.load("shop2", () -> {
+			bothStarted.countDown();
+			await(bothStarted);
+			return "token2";
+		}));
+		
+		Assert.assertEquals("token1", first.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals("token2", second.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, loads.sharedLoadCount());
+	}
+	
+	@Test
+	public void givenFailedLoadThenWaitingCallersGetTheExceptionAndNextCallLoadsAgain() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		
+		Future<String> leader = executor.submit(() -> loads.load("shop", () -> {
+			started.countDown();
+			await(release);
+			throw new IllegalStateException("database down");
+		}));
+		
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		Future<String> follower = executor.submit(() -> loads.load("shop", () -> "other"));
+		
+		waitForSharedLoads(1);
+		release.countDown();
+		
+		assertFailsWith(leader, "database down");
+		assertFailsWith(follower, "database down");
+		
+		Assert.assertEquals("token", loads.load("shop", () -> "token"));
+	}
+	
+	@Test
+	public void givenForgottenKeyThenNextCallDoesNotJoinTheLoadInFlight() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		
+		Future<String> stale = executor.submit(() -> loads.load("shop", () -> {
+			started.countDown();
+			await(release);
+			return "old-token";
+		}));
+		
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		loads.forget("shop");
+		
+		Assert.assertEquals("new-token", loads.load("shop", () -> "new-token"));
+		
+		release.countDown();
+		Assert.assertEquals("old-token", stale.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, loads.inFlightCount());
+	}
+	
+	private void waitForSharedLoads(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		
+		while(loads.sharedLoadCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		
+		Assert.assertEquals(count, loads.sharedLoadCount());
+	}
+	
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private static void assertFailsWith(Future<String> result, String message) throws InterruptedException, TimeoutException {
+		try {
+			result.get(5, TimeUnit.SECONDS);
+			Assert.fail("The load should have failed");
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+			Assert.assertEquals(message, ex.getCause().getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.lm.security.configuration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lm.security.authentication.CipherPassword;
+import com.lm.security.crypto.EnvelopeTokenCipher;
+import com.lm.security.crypto.SaltedTokenCipher;
+import com.lm.security.crypto.TokenCipher;
+import com.lm.security.crypto.TokenKeyring;
+
+public class SecurityBeansConfigTest {
+
+	private static final String SHOP = "lmdev.myshopify.com";
+
+	private SecurityBeansConfig config = new SecurityBeansConfig();
+	private CipherPassword password = new CipherPassword("testpassword");
+
+	@Test
+	public void givenSaltedRowsThenSwitchingToEnvelopeKeepsThemReadable() {
+		TokenKeyring salted = config.tokenKeyring(password, "salted", "", "", 0, "", "salted", new String[0], "");
+		TokenCipher before = salted.current();
+		String salt = before.generateSalt();
+		String encrypted = before.encrypt("token", salt, "shopify", SHOP);
+
+		Assert.assertEquals(SaltedTokenCipher.KEY_VERSION, before.getKeyVersion());
+
+		TokenKeyring envelope = config.tokenKeyring(password, "envelope", "", "abcdef0123456789", 0, "", "salted", new String[0], "");
+
+		Assert.assertTrue(envelope.current() instanceof EnvelopeTokenCipher);
+		Assert.assertEquals(1, envelope.current().getKeyVersion());
+		Assert.assertEquals("token", envelope.forVersion(before.getKeyVersion()).decrypt(encrypted, salt, "shopify", SHOP));
+	}
+
+	@Test
+	public void givenSaltedRowsOfAnotherVersionThenTheyAreListedWithTheirMode() {
+		TokenCipher before = config.tokenKeyring(password, "salted", "3", "", 0, "", "salted", new String[0], "").current();
+		String salt = before.generateSalt();
+		String encrypted = before.encrypt("token", salt, "shopify", SHOP);
+
+		TokenKeyring envelope = config.tokenKeyring(password, "envelope", "4", "abcdef0123456789", 0, "", "envelope", new String[] {"3:salted"}, "");
+
+		Assert.assertEquals("token", envelope.forVersion(3).decrypt(encrypted, salt, "shopify", SHOP));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void givenKeyVersionReusedByAnotherModeThenStartupFails() {
+		config.tokenKeyring(password, "envelope", "3", "abcdef0123456789", 0, "", "salted", new String[] {"3"}, "");
+	}
+
+}
@@ -0,0 +1,44 @@
+package com.lm.security.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+public class DerivedKeyCacheTest {
+	
+	private String password = "testpassword";
+	private String salt = "e667cbef7fa23d71";
+	
+	@Test
+	public void givenSameSaltThenSameEncryptor() {
+		DerivedKeyCache cache = new DerivedKeyCache(10);
+		
+		Assert.assertSame(cache.queryableText(password, salt), cache.queryableText(password, salt));
+		Assert.assertNotSame(cache.queryableText(password, salt), cache.queryableText(password, "0123456789abcdef"));
+		Assert.assertNotSame(cache.queryableText(password, salt), cache.queryableText("otherpassword", salt));
+	}
+	
+	@Test
+	public void givenCachedEncryptorThenCompatibleWithEncryptors() {
+		DerivedKeyCache cache = new DerivedKeyCache(10);
+		TextEncryptor uncached = Encryptors.queryableText(password, salt);
+		
+		String encrypted = cache.queryableText(password, salt).encrypt("sample");
+		
+		Assert.assertEquals(uncached.encrypt("sample"), encrypted);
+		Assert.assertEquals("sample", cache.queryableText(password, salt).decrypt(uncached.encrypt("sample")));
+	}
+	
+	@Test
+	public void givenMaxSizeThenOldestIsDiscarded() {
+		DerivedKeyCache cache = new DerivedKeyCache(2);
+		
+		cache.queryableText(password, "0000000000000001");
+		cache.queryableText(password, "0000000000000002");
+		cache.queryableText(password, "0000000000000003");
+		
+		Assert.assertEquals(2, cache.size());
+	}
+
+}
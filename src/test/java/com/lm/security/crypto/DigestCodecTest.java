@@ -0,0 +1,84 @@
+package com.lm.security.crypto;
+
+import java.util.Base64;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DigestCodecTest {
+
+	private byte[] digest = new HmacEngine("secret").digest("message").clone();
+
+
+	@Test
+	public void givenBase64ThenDecodesLikeJdkDecoder() {
+		byte[] out = new byte[DigestCodec.BUFFER_LENGTH];
+
+		for(int length = 1; length <= 6; length++) {
+			byte[] value = new byte[length];
+			System.arraycopy(digest, 0, value, 0, length);
+
+			int decoded = DigestCodec.decodeBase64(Base64.getEncoder().encodeToString(value), out);
+
+			Assert.assertEquals(length, decoded);
+			Assert.assertTrue(DigestCodec.constantTimeEquals(value, out, length));
+		}
+	}
+
+	@Test
+	public void givenInvalidBase64ThenReturnsMinusOne() {
+		byte[] out = new byte[DigestCodec.BUFFER_LENGTH];
+
+		Assert.assertEquals(-1, DigestCodec.decodeBase64("abc", out));
+		Assert.assertEquals(-1, DigestCodec.decodeBase64("a=bc", out));
+		Assert.assertEquals(-1, DigestCodec.decodeBase64("abéc", out));
+	}
+
+	@Test
+	public void givenBase64UrlThenDecodesLikeJdkDecoder() {
+		byte[] out = new byte[DigestCodec.BUFFER_LENGTH];
+
+		for(int length = 1; length <= HmacEngine.DIGEST_LENGTH; length++) {
+			byte[] value = new byte[length];
+			System.arraycopy(digest, 0, value, 0, length);
+
+			String encoded = "." + Base64.getUrlEncoder().withoutPadding().encodeToString(value) + ".";
+			int decoded = DigestCodec.decodeBase64Url(encoded, 1, encoded.length() - 1, out);
+
+			Assert.assertEquals(length, decoded);
+			Assert.assertTrue(DigestCodec.constantTimeEquals(value, out, length));
+		}
+
+		Assert.assertEquals(-1, DigestCodec.decodeBase64Url("abcde", 0, 5, out));
+		Assert.assertEquals(-1, DigestCodec.decodeBase64Url("ab+c", 0, 4, out));
+		Assert.assertEquals(-1, DigestCodec.decodeBase64Url("abc=", 0, 4, out));
+		Assert.assertEquals(-1, DigestCodec.decodeBase64Url("abcd", 0, 4, new byte[2]));
+
+		// the unused bits of the last character must be 0
+		Assert.assertEquals(1, DigestCodec.decodeBase64Url("AA", 0, 2, out));
+		Assert.assertEquals(-1, DigestCodec.decodeBase64Url("AB", 0, 2, out));
+		Assert.assertEquals(2, DigestCodec.decodeBase64Url("AAA", 0, 3, out));
+		Assert.assertEquals(-1, DigestCodec.decodeBase64Url("AAB", 0, 3, out));
+	}
+
+	@Test
+	public void givenHexThenDecodes() {
+		byte[] out = new byte[DigestCodec.BUFFER_LENGTH];
+		String hex = new HmacEngine("secret").hexDigest("message");
+
+		Assert.assertEquals(HmacEngine.DIGEST_LENGTH, DigestCodec.decodeHex(hex, 0, hex.length(), out));
+		Assert.assertTrue(DigestCodec.constantTimeEquals(digest, out, HmacEngine.DIGEST_LENGTH));
+		Assert.assertEquals(-1, DigestCodec.decodeHex(hex + "a", 0, hex.length() + 1, out));
+		Assert.assertEquals(-1, DigestCodec.decodeHex("zz", 0, 2, out));
+	}
+
+	@Test
+	public void givenDifferentDigestsThenNotEqual() {
+		byte[] other = digest.clone();
+		other[HmacEngine.DIGEST_LENGTH - 1] ^= 1;
+
+		Assert.assertFalse(DigestCodec.constantTimeEquals(digest, other, HmacEngine.DIGEST_LENGTH));
+		Assert.assertFalse(DigestCodec.constantTimeEquals(digest, new byte[4], HmacEngine.DIGEST_LENGTH));
+	}
+
+}
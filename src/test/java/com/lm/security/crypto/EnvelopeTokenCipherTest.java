@@ -0,0 +1,78 @@
+package com.lm.security.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EnvelopeTokenCipherTest {
+	
+	private static final String SHOP = "lmdev.myshopify.com";
+	
+	private EnvelopeTokenCipher cipher = new EnvelopeTokenCipher(1, "testpassword", "abcdef0123456789");
+	
+	@Test
+	public void givenTokenThenRoundTrips() {
+		String nonce = cipher.generateSalt();
+		String encrypted = cipher.encrypt("shpat_0123456789abcdef", nonce, "shopify", SHOP);
+		
+		Assert.assertEquals(24, nonce.length());
+		Assert.assertTrue(encrypted.length() <= 100);
+		Assert.assertEquals("shpat_0123456789abcdef", cipher.decrypt(encrypted, nonce, "shopify", SHOP));
+	}
+	
+	@Test
+	public void givenSameTokenThenDifferentNonceAndCiphertext() {
+		String nonce1 = cipher.generateSalt();
+		String nonce2 = cipher.generateSalt();
+		
+		Assert.assertNotEquals(nonce1, nonce2);
+		Assert.assertNotEquals(cipher.encrypt("token", nonce1, "shopify", SHOP), cipher.encrypt("token", nonce2, "shopify", SHOP));
+	}
+	
+	@Test
+	public void givenSamePasswordAndSaltThenSameMasterKey() {
+		EnvelopeTokenCipher other = new EnvelopeTokenCipher(1, "testpassword", "abcdef0123456789");
+		String nonce = cipher.generateSalt();
+		
+		Assert.assertEquals("token", other.decrypt(cipher.encrypt("token", nonce, "shopify", SHOP), nonce, "shopify", SHOP));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void givenOtherPasswordThenDecryptFails() {
+		EnvelopeTokenCipher other = new EnvelopeTokenCipher(1, "otherpassword", "abcdef0123456789");
+		String nonce = cipher.generateSalt();
+		
+		other.decrypt(cipher.encrypt("token", nonce, "shopify", SHOP), nonce, "shopify", SHOP);
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void givenTamperedTokenThenDecryptFails() {
+		String nonce = cipher.generateSalt();
+		String encrypted = cipher.encrypt("token", nonce, "shopify", SHOP);
+		char last = encrypted.charAt(0) == 'A' ? 'B' : 'A';
+		
+		cipher.decrypt(last + encrypted.substring(1), nonce, "shopify", SHOP);
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void givenTokenOfAnotherShopThenDecryptFails() {
+		String nonce = cipher.generateSalt();
+		
+		cipher.decrypt(cipher.encrypt("token", nonce, "shopify", SHOP), nonce, "shopify", "other.myshopify.com");
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void givenTokenOfAnotherRegistrationThenDecryptFails() {
+		String nonce = cipher.generateSalt();
+		
+		cipher.decrypt(cipher.encrypt("token", nonce, "shopify", SHOP), nonce, "shopify2", SHOP);
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void givenTokenOfAnotherKeyVersionThenDecryptFails() {
+		EnvelopeTokenCipher other = new EnvelopeTokenCipher(2, "testpassword", "abcdef0123456789");
+		String nonce = cipher.generateSalt();
+		
+		other.decrypt(cipher.encrypt("token", nonce, "shopify", SHOP), nonce, "shopify", SHOP);
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.lm.security.crypto;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Per-call cost of hashing an /install query string:
+ *
+ * 	legacyHash: what ShopifyVerificationStrategy.hash(...) used to do (Mac lookup + init + getBytes + hex)
+ * 	engineHexDigest: HmacEngine, hex String result
+ * 	engineDigest: HmacEngine, raw digest written into the per-thread buffer
+ *
+ * Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HmacEngineBenchmark {
+
+	private String secret = "6a031b0bd6af4eb";
+	private String message = "code=fsv&shop=some-shop.myshopify.com&state=0.6784241404160823&timestamp=1337178173";
+	private HmacEngine engine = new HmacEngine(secret);
+
+	@Benchmark
+	public String legacyHash() throws Exception {
+		Mac sha256_HMAC = Mac.getInstance("HmacSHA256");
+		SecretKeySpec secret_key = new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256");
+		sha256_HMAC.init(secret_key);
+
+		return Hex.encodeHexString(sha256_HMAC.doFinal(message.getBytes("UTF-8")));
+	}
+
+	@Benchmark
+	public String engineHexDigest() {
+		return engine.hexDigest(message);
+	}
+
+	@Benchmark
+	public byte[] engineDigest() {
+		return engine.digest(message);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(HmacEngineBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,103 @@
+package com.lm.security.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HmacEngineTest {
+
+	private String secret = "6a031b0bd6af4eb";
+
+	private String message = "code=fsv&shop=some-shop.myshopify.com&state=0.6784241404160823&timestamp=1337178173";
+
+
+	@Test
+	public void givenMessageThenHexDigestMatchesJdkMac() throws Exception {
+		HmacEngine engine = new HmacEngine(secret);
+
+		Assert.assertEquals(legacyHash(secret, message), engine.hexDigest(message));
+	}
+
+	@Test
+	public void givenNonAsciiMessageThenHexDigestMatchesJdkMac() throws Exception {
+		HmacEngine engine = new HmacEngine(secret);
+		String unicode = "shop=café-€-😀.myshopify.com&x=\ud800";
+
+		Assert.assertEquals(legacyHash(secret, unicode), engine.hexDigest(unicode));
+	}
+
+	@Test
+	public void givenRepeatedCallsThenMacIsResetBetweenMessages() throws Exception {
+		HmacEngine engine = new HmacEngine(secret);
+
+		engine.hexDigest("first message");
+
+		// an abandoned streaming digest must not leak into the next one
+		Mac mac = engine.begin();
+		HmacEngine.update(mac, "abandoned", 0, 9);
+
+		Assert.assertEquals(legacyHash(secret, message), engine.hexDigest(message));
+	}
+
+	@Test
+	public void givenStreamingUpdatesThenDigestMatchesSingleUpdate() throws Exception {
+		HmacEngine engine = new HmacEngine(secret);
+
+		Mac mac = engine.begin();
+		HmacEngine.update(mac, message, 0, 10);
+		HmacEngine.update(mac, message, 10, message.length());
+		byte[] streamed = engine.finish(mac).clone();
+
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+
+		Assert.assertArrayEquals(engine.digest(bytes, 0, bytes.length), streamed);
+	}
+
+	@Test
+	public void givenSameSecretThenForSecretReturnsCachedEngine() {
+		Assert.assertSame(HmacEngine.forSecret(secret), HmacEngine.forSecret(secret));
+	}
+
+	@Test
+	public void givenConcurrentThreadsThenDigestsAreIndependent() throws Exception {
+		HmacEngine engine = HmacEngine.forSecret(secret);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try {
+			Future<?>[] results = new Future<?>[8];
+
+			for(int i = 0; i < results.length; i++) {
+				String threadMessage = message + i;
+				String expected = legacyHash(secret, threadMessage);
+
+				results[i] = executor.submit(() -> {
+					for(int j = 0; j < 1000; j++) {
+						Assert.assertEquals(expected, engine.hexDigest(threadMessage));
+					}
+				});
+			}
+
+			for(Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static String legacyHash(String secret, String message) throws Exception {
+		Mac sha256_HMAC = Mac.getInstance("HmacSHA256");
+		sha256_HMAC.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+
+		return Hex.encodeHexString(sha256_HMAC.doFinal(message.getBytes("UTF-8")));
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.lm.security.filters;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+
+import com.lm.security.configuration.SecurityConfig;
+
+public class ShopifyPathRouterTest {
+
+	private static final List<String> PATHS = Arrays.asList("/", "/install", "/install/", "/install/shopify", "/install/shopify/",
+			"/install/shopify/more", "/installer", "/Install/shopify", "/login/app/oauth2/code", "/login/app/oauth2/code/shopify",
+			"/login/app/oauth2/code/shopify/x", "/login/app", "/login", "/store/uninstall", "/store/uninstall/brand1",
+			"/store/uninstall/brand1/x", "/store/other/shopify", "/store", "/init", "/favicon.ico", "/ünicode", "");
+
+	private final ShopifyPathRouter router = new ShopifyPathRouter(SecurityConfig.INSTALL_PATH, SecurityConfig.AUTHORIZATION_REDIRECT_PATH,
+			SecurityConfig.UNINSTALL_URI);
+
+	@Test
+	public void givenPathsThenRoutesMatchTheAntPatterns() {
+		AntPathRequestMatcher anyInstall = new AntPathRequestMatcher(SecurityConfig.ANY_INSTALL_PATH);
+		AntPathRequestMatcher install = new AntPathRequestMatcher(SecurityConfig.INSTALL_PATH + "/{registrationId}");
+		AntPathRequestMatcher anyRedirect = new AntPathRequestMatcher(SecurityConfig.ANY_AUTHORIZATION_REDIRECT_PATH);
+		AntPathRequestMatcher uninstall = new AntPathRequestMatcher(SecurityConfig.UNINSTALL_URI + "/{registrationId}");
+
+		for(String path : PATHS) {
+			MockHttpServletRequest request = request(path);
+			ShopifyPathRouter.Route route = router.route(request);
+
+			Assert.assertEquals(path, anyInstall.matches(request), route.getKind() == ShopifyPathRouter.Kind.INSTALL);
+			Assert.assertEquals(path, anyRedirect.matches(request), route.getKind() == ShopifyPathRouter.Kind.AUTHORIZATION_REDIRECT);
+			Assert.assertEquals(path, install.matches(request), route.getKind() == ShopifyPathRouter.Kind.INSTALL && route.getRegistrationId() != null);
+			Assert.assertEquals(path, uninstall.matches(request), route.getKind() == ShopifyPathRouter.Kind.UNINSTALL && route.getRegistrationId() != null);
+
+			if(install.matches(request)) {
+				Assert.assertEquals(install.extractUriTemplateVariables(request).get("registrationId"), route.getRegistrationId());
+			}
+
+			if(uninstall.matches(request)) {
+				Assert.assertEquals(uninstall.extractUriTemplateVariables(request).get("registrationId"), route.getRegistrationId());
+			}
+		}
+	}
+
+	@Test
+	public void givenClassifiedRequestThenTheAttributeIsReused() {
+		MockHttpServletRequest request = request("/install/brand1");
+
+		ShopifyPathRouter.Route route = router.route(request);
+
+		Assert.assertSame(route, request.getAttribute(ShopifyPathRouter.ROUTE_ATTRIBUTE));
+		Assert.assertSame(route, router.route(request));
+		Assert.assertEquals("brand1", route.getRegistrationId());
+
+		// another router does not trust it
+		ShopifyPathRouter other = new ShopifyPathRouter(null, null, SecurityConfig.UNINSTALL_URI);
+		Assert.assertEquals(ShopifyPathRouter.Kind.OTHER, other.route(request).getKind());
+
+		// error dispatch
+		request.setServletPath("/error");
+		Assert.assertEquals(ShopifyPathRouter.Kind.OTHER, router.route(request).getKind());
+	}
+
+	@Test
+	public void givenServletPathAndPathInfoThenBothAreRouted() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath("/store");
+		request.setPathInfo("/uninstall/shopify");
+
+		ShopifyPathRouter.Route route = router.route(request);
+
+		Assert.assertEquals(ShopifyPathRouter.Kind.UNINSTALL, route.getKind());
+		Assert.assertEquals("shopify", route.getRegistrationId());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void givenPatternThenItIsRejected() {
+		new ShopifyPathRouter(SecurityConfig.ANY_INSTALL_PATH + "/", null, null);
+	}
+
+	private static MockHttpServletRequest request(String path) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setServletPath(path);
+
+		return request;
+	}
+
+}
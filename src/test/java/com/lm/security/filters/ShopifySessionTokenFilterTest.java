@@ -0,0 +1,213 @@
+package com.lm.security.filters;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import com.lm.security.TestRegistrations;
+import com.lm.security.authentication.ClientSecretRegistry;
+import com.lm.security.authentication.SessionTokenVerifier;
+import com.lm.security.authentication.ShopifySessionToken;
+import com.lm.security.configuration.SecurityConfig;
+import com.lm.security.crypto.HmacEngine;
+import com.lm.security.scope.ScopeRegistry;
+import com.lm.security.web.SessionTokenSecurityContextRepository;
+
+public class ShopifySessionTokenFilterTest {
+
+	private static final String SHOP = "lmdev.myshopify.com";
+
+	private long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+	private ClientRegistration registration;
+	private OAuth2AuthorizedClientService clientService;
+	private ShopifySessionTokenFilter filter;
+
+	@Before
+	public void startup() {
+		this.registration = TestRegistrations.shopify();
+
+		this.clientService = mock(OAuth2AuthorizedClientService.class);
+
+		SessionTokenVerifier verifier = new SessionTokenVerifier(new ClientSecretRegistry(registration), 5, TimeUnit.SECONDS);
+
+		this.filter = new ShopifySessionTokenFilter(verifier, clientService,
+				new ShopifyPathRouter(SecurityConfig.INSTALL_PATH, SecurityConfig.AUTHORIZATION_REDIRECT_PATH, SecurityConfig.UNINSTALL_URI));
+	}
+
+	@Test
+	public void givenInvalidTokenThenAppBridgeIsAskedToRetry() throws Exception {
+		MockHttpServletRequest request = request("/products", sign(now + 60, "otherSecret"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, response, chain);
+
+		Assert.assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.getStatus());
+		Assert.assertEquals("1", response.getHeader(ShopifySessionTokenFilter.RETRY_HEADER));
+		Assert.assertNull(chain.getRequest());
+		verifyZeroInteractions(clientService);
+	}
+
+	@Test
+	public void givenValidTokenThenTheRequestIsAuthenticatedWithoutTheSession() throws Exception {
+		when(clientService.loadAuthorizedClient("shopify", SHOP)).thenReturn(client());
+
+		MockHttpServletRequest request = request("/products", sign(now + 60, "testSecret"));
+		MockHttpSession session = new MockHttpSession();
+		request.setSession(session);
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		ShopifySessionToken authentication = (ShopifySessionToken)request.getAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE);
+		Assert.assertEquals("shopify", authentication.getAuthorizedClientRegistrationId());
+		Assert.assertEquals(SHOP, authentication.getName());
+		Assert.assertEquals(SHOP, authentication.getShop());
+		Assert.assertEquals("42", authentication.getSubject());
+
+		// the rest of the chain does not see the session...
+		HttpServletRequest next = (HttpServletRequest)chain.getRequest();
+		Assert.assertTrue(next instanceof ShopifySessionTokenFilter.SessionlessRequest);
+		Assert.assertNull(next.getSession(false));
+		Assert.assertFalse(next.isRequestedSessionIdValid());
+
+		// ... unless it asks for one
+		Assert.assertSame(session, next.getSession());
+		Assert.assertSame(session, next.getSession(false));
+	}
+
+	@Test
+	public void givenUninstalledStoreThenTheRequestContinuesUnauthenticated() throws Exception {
+		MockHttpServletRequest request = request("/products", sign(now + 60, "testSecret"));
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		Assert.assertSame(request, chain.getRequest());
+		Assert.assertNull(request.getAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE));
+	}
+
+	@Test
+	public void givenStoreWithoutTheRequiredScopesThenTheRequestContinuesUnauthenticated() throws Exception {
+		ClientRegistration scoped = TestRegistrations.builder("shopify", "testId", "testSecret").scope("read_products", "write_products", "read_orders").build();
+
+		// Shopify leaves read_products out: write_products is enough, read_orders is not
+		when(clientService.loadAuthorizedClient("shopify", SHOP)).thenReturn(client(scoped, "write_products,read_orders"));
+
+		MockHttpServletRequest request = request("/products", sign(now + 60, "testSecret"));
+		filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+		Assert.assertNotNull(request.getAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE));
+
+		when(clientService.loadAuthorizedClient("shopify", SHOP)).thenReturn(client(scoped, "write_products"));
+
+		request = request("/products", sign(now + 60, "testSecret"));
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		Assert.assertSame(request, chain.getRequest());
+		Assert.assertNull(request.getAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE));
+	}
+
+	@Test
+	public void givenInstallationPathThenTheTokenIsIgnored() throws Exception {
+		MockHttpServletRequest request = request("/install/shopify", sign(now + 60, "otherSecret"));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, response, chain);
+
+		Assert.assertSame(request, chain.getRequest());
+		Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		verifyZeroInteractions(clientService);
+	}
+
+	@Test
+	public void givenAuthenticationThenItSerializesWithoutTheSecret() throws Exception {
+		when(clientService.loadAuthorizedClient("shopify", SHOP)).thenReturn(client());
+
+		MockHttpServletRequest request = request("/products", sign(now + 60, "testSecret"));
+		filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(request.getAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE));
+		}
+
+		Assert.assertFalse(new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1).contains("testSecret"));
+
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			ShopifySessionToken copy = (ShopifySessionToken)in.readObject();
+
+			Assert.assertEquals("testId", copy.getClientId());
+			Assert.assertEquals(SHOP, copy.getShop());
+			Assert.assertEquals(SHOP, copy.getName());
+		}
+	}
+
+	@Test
+	public void givenBearerHeaderThenTheTokenIsExtracted() {
+		Assert.assertNull(ShopifySessionTokenFilter.getBearerToken(new MockHttpServletRequest()));
+		Assert.assertEquals("abc", ShopifySessionTokenFilter.getBearerToken(authorization("bearer  abc ")));
+		Assert.assertNull(ShopifySessionTokenFilter.getBearerToken(authorization("Bearer ")));
+		Assert.assertNull(ShopifySessionTokenFilter.getBearerToken(authorization("Basic abc")));
+	}
+
+	private OAuth2AuthorizedClient client() {
+		return new OAuth2AuthorizedClient(registration, SHOP, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null));
+	}
+
+	private static OAuth2AuthorizedClient client(ClientRegistration registration, String scope) {
+		return new OAuth2AuthorizedClient(registration, SHOP, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null,
+				ScopeRegistry.parse(scope)));
+	}
+
+	private static MockHttpServletRequest authorization(String authorization) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("Authorization", authorization);
+
+		return request;
+	}
+
+	private static MockHttpServletRequest request(String path, String token) {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", path);
+		request.setServletPath(path);
+		request.addHeader("Authorization", "Bearer " + token);
+
+		return request;
+	}
+
+	static String sign(long exp, String secret) {
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		String payload = "{\"iss\":\"https://" + SHOP + "/admin\",\"dest\":\"https://" + SHOP + "\",\"aud\":\"testId\",\"sub\":\"42\","
+				+ "\"exp\":" + exp + ",\"nbf\":" + (exp - 120) + "}";
+		String content = encoder.encodeToString("{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8)) + "."
+				+ encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+
+		return content + "." + encoder.encodeToString(new HmacEngine(secret).digest(content));
+	}
+
+}
@@ -26,4 +26,28 @@ public class UninstallFilterTest {
 	}
 	
 
+	@Test
+	public void whenCalledWithOtherRegistration_thenRegistrationIdIsExtracted() {
+		String url = SecurityConfig.UNINSTALL_URI + "/brand1";
+		
+		UninstallFilter filter = new UninstallFilter(SecurityConfig.UNINSTALL_URI, null, null, null);
+		
+		HttpServletRequest req = mock(HttpServletRequest.class);
+		when(req.getServletPath()).thenReturn("");
+		when(req.getPathInfo()).thenReturn(url);
+		
+		Assert.assertEquals("brand1", filter.matches(req));
+	}
+	
+	@Test
+	public void whenCalledWithOtherPath_thenNoMatch() {
+		UninstallFilter filter = new UninstallFilter(SecurityConfig.UNINSTALL_URI, null, null, null);
+		
+		HttpServletRequest req = mock(HttpServletRequest.class);
+		when(req.getServletPath()).thenReturn("");
+		when(req.getPathInfo()).thenReturn("/store/other/shopify");
+		
+		Assert.assertNull(filter.matches(req));
+	}
+
 }
@@ -0,0 +1,26 @@
+package com.lm.security.filters.integration;
+
+import static org.mockito.Mockito.mock;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.lm.security.service.TokenCacheWarmUpHealthIndicator;
+import com.lm.security.service.TokenCacheWarmer;
+
+/*
+ * The warm-up health check without a warm-up: the test decides when the mocked warmer is ready.
+ */
+@Configuration
+public class ControllableTokenCacheWarmer {
+
+	@Bean
+	public TokenCacheWarmer tokenCacheWarmer() {
+		return mock(TokenCacheWarmer.class);
+	}
+
+	@Bean
+	public TokenCacheWarmUpHealthIndicator tokenCacheWarmUpHealthIndicator(TokenCacheWarmer tokenCacheWarmer) {
+		return new TokenCacheWarmUpHealthIndicator(tokenCacheWarmer);
+	}
+}
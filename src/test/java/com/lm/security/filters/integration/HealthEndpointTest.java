@@ -0,0 +1,57 @@
+package com.lm.security.filters.integration;
+
+
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import com.lm.ShopifyEmbeddedAppSpringBootApplication;
+import com.lm.security.oauth2.integration.config.DisabledShopifyVerfificationConfig;
+import com.lm.security.oauth2.integration.config.TestConfig;
+import com.lm.security.service.TokenCacheWarmer;
+
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes= {ShopifyEmbeddedAppSpringBootApplication.class, TestConfig.class, DisabledShopifyVerfificationConfig.class, DisableTokenService.class, ControllableTokenCacheWarmer.class})
+@TestPropertySource(locations="classpath:test-application.properties", properties="management.health.redis.enabled=false") // no Redis under test
+@AutoConfigureMockMvc
+public class HealthEndpointTest {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private TokenCacheWarmer tokenCacheWarmer;
+
+	@After
+	public void cleanup() {
+		reset(tokenCacheWarmer);
+	}
+
+	@Test
+	public void whenWarmUpNotReady_thenOutOfService() throws Exception {
+		when(tokenCacheWarmer.isReady()).thenReturn(false);
+
+		// no session, no redirect to the login page: a load balancer probe
+		this.mockMvc.perform(get("/actuator/health")).andExpect(status().is(503)).andExpect(jsonPath("$.status").value("OUT_OF_SERVICE"));
+	}
+
+	@Test
+	public void whenWarmUpReady_thenUp() throws Exception {
+		when(tokenCacheWarmer.isReady()).thenReturn(true);
+
+		this.mockMvc.perform(get("/actuator/health")).andExpect(status().is(200)).andExpect(jsonPath("$.status").value("UP"));
+	}
+}
@@ -0,0 +1,112 @@
+package com.lm.security.filters.integration;
+
+
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import com.lm.ShopifyEmbeddedAppSpringBootApplication;
+import com.lm.security.crypto.HmacEngine;
+import com.lm.security.filters.ShopifySessionTokenFilter;
+import com.lm.security.oauth2.integration.config.DisabledShopifyVerfificationConfig;
+import com.lm.security.oauth2.integration.config.TestConfig;
+import com.lm.security.scope.ScopeRegistry;
+import com.lm.security.service.TokenService;
+
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes= {ShopifyEmbeddedAppSpringBootApplication.class, TestConfig.class, DisabledShopifyVerfificationConfig.class, DisableTokenService.class})
+@TestPropertySource(locations="classpath:test-application.properties")
+@AutoConfigureMockMvc
+public class SessionTokenRequestTest {
+
+	private static final String SHOP = "lmdev.myshopify.com";
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private TokenService tokenService;
+
+	@Autowired
+	private ClientRegistrationRepository clientRegistrationRepository;
+
+	@After
+	public void cleanup() {
+		reset(tokenService);
+	}
+
+	@Test
+	public void whenSessionToken_thenAuthenticatedWithoutSession() throws Exception {
+		installStore();
+
+		MvcResult result = this.mockMvc.perform(get("/products").header("Authorization", "Bearer " + sessionToken("testSecret"))).andExpect(status().is(200)).andReturn();
+
+		Assert.assertNull(result.getRequest().getSession(false));
+		Assert.assertNull(result.getResponse().getCookie("JSESSIONID"));
+	}
+
+	@Test
+	public void whenSessionToken_thenNoCsrfTokenIsRequired() throws Exception {
+		installStore();
+
+		// past CsrfFilter and authorization: /products only handles GET
+		this.mockMvc.perform(post("/products").header("Authorization", "Bearer " + sessionToken("testSecret"))).andExpect(status().is(405));
+
+		this.mockMvc.perform(post("/products")).andExpect(status().is(403));
+	}
+
+	@Test
+	public void whenInvalidSessionToken_thenRetry() throws Exception {
+		this.mockMvc.perform(post("/products").header("Authorization", "Bearer " + sessionToken("otherSecret")))
+				.andExpect(status().is(401))
+				.andExpect(header().string(ShopifySessionTokenFilter.RETRY_HEADER, "1"));
+	}
+
+	@Test
+	public void whenStoreNotInstalled_thenCsrfTokenIsRequired() throws Exception {
+		this.mockMvc.perform(post("/products").header("Authorization", "Bearer " + sessionToken("testSecret"))).andExpect(status().is(403));
+	}
+
+	private void installStore() {
+		// the scopes Shopify grants for those of TestConfig
+		OAuth2AuthorizedClient client = new OAuth2AuthorizedClient(clientRegistrationRepository.findByRegistrationId("shopify"), SHOP,
+				new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null, ScopeRegistry.parse("write_inventory,write_products")));
+
+		when(tokenService.getStore("shopify", SHOP)).thenReturn(client);
+	}
+
+	private static String sessionToken(String secret) {
+		long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+		String payload = "{\"iss\":\"https://" + SHOP + "/admin\",\"dest\":\"https://" + SHOP + "\",\"aud\":\"testId\",\"sub\":\"42\","
+				+ "\"exp\":" + (now + 60) + ",\"nbf\":" + (now - 1) + "}";
+
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		String content = encoder.encodeToString("{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8)) + "."
+				+ encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+
+		return content + "." + encoder.encodeToString(new HmacEngine(secret).digest(content));
+	}
+}
@@ -0,0 +1,93 @@
+package com.lm.security.repository;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.function.BiConsumer;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+
+public class BloomFilteredTokenRepositoryTest {
+	
+	private TokenRepository delegate;
+	private BloomFilteredTokenRepository repository;
+	
+	@Before
+	public void startup() {
+		this.delegate = mock(TokenRepository.class);
+		
+		doAnswer(invocation -> {
+			BiConsumer<String, String> action = invocation.getArgument(0);
+			action.accept("shopify", "installed.myshopify.com");
+			return null;
+		}).when(delegate).forEachStore(any());
+		
+		OAuth2AccessToken token = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "encrypted", null, null, Collections.singleton("read_products"));
+		when(delegate.findTokenForRequest("shopify", "installed.myshopify.com")).thenReturn(new OAuth2AccessTokenWithSalt(token, "salt"));
+		
+		this.repository = new BloomFilteredTokenRepository(delegate, 1000, 0.01, 0);
+	}
+	
+	@Test
+	public void givenFilterNotBuiltThenEveryLookupQueries() {
+		Assert.assertNull(repository.findTokenForRequest("shopify", "unknown.myshopify.com"));
+		
+		verify(delegate).findTokenForRequest("shopify", "unknown.myshopify.com");
+	}
+	
+	@Test
+	public void givenUnknownShopThenDatabaseIsSkipped() {
+		repository.afterSingletonsInstantiated();
+		
+		Assert.assertNotNull(repository.findTokenForRequest("shopify", "installed.myshopify.com"));
+		Assert.assertNull(repository.findTokenForRequest("shopify", "unknown.myshopify.com"));
+		Assert.assertNull(repository.findTokenForRequest("brand1", "installed.myshopify.com"));
+		
+		verify(delegate, never()).findTokenForRequest("shopify", "unknown.myshopify.com");
+		verify(delegate, never()).findTokenForRequest("brand1", "installed.myshopify.com");
+		Assert.assertEquals(2, repository.skippedLookupCount());
+	}
+	
+	@Test
+	public void givenSavedStoreThenLookupQueries() {
+		repository.afterSingletonsInstantiated();
+		
+		repository.saveStore("shopify", "new.myshopify.com", Collections.singleton("read_products"), new EncryptedTokenAndSalt("token", "salt"));
+		repository.findTokenForRequest("shopify", "new.myshopify.com");
+		
+		verify(delegate).findTokenForRequest("shopify", "new.myshopify.com");
+	}
+	
+	@Test
+	public void givenManyStoresThenNoFalseNegativesAndFewFalsePositives() {
+		StoreBloomFilter filter = new StoreBloomFilter(10000, 0.01);
+		
+		for(int i = 0; i < 10000; i++) {
+			filter.put("shopify", "shop" + i + ".myshopify.com");
+		}
+		
+		int falsePositives = 0;
+		
+		for(int i = 0; i < 10000; i++) {
+			Assert.assertTrue(filter.mightContain("shopify", "shop" + i + ".myshopify.com"));
+			
+			if(filter.mightContain("shopify", "other" + i + ".myshopify.com")) {
+				falsePositives++;
+			}
+		}
+		
+		// 1% expected
+		Assert.assertTrue("False positives: " + falsePositives, falsePositives < 200);
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.lm.security.repository;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+
+public class ShopifyTokenRepositoryImplTest {
+	
+	private EmbeddedDatabase db;
+	private JdbcTemplate jdbc;
+	private ShopifyTokenRepositoryImpl repository;
+	
+	@Before
+	public void startup() {
+		this.db = new EmbeddedDatabaseBuilder()
+				.generateUniqueName(true)
+				.setType(EmbeddedDatabaseType.HSQL)
+				.addScript("schema-hsqldb.sql")
+				.build();
+		
+		this.jdbc = new JdbcTemplate(db);
+		this.repository = new ShopifyTokenRepositoryImpl();
+		this.repository.setJdbc(jdbc);
+	}
+	
+	@After
+	public void shutdown() {
+		this.db.shutdown();
+	}
+	
+	@Test
+	public void givenNewStoreThenSaveStoreInserts() {
+		repository.saveStore("shopify", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products")), new EncryptedTokenAndSalt("token1", "salt1", 1));
+		
+		OAuth2AccessTokenWithSalt token = repository.findTokenForRequest("shopify", "shop1.myshopify.com");
+		
+		Assert.assertEquals("token1", token.getAccess_token().getTokenValue());
+		Assert.assertEquals("salt1", token.getSalt());
+		Assert.assertEquals(1, token.getKeyVersion());
+	}
+	
+	@Test
+	public void givenExistingStoreThenSaveStoreUpdatesTheSameRow() {
+		repository.saveStore("shopify", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products")), new EncryptedTokenAndSalt("token1", "salt1"));
+		repository.saveStore("shopify", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products", "write_products")), new EncryptedTokenAndSalt("token2", "salt2"));
+		
+		OAuth2AccessTokenWithSalt token = repository.findTokenForRequest("shopify", "shop1.myshopify.com");
+		
+		Assert.assertEquals("token2", token.getAccess_token().getTokenValue());
+		Assert.assertEquals(2, token.getAccess_token().getScopes().size());
+		Assert.assertEquals(Integer.valueOf(1), jdbc.queryForObject("SELECT COUNT(*) FROM StoreAccessTokens", Integer.class));
+	}
+	
+	@Test
+	public void givenOtherRegistrationThenStoresAreSeparate() {
+		repository.saveStore("shopify", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products")), new EncryptedTokenAndSalt("token1", "salt1"));
+		repository.saveStore("brand1", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products")), new EncryptedTokenAndSalt("token2", "salt2"));
+		
+		Assert.assertEquals("token1", repository.findTokenForRequest("shopify", "shop1.myshopify.com").getAccess_token().getTokenValue());
+		Assert.assertEquals("token2", repository.findTokenForRequest("brand1", "shop1.myshopify.com").getAccess_token().getTokenValue());
+		
+		repository.uninstallStore("brand1", "shop1.myshopify.com");
+		
+		Assert.assertNull(repository.findTokenForRequest("brand1", "shop1.myshopify.com"));
+		Assert.assertNotNull(repository.findTokenForRequest("shopify", "shop1.myshopify.com"));
+	}
+	
+	@Test
+	public void givenStoresThenForEachStoreVisitsEachOnce() {
+		repository.saveStore("shopify", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products")), new EncryptedTokenAndSalt("token1", "salt1"));
+		repository.saveStore("brand1", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products")), new EncryptedTokenAndSalt("token2", "salt2"));
+		
+		Set<String> stores = new HashSet<>();
+		repository.forEachStore((registrationId, shop) -> Assert.assertTrue(stores.add(registrationId + "/" + shop)));
+		
+		Assert.assertEquals(new HashSet<>(Arrays.asList("shopify/shop1.myshopify.com", "brand1/shop1.myshopify.com")), stores);
+	}
+	
+	@Test
+	public void givenStoreInsertedConcurrentlyThenGenericUpsertUpdatesIt() {
+		jdbc.execute("CREATE UNIQUE INDEX STOREACCESSTOKENS_REGISTRATION_SHOP ON STOREACCESSTOKENS(registration_id, shop)");
+		
+		// another instance inserts the store between the UPDATE and the INSERT of this one
+		JdbcTemplate racing = new JdbcTemplate(db) {
+			private boolean raced;
+			
+			@Override
+			public int update(String sql, Object... args) throws DataAccessException {
+				if(!raced && sql.startsWith("INSERT")) {
+					raced = true;
+					super.update(sql, args[0], args[1], "token1", "salt1", 1, "read_products");
+				}
+				return super.update(sql, args);
+			}
+		};
+		
+		repository.setJdbc(racing);
+		repository.setUpsertStatement("");
+		repository.saveStore("shopify", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products")), new EncryptedTokenAndSalt("token2", "salt2", 1));
+		
+		Assert.assertEquals("token2", repository.findTokenForRequest("shopify", "shop1.myshopify.com").getAccess_token().getTokenValue());
+		Assert.assertEquals(Integer.valueOf(1), jdbc.queryForObject("SELECT COUNT(*) FROM StoreAccessTokens", Integer.class));
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.lm.security.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+import com.lm.security.repository.migration.SchemaMigrator;
+
+/*
+ * Latency of ShopifyTokenRepositoryImpl.findTokenForRequest(...,...) on an in-memory HSQLDB, by table size,
+ * before (migrated=false: schema-hsqldb.sql only) and after the schema migrations (unique index on
+ * registration_id, shop).
+ *
+ * Loading 1M rows takes a while; use -p rows=10000,100000 for a quick run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class StoreLookupBenchmark {
+
+	@Param({"10000", "100000", "1000000"})
+	private int rows;
+
+	@Param({"false", "true"})
+	private boolean migrated;
+
+	private EmbeddedDatabase db;
+	private ShopifyTokenRepositoryImpl repository;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		this.db = new EmbeddedDatabaseBuilder()
+				.generateUniqueName(true)
+				.setType(EmbeddedDatabaseType.HSQL)
+				.addScript("schema-hsqldb.sql")
+				.build();
+
+		JdbcTemplate jdbc = new JdbcTemplate(db);
+		List<Object[]> batch = new ArrayList<>();
+
+		for(int i = 0; i < rows; i++) {
+			batch.add(new Object[] {shop(i), "encryptedtoken" + i, "salt" + i});
+
+			if(batch.size() == 10000) {
+				insert(jdbc, batch);
+			}
+		}
+		insert(jdbc, batch);
+
+		if(migrated) {
+			new SchemaMigrator(db).migrate();
+		}
+
+		this.repository = new ShopifyTokenRepositoryImpl();
+		this.repository.setJdbc(jdbc);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.db.shutdown();
+	}
+
+	@Benchmark
+	public OAuth2AccessTokenWithSalt findTokenForRequest() {
+		return repository.findTokenForRequest("shopify", shop(ThreadLocalRandom.current().nextInt(rows)));
+	}
+
+	private static String shop(int i) {
+		return "shop" + i + ".myshopify.com";
+	}
+
+	private static void insert(JdbcTemplate jdbc, List<Object[]> batch) {
+		if(batch.isEmpty()) {
+			return;
+		}
+		jdbc.batchUpdate("INSERT INTO StoreAccessTokens(shop,access_token,salt,scope) VALUES(?,?,?,'read_products')", batch);
+		batch.clear();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(StoreLookupBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
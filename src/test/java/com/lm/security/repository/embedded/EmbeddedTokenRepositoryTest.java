@@ -0,0 +1,324 @@
+package com.lm.security.repository.embedded;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.dao.DuplicateKeyException;
+
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ReencryptedToken;
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+
+/*
+ * A crash is simulated by opening the directory again without closing the repository: what the process wrote
+ * to the mapping is in the file, as it would be after the process is killed.
+ */
+public class EmbeddedTokenRepositoryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+	private List<EmbeddedTokenRepository> opened = new ArrayList<>();
+
+	@Before
+	public void startup() throws IOException {
+		this.directory = folder.newFolder("token-store").toPath();
+	}
+
+	@After
+	public void shutdown() throws IOException {
+		for(EmbeddedTokenRepository repository : opened) {
+			repository.destroy();
+		}
+	}
+
+	@Test
+	public void givenStoresThenTheyBehaveLikeTheTable() {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		repository.saveNewStore("shopify", "shop1.myshopify.com", new HashSet<>(Arrays.asList("read_products", "write_products")), new EncryptedTokenAndSalt("token1", "salt1", 1));
+
+		try {
+			repository.saveNewStore("shopify", "shop1.myshopify.com", Collections.singleton("read_products"), new EncryptedTokenAndSalt("token2", "salt2", 1));
+			Assert.fail("The store already exists");
+		} catch (DuplicateKeyException ex) {
+			// expected
+		}
+
+		OAuth2AccessTokenWithSalt token = repository.findTokenForRequest("shopify", "shop1.myshopify.com");
+
+		Assert.assertEquals("token1", token.getAccess_token().getTokenValue());
+		Assert.assertEquals("salt1", token.getSalt());
+		Assert.assertEquals(1, token.getKeyVersion());
+		Assert.assertEquals(2, token.getAccess_token().getScopes().size());
+		Assert.assertNull(repository.findTokenForRequest("brand1", "shop1.myshopify.com"));
+
+		repository.updateKey("shopify", "shop1.myshopify.com", new EncryptedTokenAndSalt("token3", null, 2));
+
+		token = repository.findTokenForRequest("shopify", "shop1.myshopify.com");
+		Assert.assertEquals("token3", token.getAccess_token().getTokenValue());
+		Assert.assertNull(token.getSalt());
+		Assert.assertEquals(2, token.getAccess_token().getScopes().size());
+
+		repository.saveStore("brand1", "shop1.myshopify.com", Collections.singleton("read_products"), new EncryptedTokenAndSalt("brand", "salt", 1));
+
+		Assert.assertEquals(1, repository.updateKeys(Arrays.asList(
+				new ReencryptedToken("shopify", "shop1.myshopify.com", "token3", new EncryptedTokenAndSalt("token4", "salt4", 3)),
+				new ReencryptedToken("brand1", "shop1.myshopify.com", "changed", new EncryptedTokenAndSalt("brand2", "salt4", 3)))));
+		Assert.assertEquals("token4", repository.findTokenForRequest("shopify", "shop1.myshopify.com").getAccess_token().getTokenValue());
+		Assert.assertEquals("brand", repository.findTokenForRequest("brand1", "shop1.myshopify.com").getAccess_token().getTokenValue());
+
+		repository.uninstallStore("brand1", "shop1.myshopify.com");
+
+		Assert.assertNull(repository.findTokenForRequest("brand1", "shop1.myshopify.com"));
+		Assert.assertEquals(1, repository.countStores());
+	}
+
+	@Test
+	public void givenStoresThenFindStoresPagesInInsertionOrder() {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		for(int i = 0; i < 10; i++) {
+			save(repository, i, "token" + i);
+		}
+
+		// saving again keeps the id
+		save(repository, 0, "again");
+		repository.uninstallStore("shopify", shop(5));
+
+		List<String> shops = new ArrayList<>();
+		long lastId = Long.MIN_VALUE;
+
+		while(true) {
+			long pageLastId = repository.findStores(lastId, 3, (id, registrationId, shop, token) -> shops.add(shop));
+
+			if(pageLastId == lastId) {
+				break;
+			}
+
+			lastId = pageLastId;
+		}
+
+		Assert.assertEquals(Arrays.asList(shop(0), shop(1), shop(2), shop(3), shop(4), shop(6), shop(7), shop(8), shop(9)), shops);
+	}
+
+	@Test
+	public void givenCrashThenTheLogIsReplayed() {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		for(int i = 0; i < 20; i++) {
+			save(repository, i, "token" + i);
+		}
+
+		repository.updateKey("shopify", shop(3), new EncryptedTokenAndSalt("updated", "salt", 2));
+		repository.uninstallStore("shopify", shop(4));
+
+		EmbeddedTokenRepository recovered = open(1 << 16);
+
+		Assert.assertEquals(19, recovered.countStores());
+		Assert.assertEquals("token7", recovered.findTokenForRequest("shopify", shop(7)).getAccess_token().getTokenValue());
+		Assert.assertEquals("updated", recovered.findTokenForRequest("shopify", shop(3)).getAccess_token().getTokenValue());
+		Assert.assertEquals(2, recovered.findTokenForRequest("shopify", shop(3)).getKeyVersion());
+		Assert.assertNull(recovered.findTokenForRequest("shopify", shop(4)));
+
+		// new stores do not reuse ids
+		save(recovered, 20, "token20");
+		long[] lastId = {Long.MIN_VALUE};
+		recovered.findStores(Long.MIN_VALUE, 100, (id, registrationId, shop, token) -> {
+			Assert.assertTrue(id > lastId[0]);
+			lastId[0] = id;
+		});
+	}
+
+	@Test
+	public void givenRecordCutShortByCrashThenTheLogEndsBeforeIt() throws IOException {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		for(int i = 0; i < 5; i++) {
+			save(repository, i, "token" + i);
+		}
+
+		int position = repository.logPosition();
+		save(repository, 5, "token5");
+		int end = repository.logPosition();
+
+		// the last bytes of the record never reached the file
+		try (RandomAccessFile log = new RandomAccessFile(directory.resolve(EmbeddedTokenRepository.LOG_FILE).toFile(), "rw")) {
+			log.seek(end - 4);
+			log.write(new byte[4]);
+		}
+
+		EmbeddedTokenRepository recovered = open(1 << 16);
+
+		Assert.assertEquals(5, recovered.countStores());
+		Assert.assertNull(recovered.findTokenForRequest("shopify", shop(5)));
+		Assert.assertEquals(position, recovered.logPosition());
+
+		// the next write replaces the torn record
+		save(recovered, 6, "token6");
+
+		Assert.assertEquals(6, open(1 << 16).countStores());
+	}
+
+	@Test
+	public void givenCompactionThenSnapshotAndLogAreRecovered() {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		for(int i = 0; i < 10; i++) {
+			save(repository, i, "token" + i);
+		}
+
+		repository.compact();
+
+		Assert.assertEquals(WriteAheadLog.HEADER_SIZE, repository.logPosition());
+
+		save(repository, 10, "token10");
+		save(repository, 1, "updated");
+		repository.uninstallStore("shopify", shop(2));
+
+		EmbeddedTokenRepository recovered = open(1 << 16);
+
+		Assert.assertEquals(10, recovered.countStores());
+		Assert.assertEquals("token10", recovered.findTokenForRequest("shopify", shop(10)).getAccess_token().getTokenValue());
+		Assert.assertEquals("updated", recovered.findTokenForRequest("shopify", shop(1)).getAccess_token().getTokenValue());
+		Assert.assertNull(recovered.findTokenForRequest("shopify", shop(2)));
+	}
+
+	@Test
+	public void givenCrashBeforeTheLogIsResetThenTheStaleLogIsIgnored() throws IOException {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		save(repository, 0, "token0");
+		save(repository, 1, "token1");
+
+		Path log = directory.resolve(EmbeddedTokenRepository.LOG_FILE);
+		Path before = folder.newFile("log-before-compaction").toPath();
+		Files.copy(log, before, StandardCopyOption.REPLACE_EXISTING);
+
+		repository.uninstallStore("shopify", shop(0));
+		repository.compact();
+		repository.destroy();
+		opened.remove(repository);
+
+		// the snapshot was renamed, the log still holds the writes before it (shop0 installed)
+		Files.copy(before, log, StandardCopyOption.REPLACE_EXISTING);
+
+		EmbeddedTokenRepository recovered = open(1 << 16);
+
+		Assert.assertEquals(1, recovered.countStores());
+		Assert.assertNull(recovered.findTokenForRequest("shopify", shop(0)));
+	}
+
+	@Test
+	public void givenCrashWhileWritingTheSnapshotThenThePreviousOneIsUsed() throws IOException {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		save(repository, 0, "token0");
+		repository.compact();
+		save(repository, 1, "token1");
+
+		Files.write(directory.resolve(EmbeddedTokenRepository.SNAPSHOT_FILE + ".tmp"), new byte[] {1, 2, 3});
+
+		EmbeddedTokenRepository recovered = open(1 << 16);
+
+		Assert.assertEquals(2, recovered.countStores());
+		Assert.assertFalse(Files.exists(directory.resolve(EmbeddedTokenRepository.SNAPSHOT_FILE + ".tmp")));
+	}
+
+	@Test
+	public void givenCompactionThenTheSnapshotIsDurableBeforeTheLogIsReset() {
+		List<Integer> logPositions = new ArrayList<>();
+		EmbeddedTokenRepository repository = new EmbeddedTokenRepository(directory, 1 << 16, false, 0) {
+			@Override
+			void syncDirectory() throws IOException {
+				super.syncDirectory();
+				logPositions.add(logPosition());
+			}
+		};
+		opened.add(repository);
+
+		save(repository, 0, "token0");
+		repository.compact();
+
+		// the log still held the write when the rename was flushed
+		Assert.assertEquals(1, logPositions.size());
+		Assert.assertTrue(logPositions.get(0) > WriteAheadLog.HEADER_SIZE);
+		Assert.assertEquals(WriteAheadLog.HEADER_SIZE, repository.logPosition());
+	}
+
+	@Test
+	public void givenRenameLostAfterTheLogWasResetThenOpeningFails() throws IOException {
+		EmbeddedTokenRepository repository = open(1 << 16);
+
+		save(repository, 0, "token0");
+		repository.compact();
+
+		Path snapshot = directory.resolve(EmbeddedTokenRepository.SNAPSHOT_FILE);
+		Path before = folder.newFile("snapshot-before-compaction").toPath();
+		Files.copy(snapshot, before, StandardCopyOption.REPLACE_EXISTING);
+
+		save(repository, 1, "token1");
+		repository.compact();
+		save(repository, 2, "token2");
+
+		// what the machine could come back with if the directory was not flushed: the previous snapshot, the reset log
+		Files.copy(before, snapshot, StandardCopyOption.REPLACE_EXISTING);
+
+		try {
+			open(1 << 16);
+			Assert.fail("The stores of the lost snapshot would be missing");
+		} catch (RuntimeException ex) {
+			Assert.assertTrue(ex.getMessage().contains("the snapshot is missing"));
+		}
+	}
+
+	@Test
+	public void givenFullLogThenItIsCompacted() {
+		EmbeddedTokenRepository repository = open(1024);
+
+		for(int i = 0; i < 200; i++) {
+			save(repository, i % 50, "token" + i);
+		}
+
+		Assert.assertTrue(Files.exists(directory.resolve(EmbeddedTokenRepository.SNAPSHOT_FILE)));
+
+		EmbeddedTokenRepository recovered = open(1024);
+
+		Assert.assertEquals(50, recovered.countStores());
+
+		for(int i = 150; i < 200; i++) {
+			Assert.assertEquals("token" + i, recovered.findTokenForRequest("shopify", shop(i % 50)).getAccess_token().getTokenValue());
+		}
+	}
+
+	private EmbeddedTokenRepository open(int logCapacity) {
+		EmbeddedTokenRepository repository = new EmbeddedTokenRepository(directory, logCapacity, false, 0);
+		opened.add(repository);
+
+		return repository;
+	}
+
+	private static void save(EmbeddedTokenRepository repository, int i, String token) {
+		repository.saveStore("shopify", shop(i), Collections.singleton("read_products"), new EncryptedTokenAndSalt(token, "salt" + i, 1));
+	}
+
+	private static String shop(int i) {
+		return "shop" + i + ".myshopify.com";
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.lm.security.repository.migration;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+public class SchemaMigratorTest {
+	
+	private static final String INSERT = "INSERT INTO StoreAccessTokens(registration_id,shop,access_token,salt,scope) VALUES(?,?,?,?,?)";
+	
+	private EmbeddedDatabase db;
+	
+	@After
+	public void shutdown() {
+		this.db.shutdown();
+	}
+	
+	@Test
+	public void givenEmptyDatabaseThenTableIsCreatedAndMigrationsRunOnce() {
+		this.db = new EmbeddedDatabaseBuilder().generateUniqueName(true).setType(EmbeddedDatabaseType.HSQL).build();
+		SchemaMigrator migrator = new SchemaMigrator(db);
+		
+		int applied = migrator.migrate();
+		Assert.assertTrue(applied >= 2);
+		Assert.assertEquals(0, migrator.migrate());
+		
+		JdbcTemplate jdbc = new JdbcTemplate(db);
+		Assert.assertEquals(Integer.valueOf(applied), jdbc.queryForObject("SELECT COUNT(*) FROM SCHEMA_VERSION", Integer.class));
+		
+		jdbc.update(INSERT, "shopify", "shop1.myshopify.com", "token", "salt", "read_products");
+		Assert.assertEquals(Integer.valueOf(0), jdbc.queryForObject("SELECT key_version FROM StoreAccessTokens", Integer.class));
+	}
+	
+	@Test
+	public void givenExistingTableWithDuplicatesThenLatestRowIsKeptAndShopIsUnique() {
+		this.db = new EmbeddedDatabaseBuilder().generateUniqueName(true).setType(EmbeddedDatabaseType.HSQL)
+				.addScript("schema-hsqldb.sql")
+				.build();
+		JdbcTemplate jdbc = new JdbcTemplate(db);
+		
+		jdbc.update(INSERT, "shopify", "shop1.myshopify.com", "old", "salt", "read_products");
+		jdbc.update(INSERT, "shopify", "shop1.myshopify.com", "new", "salt", "read_products");
+		jdbc.update(INSERT, "brand1", "shop1.myshopify.com", "other", "salt", "read_products");
+		
+		new SchemaMigrator(db).migrate();
+		
+		Assert.assertEquals("new", jdbc.queryForObject("SELECT access_token FROM StoreAccessTokens WHERE registration_id='shopify' AND shop='shop1.myshopify.com'", String.class));
+		Assert.assertEquals(Integer.valueOf(2), jdbc.queryForObject("SELECT COUNT(*) FROM StoreAccessTokens", Integer.class));
+		
+		try {
+			jdbc.update(INSERT, "shopify", "shop1.myshopify.com", "again", "salt", "read_products");
+			Assert.fail("(registration_id, shop) must be unique");
+		} catch(DuplicateKeyException ex) {
+			
+		}
+	}
+
+}
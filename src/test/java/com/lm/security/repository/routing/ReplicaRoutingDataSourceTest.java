@@ -0,0 +1,135 @@
+package com.lm.security.repository.routing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ShopifyTokenRepositoryImpl;
+
+/*
+ * The primary and the replica are two HSQLDB databases, without replication:
+ * a store saved in the primary can only be found if it is read from the primary.
+ */
+public class ReplicaRoutingDataSourceTest {
+	
+	private EmbeddedDatabase primary;
+	private EmbeddedDatabase replica;
+	
+	@Before
+	public void startup() {
+		this.primary = database();
+		this.replica = database();
+	}
+	
+	@After
+	public void shutdown() {
+		this.primary.shutdown();
+		this.replica.shutdown();
+	}
+	
+	@Test
+	public void givenStoreJustSavedThenItIsReadFromThePrimary() {
+		ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, Collections.singletonList(replica), 1, TimeUnit.HOURS);
+		ShopifyTokenRepositoryImpl repository = repository(routing);
+		
+		repository.saveStore("shopify", "shop1.myshopify.com", Collections.singleton("read_products"), new EncryptedTokenAndSalt("token", "salt"));
+		
+		Assert.assertEquals("token", repository.findTokenForRequest("shopify", "shop1.myshopify.com").getAccess_token().getTokenValue());
+		Assert.assertEquals(1, routing.primaryReadCount());
+		Assert.assertEquals(0, routing.replicaReadCount());
+	}
+	
+	@Test
+	public void givenOtherStoresThenTheyAreReadFromTheReplicas() {
+		EmbeddedDatabase secondReplica = database();
+		
+		try {
+			ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, Arrays.asList(replica, secondReplica), 1, TimeUnit.HOURS);
+			ShopifyTokenRepositoryImpl repository = repository(routing);
+			
+			repository.saveStore("shopify", "shop1.myshopify.com", Collections.singleton("read_products"), new EncryptedTokenAndSalt("token", "salt"));
+			new JdbcTemplate(replica).update("INSERT INTO StoreAccessTokens(shop,access_token,salt,scope) VALUES('shop2.myshopify.com','replicated','salt','read_products')");
+			new JdbcTemplate(secondReplica).update("INSERT INTO StoreAccessTokens(shop,access_token,salt,scope) VALUES('shop2.myshopify.com','replicated','salt','read_products')");
+			
+			// the replicas are used in turn
+			Assert.assertEquals("replicated", repository.findTokenForRequest("shopify", "shop2.myshopify.com").getAccess_token().getTokenValue());
+			Assert.assertEquals("replicated", repository.findTokenForRequest("shopify", "shop2.myshopify.com").getAccess_token().getTokenValue());
+			Assert.assertEquals(2, routing.replicaReadCount());
+			
+			// writes always go to the primary
+			Assert.assertEquals(Integer.valueOf(1), new JdbcTemplate(primary).queryForObject("SELECT COUNT(*) FROM StoreAccessTokens", Integer.class));
+			
+		} finally {
+			secondReplica.shutdown();
+		}
+	}
+	
+	@Test
+	public void givenReadYourWritesWindowElapsedThenStoreIsReadFromTheReplica() {
+		ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, Collections.singletonList(replica), 0, TimeUnit.MILLISECONDS);
+		ShopifyTokenRepositoryImpl repository = repository(routing);
+		
+		repository.saveStore("shopify", "shop1.myshopify.com", Collections.singleton("read_products"), new EncryptedTokenAndSalt("token", "salt"));
+		
+		// not replicated yet
+		Assert.assertNull(repository.findTokenForRequest("shopify", "shop1.myshopify.com"));
+		Assert.assertEquals(1, routing.replicaReadCount());
+	}
+	
+	@Test
+	public void givenReplicaDownThenStoreIsReadFromThePrimary() {
+		// no HSQLDB server listens there
+		DataSource down = new DriverManagerDataSource("jdbc:hsqldb:hsql://localhost:1/replica", "sa", "");
+		
+		ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, Collections.singletonList(down), 0, TimeUnit.MILLISECONDS);
+		ShopifyTokenRepositoryImpl repository = repository(routing);
+		
+		repository.saveStore("shopify", "shop1.myshopify.com", Collections.singleton("read_products"), new EncryptedTokenAndSalt("token", "salt"));
+		
+		Assert.assertEquals("token", repository.findTokenForRequest("shopify", "shop1.myshopify.com").getAccess_token().getTokenValue());
+		Assert.assertEquals(1, routing.primaryReadCount());
+	}
+	
+	@Test
+	public void givenRecentWriteThenItExpiresAfterTheWindow() {
+		long[] now = {0};
+		RecentWrites writes = new RecentWrites(5, TimeUnit.SECONDS, () -> now[0]);
+		
+		writes.recordWrite("shopify", "shop1.myshopify.com");
+		Assert.assertTrue(writes.isRecentlyWritten("shopify", "shop1.myshopify.com"));
+		Assert.assertFalse(writes.isRecentlyWritten("brand1", "shop1.myshopify.com"));
+		
+		now[0] = TimeUnit.SECONDS.toNanos(5);
+		Assert.assertFalse(writes.isRecentlyWritten("shopify", "shop1.myshopify.com"));
+		Assert.assertEquals(0, writes.size());
+	}
+	
+	private static ShopifyTokenRepositoryImpl repository(ReplicaRoutingDataSource routing) {
+		ShopifyTokenRepositoryImpl repository = new ShopifyTokenRepositoryImpl();
+		repository.setJdbc(new JdbcTemplate(routing));
+		
+		return repository;
+	}
+	
+	private static EmbeddedDatabase database() {
+		return new EmbeddedDatabaseBuilder()
+				.generateUniqueName(true)
+				.setType(EmbeddedDatabaseType.HSQL)
+				.addScript("schema-hsqldb.sql")
+				.build();
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.lm.security.repository.sharding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.migration.SchemaMigrator;
+
+public class ShardRebalancerTest {
+
+	private List<EmbeddedDatabase> dbs = new ArrayList<>();
+	private ShardedTokenRepository repository;
+
+	@Before
+	public void startup() {
+		for(int i = 0; i < 3; i++) {
+			EmbeddedDatabase db = new EmbeddedDatabaseBuilder()
+					.generateUniqueName(true)
+					.setType(EmbeddedDatabaseType.HSQL)
+					.build();
+			new SchemaMigrator(db).migrate();
+			dbs.add(db);
+		}
+
+		// the stores were saved when there were 2 shards
+		ShardedTokenRepository former = new ShardedTokenRepository(new ArrayList<DataSource>(dbs.subList(0, 2)));
+
+		for(int i = 0; i < 50; i++) {
+			former.saveStore("shopify", shop(i), Collections.singleton("read_products"), new EncryptedTokenAndSalt("token" + i, "salt" + i, 1));
+		}
+
+		former.destroy();
+
+		this.repository = new ShardedTokenRepository(new ArrayList<DataSource>(dbs), 2);
+	}
+
+	@After
+	public void shutdown() {
+		this.repository.destroy();
+
+		for(EmbeddedDatabase db : dbs) {
+			db.shutdown();
+		}
+	}
+
+	@Test
+	public void givenShardAddedThenStoresAreMovedToTheirShard() {
+		long misplaced = misplacedCount();
+
+		Assert.assertTrue(misplaced > 0);
+
+		ShardRebalancer rebalancer = new ShardRebalancer(repository, 7);
+		rebalancer.run();
+
+		Assert.assertTrue(rebalancer.isEnded());
+		// the new shard can also read the stores moved to it
+		Assert.assertTrue(rebalancer.scannedCount() >= 50);
+		Assert.assertEquals(misplaced, rebalancer.movedCount());
+		Assert.assertEquals(0, misplacedCount());
+		Assert.assertEquals(50, repository.countStores());
+
+		ShardedTokenRepository rebalanced = new ShardedTokenRepository(new ArrayList<DataSource>(dbs));
+
+		for(int i = 0; i < 50; i++) {
+			Assert.assertEquals("token" + i, rebalanced.findTokenForRequest("shopify", shop(i)).getAccess_token().getTokenValue());
+			Assert.assertEquals(1, rebalanced.findTokenForRequest("shopify", shop(i)).getKeyVersion());
+		}
+
+		rebalanced.destroy();
+
+		// nothing left to do
+		ShardRebalancer again = new ShardRebalancer(repository, 7);
+		again.run();
+
+		Assert.assertEquals(0, again.movedCount());
+	}
+
+	@Test
+	public void givenStoreSavedOnItsNewShardThenTheFormerCopyIsOnlyDeleted() {
+		int i = firstMisplaced();
+
+		repository.shard(repository.shardOf(shop(i))).saveStore("shopify", shop(i), Collections.singleton("read_products"),
+				new EncryptedTokenAndSalt("newer", "salt", 1));
+
+		ShardRebalancer rebalancer = new ShardRebalancer(repository, 7);
+		rebalancer.run();
+
+		Assert.assertEquals(1, rebalancer.supersededCount());
+		Assert.assertEquals("newer", repository.findTokenForRequest("shopify", shop(i)).getAccess_token().getTokenValue());
+		Assert.assertNull(repository.shard(ShardedTokenRepository.shardFor(shop(i), 2)).findTokenForRequest("shopify", shop(i)));
+	}
+
+	private long misplacedCount() {
+		long[] count = {0};
+
+		for(int shard = 0; shard < repository.shardCount(); shard++) {
+			int index = shard;
+
+			repository.shard(shard).forEachStore((registrationId, shop) -> {
+				if(repository.shardOf(shop) != index) {
+					count[0]++;
+				}
+			});
+		}
+
+		return count[0];
+	}
+
+	private int firstMisplaced() {
+		for(int i = 0; i < 50; i++) {
+			if(repository.shardOf(shop(i)) != ShardedTokenRepository.shardFor(shop(i), 2)) {
+				return i;
+			}
+		}
+
+		throw new IllegalStateException("No store changes shard");
+	}
+
+	private static String shop(int i) {
+		return "shop" + i + ".myshopify.com";
+	}
+
+}
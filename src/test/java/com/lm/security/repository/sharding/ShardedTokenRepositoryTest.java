@@ -0,0 +1,170 @@
+package com.lm.security.repository.sharding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.migration.SchemaMigrator;
+
+public class ShardedTokenRepositoryTest {
+
+	private List<EmbeddedDatabase> dbs = new ArrayList<>();
+	private ShardedTokenRepository repository;
+
+	@Before
+	public void startup() {
+		for(int i = 0; i < 3; i++) {
+			EmbeddedDatabase db = new EmbeddedDatabaseBuilder()
+					.generateUniqueName(true)
+					.setType(EmbeddedDatabaseType.HSQL)
+					.build();
+			new SchemaMigrator(db).migrate();
+			dbs.add(db);
+		}
+
+		this.repository = new ShardedTokenRepository(new ArrayList<DataSource>(dbs));
+	}
+
+	@After
+	public void shutdown() {
+		this.repository.destroy();
+
+		for(EmbeddedDatabase db : dbs) {
+			db.shutdown();
+		}
+	}
+
+	@Test
+	public void givenShopThenShardIsStableAndConsistent() {
+		int[] counts = new int[3];
+		int moved = 0;
+
+		for(int i = 0; i < 3000; i++) {
+			int shard = ShardedTokenRepository.shardFor(shop(i), 3);
+
+			Assert.assertEquals(shard, ShardedTokenRepository.shardFor(shop(i), 3));
+			counts[shard]++;
+
+			// adding a shard only moves stores to the new shard
+			int grown = ShardedTokenRepository.shardFor(shop(i), 4);
+
+			if(grown != shard) {
+				Assert.assertEquals(3, grown);
+				moved++;
+			}
+		}
+
+		for(int count : counts) {
+			Assert.assertTrue(count > 800);
+		}
+
+		Assert.assertTrue(moved > 600 && moved < 900);
+	}
+
+	@Test
+	public void givenStoresThenEachIsOnTheShardOfItsShop() {
+		for(int i = 0; i < 30; i++) {
+			repository.saveStore("shopify", shop(i), Collections.singleton("read_products"), new EncryptedTokenAndSalt("token" + i, "salt" + i));
+			repository.saveStore("brand1", shop(i), Collections.singleton("read_products"), new EncryptedTokenAndSalt("brand" + i, "salt" + i));
+		}
+
+		for(int i = 0; i < 30; i++) {
+			int shard = repository.shardOf(shop(i));
+
+			Assert.assertEquals("token" + i, repository.shard(shard).findTokenForRequest("shopify", shop(i)).getAccess_token().getTokenValue());
+			Assert.assertEquals("brand" + i, repository.shard(shard).findTokenForRequest("brand1", shop(i)).getAccess_token().getTokenValue());
+			Assert.assertEquals("token" + i, repository.findTokenForRequest("shopify", shop(i)).getAccess_token().getTokenValue());
+		}
+
+		Assert.assertEquals(60, repository.countStores());
+
+		repository.uninstallStore("shopify", shop(0));
+
+		Assert.assertNull(repository.findTokenForRequest("shopify", shop(0)));
+		Assert.assertEquals(59, repository.countStores());
+	}
+
+	@Test
+	public void givenStoresThenScansVisitEveryShard() {
+		for(int i = 0; i < 30; i++) {
+			repository.saveStore("shopify", shop(i), Collections.singleton("read_products"), new EncryptedTokenAndSalt("token" + i, "salt" + i));
+		}
+
+		Set<String> visited = Collections.synchronizedSet(new HashSet<>());
+		repository.forEachStore((registrationId, shop) -> Assert.assertTrue(visited.add(shop)));
+
+		Assert.assertEquals(30, visited.size());
+
+		Set<String> paged = new HashSet<>();
+		long lastId = Long.MIN_VALUE;
+
+		while(true) {
+			long pageLastId = repository.findStores(lastId, 4, (id, registrationId, shop, token) -> Assert.assertTrue(paged.add(shop)));
+
+			if(pageLastId == lastId) {
+				break;
+			}
+
+			Assert.assertTrue(pageLastId > lastId);
+			lastId = pageLastId;
+		}
+
+		Assert.assertEquals(visited, paged);
+		Assert.assertEquals(3, repository.shards().size());
+	}
+
+	@Test
+	public void givenShardsAddedThenStoresOnTheirFormerShardAreStillFound() {
+		ShardedTokenRepository former = new ShardedTokenRepository(new ArrayList<DataSource>(dbs.subList(0, 2)));
+
+		for(int i = 0; i < 30; i++) {
+			former.saveStore("shopify", shop(i), Collections.singleton("read_products"), new EncryptedTokenAndSalt("token" + i, "salt" + i));
+		}
+
+		former.destroy();
+
+		ShardedTokenRepository grown = new ShardedTokenRepository(new ArrayList<DataSource>(dbs), 2);
+		int misplaced = 0;
+
+		for(int i = 0; i < 30; i++) {
+			Assert.assertEquals("token" + i, grown.findTokenForRequest("shopify", shop(i)).getAccess_token().getTokenValue());
+
+			if(grown.shardOf(shop(i)) != ShardedTokenRepository.shardFor(shop(i), 2)) {
+				misplaced++;
+			}
+		}
+
+		Assert.assertTrue(misplaced > 0);
+
+		// saving moves the store
+		for(int i = 0; i < 30; i++) {
+			grown.saveStore("shopify", shop(i), Collections.singleton("read_products"), new EncryptedTokenAndSalt("new" + i, "salt" + i));
+		}
+
+		for(int i = 0; i < 30; i++) {
+			Assert.assertEquals("new" + i, grown.shard(grown.shardOf(shop(i))).findTokenForRequest("shopify", shop(i)).getAccess_token().getTokenValue());
+		}
+
+		Assert.assertEquals(30, grown.countStores());
+
+		grown.destroy();
+	}
+
+	private static String shop(int i) {
+		return "shop" + i + ".myshopify.com";
+	}
+
+}
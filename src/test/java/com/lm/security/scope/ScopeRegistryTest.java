@@ -0,0 +1,131 @@
+package com.lm.security.scope;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+
+public class ScopeRegistryTest {
+
+	@Test
+	public void givenSameScopesThenTheSameScopeSetIsReturned() {
+		ScopeSet parsed = ScopeRegistry.parse("registry_a,registry_b");
+
+		Assert.assertSame(parsed, ScopeRegistry.parse("registry_a,registry_b"));
+		Assert.assertSame(parsed, ScopeRegistry.parse("registry_b,registry_a"));
+		Assert.assertSame(parsed, ScopeRegistry.parse("registry_b,,registry_a,registry_b"));
+		Assert.assertSame(parsed, ScopeRegistry.of(new HashSet<>(Arrays.asList("registry_b", "registry_a"))));
+		Assert.assertSame(parsed, ScopeRegistry.of(Arrays.asList("registry_a", "registry_b", "registry_a")));
+
+		// the read-only view kept by the token
+		OAuth2AccessToken token = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null, parsed);
+		Assert.assertSame(parsed, ScopeRegistry.of(token.getScopes()));
+
+		Assert.assertSame(ScopeRegistry.parse(""), ScopeRegistry.of(Collections.<String>emptySet()));
+		Assert.assertEquals(0, ScopeRegistry.parse(null).size());
+	}
+
+	@Test
+	public void givenScopeSetThenItBehavesLikeASet() {
+		ScopeSet scopes = ScopeRegistry.parse("set_read,set_write");
+		Set<String> expected = new HashSet<>(Arrays.asList("set_read", "set_write"));
+
+		Assert.assertEquals(expected, scopes);
+		Assert.assertEquals(scopes, expected);
+		Assert.assertEquals(expected.hashCode(), scopes.hashCode());
+		Assert.assertEquals(2, scopes.size());
+		Assert.assertTrue(scopes.contains("set_read"));
+		Assert.assertFalse(scopes.contains("set_unknown"));
+		Assert.assertFalse(scopes.contains(null));
+		Assert.assertEquals(expected, new HashSet<>(scopes));
+
+		try {
+			scopes.add("set_other");
+			Assert.fail("ScopeSets are immutable");
+		} catch (UnsupportedOperationException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void givenScopesThenTheFirstOrderSeenIsTheCanonicalForm() {
+		Set<String> configured = new LinkedHashSet<>(Arrays.asList("order_c", "order_a", "order_b"));
+
+		Assert.assertEquals("order_c,order_a,order_b", ScopeRegistry.join(configured));
+		Assert.assertEquals("order_c,order_a,order_b", ScopeRegistry.parse("order_a,order_b,order_c").toString());
+		Assert.assertEquals(Arrays.asList("order_c", "order_a", "order_b"), Arrays.asList(ScopeRegistry.parse("order_b,order_a,order_c").toArray()));
+	}
+
+	@Test
+	public void givenGrantedScopesThenMissingScopesAreDetected() {
+		ScopeSet granted = ScopeRegistry.parse("grant_read_products,grant_write_products");
+		ScopeSet required = ScopeRegistry.parse("grant_read_products,grant_write_products,grant_read_orders");
+
+		Assert.assertFalse(granted.containsAll(required));
+		Assert.assertTrue(required.containsAll(granted));
+		Assert.assertTrue(granted.containsAll(ScopeRegistry.parse("grant_write_products")));
+		Assert.assertTrue(granted.containsAll(ScopeRegistry.parse("")));
+
+		// more scopes than fit in a word
+		StringBuilder many = new StringBuilder();
+		for(int i = 0; i < 150; i++) {
+			many.append("grant_many_").append(i).append(',');
+		}
+		ScopeSet all = ScopeRegistry.parse(many + "grant_read_products,grant_write_products");
+
+		Assert.assertEquals(152, all.size());
+		Assert.assertTrue(all.containsAll(granted));
+		Assert.assertFalse(granted.containsAll(all));
+		Assert.assertTrue(all.containsAll((Set<String>)new HashSet<>(Arrays.asList("grant_many_140", "grant_read_products"))));
+		Assert.assertFalse(all.contains("grant_read_orders"));
+	}
+
+	@Test
+	public void givenFullRegistryThenNewScopesAreKeptByName() {
+		ScopeSet known = ScopeRegistry.parse("full_known");
+		int full = ScopeRegistry.size();
+
+		ScopeSet scopes = ScopeRegistry.build(Arrays.asList("full_known", "full_new", "full_new"), full);
+
+		Assert.assertEquals(full, ScopeRegistry.size());
+		Assert.assertEquals(-1, ScopeRegistry.bit("full_new"));
+		Assert.assertEquals("full_known,full_new", scopes.toString());
+		Assert.assertTrue(scopes.contains("full_new"));
+		Assert.assertEquals(new HashSet<>(Arrays.asList("full_known", "full_new")), scopes);
+		Assert.assertEquals(new HashSet<>(Arrays.asList("full_known", "full_new")).hashCode(), scopes.hashCode());
+
+		ScopeSet same = ScopeRegistry.build(Arrays.asList("full_new", "full_known"), full);
+		Assert.assertEquals(scopes, same);
+		Assert.assertTrue(scopes.containsAll(known));
+		Assert.assertTrue(scopes.containsAll(same));
+		Assert.assertFalse(known.containsAll(scopes));
+		Assert.assertFalse(ScopeRegistry.build(Arrays.asList("full_known", "full_other"), full).containsAll(scopes));
+		Assert.assertNotEquals(scopes, ScopeRegistry.build(Arrays.asList("full_known", "full_other"), full));
+	}
+
+	@Test
+	public void givenWriteScopeThenTheReadScopeIsGranted() {
+		ScopeSet required = ScopeRegistry.parse("read_implied,write_implied,unauthenticated_read_implied,unauthenticated_write_implied");
+
+		Assert.assertTrue(ScopeRegistry.parse("write_implied,unauthenticated_write_implied").grants(required));
+		Assert.assertFalse(ScopeRegistry.parse("write_implied,unauthenticated_write_implied").containsAll(required));
+		Assert.assertFalse(ScopeRegistry.parse("read_implied,unauthenticated_write_implied").grants(required));
+		Assert.assertFalse(ScopeRegistry.parse("write_implied").grants(required));
+		Assert.assertFalse(ScopeRegistry.parse("write_implied_other,unauthenticated_write_implied").grants(required));
+		Assert.assertTrue(required.grants(required));
+
+		// scopes without a bit
+		int full = ScopeRegistry.size();
+		ScopeSet granted = ScopeRegistry.build(Arrays.asList("write_implied_full"), full);
+		ScopeSet requiredFull = ScopeRegistry.build(Arrays.asList("read_implied_full", "write_implied_full"), full);
+
+		Assert.assertTrue(granted.grants(requiredFull));
+		Assert.assertFalse(ScopeRegistry.build(Arrays.asList("read_implied_full"), full).grants(requiredFull));
+	}
+
+}
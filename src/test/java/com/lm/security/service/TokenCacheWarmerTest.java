@@ -0,0 +1,142 @@
+package com.lm.security.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+
+import com.lm.security.TestRegistrations;
+import com.lm.security.authentication.ClientSecretRegistry;
+import com.lm.security.cache.BoundedAuthorizedClientCache;
+import com.lm.security.cache.ShopKey;
+import com.lm.security.crypto.EnvelopeTokenCipher;
+import com.lm.security.crypto.TokenKeyring;
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ShopifyTokenRepositoryImpl;
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+
+public class TokenCacheWarmerTest {
+	
+	private EmbeddedDatabase db;
+	private ShopifyTokenRepositoryImpl repository;
+	private BoundedAuthorizedClientCache cache;
+	private TokenService tokenService;
+	private EnvelopeTokenCipher cipher;
+	
+	@Before
+	public void startup() {
+		this.db = new EmbeddedDatabaseBuilder()
+				.generateUniqueName(true)
+				.setType(EmbeddedDatabaseType.HSQL)
+				.addScript("schema-hsqldb.sql")
+				.build();
+		
+		this.repository = new ShopifyTokenRepositoryImpl();
+		this.repository.setJdbc(new JdbcTemplate(db));
+		
+		ClientRegistration registration = TestRegistrations.shopify();
+		
+		this.cipher = new EnvelopeTokenCipher(1, "testpassword", "abcdef0123456789");
+		this.cache = new BoundedAuthorizedClientCache(100, 60, TimeUnit.SECONDS);
+		this.tokenService = new TokenService(repository, new TokenKeyring(cipher), new ClientSecretRegistry(registration), cache);
+	}
+	
+	@After
+	public void shutdown() {
+		this.db.shutdown();
+	}
+	
+	@Test
+	public void givenStoresThenAllAreCachedPageByPage() {
+		save("shopify", 25);
+		
+		TokenCacheWarmer warmer = new TokenCacheWarmer(repository, tokenService, 100, 7, 2, 90);
+		Assert.assertFalse(warmer.isReady());
+		
+		warmer.warmUp();
+		
+		Assert.assertTrue(warmer.isReady());
+		Assert.assertEquals(25, warmer.warmedCount());
+		Assert.assertEquals(1.0, warmer.progress(), 0.0001);
+		Assert.assertEquals(25, cache.size());
+		Assert.assertEquals("token7", cache.get(new ShopKey("shopify", "shop7.myshopify.com")).getAccessToken().getTokenValue());
+	}
+	
+	@Test
+	public void givenMoreStoresThanTheCacheHoldsThenOnlyMaxStoresAreWarmed() {
+		save("shopify", 30);
+		
+		TokenCacheWarmer warmer = new TokenCacheWarmer(repository, tokenService, 10, 4, 2, 90);
+		warmer.warmUp();
+		
+		Assert.assertEquals(10, warmer.total());
+		Assert.assertEquals(10, warmer.warmedCount());
+	}
+	
+	@Test
+	public void givenUnregisteredAppThenItsStoresFailAndTheRestIsWarmed() {
+		save("shopify", 5);
+		save("removed", 3);
+		
+		TokenCacheWarmer warmer = new TokenCacheWarmer(repository, tokenService, 100, 2, 2, 90);
+		warmer.warmUp();
+		
+		Assert.assertEquals(5, warmer.warmedCount());
+		Assert.assertEquals(3, warmer.failedCount());
+		Assert.assertTrue(warmer.isReady());
+	}
+	
+	@Test
+	public void givenStoreUninstalledAfterItWasReadThenItIsNotCached() {
+		save("shopify", 25);
+		
+		// the page is read, then shop3 is uninstalled before its turn comes
+		ShopifyTokenRepositoryImpl uninstalling = new ShopifyTokenRepositoryImpl() {
+			@Override
+			public long findStores(long afterId, int limit, StoreConsumer consumer) {
+				List<Object[]> page = new ArrayList<>();
+				long lastId = super.findStores(afterId, limit, (id, registrationId, shop, token) -> page.add(new Object[] {id, registrationId, shop, token}));
+				
+				for(Object[] row : page) {
+					if("shop3.myshopify.com".equals(row[2])) {
+						tokenService.uninstallStore("shopify", "shop3.myshopify.com");
+					}
+				}
+				
+				for(Object[] row : page) {
+					consumer.accept((Long)row[0], (String)row[1], (String)row[2], (OAuth2AccessTokenWithSalt)row[3]);
+				}
+				
+				return lastId;
+			}
+		};
+		uninstalling.setJdbc(new JdbcTemplate(db));
+		
+		new TokenCacheWarmer(uninstalling, tokenService, 100, 7, 2, 90).warmUp();
+		
+		Assert.assertNull(cache.get(new ShopKey("shopify", "shop3.myshopify.com")));
+		Assert.assertNull(repository.findTokenForRequest("shopify", "shop3.myshopify.com"));
+		
+		// the other pages are warmed
+		Assert.assertNotNull(cache.get(new ShopKey("shopify", "shop20.myshopify.com")));
+	}
+	
+	private void save(String registrationId, int count) {
+		for(int i = 0; i < count; i++) {
+			String salt = cipher.generateSalt();
+			repository.saveStore(registrationId, "shop" + i + ".myshopify.com", Collections.singleton("read_products"), 
+					new EncryptedTokenAndSalt(cipher.encrypt("token" + i, salt, registrationId, "shop" + i + ".myshopify.com"), salt, cipher.getKeyVersion()));
+		}
+	}
+
+}
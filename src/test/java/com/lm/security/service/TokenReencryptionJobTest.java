@@ -0,0 +1,129 @@
+package com.lm.security.service;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.lm.security.crypto.DerivedKeyCache;
+import com.lm.security.crypto.SaltedTokenCipher;
+import com.lm.security.crypto.TokenKeyring;
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.ReencryptedToken;
+import com.lm.security.repository.ReencryptionCheckpointRepository;
+import com.lm.security.repository.ShopifyTokenRepositoryImpl;
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+import com.lm.security.repository.migration.SchemaMigrator;
+
+public class TokenReencryptionJobTest {
+	
+	private EmbeddedDatabase db;
+	private JdbcTemplate jdbc;
+	private ShopifyTokenRepositoryImpl repository;
+	private ReencryptionCheckpointRepository checkpoints;
+	
+	private SaltedTokenCipher oldCipher;
+	private SaltedTokenCipher newCipher;
+	
+	@Before
+	public void startup() {
+		this.db = new EmbeddedDatabaseBuilder()
+				.generateUniqueName(true)
+				.setType(EmbeddedDatabaseType.HSQL)
+				.build();
+		new SchemaMigrator(db).migrate();
+		
+		this.jdbc = new JdbcTemplate(db);
+		this.repository = new ShopifyTokenRepositoryImpl();
+		this.repository.setJdbc(jdbc);
+		this.checkpoints = new ReencryptionCheckpointRepository(jdbc);
+		
+		this.oldCipher = new SaltedTokenCipher(0, "oldpassword", new DerivedKeyCache(0));
+		this.newCipher = new SaltedTokenCipher(2, "newpassword", new DerivedKeyCache(0));
+		
+		for(int i = 0; i < 20; i++) {
+			String salt = oldCipher.generateSalt();
+			repository.saveStore("shopify", shop(i), Collections.singleton("read_products"), 
+					new EncryptedTokenAndSalt(oldCipher.encrypt("token" + i, salt, "shopify", shop(i)), salt, 0));
+		}
+	}
+	
+	@After
+	public void shutdown() {
+		this.db.shutdown();
+	}
+	
+	@Test
+	public void givenOldPasswordThenEveryTokenIsReencryptedWithTheNewOne() {
+		TokenReencryptionJob job = new TokenReencryptionJob(repository, new TokenKeyring(newCipher, oldCipher), checkpoints, 6, 3);
+		job.run();
+		
+		Assert.assertTrue(job.isEnded());
+		Assert.assertEquals(20, job.reencryptedCount());
+		Assert.assertEquals(0, job.failedCount());
+		
+		for(int i = 0; i < 20; i++) {
+			OAuth2AccessTokenWithSalt token = repository.findTokenForRequest("shopify", shop(i));
+			
+			Assert.assertEquals(2, token.getKeyVersion());
+			Assert.assertEquals("token" + i, newCipher.decrypt(token.getAccess_token().getTokenValue(), token.getSalt(), "shopify", shop(i)));
+		}
+		
+		Assert.assertEquals(maxId(), checkpoints.getLastId(2));
+		
+		// nothing left to do
+		TokenReencryptionJob again = new TokenReencryptionJob(repository, new TokenKeyring(newCipher, oldCipher), checkpoints, 6, 3);
+		again.run();
+		Assert.assertEquals(0, again.reencryptedCount());
+	}
+	
+	@Test
+	public void givenCheckpointThenJobResumesAfterIt() {
+		long checkpoint = jdbc.queryForObject("SELECT id FROM StoreAccessTokens WHERE shop=?", Long.class, shop(9));
+		checkpoints.saveLastId(2, checkpoint);
+		
+		TokenReencryptionJob job = new TokenReencryptionJob(repository, new TokenKeyring(newCipher, oldCipher), checkpoints, 4, 2);
+		job.run();
+		
+		Assert.assertEquals(10, job.reencryptedCount());
+		Assert.assertEquals(0, repository.findTokenForRequest("shopify", shop(9)).getKeyVersion());
+		Assert.assertEquals(2, repository.findTokenForRequest("shopify", shop(10)).getKeyVersion());
+	}
+	
+	@Test
+	public void givenUnknownPasswordThenRowsAreLeftAsTheyAre() {
+		SaltedTokenCipher wrong = new SaltedTokenCipher(0, "wrongpassword", new DerivedKeyCache(0));
+		
+		TokenReencryptionJob job = new TokenReencryptionJob(repository, new TokenKeyring(newCipher, wrong), checkpoints, 8, 2);
+		job.run();
+		
+		Assert.assertEquals(20, job.failedCount());
+		Assert.assertEquals(0, repository.findTokenForRequest("shopify", shop(3)).getKeyVersion());
+	}
+	
+	@Test
+	public void givenTokenChangedSinceReadThenUpdateKeysLeavesIt() {
+		OAuth2AccessTokenWithSalt token = repository.findTokenForRequest("shopify", shop(0));
+		
+		int updated = repository.updateKeys(Collections.singletonList(new ReencryptedToken("shopify", shop(0), "not-the-stored-token", 
+				new EncryptedTokenAndSalt("other", "salt", 2))));
+		
+		Assert.assertEquals(0, updated);
+		Assert.assertEquals(token.getAccess_token().getTokenValue(), repository.findTokenForRequest("shopify", shop(0)).getAccess_token().getTokenValue());
+	}
+	
+	private long maxId() {
+		return jdbc.queryForObject("SELECT MAX(id) FROM StoreAccessTokens", Long.class);
+	}
+	
+	private static String shop(int i) {
+		return "shop" + i + ".myshopify.com";
+	}
+
+}
@@ -0,0 +1,223 @@
+package com.lm.security.service;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.keygen.KeyGenerators;
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+import com.lm.security.TestRegistrations;
+import com.lm.security.authentication.CipherPassword;
+import com.lm.security.authentication.ClientSecretRegistry;
+import com.lm.security.cache.BoundedAuthorizedClientCache;
+import com.lm.security.converter.CustomShopifyOAuth2AccessTokenResponseHttpMessageConverter;
+import com.lm.security.crypto.DerivedKeyCache;
+import com.lm.security.crypto.EnvelopeTokenCipher;
+import com.lm.security.crypto.SaltedTokenCipher;
+import com.lm.security.crypto.TokenKeyring;
+import com.lm.security.repository.EncryptedTokenAndSalt;
+import com.lm.security.repository.TokenRepository;
+import com.lm.security.repository.TokenRepository.OAuth2AccessTokenWithSalt;
+import com.lm.security.scope.ScopeRegistry;
+
+public class TokenServiceTest {
+	
+	private static final String SHOP = "lmdev.myshopify.com";
+	
+	private TokenRepository tokenRepository;
+	private BoundedAuthorizedClientCache cache;
+	private TokenService tokenService;
+	private ClientRegistration registration;
+	private SaltedTokenCipher salted;
+	
+	@Before
+	public void startup() {
+		CipherPassword password = new CipherPassword("testpassword");
+		String salt = KeyGenerators.string().generateKey();
+		
+		this.registration = TestRegistrations.shopify();
+		
+		OAuth2AccessToken encrypted = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER,
+				Encryptors.queryableText(password.getPassword(), salt).encrypt("sample"), null, null, Collections.singleton("read_products"));
+		
+		this.tokenRepository = mock(TokenRepository.class);
+		when(tokenRepository.findTokenForRequest("shopify", SHOP)).thenReturn(new OAuth2AccessTokenWithSalt(encrypted, salt));
+		
+		this.cache = new BoundedAuthorizedClientCache(10, 60, TimeUnit.SECONDS);
+		this.salted = new SaltedTokenCipher(password.getPassword(), new DerivedKeyCache(10));
+		this.tokenService = new TokenService(tokenRepository, new TokenKeyring(salted), new ClientSecretRegistry(registration), cache);
+	}
+	
+	@Test
+	public void givenStoreThenLoadedOnceAndDecrypted() {
+		OAuth2AuthorizedClient client = tokenService.getStore("shopify", SHOP);
+		
+		Assert.assertEquals("sample", client.getAccessToken().getTokenValue());
+		Assert.assertSame(client, tokenService.getStore("shopify", SHOP));
+		
+		verify(tokenRepository, times(1)).findTokenForRequest("shopify", SHOP);
+		Assert.assertEquals(1, cache.hitCount());
+	}
+	
+	@Test
+	public void givenConcurrentRequestsForOneShopThenOneQuery() throws Exception {
+		OAuth2AccessTokenWithSalt row = tokenRepository.findTokenForRequest("shopify", SHOP);
+		CountDownLatch queried = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		
+		when(tokenRepository.findTokenForRequest("shopify", SHOP)).thenAnswer(invocation -> {
+			queried.countDown();
+			release.await(5, TimeUnit.SECONDS);
+			return row;
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		
+		try {
+			List<Future<OAuth2AuthorizedClient>> results = new ArrayList<>();
+			results.add(executor.submit(() -> tokenService.getStore("shopify", SHOP)));
+			
+			Assert.assertTrue(queried.await(5, TimeUnit.SECONDS));
+			
+			for(int i = 0; i < 3; i++) {
+				results.add(executor.submit(() -> tokenService.getStore("shopify", SHOP)));
+			}
+			
+			// the other requests are waiting for the query in flight
+			Thread.sleep(100);
+			release.countDown();
+			
+			for(Future<OAuth2AuthorizedClient> result : results) {
+				Assert.assertEquals("sample", result.get(5, TimeUnit.SECONDS).getAccessToken().getTokenValue());
+			}
+			
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		// the first call comes from this test
+		verify(tokenRepository, times(2)).findTokenForRequest("shopify", SHOP);
+	}
+	
+	@Test
+	public void givenUpdateThenCacheIsInvalidated() {
+		tokenService.getStore("shopify", SHOP);
+		
+		OAuth2AuthorizedClient updated = new OAuth2AuthorizedClient(registration, SHOP, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "new-token", null, null));
+		tokenService.updateStore(updated, principal());
+		
+		verify(tokenRepository).updateKey(eq("shopify"), eq(SHOP), any(EncryptedTokenAndSalt.class));
+		Assert.assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void givenUninstallThenCacheIsInvalidated() {
+		tokenService.getStore("shopify", SHOP);
+		
+		tokenService.uninstallStore("shopify", SHOP);
+		when(tokenRepository.findTokenForRequest("shopify", SHOP)).thenReturn(null);
+		
+		Assert.assertNull(tokenService.getStore("shopify", SHOP));
+	}
+	
+	@Test
+	public void givenEnvelopeModeThenNewTokensUseMasterKeyAndOldRowsRemainReadable() {
+		EnvelopeTokenCipher envelope = new EnvelopeTokenCipher(1, "testpassword", "abcdef0123456789");
+		TokenService envelopeService = new TokenService(tokenRepository, new TokenKeyring(envelope, salted), new ClientSecretRegistry(registration), cache);
+		
+		// the existing row was encrypted with a per-row salt
+		Assert.assertEquals("sample", envelopeService.getStore("shopify", SHOP).getAccessToken().getTokenValue());
+		
+		OAuth2AuthorizedClient updated = new OAuth2AuthorizedClient(registration, SHOP, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "new-token", null, null));
+		envelopeService.updateStore(updated, principal());
+		
+		ArgumentCaptor<EncryptedTokenAndSalt> captor = ArgumentCaptor.forClass(EncryptedTokenAndSalt.class);
+		verify(tokenRepository).updateKey(eq("shopify"), eq(SHOP), captor.capture());
+		
+		EncryptedTokenAndSalt saved = captor.getValue();
+		Assert.assertEquals(1, saved.getKeyVersion());
+		Assert.assertEquals("new-token", envelope.decrypt(saved.getEncryptedToken(), saved.getSalt(), "shopify", SHOP));
+	}
+	
+	@Test
+	public void givenUnknownKeyVersionThenNoStore() {
+		OAuth2AccessToken encrypted = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "abc", null, null, Collections.singleton("read_products"));
+		when(tokenRepository.findTokenForRequest("shopify", "other.myshopify.com")).thenReturn(new OAuth2AccessTokenWithSalt(encrypted, "0123", 7));
+		
+		Assert.assertNull(tokenService.getStore("shopify", "other.myshopify.com"));
+	}
+	
+	@Test
+	public void givenRegistrationWithMoreScopesThenStoreMustReauthorize() {
+		ClientRegistration more = TestRegistrations.builder("shopify", "testId", "testSecret").scope("read_products", "write_products").build();
+		
+		OAuth2AuthorizedClient installed = new OAuth2AuthorizedClient(more, SHOP, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null,
+				ScopeRegistry.parse("read_products")));
+		OAuth2AuthorizedClient reinstalled = new OAuth2AuthorizedClient(more, SHOP, new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null,
+				ScopeRegistry.parse("write_products,read_products,read_orders")));
+		
+		Assert.assertFalse(TokenService.hasRequiredScopes(installed));
+		Assert.assertTrue(TokenService.hasRequiredScopes(reinstalled));
+	}
+	
+	@Test
+	public void givenWriteOnlyTokenResponseThenTheReadScopesAreGranted() throws Exception {
+		// the scopes of TestConfig
+		ClientRegistration registration = TestRegistrations.builder("shopify", "testId", "testSecret")
+				.scope("read_inventory", "write_inventory", "read_products", "write_products").build();
+		
+		// what Shopify returns for them, saved to then read from the scope column
+		OAuth2AccessTokenResponse response = tokenResponse("write_inventory,write_products");
+		Set<String> stored = ScopeRegistry.parse(ScopeRegistry.join(response.getAccessToken().getScopes()));
+		
+		Assert.assertEquals(2, stored.size());
+		Assert.assertTrue(TokenService.hasRequiredScopes(new OAuth2AuthorizedClient(registration, SHOP,
+				new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null, stored))));
+		
+		// read_inventory does not stand for write_inventory
+		Set<String> readOnly = tokenResponse("read_inventory,write_products").getAccessToken().getScopes();
+		
+		Assert.assertFalse(TokenService.hasRequiredScopes(new OAuth2AuthorizedClient(registration, SHOP,
+				new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, "token", null, null, readOnly))));
+	}
+	
+	private static OAuth2AccessTokenResponse tokenResponse(String scope) throws IOException {
+		MockHttpInputMessage message = new MockHttpInputMessage(("{\"access_token\": \"f85632530bf277ec9ac6f649fc327f17\",\"scope\": \""
+				+ scope + "\"}").getBytes(StandardCharsets.UTF_8));
+		message.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+		
+		return new CustomShopifyOAuth2AccessTokenResponseHttpMessageConverter().read(OAuth2AccessTokenResponse.class, message);
+	}
+	
+	private OAuth2AuthenticationToken principal() {
+		return new OAuth2AuthenticationToken(new ShopifyStore(SHOP, "new-token", "testId"), null, "shopify");
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.lm.security.session;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import com.lm.security.web.PendingAuthorizationRequests;
+
+/*
+ * Per-call cost of writing and reading the session attributes spring-session saves to Redis, with Java
+ * serialization (jdk*) and CompactSessionSerializer (compact*):
+ *
+ * 	*Context: the SecurityContext of an installed store (OAuth2AuthenticationToken, ShopifyStore)
+ * 	*Pending: 3 pending OAuth2AuthorizationRequests
+ *
+ * main(...) prints the serialized sizes first. Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompactSessionSerializerBenchmark {
+
+	private RedisSerializer<Object> jdk = new JdkSerializationRedisSerializer();
+	private RedisSerializer<Object> compact = new CompactSessionSerializer();
+
+	private SecurityContextImpl context = CompactSessionSerializerTest.securityContext();
+	private PendingAuthorizationRequests pending = pending();
+
+	private byte[] jdkContext = jdk.serialize(context);
+	private byte[] compactContext = compact.serialize(context);
+	private byte[] jdkPending = jdk.serialize(pending);
+	private byte[] compactPending = compact.serialize(pending);
+
+	@Benchmark
+	public byte[] jdkWriteContext() {
+		return jdk.serialize(context);
+	}
+
+	@Benchmark
+	public byte[] compactWriteContext() {
+		return compact.serialize(context);
+	}
+
+	@Benchmark
+	public Object jdkReadContext() {
+		return jdk.deserialize(jdkContext);
+	}
+
+	@Benchmark
+	public Object compactReadContext() {
+		return compact.deserialize(compactContext);
+	}
+
+	@Benchmark
+	public byte[] jdkWritePending() {
+		return jdk.serialize(pending);
+	}
+
+	@Benchmark
+	public byte[] compactWritePending() {
+		return compact.serialize(pending);
+	}
+
+	@Benchmark
+	public Object jdkReadPending() {
+		return jdk.deserialize(jdkPending);
+	}
+
+	@Benchmark
+	public Object compactReadPending() {
+		return compact.deserialize(compactPending);
+	}
+
+	private static PendingAuthorizationRequests pending() {
+		PendingAuthorizationRequests pending = new PendingAuthorizationRequests(5, TimeUnit.MINUTES.toMillis(10));
+
+		for(String state : new String[] { "c2a4DSlK3v3pW_Ov1Q6uwJ", "HbYbN5mb8Pzzv9L-bKyXk4", "Y2OT0aJ6KOf0tumZzVUMWb" }) {
+			pending.save(state, CompactSessionSerializerTest.authorizationRequest(state));
+		}
+
+		return pending;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		CompactSessionSerializerBenchmark sizes = new CompactSessionSerializerBenchmark();
+
+		System.out.println("SecurityContext: jdk " + sizes.jdkContext.length + " bytes, compact " + sizes.compactContext.length + " bytes");
+		System.out.println("Pending requests: jdk " + sizes.jdkPending.length + " bytes, compact " + sizes.compactPending.length + " bytes");
+		System.out.println("Long: jdk " + sizes.jdk.serialize(System.currentTimeMillis()).length + " bytes, compact "
+				+ sizes.compact.serialize(System.currentTimeMillis()).length + " bytes");
+
+		new Runner(new OptionsBuilder()
+				.include(CompactSessionSerializerBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.lm.security.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+import com.lm.security.service.ShopifyStore;
+import com.lm.security.web.PendingAuthorizationRequests;
+
+public class CompactSessionSerializerTest {
+
+	private final CompactSessionSerializer serializer = new CompactSessionSerializer();
+	private final JdkSerializationRedisSerializer jdk = new JdkSerializationRedisSerializer();
+
+	@Test
+	public void givenSecurityContextThenItIsReadBack() {
+		SecurityContextImpl context = securityContext();
+
+		byte[] bytes = serializer.serialize(context);
+		SecurityContextImpl read = (SecurityContextImpl)serializer.deserialize(bytes);
+
+		OAuth2AuthenticationToken token = (OAuth2AuthenticationToken)read.getAuthentication();
+		ShopifyStore store = (ShopifyStore)token.getPrincipal();
+
+		Assert.assertEquals(CompactSessionSerializer.MAGIC, bytes[0]);
+		Assert.assertEquals("shopify", token.getAuthorizedClientRegistrationId());
+		Assert.assertTrue(token.isAuthenticated());
+		Assert.assertEquals(context.getAuthentication().getDetails(), token.getDetails());
+		Assert.assertEquals("lmdev.myshopify.com", store.getName());
+		Assert.assertEquals("access-token", store.getAttributes().get(ShopifyStore.ACCESS_TOKEN_KEY));
+		Assert.assertEquals("testId", store.getAttributes().get(ShopifyStore.API_KEY));
+		Assert.assertEquals(Arrays.asList(new SimpleGrantedAuthority("ROLE_USER")), new ArrayList<>(token.getAuthorities()));
+
+		Assert.assertTrue(bytes.length * 2 < jdk.serialize(context).length);
+	}
+
+	@Test
+	public void givenPendingAuthorizationRequestsThenTheyAreReadBackInOrder() {
+		PendingAuthorizationRequests requests = new PendingAuthorizationRequests(3, 600_000);
+		requests.save("b", authorizationRequest("b"));
+		requests.save("a", authorizationRequest("a"));
+
+		PendingAuthorizationRequests read = (PendingAuthorizationRequests)serializer.deserialize(serializer.serialize(requests));
+
+		Assert.assertEquals(Arrays.asList("b", "a"), new ArrayList<>(read.keySet()));
+		Assert.assertEquals(3, read.getCapacity());
+		Assert.assertEquals(600_000, read.getTtlMillis());
+		Assert.assertEquals(requests.getSavedAt("b"), read.getSavedAt("b"));
+
+		OAuth2AuthorizationRequest expected = requests.get("a");
+		OAuth2AuthorizationRequest actual = read.get("a");
+
+		Assert.assertEquals(expected.getAuthorizationUri(), actual.getAuthorizationUri());
+		Assert.assertEquals(expected.getGrantType(), actual.getGrantType());
+		Assert.assertEquals(expected.getClientId(), actual.getClientId());
+		Assert.assertEquals(expected.getRedirectUri(), actual.getRedirectUri());
+		Assert.assertEquals(new ArrayList<>(expected.getScopes()), new ArrayList<>(actual.getScopes()));
+		Assert.assertEquals(expected.getAdditionalParameters(), actual.getAdditionalParameters());
+		Assert.assertEquals(expected.getAuthorizationRequestUri(), actual.getAuthorizationRequestUri());
+	}
+
+	@Test
+	public void givenSimpleValuesThenTheCompactFormatIsUsed() {
+		for(Object value : new Object[] { "value", 1_560_000_000_000L, -1800, Boolean.TRUE }) {
+			byte[] bytes = serializer.serialize(value);
+
+			Assert.assertEquals(CompactSessionSerializer.MAGIC, bytes[0]);
+			Assert.assertTrue(bytes.length < jdk.serialize(value).length);
+			Assert.assertEquals(value, serializer.deserialize(bytes));
+
+			// and values written before are read
+			Assert.assertEquals(value, serializer.deserialize(jdk.serialize(value)));
+		}
+	}
+
+	@Test
+	public void givenUnknownValuesThenJavaSerializationIsUsed() {
+		// unknown types are written as before
+		HashMap<String, String> map = new HashMap<>();
+		map.put("key", "value");
+		Assert.assertArrayEquals(jdk.serialize(map), serializer.serialize(map));
+
+		// and values written before are read
+		SecurityContextImpl context = securityContext();
+		Assert.assertEquals(context.getAuthentication().getName(), ((SecurityContextImpl)serializer.deserialize(jdk.serialize(context))).getAuthentication().getName());
+
+		Assert.assertEquals(0, serializer.serialize(null).length);
+		Assert.assertNull(serializer.deserialize(new byte[0]));
+	}
+
+	@Test
+	public void givenUnknownVersionOrCorruptedValueThenItIsRejected() {
+		byte[] bytes = serializer.serialize(securityContext());
+
+		byte[] otherVersion = bytes.clone();
+		otherVersion[1] = CompactSessionSerializer.VERSION + 1;
+
+		for(byte[] invalid : new byte[][] { otherVersion, Arrays.copyOf(bytes, bytes.length - 1), Arrays.copyOf(bytes, bytes.length + 1) }) {
+			try {
+				serializer.deserialize(invalid);
+				Assert.fail();
+			} catch (SerializationException ex) {
+				// expected
+			}
+		}
+	}
+
+	static SecurityContextImpl securityContext() {
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put(ShopifyStore.ACCESS_TOKEN_KEY, "access-token");
+		attributes.put(ShopifyStore.API_KEY, "testId");
+
+		ShopifyStore store = new ShopifyStore("lmdev.myshopify.com", Arrays.asList(new SimpleGrantedAuthority("ROLE_USER")), attributes);
+		OAuth2AuthenticationToken token = new OAuth2AuthenticationToken(store, store.getAuthorities(), "shopify");
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("10.0.0.1");
+		token.setDetails(new WebAuthenticationDetails(request));
+
+		return new SecurityContextImpl(token);
+	}
+
+	static OAuth2AuthorizationRequest authorizationRequest(String state) {
+		Map<String, Object> additionalParameters = new HashMap<>();
+		additionalParameters.put(OAuth2ParameterNames.REGISTRATION_ID, "shopify");
+		additionalParameters.put("shop", "lmdev.myshopify.com");
+
+		return OAuth2AuthorizationRequest.authorizationCode()
+				.clientId("testId")
+				.authorizationUri("https://lmdev.myshopify.com/admin/oauth/authorize")
+				.redirectUri("https://localhost/login/app/oauth2/code/shopify")
+				.scope("read_inventory", "write_inventory", "read_products", "write_products")
+				.state(state)
+				.additionalParameters(additionalParameters)
+				.authorizationRequestUri("/init")
+				.build();
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.lm.security.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+import com.lm.security.session.CompactSessionSerializer;
+
+public class PendingAuthorizationRequestsTest {
+
+	private long now = 1_000_000;
+
+	@Test
+	public void givenFullMapThenTheOldestIsEvicted() {
+		PendingAuthorizationRequests requests = new PendingAuthorizationRequests(2, 1000, () -> now);
+
+		Assert.assertEquals(0, requests.save("a", request("a")));
+		Assert.assertEquals(0, requests.save("b", request("b")));
+
+		// reading a does not make it newer
+		Assert.assertNotNull(requests.get("a"));
+		Assert.assertEquals(1, requests.save("c", request("c")));
+
+		Assert.assertEquals(2, requests.size());
+		Assert.assertNull(requests.get("a"));
+		Assert.assertEquals("c", requests.newest().getKey());
+
+		// saving a state again evicts nothing
+		Assert.assertEquals(0, requests.save("c", request("c")));
+	}
+
+	@Test
+	public void givenExpiredRequestThenItIsNotReturned() {
+		PendingAuthorizationRequests requests = new PendingAuthorizationRequests(5, 1000, () -> now);
+		requests.save("a", request("a"));
+		now += 500;
+		requests.save("b", request("b"));
+
+		now += 501;
+		Assert.assertNull(requests.get("a"));
+		Assert.assertFalse(requests.containsKey("a"));
+		Assert.assertNotNull(requests.get("b"));
+
+		// reading an expired request does not remove it
+		Assert.assertEquals(2, requests.size());
+
+		now += 500;
+		Assert.assertNull(requests.newest());
+		Assert.assertNull(requests.remove("b"));
+		Assert.assertEquals(1, requests.removeExpired());
+		Assert.assertTrue(requests.isEmpty());
+	}
+
+	@Test
+	public void givenSerializedMapThenItStillExpires() throws Exception {
+		PendingAuthorizationRequests requests = new PendingAuthorizationRequests(5, 1000);
+		requests.save("a", request("a"));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(requests);
+		}
+
+		PendingAuthorizationRequests read;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			read = (PendingAuthorizationRequests) in.readObject();
+		}
+
+		Assert.assertEquals("a", read.get("a").getState());
+		Assert.assertEquals(0, read.removeExpired());
+	}
+
+	@Test
+	public void givenSessionThenRequestsAreBoundedAndRemovedAtTheCallback() {
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository = new ShopifyHttpSessionOAuth2AuthorizationRequestRepository("/install", 2, 10, TimeUnit.MINUTES);
+		MockHttpSession session = new MockHttpSession();
+
+		for(String state : new String[] { "a", "b", "c" }) {
+			repository.saveAuthorizationRequest(request(state), install(session));
+		}
+
+		Assert.assertEquals(3, repository.saveCount());
+		Assert.assertEquals(1, repository.sizeEvictionCount());
+		Assert.assertEquals(1, repository.payloadSampleCount());
+		Assert.assertTrue(repository.payloadBytes() > 0);
+		Assert.assertEquals(2, repository.getAuthorizationRequests(install(session)).size());
+
+		// the newest, unless the state says otherwise
+		Assert.assertEquals("c", repository.getFirstAuthorizationRequest(install(session)).getKey());
+		Assert.assertEquals("b", repository.getFirstAuthorizationRequest(callback(session, "b")).getKey());
+
+		Assert.assertEquals("b", repository.removeAuthorizationRequest(callback(session, "b"), new MockHttpServletResponse()).getState());
+		Assert.assertNull(repository.loadAuthorizationRequest(callback(session, "b")));
+		Assert.assertEquals("c", repository.removeAuthorizationRequest(callback(session, "c"), new MockHttpServletResponse()).getState());
+		Assert.assertNull(session.getAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME));
+	}
+
+	@Test
+	public void givenSessionSerializerThenThePayloadIsMeasuredWithIt() {
+		MockHttpSession session = new MockHttpSession();
+		CompactSessionSerializer compact = new CompactSessionSerializer();
+
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository = new ShopifyHttpSessionOAuth2AuthorizationRequestRepository("/install", 2, 10, TimeUnit.MINUTES);
+		repository.setPayloadSerializer(compact);
+		repository.saveAuthorizationRequest(request("a"), install(session));
+
+		Object attribute = session.getAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
+		Assert.assertEquals(compact.serialize(attribute).length, repository.payloadBytes());
+
+		// by default, Java serialization
+		repository = new ShopifyHttpSessionOAuth2AuthorizationRequestRepository("/install", 2, 10, TimeUnit.MINUTES);
+		repository.saveAuthorizationRequest(request("a"), install(new MockHttpSession()));
+
+		Assert.assertEquals(new JdkSerializationRedisSerializer().serialize(attribute).length, repository.payloadBytes());
+	}
+
+	@Test
+	public void givenMapOfAnOlderVersionThenItIsConverted() {
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository = new ShopifyHttpSessionOAuth2AuthorizationRequestRepository("/install");
+		MockHttpSession session = new MockHttpSession();
+		Map<String, OAuth2AuthorizationRequest> legacy = new HashMap<>();
+		legacy.put("a", request("a"));
+		session.setAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME, legacy);
+
+		Assert.assertEquals("a", repository.loadAuthorizationRequest(callback(session, "a")).getState());
+		Assert.assertSame(legacy, session.getAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME));
+
+		// replaced at the next change
+		repository.saveAuthorizationRequest(request("b"), install(session));
+
+		PendingAuthorizationRequests converted = (PendingAuthorizationRequests)session.getAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
+		Assert.assertEquals(2, converted.size());
+		Assert.assertEquals(1, legacy.size());
+	}
+
+	@Test
+	public void givenReadsThenTheSessionAttributeIsUnchanged() {
+		ShopifyHttpSessionOAuth2AuthorizationRequestRepository repository = new ShopifyHttpSessionOAuth2AuthorizationRequestRepository("/install", 2, 10, TimeUnit.MINUTES);
+		MockHttpSession session = new MockHttpSession();
+		repository.saveAuthorizationRequest(request("a"), install(session));
+		repository.saveAuthorizationRequest(request("b"), install(session));
+
+		PendingAuthorizationRequests saved = (PendingAuthorizationRequests)session.getAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME);
+
+		Assert.assertEquals("a", repository.loadAuthorizationRequest(callback(session, "a")).getState());
+		Assert.assertEquals("b", repository.getFirstAuthorizationRequest(install(session)).getKey());
+		Assert.assertNull(repository.removeAuthorizationRequest(callback(session, "unknown"), new MockHttpServletResponse()));
+		Assert.assertSame(saved, session.getAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME));
+
+		// changes replace the attribute: the instance other requests may be reading is left as it was
+		repository.saveAuthorizationRequest(request("c"), install(session));
+		repository.removeAuthorizationRequest(callback(session, "b"), new MockHttpServletResponse());
+
+		Assert.assertEquals(2, saved.size());
+		Assert.assertEquals(Collections.singleton("c"),
+				((PendingAuthorizationRequests)session.getAttribute(ShopifyHttpSessionOAuth2AuthorizationRequestRepository.DEFAULT_AUTHORIZATION_REQUEST_ATTR_NAME)).keySet());
+	}
+
+	private static OAuth2AuthorizationRequest request(String state) {
+		return OAuth2AuthorizationRequest.authorizationCode()
+				.clientId("testId")
+				.authorizationUri("https://lmdev.myshopify.com/admin/oauth/authorize")
+				.redirectUri("https://localhost/login/app/oauth2/code/shopify")
+				.state(state)
+				.build();
+	}
+
+	private static MockHttpServletRequest install(MockHttpSession session) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/install/shopify");
+		request.setSession(session);
+
+		return request;
+	}
+
+	private static MockHttpServletRequest callback(MockHttpSession session, String state) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/login/app/oauth2/code/shopify");
+		request.setSession(session);
+		request.setParameter(OAuth2ParameterNames.STATE, state);
+
+		return request;
+	}
+
+}
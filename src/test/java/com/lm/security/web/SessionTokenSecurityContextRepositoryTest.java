@@ -0,0 +1,66 @@
+package com.lm.security.web;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+
+public class SessionTokenSecurityContextRepositoryTest {
+
+	private SessionTokenSecurityContextRepository repository = new SessionTokenSecurityContextRepository();
+
+	@Test
+	public void givenSessionTokenThenTheContextComesFromTheRequest() {
+		TestingAuthenticationToken authentication = new TestingAuthenticationToken("lmdev.myshopify.com", null, "ROLE_USER");
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE, authentication);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, response);
+		SecurityContext context = repository.loadContext(holder);
+
+		Assert.assertSame(authentication, context.getAuthentication());
+		Assert.assertTrue(repository.containsContext(request));
+
+		repository.saveContext(context, holder.getRequest(), holder.getResponse());
+
+		// the context is never saved: no session was created
+		Assert.assertNull(request.getSession(false));
+	}
+
+	@Test
+	public void givenNoSessionTokenThenTheSessionIsUsed() {
+		TestingAuthenticationToken authentication = new TestingAuthenticationToken("lmdev.myshopify.com", null, "ROLE_USER");
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, response);
+		SecurityContext context = repository.loadContext(holder);
+
+		Assert.assertNull(context.getAuthentication());
+		Assert.assertFalse(repository.containsContext(request));
+
+		context.setAuthentication(authentication);
+		repository.saveContext(context, holder.getRequest(), holder.getResponse());
+
+		SecurityContext saved = (SecurityContext)request.getSession(false).getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY);
+		Assert.assertSame(authentication, saved.getAuthentication());
+		Assert.assertTrue(repository.containsContext(request));
+	}
+
+	@Test
+	public void givenOtherAttributeValueThenItIsIgnored() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setAttribute(SessionTokenSecurityContextRepository.AUTHENTICATION_ATTRIBUTE, "lmdev.myshopify.com");
+
+		Assert.assertNull(repository.loadContext(new HttpRequestResponseHolder(request, new MockHttpServletResponse())).getAuthentication());
+		Assert.assertFalse(repository.containsContext(request));
+	}
+
+}
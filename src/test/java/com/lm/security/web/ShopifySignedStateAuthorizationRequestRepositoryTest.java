@@ -0,0 +1,149 @@
+package com.lm.security.web;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AuthorizationRequest;
+import org.springframework.security.oauth2.core.endpoint.OAuth2ParameterNames;
+
+import com.lm.security.TestRegistrations;
+import com.lm.security.authentication.ClientSecretRegistry;
+import com.lm.security.authentication.ShopifyVerificationStrategy;
+import com.lm.security.crypto.HmacEngine;
+
+public class ShopifySignedStateAuthorizationRequestRepositoryTest {
+
+	private static final String SHOP = "lmdev.myshopify.com";
+	private static final String REDIRECT_URI = "https://localhost/login/app/oauth2/code/shopify";
+
+	private ClientRegistration registration;
+	private ClientSecretRegistry registry;
+	private long now = 1_000_000;
+	private ShopifySignedStateAuthorizationRequestRepository repository;
+
+	@Before
+	public void startup() {
+		this.registration = TestRegistrations.builder("shopify", "testId", "testSecret").scope("read_products", "write_products").build();
+		this.registry = new ClientSecretRegistry(registration);
+
+		this.repository = new ShopifySignedStateAuthorizationRequestRepository("/install", registry, new HmacEngine("state-secret"),
+				10, TimeUnit.MINUTES, 2, () -> now);
+	}
+
+	@Test
+	public void givenStateThenTheRequestIsRebuiltWithoutASession() {
+		String state = repository.generateState(registration, SHOP, REDIRECT_URI);
+		MockHttpServletRequest request = callback(state);
+
+		OAuth2AuthorizationRequest authorizationRequest = repository.loadAuthorizationRequest(request);
+
+		Assert.assertEquals(state, authorizationRequest.getState());
+		Assert.assertEquals("testId", authorizationRequest.getClientId());
+		Assert.assertEquals("https://" + SHOP + "/admin/oauth/authorize", authorizationRequest.getAuthorizationUri());
+		Assert.assertEquals(REDIRECT_URI, authorizationRequest.getRedirectUri());
+		Assert.assertEquals(registration.getScopes(), authorizationRequest.getScopes());
+		Assert.assertEquals(SHOP, authorizationRequest.getAdditionalParameters().get(ShopifyOAuth2AuthorizationRequestResolver.SHOPIFY_SHOP_PARAMETER_KEY_FOR_TOKEN));
+		Assert.assertEquals("shopify", authorizationRequest.getAdditionalParameters().get(OAuth2ParameterNames.REGISTRATION_ID));
+
+		// verified once per request
+		Assert.assertSame(authorizationRequest, repository.removeAuthorizationRequest(request, new MockHttpServletResponse()));
+		Assert.assertEquals(state, repository.getFirstAuthorizationRequest(request).getKey());
+
+		repository.saveAuthorizationRequest(authorizationRequest, request);
+		Assert.assertNull(request.getSession(false));
+
+		// no two states are the same
+		Assert.assertNotEquals(state, repository.generateState(registration, SHOP, REDIRECT_URI));
+	}
+
+	@Test
+	public void givenStateThenTheNonceIsValid() {
+		String state = repository.generateState(registration, SHOP, REDIRECT_URI);
+		ShopifyVerificationStrategy strategy = new ShopifyVerificationStrategy(registry, repository);
+
+		Assert.assertTrue(strategy.hasValidNonce(callback(state)));
+		Assert.assertFalse(strategy.hasValidNonce(callback(state.substring(1))));
+		Assert.assertFalse(strategy.hasValidNonce(callback("random")));
+		Assert.assertFalse(strategy.hasValidNonce(callback("")));
+	}
+
+	@Test
+	public void givenTamperedStateThenItIsRejected() {
+		String state = repository.generateState(registration, SHOP, REDIRECT_URI);
+		char[] chars = state.toCharArray();
+
+		for(int i = 0; i < chars.length; i++) {
+			char original = chars[i];
+			chars[i] = original == 'A' ? 'B' : 'A';
+
+			Assert.assertNull(repository.decode(new String(chars)));
+
+			chars[i] = original;
+		}
+
+		// signed with another key
+		ShopifySignedStateAuthorizationRequestRepository other = new ShopifySignedStateAuthorizationRequestRepository("/install", registry,
+				new HmacEngine("other-secret"), 10, TimeUnit.MINUTES, 2, () -> now);
+
+		Assert.assertNull(repository.decode(other.generateState(registration, SHOP, REDIRECT_URI)));
+		Assert.assertNotNull(repository.decode(state));
+	}
+
+	@Test
+	public void givenExpiredStateThenItIsRejected() {
+		String state = repository.generateState(registration, SHOP, REDIRECT_URI);
+
+		now += TimeUnit.MINUTES.toSeconds(10);
+		Assert.assertNotNull(repository.decode(state));
+
+		now += 1;
+		Assert.assertNull(repository.decode(state));
+	}
+
+	@Test
+	public void givenUsedStateThenItCannotBeReplayed() {
+		String state = repository.generateState(registration, SHOP, REDIRECT_URI);
+
+		Assert.assertNotNull(repository.removeAuthorizationRequest(callback(state), new MockHttpServletResponse()));
+
+		MockHttpServletRequest replay = callback(state);
+		Assert.assertNull(repository.loadAuthorizationRequest(replay));
+		Assert.assertNull(repository.removeAuthorizationRequest(replay, new MockHttpServletResponse()));
+
+		// forgotten once it expired
+		now += TimeUnit.MINUTES.toSeconds(10) + 1;
+		repository.removeAuthorizationRequest(callback(repository.generateState(registration, SHOP, REDIRECT_URI)), new MockHttpServletResponse());
+
+		Assert.assertEquals(1, repository.usedStateCount());
+	}
+
+	@Test
+	public void givenTooManyUsedStatesThenCallbacksAreRejected() {
+		for(int i = 0; i < 2; i++) {
+			Assert.assertNotNull(repository.removeAuthorizationRequest(callback(repository.generateState(registration, SHOP, REDIRECT_URI)), new MockHttpServletResponse()));
+		}
+
+		Assert.assertNull(repository.removeAuthorizationRequest(callback(repository.generateState(registration, SHOP, REDIRECT_URI)), new MockHttpServletResponse()));
+	}
+
+	@Test
+	public void givenUnknownRegistrationThenItIsRejected() {
+		ClientRegistration removed = TestRegistrations.registration("removed", "removedId", "removedSecret");
+
+		Assert.assertNull(repository.decode(repository.generateState(removed, SHOP, REDIRECT_URI)));
+	}
+
+	private static MockHttpServletRequest callback(String state) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/login/app/oauth2/code/shopify");
+		request.setServletPath("/login/app/oauth2/code/shopify");
+		request.setParameter(OAuth2ParameterNames.STATE, state);
+
+		return request;
+	}
+
+}
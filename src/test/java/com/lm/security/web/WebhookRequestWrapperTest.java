@@ -0,0 +1,129 @@
+package com.lm.security.web;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.lm.security.crypto.HmacEngine;
+
+public class WebhookRequestWrapperTest {
+	
+	private HmacEngine engine = new HmacEngine("dfdfbjhew");
+	
+	private String body = "{\"shop_id\": 954889,\"shop_domain\": \"snowdevil.myshopify.com\"}";
+
+	
+	@Test
+	public void givenBodyThenDigestMatchesAndBodyIsReplayed() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/store/uninstall/shopify");
+		request.setContent(body.getBytes(StandardCharsets.UTF_8));
+		
+		// the engine's Mac is per thread, so compute the expected digest first
+		byte[] expected = engine.digest(body).clone();
+		
+		WebhookRequestWrapper webhook = new WebhookRequestWrapper(request);
+		Mac mac = engine.begin();
+		
+		Assert.assertTrue(webhook.readBody(mac));
+		Assert.assertArrayEquals(expected, engine.finish(mac));
+		
+		Assert.assertEquals(body, IOUtils.toString(webhook.getInputStream(), StandardCharsets.UTF_8));
+		Assert.assertEquals(body, IOUtils.toString(webhook.getReader()));
+		
+		webhook.release();
+	}
+	
+	@Test
+	public void givenBodyLargerThanBufferThenWholeBodyIsRead() throws Exception {
+		byte[] large = new byte[20000];
+		Arrays.fill(large, (byte)'a');
+		
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/store/uninstall/shopify");
+		request.setContent(large);
+		
+		byte[] expected = engine.digest(large, 0, large.length).clone();
+		
+		WebhookRequestWrapper webhook = new WebhookRequestWrapper(request);
+		Mac mac = engine.begin();
+		
+		Assert.assertTrue(webhook.readBody(mac));
+		Assert.assertArrayEquals(expected, engine.finish(mac));
+		Assert.assertArrayEquals(large, IOUtils.toByteArray(webhook.getInputStream()));
+		
+		webhook.release();
+	}
+	
+	@Test
+	public void givenBodyLargerThanMaximumThenRejected() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/store/uninstall/shopify");
+		request.setContent(body.getBytes(StandardCharsets.UTF_8));
+		
+		WebhookRequestWrapper webhook = new WebhookRequestWrapper(request, 10);
+		
+		Assert.assertFalse(webhook.readBody(engine.begin()));
+		
+		webhook.release();
+	}
+	
+	@Test
+	public void givenBodyNotReadThenDelegatesToRequest() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/store/uninstall/shopify");
+		request.setContent(body.getBytes(StandardCharsets.UTF_8));
+		
+		WebhookRequestWrapper webhook = new WebhookRequestWrapper(request);
+		
+		Assert.assertEquals(body, IOUtils.toString(webhook.getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void givenReadListenerThenTheBodyIsReadAsynchronously() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/store/uninstall/shopify");
+		request.setContent(body.getBytes(StandardCharsets.UTF_8));
+		
+		WebhookRequestWrapper webhook = new WebhookRequestWrapper(request);
+		webhook.readBody(engine.begin());
+		
+		ServletInputStream in = webhook.getInputStream();
+		StringBuilder read = new StringBuilder();
+		List<String> events = new ArrayList<>();
+		
+		in.setReadListener(new ReadListener() {
+			
+			@Override
+			public void onDataAvailable() throws IOException {
+				events.add("available");
+				
+				while(in.isReady() && !in.isFinished()) {
+					read.append((char)in.read());
+				}
+			}
+			
+			@Override
+			public void onAllDataRead() {
+				events.add("all");
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				events.add("error");
+			}
+		});
+		
+		Assert.assertEquals(body, read.toString());
+		Assert.assertEquals(Arrays.asList("available", "all"), events);
+		
+		webhook.release();
+	}
+	
+}